@@ -55,7 +55,11 @@ public abstract class AbstractAudioHandler {
 
     public abstract UploadingFileItem writeUploadingFile(ChannelHandlerContext ctx, ByteBuf buf);
 
-    public abstract void addUploadingFile(ChannelHandlerContext ctx, Map<String, Object> data);
+    /**
+     * @return the upload, already finished if the content was in the stimulus cache, or null if the transfer is
+     * already in progress
+     */
+    public abstract UploadingFileItem addUploadingFile(ChannelHandlerContext ctx, Map<String, Object> data);
 
     public File getBaseDir() {
         return baseDir;
@@ -4,6 +4,8 @@ import java.io.File;
 
 public interface AudioEventListener {
     default void onRecordStart() {};
+    // samples just written to the output file, on the recording thread
+    default void onRecordData(byte[] buffer, int length) {};
     default void onRecordStop(File outputFile) {};
 
     default void onPlaybackStart() {};
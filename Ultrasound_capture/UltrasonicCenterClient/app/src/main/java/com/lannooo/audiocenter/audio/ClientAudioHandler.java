@@ -3,6 +3,7 @@ package com.lannooo.audiocenter.audio;
 import android.content.Context;
 import android.util.Log;
 
+import com.lannooo.audiocenter.client.FrameSettings;
 import com.lannooo.audiocenter.tool.AppUtil;
 
 import java.io.File;
@@ -98,16 +99,21 @@ public class ClientAudioHandler extends AbstractAudioHandler {
 
     @Override
     public UploadingFileItem writeUploadingFile(ChannelHandlerContext ctx, ByteBuf buf) {
-        return fileUploadManager.writeChunk(Objects.requireNonNull(remoteKey), buf);
+        return fileUploadManager.writeChunk(Objects.requireNonNull(remoteKey), FrameSettings.of(ctx.channel()), buf);
     }
 
     @Override
-    public void addUploadingFile(ChannelHandlerContext ctx, Map<String, Object> data) {
+    public UploadingFileItem addUploadingFile(ChannelHandlerContext ctx, Map<String, Object> data) {
         String savePath = getBaseDir().getAbsolutePath();
-        long chunks = (long) (double) Objects.requireNonNull(data.get("chunks"));
-        long length = (long) (double) Objects.requireNonNull(data.get("length"));
+        long chunks = ((Number) Objects.requireNonNull(data.get("chunks"))).longValue();
+        long length = ((Number) Objects.requireNonNull(data.get("length"))).longValue();
         String filename = (String) data.get("filepath");
-        fileUploadManager.addTask(Objects.requireNonNull(remoteKey), savePath, filename, chunks, length);
+        // only meaningful if the chunks carry it, otherwise the server sends one file at a time
+        Object transferId = data.get("transfer_id");
+        int id = FrameSettings.of(ctx.channel()).isTransferIds() && transferId instanceof Number
+                ? ((Number) transferId).intValue() : 0;
+        return fileUploadManager.addTask(Objects.requireNonNull(remoteKey), id, savePath, filename, chunks, length,
+                (String) data.get("sha256"));
     }
 
     public void cacheServerChannel(ChannelHandlerContext ctx) {
@@ -120,6 +126,10 @@ public class ClientAudioHandler extends AbstractAudioHandler {
     }
 
     public void clearServerChannel() {
+        if (remoteKey != null) {
+            // unfinished downloads from the server cannot be resumed on another connection
+            fileUploadManager.removeTask(remoteKey);
+        }
         this.remoteChannel = null;
         this.remoteKey = null;
     }
@@ -119,6 +119,9 @@ public class CustomAudioRecorder implements AudioRecorder {
                 if (read > 0) {
                     try {
                         fos.write(buffer, 0, read);
+                        if (listener != null) {
+                            listener.onRecordData(buffer, read);
+                        }
                     } catch (IOException e) {
                         Log.e(TAG, "Error writing audio data", e);
                         stop();
@@ -2,7 +2,15 @@ package com.lannooo.audiocenter.audio;
 
 import android.util.Log;
 
+import com.lannooo.audiocenter.client.FrameSettings;
+import com.lannooo.audiocenter.tool.AppUtil;
+import com.lannooo.audiocenter.tool.Crc32c;
+
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -11,8 +19,10 @@ import io.netty.buffer.ByteBuf;
 public class FileUploadManager {
     private static final String TAG = "FileUploadManager";
 
-    // temporary store the uploading file items in the manager
+    // temporary store the uploading file items in the manager, "key#transferId" -> item
     private final Map<String, UploadingFileItem> uploadingFiles;
+    // the files received so far by their content, see StimulusCache
+    private StimulusCache cache;
 
     public FileUploadManager() {
         this.uploadingFiles = new ConcurrentHashMap<>(16);
@@ -22,50 +32,124 @@ public class FileUploadManager {
         return !uploadingFiles.isEmpty();
     }
 
+    /**
+     * Drop all uploads of the connection.
+     */
     public void removeTask(String key) {
-        _removeAndRelease(key);
+        String prefix = key + "#";
+        List<String> taskKeys = new ArrayList<>();
+        for (String taskKey : uploadingFiles.keySet()) {
+            if (taskKey.startsWith(prefix)) {
+                taskKeys.add(taskKey);
+            }
+        }
+        for (String taskKey : taskKeys) {
+            _removeAndRelease(taskKey);
+        }
     }
 
-    public void addTask(String key, String baseDir, String filename, long chunks, long length) {
+    /**
+     * @param transferId id of the transfer in the chunk headers, 0 for servers that send one file at a time
+     * @param sha256 digest of the content, announced by servers that ask for the cache; null otherwise
+     * @return the upload, already finished if the content was here, or null if the transfer is already in progress
+     */
+    public UploadingFileItem addTask(String key, int transferId, String baseDir, String filename, long chunks,
+                                     long length, String sha256) {
         UploadingFileItem fileItem = new UploadingFileItem(baseDir, filename, chunks, length);
-        uploadingFiles.putIfAbsent(key, fileItem);
+        fileItem.setSha256(sha256);
+        String taskKey = taskKey(key, transferId);
+        UploadingFileItem existing = uploadingFiles.get(taskKey);
+        if (existing == null && sha256 != null) {
+            File localFile = new File(fileItem.getLocalFilename());
+            if (cacheOf(localFile).restore(sha256, localFile)) {
+                Log.i(TAG, "File upload taken from the cache: " + fileItem.getRemoteFilename() + " -> " + fileItem.getLocalFilename());
+                return fileItem.finished();
+            }
+        }
+        if (existing != null || (existing = uploadingFiles.putIfAbsent(taskKey, fileItem)) != null) {
+            Log.w(TAG, "Upload " + transferId + " already in progress: " + existing.getRemoteFilename());
+            return null;
+        }
+        return fileItem;
+    }
+
+    private synchronized StimulusCache cacheOf(File localFile) {
+        File dir = localFile.getAbsoluteFile().getParentFile();
+        if (cache == null || !cache.getDir().equals(dir)) {
+            cache = new StimulusCache(dir);
+        }
+        return cache;
+    }
+
+    /**
+     * Check the received file against the digest the server announced, and index it by its content.
+     */
+    private UploadingFileItem complete(UploadingFileItem fileItem) {
+        File localFile = new File(fileItem.getLocalFilename());
+        try {
+            String sha256 = AppUtil.sha256Hex(localFile);
+            if (fileItem.getSha256() != null && !fileItem.getSha256().equalsIgnoreCase(sha256)) {
+                Log.e(TAG, "Digest mismatch of " + fileItem.getRemoteFilename() + ": " + sha256 + " received");
+                Files.deleteIfExists(localFile.toPath());
+                return fileItem.failed();
+            }
+            cacheOf(localFile).add(localFile, sha256);
+        } catch (IOException e) {
+            // only sent again next time
+            Log.w(TAG, "Failed to index " + fileItem.getLocalFilename() + ": " + e.getMessage());
+        }
+        Log.i(TAG, "File upload finished: " + fileItem.getRemoteFilename() + " -> " + fileItem.getLocalFilename());
+        return fileItem.finished();
     }
 
-    private void _removeAndRelease(String key) {
-        UploadingFileItem removed = uploadingFiles.remove(key);
+    private void _removeAndRelease(String taskKey) {
+        UploadingFileItem removed = uploadingFiles.remove(taskKey);
         if (removed != null) {
             removed.close();
         }
     }
 
-    public UploadingFileItem writeChunk(String key, ByteBuf chunkBuf) {
-        UploadingFileItem fileItem = uploadingFiles.get(key);
+    /**
+     * @param settings the chunk header layout negotiated for the channel
+     */
+    public UploadingFileItem writeChunk(String key, FrameSettings settings, ByteBuf chunkBuf) {
+        int transferId = settings.isTransferIds() ? chunkBuf.readInt() : 0;
+        String taskKey = taskKey(key, transferId);
+        UploadingFileItem fileItem = uploadingFiles.get(taskKey);
         if (fileItem != null) {
             int chunkId = chunkBuf.readInt();
             int totalChunks = chunkBuf.readInt();
             int offset = chunkBuf.readInt();
             int length = chunkBuf.readInt();
+            int crc = settings.isChunkCrc() ? chunkBuf.readInt() : 0;
 
-            if (totalChunks != fileItem.getChunks() || length != fileItem.getLength()) {
-                _removeAndRelease(key);
+            if (totalChunks != fileItem.getChunks() || length != fileItem.getLength()
+                    || chunkId < 1 || chunkId > totalChunks
+                    || offset < 0 || (long) offset + chunkBuf.readableBytes() > length) {
+                _removeAndRelease(taskKey);
                 Log.e(TAG, "Invalid chunk data: " + chunkId + "/" + totalChunks + " position: " + offset + "/" + length);
                 return fileItem.failed();
             }
 
-            Log.i(TAG, "File upload chunk: " + chunkId + "/" + totalChunks + " position: " + offset + "/" + length);
+            Log.i(TAG, "File upload chunk [" + transferId + "]: " + chunkId + "/" + totalChunks + " position: " + offset + "/" + length);
+            byte[] bytes = new byte[chunkBuf.readableBytes()];
+            chunkBuf.readBytes(bytes);
+            if (settings.isChunkCrc() && Crc32c.of(bytes, 0, bytes.length) != crc) {
+                // files from the server are small, it is simpler to send the whole file again
+                _removeAndRelease(taskKey);
+                Log.e(TAG, "CRC mismatch of chunk " + chunkId + "/" + totalChunks + " of " + fileItem.getRemoteFilename());
+                return fileItem.failed();
+            }
             try {
-                byte[] bytes = new byte[chunkBuf.readableBytes()];
-                chunkBuf.readBytes(bytes);
-                fileItem.writeChunk(offset, bytes);
+                fileItem.writeChunk(chunkId, offset, bytes);
             } catch (IOException e) {
-                _removeAndRelease(key);  // do not write again the next time
+                _removeAndRelease(taskKey);  // do not write again the next time
                 Log.e(TAG, "Failed to write chunk: " + chunkId + "/" + totalChunks + " position: " + offset + "/" + length);
                 throw new RuntimeException(e);
             }
-            if (chunkId == totalChunks) {
-                _removeAndRelease(key);
-                Log.i(TAG, "File upload finished: " + fileItem.getRemoteFilename() + " -> " + fileItem.getLocalFilename());
-                return fileItem.finished();
+            if (fileItem.isComplete()) {
+                _removeAndRelease(taskKey);
+                return complete(fileItem);
             } else {
                 return fileItem;
             }
@@ -73,4 +157,8 @@ public class FileUploadManager {
             return null;
         }
     }
+
+    private static String taskKey(String key, int transferId) {
+        return key + "#" + transferId;
+    }
 }
@@ -0,0 +1,154 @@
+package com.lannooo.audiocenter.audio;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The files received from the server, indexed by the SHA-256 of their content in ".sha256" next to them. An
+ * upload announcing content that is already here, under this or another name, is taken from the index instead
+ * of being sent again.
+ * <p>
+ * An entry only counts while its file has the length and modification time it was indexed with, files changed
+ * or deleted since are dropped from the index when they are looked up.
+ */
+public class StimulusCache {
+    private static final String TAG = "StimulusCache";
+    public static final String INDEX_NAME = ".sha256";
+
+    private final File dir;
+    private final File indexFile;
+    // sha256 -> file with that content
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public StimulusCache(File dir) {
+        this.dir = dir;
+        this.indexFile = new File(dir, INDEX_NAME);
+        load();
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * @return a file with the content, or null if there is none
+     */
+    public synchronized File lookup(String sha256) {
+        Entry entry = entries.get(sha256.toLowerCase());
+        if (entry == null) {
+            return null;
+        }
+        File file = new File(dir, entry.name);
+        if (file.length() != entry.length || file.lastModified() != entry.lastModified) {
+            entries.remove(sha256.toLowerCase());
+            save();
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Give the target the content from the index: a hard link to the file that has it, or a local copy where
+     * the storage cannot link.
+     *
+     * @return false if the content is not here
+     */
+    public synchronized boolean restore(String sha256, File target) {
+        File source = lookup(sha256);
+        if (source == null) {
+            return false;
+        }
+        if (source.getAbsoluteFile().equals(target.getAbsoluteFile())) {
+            return true;
+        }
+        try {
+            // an upload replaces the file rather than writing into it, the content of a link stays
+            Files.deleteIfExists(target.toPath());
+            try {
+                Files.createLink(target.toPath(), source.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to restore " + target.getName() + " from " + source.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Index a file just received, it replaces whatever was indexed under its name.
+     */
+    public synchronized void add(File file, String sha256) {
+        String name = file.getName();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().name.equals(name)) {
+                it.remove();
+            }
+        }
+        entries.put(sha256.toLowerCase(), new Entry(name, file.length(), file.lastModified()));
+        save();
+    }
+
+    private void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // sha256 length lastModified name, the name may contain spaces
+                String[] fields = line.split(" ", 4);
+                if (fields.length == 4) {
+                    entries.put(fields[0], new Entry(fields[3], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Unreadable index " + indexFile + ", starting over: " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    private void save() {
+        File tmp = new File(dir, INDEX_NAME + ".tmp");
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("cannot create " + dir);
+            }
+            try (Writer writer = new FileWriter(tmp)) {
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    Entry e = entry.getValue();
+                    writer.write(entry.getKey() + " " + e.length + " " + e.lastModified + " " + e.name + "\n");
+                }
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // the files are sent again, nothing else is lost
+            Log.w(TAG, "Failed to save index " + indexFile + ": " + e.getMessage());
+        }
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final long length;
+        private final long lastModified;
+
+        private Entry(String name, long length, long lastModified) {
+            this.name = name;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+}
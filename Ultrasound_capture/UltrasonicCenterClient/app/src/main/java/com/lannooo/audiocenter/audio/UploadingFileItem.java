@@ -6,6 +6,7 @@ import java.io.RandomAccessFile;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.BitSet;
 
 
 public class UploadingFileItem {
@@ -13,6 +14,11 @@ public class UploadingFileItem {
     private final long chunks;
     private final long length;
     private final String localFilename;
+    // announced by the server, null if it did not
+    private String sha256;
+    // chunks may come in any order, the file is complete once every byte is there
+    private final BitSet received;
+    private long receivedBytes;
     private RandomAccessFile file;
     private UploadingStatus status;
 
@@ -25,6 +31,7 @@ public class UploadingFileItem {
         this.localFilename = Paths.get(basedir, "server", name).toString();
         this.chunks = chunks;
         this.length = length;
+        this.received = new BitSet((int) chunks);
         this.status = UploadingStatus.UPLOADING;
     }
 
@@ -41,6 +48,17 @@ public class UploadingFileItem {
         return localFilename;
     }
 
+    /**
+     * @return the digest of the content the server announced, null if it did not
+     */
+    public String getSha256() {
+        return sha256;
+    }
+
+    public void setSha256(String sha256) {
+        this.sha256 = sha256;
+    }
+
     public String getRemoteFilename() {
         return filename;
     }
@@ -53,6 +71,10 @@ public class UploadingFileItem {
         return length;
     }
 
+    public boolean isComplete() {
+        return receivedBytes >= length;
+    }
+
     public boolean isFinished() {
         return status == UploadingStatus.FINISHED;
     }
@@ -71,7 +93,7 @@ public class UploadingFileItem {
         return this;
     }
 
-    public void writeChunk(long offset, byte[] data) throws IOException {
+    public void writeChunk(int chunkId, long offset, byte[] data) throws IOException {
         if (file == null) {
             Path localFile = Paths.get(localFilename);
             Path localFileDir = localFile.getParent();
@@ -85,6 +107,10 @@ public class UploadingFileItem {
         }
         file.seek(offset);
         file.write(data);
+        if (!received.get(chunkId - 1)) {
+            received.set(chunkId - 1);
+            receivedBytes += data.length;
+        }
     }
 
     public enum UploadingStatus {
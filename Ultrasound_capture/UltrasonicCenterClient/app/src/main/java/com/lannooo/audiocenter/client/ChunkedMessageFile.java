@@ -0,0 +1,218 @@
+package com.lannooo.audiocenter.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.lannooo.audiocenter.tool.AppUtil;
+import com.lannooo.audiocenter.tool.Crc32c;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+/**
+ * A file as a stream of DATA_TRANSFER messages, pulled by the {@link PriorityWriteHandler} of the pipeline
+ * only while little file data is waiting to be sent.
+ * <p>
+ * With a non-zero transfer id every chunk header starts with it, so the server can tell the chunks of
+ * several files apart. When resuming, only the given chunk ranges are read and sent.
+ * <p>
+ * With chunk CRCs the header ends with the CRC32C of the data. A whole file sent in order is hashed on the
+ * way, see {@link #getSha256()}.
+ * <p>
+ * With a sample layout every chunk is losslessly coded by the {@link LosslessAudioCodec} on its own, as it is
+ * read. Header, CRC and digest stay those of the file: only the data between them shrinks.
+ */
+public class ChunkedMessageFile implements ChunkedInput<Message> {
+    // chunkId, totalChunks, offset, length
+    public static final int CHUNK_HEADER_LENGTH = 16;
+
+    private final FileChannel file;
+    private final int transferId;
+    private final boolean chunkCrc;
+    private final int chunkSize;
+    private final int length;
+    private final int chunks;
+    // [first, last] chunk ids to send, 1 based and inclusive
+    private final List<long[]> ranges;
+    private int rangeIndex;
+    private int chunkId;
+    private long progress;
+    // only while the whole file is sent in order
+    private final MessageDigest digest;
+    private String sha256;
+    private final LosslessAudioCodec.Layout layout;
+    private final LosslessAudioCodec codec;
+    private long wireBytes;
+    private long encodeNanos;
+
+    public ChunkedMessageFile(File file, int chunkSize, int transferId) throws IOException {
+        this(file, chunkSize, transferId, false, null);
+    }
+
+    /**
+     * @param ranges the chunks to send as [first, last] chunk ids, or null for the whole file
+     */
+    public ChunkedMessageFile(File file, int chunkSize, int transferId, boolean chunkCrc, List<long[]> ranges) throws IOException {
+        this(file, chunkSize, transferId, chunkCrc, ranges, null);
+    }
+
+    /**
+     * @param ranges the chunks to send as [first, last] chunk ids, or null for the whole file
+     * @param layout where the samples are in the file to code the chunks, or null to send them as they are
+     */
+    public ChunkedMessageFile(File file, int chunkSize, int transferId, boolean chunkCrc, List<long[]> ranges,
+                              LosslessAudioCodec.Layout layout) throws IOException {
+        this.layout = layout;
+        this.codec = layout == null ? null : new LosslessAudioCodec();
+        this.file = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.transferId = transferId;
+        this.chunkCrc = chunkCrc;
+        this.digest = ranges == null ? AppUtil.sha256() : null;
+        this.chunkSize = chunkSize;
+        this.length = (int) this.file.size();
+        this.chunks = (length + chunkSize - 1) / chunkSize;
+        if (ranges == null) {
+            this.ranges = chunks == 0
+                    ? Collections.<long[]>emptyList()
+                    : Collections.singletonList(new long[]{1, chunks});
+        } else {
+            this.ranges = new ArrayList<>(ranges);
+        }
+        this.chunkId = this.ranges.isEmpty() ? 0 : (int) this.ranges.get(0)[0];
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return bytes of chunk data sent so far, less than {@link #progress()} if the chunks are coded
+     */
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * @return time spent coding the chunks so far
+     */
+    public double getEncodeMillis() {
+        return encodeNanos / 1e6;
+    }
+
+    /**
+     * @return the SHA-256 of the file once its last chunk is read, null if only some ranges are sent
+     */
+    public String getSha256() {
+        return sha256;
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return rangeIndex >= ranges.size();
+    }
+
+    @Override
+    public void close() throws Exception {
+        file.close();
+    }
+
+    @Deprecated
+    @Override
+    public Message readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public Message readChunk(ByteBufAllocator allocator) throws Exception {
+        if (isEndOfInput()) {
+            return null;
+        }
+        long offset = (long) (chunkId - 1) * chunkSize;
+        int size = (int) Math.min(chunkSize, length - offset);
+        int headerLength = CHUNK_HEADER_LENGTH + (transferId != 0 ? FrameSettings.TRANSFER_ID_LENGTH : 0)
+                + (chunkCrc ? FrameSettings.CHUNK_CRC_LENGTH : 0);
+        byte[] payload;
+        int dataLength;
+        if (codec == null) {
+            // positional read straight into the message payload
+            payload = new byte[headerLength + size];
+            read(payload, headerLength, size, offset);
+            if (digest != null) {
+                digest.update(payload, headerLength, size);
+            }
+            dataLength = size;
+        } else {
+            byte[] raw = new byte[size];
+            read(raw, 0, size, offset);
+            if (digest != null) {
+                digest.update(raw, 0, size);
+            }
+            long start = System.nanoTime();
+            byte[] coded = codec.encodeChunk(raw, 0, size, offset, layout);
+            encodeNanos += System.nanoTime() - start;
+            payload = new byte[headerLength + coded.length];
+            System.arraycopy(coded, 0, payload, headerLength, coded.length);
+            dataLength = coded.length;
+        }
+        ByteBuf out = Unpooled.wrappedBuffer(payload).writerIndex(0);
+        if (transferId != 0) {
+            out.writeInt(transferId);
+        }
+        out.writeInt(chunkId)
+                .writeInt(chunks)
+                .writeInt((int) offset)
+                .writeInt(length);
+        if (chunkCrc) {
+            // of the data as sent, the server checks it before decoding
+            out.writeInt(Crc32c.of(payload, headerLength, dataLength));
+        }
+        wireBytes += dataLength;
+        progress += size;
+        advance();
+        if (digest != null && isEndOfInput()) {
+            sha256 = AppUtil.hex(digest.digest());
+        }
+        return new Message(Message.MessageType.DATA_TRANSFER, payload);
+    }
+
+    private void read(byte[] into, int off, int size, long position) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(into, off, size);
+        while (data.hasRemaining()) {
+            if (file.read(data, position + data.position() - off) < 0) {
+                throw new IOException("File shrank while being sent, expected " + length + " bytes");
+            }
+        }
+    }
+
+    private void advance() {
+        if (chunkId < ranges.get(rangeIndex)[1]) {
+            chunkId++;
+        } else if (++rangeIndex < ranges.size()) {
+            chunkId = (int) ranges.get(rangeIndex)[0];
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+}
@@ -18,11 +18,16 @@ public class ClientDecoder extends ByteToMessageDecoder {
         int typeOrdinal = in.readInt();
         // read the length of the message
         int length = in.readInt();
-        // read the payload
-        ByteBuf payload = in.readBytes(length);
-
-        // create a new message object
-        Message message = new Message(Message.MessageType.fromOrdinal(typeOrdinal), payload);
+        Message.MessageType type = Message.MessageType.fromOrdinal(typeOrdinal);
+        Message message;
+        if (type == Message.MessageType.REQUEST) {
+            // JSON or binary, whatever the server sent
+            message = new Message(type, MessageCodec.decode(in.readSlice(length)));
+        } else {
+            byte[] payload = new byte[length];
+            in.readBytes(payload);
+            message = new Message(type, payload);
+        }
         out.add(message);
     }
 }
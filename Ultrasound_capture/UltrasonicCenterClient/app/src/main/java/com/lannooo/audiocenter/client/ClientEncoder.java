@@ -12,9 +12,18 @@ public class ClientEncoder extends MessageToByteEncoder<Message> {
     @Override
     protected void encode(ChannelHandlerContext ctx, Message msg, ByteBuf out) throws Exception {
         Log.i(TAG, "encode: " + msg.toString());
-        int length = msg.getPayload().length;
         out.writeInt(Message.MAGIC);
         out.writeInt(msg.getType().ordinal());
+        if (msg.hasRequest()) {
+            // encode in place with the format granted by the server, then patch the length
+            int lengthIndex = out.writerIndex();
+            out.writeInt(0);
+            MessageCodec.encode(msg.getRequest(), MessageCodec.formatOf(ctx.channel()), out);
+            out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+            return;
+        }
+
+        int length = msg.getPayload().length;
         out.writeInt(length);
         out.writeBytes(msg.getPayload());
     }
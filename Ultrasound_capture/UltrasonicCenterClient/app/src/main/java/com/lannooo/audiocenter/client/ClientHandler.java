@@ -2,6 +2,7 @@ package com.lannooo.audiocenter.client;
 
 import static com.lannooo.audiocenter.tool.MessageUtil.fileUploadRequest;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.lannooo.audiocenter.audio.AudioEventListener;
@@ -9,34 +10,52 @@ import com.lannooo.audiocenter.audio.ClientAudioHandler;
 import com.lannooo.audiocenter.audio.RoutePresetManager;
 import com.lannooo.audiocenter.audio.UltrasonicConfig;
 import com.lannooo.audiocenter.audio.UploadingFileItem;
+import com.lannooo.audiocenter.tool.AppUtil;
 import com.lannooo.audiocenter.tool.HandlerUtil;
+import com.lannooo.audiocenter.tool.MessageUtil;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.handler.stream.ChunkedNioFile;
 
 public class ClientHandler extends SimpleChannelInboundHandler<Message> {
     public static final String TAG = "ClientHandler";
+    private static final long UPLOAD_REPLY_TIMEOUT_SECONDS = 10;
+    // data worth a connection of its own when striping an upload
+    private static final long STRIPE_MIN_BYTES = 8L * 1024 * 1024;
+    // enough of a WAV file to find its "data" chunk behind the usual ones
+    private static final int CODEC_HEADER_BYTES = 4096;
 
     private final ClientAudioHandler audioHandler;
     private final MessageListener listener;
     private final Map<String, RequestHandler> requestHandlers;
     private final ExecutorService executor;
     private final ClientService clientService;
+    // replies awaited by upload tasks, by request id
+    private final Map<Long, CompletableFuture<MessageRequest>> pendingResponses = new ConcurrentHashMap<>();
 
     public ClientHandler(ClientService clientService) {
         super();
@@ -55,6 +74,8 @@ public class ClientHandler extends SimpleChannelInboundHandler<Message> {
         handles.put("upload", this::handleUploadFileRequest);
         handles.put("delete", this::handleFileDeleteRequest);
         handles.put("list", this::handleFileListRequest);
+        handles.put("transport", this::handleTransportRequest);
+        handles.put("resend", this::handleResendRequest);
         return Collections.unmodifiableMap(handles);
     }
 
@@ -65,14 +86,13 @@ public class ClientHandler extends SimpleChannelInboundHandler<Message> {
         }
 
         if (msg.getType() == Message.MessageType.REQUEST) {
-            String payloadData = new String(msg.getPayload());
-            MessageRequest request = MessageRequest.fromJsonString(payloadData);
+            MessageRequest request = msg.getRequest();
             RequestHandler handler = requestHandlers.get(request.getSubtype());
             if (handler != null) {
                 handler.handleMessage(ctx, request);
             } else {
                 Log.e(TAG, "No handler found for " + request.getSubtype());
-                writeShortResponse(ctx, "Oops!");
+                writeShortResponse(ctx, request, false, "Oops!");
             }
             clientService.updateRequestTime();
         } else if (msg.getType() == Message.MessageType.DATA_TRANSFER) {
@@ -80,10 +100,19 @@ public class ClientHandler extends SimpleChannelInboundHandler<Message> {
             ByteBuf buf = Unpooled.wrappedBuffer(payload);
             UploadingFileItem fileItem = audioHandler.writeUploadingFile(ctx, buf);
             if (fileItem != null) {
+                // name the file, several uploads from the server may be in progress
                 if (fileItem.isFinished()) {
-                    writeShortResponse(ctx, "File uploaded");
+                    writeShortResponse(ctx, "File uploaded: " + fileItem.getRemoteFilename());
                 } else if (fileItem.isFailed()) {
-                    writeShortResponse(ctx, "File upload failed");
+                    writeShortResponse(ctx, "File upload failed: " + fileItem.getRemoteFilename());
+                }
+            }
+        } else if (msg.getType() == Message.MessageType.RESPONSE) {
+            MessageRequest response = MessageCodec.decodeResponse(msg.getPayload());
+            if (response != null) {
+                CompletableFuture<MessageRequest> pending = pendingResponses.remove(response.getId());
+                if (pending != null) {
+                    pending.complete(response);
                 }
             }
         }
@@ -101,12 +130,28 @@ public class ClientHandler extends SimpleChannelInboundHandler<Message> {
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
         audioHandler.clearServerChannel();
+        clientService.getUploadLanes().close();
+        for (CompletableFuture<MessageRequest> pending : pendingResponses.values()) {
+            pending.cancel(false);
+        }
+        pendingResponses.clear();
         clientService.releaseWakeLock();
     }
 
+    private void handleTransportRequest(ChannelHandlerContext ctx, MessageRequest request) {
+        // the server has already switched to the negotiated frame size
+        FrameSettings settings = FrameSettings.fromTransportRequest(request.getData());
+        settings.apply(ctx.channel());
+        MessageCodec.Format format = MessageCodec.fromWireName(request.getString("format"));
+        ctx.channel().attr(MessageCodec.FORMAT_KEY).set(format);
+        // lanes of an earlier connection are closed, new ones are opened by the first large upload
+        clientService.getUploadLanes().setPrimary(settings.getLanes() > 0 ? ctx.channel() : null);
+        Log.i(TAG, "Transport negotiated: " + settings + ", " + format);
+    }
+
     private void handleFileListRequest(ChannelHandlerContext ctx, MessageRequest request) {
         String[] files = audioHandler.getBaseDir().list();
-        writeShortResponse(ctx, String.join("\n", files));
+        writeShortResponse(ctx, request, true, String.join("\n", files));
     }
 
     private void handleFileDeleteRequest(ChannelHandlerContext ctx, MessageRequest request) {
@@ -119,12 +164,12 @@ public class ClientHandler extends SimpleChannelInboundHandler<Message> {
         try {
             if (Files.exists(filepath)) {
                 Files.delete(filepath);
-                writeShortResponse(ctx, "Deleted");
+                writeShortResponse(ctx, request, true, "Deleted");
             } else {
-                writeShortResponse(ctx, "Not found");
+                writeShortResponse(ctx, request, false, "Not found");
             }
         } catch (Exception e) {
-            writeShortResponse(ctx, "Delete failed");
+            writeShortResponse(ctx, request, false, "Delete failed");
             throw new RuntimeException(e);
         }
     }
@@ -145,28 +190,30 @@ public class ClientHandler extends SimpleChannelInboundHandler<Message> {
                 }
             });
             audioHandler.startPlayer();
-            writeShortResponse(ctx, "Started Playback: " + playFile);
+            writeShortResponse(ctx, request, true, "Started Playback: " + playFile);
         } else if ("stop".equalsIgnoreCase(action)) {
             audioHandler.stopPlayer();
-            writeShortResponse(ctx, "Stopped Playback");
+            writeShortResponse(ctx, request, true, "Stopped Playback");
         } else if ("pause".equalsIgnoreCase(action)) {
             audioHandler.pausePlayer();
-            writeShortResponse(ctx, "Paused Playback");
+            writeShortResponse(ctx, request, true, "Paused Playback");
         } else if ("resume".equalsIgnoreCase(action)) {
             audioHandler.resumePlayer();
-            writeShortResponse(ctx, "Resumed Playback");
+            writeShortResponse(ctx, request, true, "Resumed Playback");
         } else {
-            writeShortResponse(ctx, "Oops! Invalid action for playback");
+            writeShortResponse(ctx, request, false, "Oops! Invalid action for playback");
         }
     }
 
     private void handleCaptureRequest(ChannelHandlerContext ctx, MessageRequest request) {
+        // the start response reports how long it took to actually start recording
+        final long receivedAt = SystemClock.elapsedRealtime();
         Map<String, Object> commands = request.getData();
         String action = (String) commands.get("action");
         if ("start".equalsIgnoreCase(action)) {
             String rawOutputName = (String) Objects.requireNonNull(commands.get("output"));
             String mode = (String) Objects.requireNonNull(commands.get("mode"));
-            double duration = (double) Objects.requireNonNull(commands.get("duration"));
+            double duration = ((Number) Objects.requireNonNull(commands.get("duration"))).doubleValue();
             boolean process = (boolean) Objects.requireNonNull(commands.get("process"));
             boolean forward = (boolean) Objects.requireNonNull(commands.get("forward"));
             boolean postDelete = (boolean) Objects.requireNonNull(commands.get("delete"));
@@ -176,6 +223,9 @@ public class ClientHandler extends SimpleChannelInboundHandler<Message> {
 
             final boolean isCustom = !mode.equalsIgnoreCase("simple");
             final String outputName = HandlerUtil.formatOutputWavFileName(rawOutputName, isCustom ? "wav" : "m4a");
+            // only the PCM of the custom recorder can be sent as it is recorded
+            final boolean live = forward && isCustom && FrameSettings.of(ctx.channel()).isLiveUpload();
+            final AtomicReference<LiveUpload> liveUpload = new AtomicReference<>();
             executor.submit(() -> {
                 try {
                     RoutePresetManager.PreparedRoute preparedRoute = audioHandler.prepareRoute(ultrasonicConfig.getRoutePreset());
@@ -195,9 +245,20 @@ public class ClientHandler extends SimpleChannelInboundHandler<Message> {
                             }
                         }
 
+                        @Override
+                        public void onRecordData(byte[] buffer, int length) {
+                            LiveUpload upload = liveUpload.get();
+                            if (upload != null) {
+                                upload.append(buffer, length);
+                            }
+                        }
+
                         @Override
                         public void onRecordStop(File outputFile) {
-                            if (forward) {
+                            LiveUpload upload = liveUpload.get();
+                            if (upload != null) {
+                                executor.submit(() -> finishLiveUpload(ctx, upload, outputFile, postDelete));
+                            } else if (forward) {
                                 executor.submit(() -> {
                                     try {
                                         uploadFileByChunk(ctx, outputFile, postDelete);
@@ -211,31 +272,44 @@ public class ClientHandler extends SimpleChannelInboundHandler<Message> {
 
                     reportRouteStatus(ctx, preparedRoute.toStatusMap(outputName));
                     audioHandler.playCaptureStartBeep();
+                    if (live) {
+                        liveUpload.set(startLiveUpload(ctx, new File(audioHandler.getBaseDir(), outputName)));
+                    }
                     audioHandler.startRecorder();
-                    writeShortResponse(ctx, "Started Recording: " + outputName);
+                    writeResponse(ctx, request, true, "Started Recording: " + outputName,
+                            Collections.<String, Object>singletonMap("startup_ms", SystemClock.elapsedRealtime() - receivedAt));
                 } catch (Exception e) {
                     Log.e(TAG, "Failed to start recording with pre-cue", e);
                     reportRouteStatus(ctx, RoutePresetManager.PreparedRoute.failed(ultrasonicConfig.getRoutePreset(), audioHandler.getRouteDeviceIdentitySummary(), e.getMessage()).toStatusMap(outputName));
-                    writeShortResponse(ctx, "Failed to start Recording: " + outputName);
+                    writeShortResponse(ctx, request, false, "Failed to start Recording: " + outputName);
                 }
             });
         } else if ("stop".equalsIgnoreCase(action)) {
             audioHandler.stopRecorder();
-            writeShortResponse(ctx, "Stopped Recording");
+            writeShortResponse(ctx, request, true, "Stopped Recording");
         } else if ("pause".equalsIgnoreCase(action)) {
             audioHandler.pauseRecorder();
-            writeShortResponse(ctx, "Paused Recording");
+            writeShortResponse(ctx, request, true, "Paused Recording");
         } else if ("resume".equalsIgnoreCase(action)) {
             audioHandler.resumeRecorder();
-            writeShortResponse(ctx, "Resumed Recording");
+            writeShortResponse(ctx, request, true, "Resumed Recording");
         } else {
-            writeShortResponse(ctx, "Oops! Invalid action for recording");
+            writeShortResponse(ctx, request, false, "Oops! Invalid action for recording");
         }
     }
 
     private void handleUploadFileRequest(ChannelHandlerContext ctx, MessageRequest request) {
-        audioHandler.addUploadingFile(ctx, request.getData());
-        writeShortResponse(ctx, "Ready to receive chunks");
+        UploadingFileItem fileItem = audioHandler.addUploadingFile(ctx, request.getData());
+        if (fileItem == null) {
+            writeShortResponse(ctx, request, false, "Upload already in progress");
+        } else if (fileItem.isFinished()) {
+            // the content was here already, the server sends no chunks
+            Map<String, Object> extra = new HashMap<>();
+            extra.put("cached", true);
+            writeResponse(ctx, request, true, "File uploaded: " + fileItem.getRemoteFilename(), extra);
+        } else {
+            writeShortResponse(ctx, request, true, "Ready to receive chunks");
+        }
     }
 
     private void handleDownloadFileRequest(ChannelHandlerContext ctx, MessageRequest request) {
@@ -245,49 +319,323 @@ public class ClientHandler extends SimpleChannelInboundHandler<Message> {
         Path filepath = audioHandler.getBaseDir().toPath().resolve(path);
 
         if (Files.exists(filepath)) {
+            // every download is uploaded on its own task, interleaved with the others if the server supports it
+            writeShortResponse(ctx, request, true, "Sending: " + path);
             executor.submit(() -> uploadFileByChunk(ctx, filepath.toFile(), postDelete));
         } else {
-            writeShortResponse(ctx, "Not found");
+            writeShortResponse(ctx, request, false, "Not found");
         }
     }
 
     private void uploadFileByChunk(ChannelHandlerContext ctx, File file, boolean postDelete) {
         try {
-            ChunkedNioFile chunkedNioFile = new ChunkedNioFile(file, 2048);
-            int length = (int) chunkedNioFile.length();
-            int chunks = length / 2048;
-            if (length % 2048 != 0) {
-                chunks++;
-            }
+            FrameSettings settings = FrameSettings.of(ctx.channel());
+            int chunkSize = settings.getChunkSize();
+            int length = (int) file.length();
+            int chunks = (length + chunkSize - 1) / chunkSize;
+            LosslessAudioCodec.Layout layout = codecLayout(settings, file);
+            // older servers take one file at a time and know no transfer id
+            MessageRequest uploadRequest = fileUploadRequest(file, length, chunks, settings.isTransferIds(),
+                    layout != null ? settings.getCodec() : null);
+            int transferId = uploadRequest.getInt("transfer_id", 0);
 
-            String uploadReqPayload = fileUploadRequest(file, length, chunks);
-            Message uploadReq = new Message(Message.MessageType.REQUEST, uploadReqPayload.getBytes());
-            ctx.writeAndFlush(uploadReq).addListener((ChannelFutureListener) future -> {
+            // both wait in the PriorityWriteHandler, behind any response and in front of later uploads
+            Message uploadReq = new Message(Message.MessageType.REQUEST, uploadRequest);
+            CompletableFuture<MessageRequest> reply = null;
+            if (settings.isResumeUploads()) {
+                reply = new CompletableFuture<>();
+                pendingResponses.put(uploadRequest.getId(), reply);
+            }
+            ctx.write(uploadReq).addListener((ChannelFutureListener) future -> {
                 if (future.isSuccess() && listener != null) {
-                    listener.onMessageReceived(true, uploadReq.getType(), uploadReqPayload);
+                    listener.onMessageReceived(true, uploadReq.getType(), uploadRequest.toString());
                 }
             });
 
-            ByteBufAllocator alloc = ctx.alloc();
-            int chunkId = 0;
-            while (!chunkedNioFile.isEndOfInput()) {
-                long offset = chunkedNioFile.currentOffset();
-                ByteBuf byteBuf = chunkedNioFile.readChunk(alloc);
-                ByteBuf tgt = alloc.buffer(byteBuf.readableBytes() + 16)
-                        .writeInt(++chunkId)
-                        .writeInt(chunks)
-                        .writeInt((int) offset)
-                        .writeInt(length)
-                        .writeBytes(byteBuf);
-                ctx.writeAndFlush(new Message(Message.MessageType.DATA_TRANSFER, tgt));
+            boolean verify = settings.isChunkCrc();
+            ChunkedMessageFile chunkedFile;
+            String fileSha256 = null;
+            if (reply == null) {
+                chunkedFile = new ChunkedMessageFile(file, chunkSize, transferId, verify, null, layout);
+            } else {
+                // the server tells which chunks it still lacks from an earlier, interrupted upload
+                ctx.flush();
+                MessageRequest response;
+                try {
+                    response = reply.get(UPLOAD_REPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } finally {
+                    pendingResponses.remove(uploadRequest.getId());
+                }
+                if (!response.getBoolean("ok", false)) {
+                    Log.e(TAG, "Upload of " + file.getName() + " refused: " + response.getString("message"));
+                    return;
+                }
+                List<long[]> missing = missingRanges(response.getData().get("missing"));
+                int resumed = response.getInt("resumed_chunks", 0);
+                if (resumed > 0) {
+                    Log.i(TAG, "Resuming " + file.getName() + ", " + resumed + "/" + chunks + " chunks already uploaded");
+                }
+                boolean whole = missing.size() == 1 && missing.get(0)[0] == 1 && missing.get(0)[1] == chunks;
+                if (verify && !whole) {
+                    // only part of the file goes out, it cannot be hashed on the way
+                    fileSha256 = AppUtil.sha256Hex(file);
+                }
+                if (missing.isEmpty()) {
+                    // the server had the whole file already
+                    if (verify) {
+                        sendUploadDigest(ctx, file, transferId, fileSha256, postDelete);
+                    } else if (postDelete) {
+                        file.delete();
+                    }
+                    return;
+                }
+                List<Channel> lanes = stripeLanes(settings, missing);
+                if (!lanes.isEmpty()) {
+                    uploadStriped(ctx, file, transferId, missing, lanes, layout,
+                            fileSha256 != null ? fileSha256 : AppUtil.sha256Hex(file), postDelete);
+                    return;
+                }
+                chunkedFile = new ChunkedMessageFile(file, chunkSize, transferId, verify, whole ? null : missing, layout);
             }
+            final String knownSha256 = fileSha256;
+            ctx.writeAndFlush(chunkedFile).addListener((ChannelFutureListener) future -> {
+                if (future.isSuccess() && layout != null && chunkedFile.progress() > 0) {
+                    Log.i(TAG, String.format(Locale.ROOT, "Coded %s to %.1f%% in %.0f ms", file.getName(),
+                            100.0 * chunkedFile.getWireBytes() / chunkedFile.progress(), chunkedFile.getEncodeMillis()));
+                }
+                if (!future.isSuccess()) {
+                    Log.e(TAG, "Failed to upload " + file.getName(), future.cause());
+                } else if (verify) {
+                    String sha256 = knownSha256 != null ? knownSha256 : chunkedFile.getSha256();
+                    if (sha256 == null) {
+                        // empty file, no chunk was read
+                        executor.submit(() -> {
+                            try {
+                                sendUploadDigest(ctx, file, transferId, AppUtil.sha256Hex(file), postDelete);
+                            } catch (IOException e) {
+                                Log.e(TAG, "Failed to hash " + file.getName(), e);
+                            }
+                        });
+                    } else {
+                        sendUploadDigest(ctx, file, transferId, sha256, postDelete);
+                    }
+                } else if (postDelete) {
+                    file.delete();
+                }
+            });
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            if (postDelete) {
-                file.delete();
+    private LiveUpload startLiveUpload(ChannelHandlerContext ctx, File file) {
+        MessageRequest startRequest = MessageUtil.liveStartRequest(file);
+        LiveUpload upload = new LiveUpload(ctx.channel(), file, startRequest.getInt("transfer_id", 0),
+                FrameSettings.of(ctx.channel()).getChunkSize());
+        CompletableFuture<MessageRequest> reply = new CompletableFuture<>();
+        pendingResponses.put(startRequest.getId(), reply);
+        reply.thenAccept(response -> {
+            if (!response.getBoolean("ok", false)) {
+                upload.fail(response.getString("message"));
             }
+        });
+        // a control frame, ahead of the chunks that follow
+        ctx.writeAndFlush(new Message(Message.MessageType.REQUEST, startRequest));
+        return upload;
+    }
+
+    /**
+     * End the stream of a stopped recording. The server has the file right away, unless the stream broke and
+     * the file is uploaded after all.
+     */
+    private void finishLiveUpload(ChannelHandlerContext ctx, LiveUpload upload, File file, boolean postDelete) {
+        long stoppedAt = SystemClock.elapsedRealtime();
+        try {
+            String pcmSha256 = upload.finish(readHead(file, LiveUpload.HEADER_LENGTH));
+            if (upload.getLength() != file.length()) {
+                upload.fail(upload.getLength() + " bytes streamed, " + file.length() + " recorded");
+            }
+            // even a broken stream is ended, for the server to drop it
+            MessageRequest endRequest = MessageUtil.liveEndRequest(file, upload.getTransferId(), upload.getLength(),
+                    upload.isBroken() ? null : pcmSha256);
+            CompletableFuture<MessageRequest> reply = new CompletableFuture<>();
+            pendingResponses.put(endRequest.getId(), reply);
+            ctx.writeAndFlush(new Message(Message.MessageType.REQUEST, endRequest));
+            MessageRequest response;
+            try {
+                response = reply.get(UPLOAD_REPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } finally {
+                pendingResponses.remove(endRequest.getId());
+            }
+            if (response.getBoolean("ok", false) && !upload.isBroken()) {
+                Log.i(TAG, "Streamed " + file.getName() + ", on the server "
+                        + (SystemClock.elapsedRealtime() - stoppedAt) + " ms after recording stopped");
+                if (postDelete) {
+                    file.delete();
+                }
+                return;
+            }
+            Log.w(TAG, "Live upload of " + file.getName() + " failed: " + response.getString("message"));
         } catch (Exception e) {
-            throw new RuntimeException(e);
+            Log.w(TAG, "Live upload of " + file.getName() + " failed", e);
+        }
+        uploadFileByChunk(ctx, file, postDelete);
+    }
+
+    /**
+     * @return the lanes to stripe the missing chunks over besides the main connection, none for small uploads
+     * or if the server offers no lanes
+     */
+    private List<Channel> stripeLanes(FrameSettings settings, List<long[]> missing) {
+        if (settings.getLanes() == 0 || !settings.isTransferIds() || !settings.isChunkCrc()) {
+            return Collections.emptyList();
+        }
+        long chunks = 0;
+        for (long[] range : missing) {
+            chunks += range[1] - range[0] + 1;
         }
+        int wanted = (int) Math.min(settings.getLanes(), chunks * settings.getChunkSize() / STRIPE_MIN_BYTES - 1);
+        return wanted > 0 ? clientService.getUploadLanes().acquire(wanted) : Collections.<Channel>emptyList();
+    }
+
+    /**
+     * Send the missing chunks in contiguous stripes, the first over the main connection and one over each lane.
+     * The digest follows once every lane has confirmed its stripe, the server then asks again for whatever a
+     * failed lane did not deliver.
+     */
+    private void uploadStriped(ChannelHandlerContext ctx, File file, int transferId, List<long[]> missing,
+                               List<Channel> lanes, LosslessAudioCodec.Layout layout, String sha256,
+                               boolean postDelete) throws IOException {
+        FrameSettings settings = FrameSettings.of(ctx.channel());
+        List<List<long[]>> stripes = UploadLanes.split(missing, lanes.size() + 1);
+        Log.i(TAG, "Uploading " + file.getName() + " in " + stripes.size() + " stripes");
+        List<CompletableFuture<?>> sent = new ArrayList<>();
+        for (int i = 0; i < stripes.size(); i++) {
+            ChunkedMessageFile stripe = new ChunkedMessageFile(file, settings.getChunkSize(), transferId, true,
+                    stripes.get(i), layout);
+            if (i == 0) {
+                sent.add(UploadLanes.write(ctx.channel(), stripe));
+            } else {
+                Channel lane = lanes.get(i - 1);
+                sent.add(UploadLanes.write(lane, stripe).thenCompose(v -> UploadLanes.stripeDone(lane, transferId)));
+            }
+        }
+        CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+            if (e != null) {
+                Log.w(TAG, "A stripe of " + file.getName() + " failed, its chunks are sent again on request", e);
+            }
+            sendUploadDigest(ctx, file, transferId, sha256, postDelete);
+        });
+    }
+
+    /**
+     * Tell the server the digest of the file it has just received. The file is only deleted once the server
+     * confirms that its copy matches, until then it may still ask for chunks again.
+     */
+    private void sendUploadDigest(ChannelHandlerContext ctx, File file, int transferId, String sha256, boolean postDelete) {
+        MessageRequest digestRequest = MessageUtil.uploadDigestRequest(file, transferId, sha256);
+        CompletableFuture<MessageRequest> reply = new CompletableFuture<>();
+        pendingResponses.put(digestRequest.getId(), reply);
+        reply.thenAccept(response -> {
+            if (!response.getBoolean("ok", false)) {
+                Log.e(TAG, "Upload of " + file.getName() + " not verified: " + response.getString("message"));
+            } else if (postDelete) {
+                file.delete();
+            }
+        });
+        ctx.writeAndFlush(new Message(Message.MessageType.REQUEST, digestRequest));
+    }
+
+    /**
+     * The server found chunks of an upload corrupt, send them again.
+     */
+    private void handleResendRequest(ChannelHandlerContext ctx, MessageRequest request) {
+        File file = new File((String) Objects.requireNonNull(request.getData().get("filepath")));
+        int transferId = request.getInt("transfer_id", 0);
+        List<long[]> ranges = missingRanges(request.getData().get("missing"));
+        FrameSettings settings = FrameSettings.of(ctx.channel());
+        executor.submit(() -> {
+            try {
+                // coded the same way as the first time, the server decodes every chunk of the upload
+                ChunkedMessageFile chunkedFile = new ChunkedMessageFile(file, settings.getChunkSize(), transferId,
+                        settings.isChunkCrc(), ranges, codecLayout(settings, file));
+                ctx.writeAndFlush(chunkedFile).addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess()) {
+                        Log.e(TAG, "Failed to resend chunks of " + file.getName(), future.cause());
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to resend chunks of " + file.getName(), e);
+            }
+        });
+    }
+
+    /**
+     * @return where the samples of the file are, if the server decodes uploads and the file is a 16-bit PCM WAV;
+     * null to send it as it is
+     */
+    private static LosslessAudioCodec.Layout codecLayout(FrameSettings settings, File file) throws IOException {
+        if (settings.getCodec() == null) {
+            return null;
+        }
+        byte[] header = readHead(file, CODEC_HEADER_BYTES);
+        return LosslessAudioCodec.Layout.ofWav(header, header.length, file.length());
+    }
+
+    /**
+     * @return the first {@code length} bytes of the file, fewer if it is shorter
+     */
+    private static byte[] readHead(File file, int length) throws IOException {
+        byte[] head = new byte[length];
+        int read = 0;
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int n;
+            while (read < head.length && (n = in.read(head, read, head.length - read)) > 0) {
+                read += n;
+            }
+        }
+        return read < length ? Arrays.copyOf(head, read) : head;
+    }
+
+    /**
+     * @param missing the "missing" list of an upload reply, pairs of first and last chunk id
+     */
+    private static List<long[]> missingRanges(Object missing) {
+        List<long[]> ranges = new ArrayList<>();
+        if (missing instanceof List) {
+            for (Object item : (List<?>) missing) {
+                List<?> range = (List<?>) item;
+                ranges.add(new long[]{((Number) range.get(0)).longValue(), ((Number) range.get(1)).longValue()});
+            }
+        }
+        return ranges;
+    }
+
+    private void writeShortResponse(ChannelHandlerContext ctx, MessageRequest request, boolean ok, String x) {
+        writeResponse(ctx, request, ok, x, null);
+    }
+
+    /**
+     * Answer a request with the same subtype and id, so that the server can match it. Requests without
+     * an id come from older servers which only understand plain text.
+     */
+    private void writeResponse(ChannelHandlerContext ctx, MessageRequest request, boolean ok, String x, Map<String, Object> extra) {
+        if (request.getId() == 0) {
+            writeShortResponse(ctx, x);
+            return;
+        }
+        MessageRequest response = request.reply(ok, x);
+        if (extra != null) {
+            for (Map.Entry<String, Object> entry : extra.entrySet()) {
+                response.put(entry.getKey(), entry.getValue());
+            }
+        }
+        Message msg = new Message(Message.MessageType.RESPONSE, response);
+        ctx.writeAndFlush(msg).addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess() && listener != null) {
+                listener.onMessageReceived(true, Message.MessageType.RESPONSE, x);
+            }
+        });
     }
 
     private void writeShortResponse(ChannelHandlerContext ctx, String x) {
@@ -301,10 +649,11 @@ public class ClientHandler extends SimpleChannelInboundHandler<Message> {
 
     private void reportRouteStatus(ChannelHandlerContext ctx, Map<String, Object> routeState) {
         MessageRequest request = new MessageRequest("route_status");
+        request.setId(MessageUtil.nextRequestId());
         for (Map.Entry<String, Object> entry : routeState.entrySet()) {
             request.put(entry.getKey(), entry.getValue());
         }
-        Message msg = new Message(Message.MessageType.REQUEST, request.toJsonString().getBytes());
+        Message msg = new Message(Message.MessageType.REQUEST, request);
         ctx.writeAndFlush(msg);
     }
 
@@ -40,7 +40,6 @@ import io.netty.channel.ChannelPipeline;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 
 public class ClientService extends Service {
     public static final String TAG = "ClientService";
@@ -55,6 +54,7 @@ public class ClientService extends Service {
     private Channel channel;
     private MessageListener listener;
     private ClientAudioHandler audioHandler;
+    private UploadLanes uploadLanes;
     private PowerManager.WakeLock wakeLock;
     private WifiManager.WifiLock wifiLock;
     private volatile long lastRequestTime;
@@ -62,6 +62,7 @@ public class ClientService extends Service {
     public ClientAudioHandler getAudioHandler() { return audioHandler; }
     public MessageListener getListener() { return listener; }
     public ExecutorService getExecutor() { return executor; }
+    public UploadLanes getUploadLanes() { return uploadLanes; }
 
     @Nullable
     @Override
@@ -121,12 +122,27 @@ public class ClientService extends Service {
                     @Override
                     protected void initChannel(SocketChannel ch) {
                         ChannelPipeline pipeline = ch.pipeline();
-                        pipeline.addLast(new LengthFieldBasedFrameDecoder(4096, 8, 4, 0, 0));
+                        pipeline.addLast(FrameSettings.DECODER_NAME, FrameSettings.DEFAULTS.newFrameDecoder());
                         pipeline.addLast(new ClientEncoder());
                         pipeline.addLast(new ClientDecoder());
+                        // responses overtake the chunks of a running upload
+                        pipeline.addLast(new PriorityWriteHandler());
                         pipeline.addLast(new ClientHandler(ClientService.this));
                     }
                 });
+        // same group and options, the lanes only carry upload chunks
+        uploadLanes = new UploadLanes(bootstrap.clone()
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ChannelPipeline pipeline = ch.pipeline();
+                        pipeline.addLast(FrameSettings.DECODER_NAME, FrameSettings.DEFAULTS.newFrameDecoder());
+                        pipeline.addLast(new ClientEncoder());
+                        pipeline.addLast(new ClientDecoder());
+                        pipeline.addLast(new PriorityWriteHandler());
+                        pipeline.addLast(new UploadLanes.LaneHandler());
+                    }
+                }));
     }
 
     private void startForegroundWithNotification() {
@@ -168,6 +184,9 @@ public class ClientService extends Service {
     }
 
     private void disconnect(boolean block) throws InterruptedException {
+        if (uploadLanes != null) {
+            uploadLanes.close();
+        }
         if (channel != null) {
             ChannelFuture future = channel.close();
             if (block) {
@@ -214,7 +233,8 @@ public class ClientService extends Service {
 
     private void sendRegisterMessage() throws InterruptedException {
         if (isChannelReady()) {
-            Message message = new Message(Message.MessageType.REQUEST, MessageUtil.registerRequest(audioHandler.buildRegisterRouteInfo()).getBytes());
+            // always JSON: the format is only negotiated by this very request
+            Message message = new Message(Message.MessageType.REQUEST, MessageUtil.registerRequest(audioHandler.buildRegisterRouteInfo()));
             channel.writeAndFlush(message).sync();
             if (listener != null) {
                 listener.onMessageReceived(true, message.getType(), message.toString());
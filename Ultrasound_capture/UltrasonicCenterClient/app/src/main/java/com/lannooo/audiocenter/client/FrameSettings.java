@@ -0,0 +1,223 @@
+package com.lannooo.audiocenter.client;
+
+import androidx.annotation.NonNull;
+
+import java.util.Map;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.AttributeKey;
+
+/**
+ * Frame and chunk sizes of the server connection, as granted by the server's "transport" request.
+ */
+public class FrameSettings {
+    public static final AttributeKey<FrameSettings> KEY = AttributeKey.valueOf("frameSettings");
+    public static final String DECODER_NAME = "frameDecoder";
+
+    public static final int DEFAULT_CHUNK_SIZE = 2048;
+    // proposed at register, the server may grant less
+    public static final int PREFERRED_CHUNK_SIZE = 256 * 1024;
+
+    public static final FrameSettings DEFAULTS = builder(DEFAULT_CHUNK_SIZE * 2, DEFAULT_CHUNK_SIZE).build();
+
+    // transferId, prepended to the chunk header when both sides support concurrent transfers
+    public static final int TRANSFER_ID_LENGTH = 4;
+    // CRC32C of the chunk data, appended to the chunk header when both sides check chunks
+    public static final int CHUNK_CRC_LENGTH = 4;
+
+    private final int maxFrameLength;
+    private final int chunkSize;
+    private final boolean transferIds;
+    private final boolean resumeUploads;
+    private final boolean chunkCrc;
+    private final int lanes;
+    private final String laneToken;
+    private final String codec;
+    private final boolean liveUpload;
+
+    private FrameSettings(Builder builder) {
+        this.maxFrameLength = builder.maxFrameLength;
+        this.chunkSize = builder.chunkSize;
+        this.transferIds = builder.transferIds;
+        this.resumeUploads = builder.resumeUploads;
+        this.chunkCrc = builder.chunkCrc;
+        this.lanes = builder.laneToken == null ? 0 : builder.lanes;
+        this.laneToken = builder.laneToken;
+        this.codec = builder.codec;
+        this.liveUpload = builder.liveUpload;
+    }
+
+    /**
+     * @return settings of these sizes, with none of the optional features unless they are set
+     */
+    public static Builder builder(int maxFrameLength, int chunkSize) {
+        return new Builder(maxFrameLength, chunkSize);
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return true if every DATA_TRANSFER chunk starts with the id of its transfer, so that several
+     * files can be interleaved on the connection
+     */
+    public boolean isTransferIds() {
+        return transferIds;
+    }
+
+    /**
+     * @return true if the server answers an upload request with the chunk ranges it is still missing
+     */
+    public boolean isResumeUploads() {
+        return resumeUploads;
+    }
+
+    /**
+     * @return true if every chunk header ends with the CRC32C of the chunk data, uploads are then followed by
+     * the SHA-256 of the file for the server to verify
+     */
+    public boolean isChunkCrc() {
+        return chunkCrc;
+    }
+
+    /**
+     * @return extra connections the server accepts to stripe large uploads over, 0 if none
+     */
+    public int getLanes() {
+        return lanes;
+    }
+
+    /**
+     * @return what the lanes are attached to this connection's device with, null if the server offers none
+     */
+    public String getLaneToken() {
+        return laneToken;
+    }
+
+    /**
+     * @return the codec the server decodes uploads with, see {@link LosslessAudioCodec}; null if it takes them as
+     * they are
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return true if recordings may be streamed to the server while they are made, see {@link LiveUpload}
+     */
+    public boolean isLiveUpload() {
+        return liveUpload;
+    }
+
+    public LengthFieldBasedFrameDecoder newFrameDecoder() {
+        return new LengthFieldBasedFrameDecoder(maxFrameLength, 8, 4, 0, 0);
+    }
+
+    public static FrameSettings fromTransportRequest(Map<String, Object> data) {
+        int maxFrame = ((Number) data.get("max_frame")).intValue();
+        int chunkSize = ((Number) data.get("chunk_size")).intValue();
+        // older servers do not grant it and still expect one transfer at a time
+        boolean transferIds = Boolean.TRUE.equals(data.get("transfer_ids"));
+        boolean resumeUploads = Boolean.TRUE.equals(data.get("resume_uploads"));
+        boolean chunkCrc = Boolean.TRUE.equals(data.get("chunk_crc"));
+        int lanes = data.get("lanes") instanceof Number ? ((Number) data.get("lanes")).intValue() : 0;
+        String laneToken = (String) data.get("lane_token");
+        // only ever one we offered at register
+        String codec = LosslessAudioCodec.NAME.equals(data.get("codec")) ? LosslessAudioCodec.NAME : null;
+        boolean liveUpload = Boolean.TRUE.equals(data.get("live_upload"));
+        return builder(maxFrame, chunkSize)
+                .transferIds(transferIds)
+                .resumeUploads(resumeUploads)
+                .chunkCrc(chunkCrc)
+                .lanes(lanes, laneToken)
+                .codec(codec)
+                .liveUpload(liveUpload)
+                .build();
+    }
+
+    public static FrameSettings of(Channel channel) {
+        FrameSettings settings = channel.attr(KEY).get();
+        return settings == null ? DEFAULTS : settings;
+    }
+
+    public void apply(Channel channel) {
+        channel.attr(KEY).set(this);
+        channel.pipeline().replace(DECODER_NAME, DECODER_NAME, newFrameDecoder());
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "FrameSettings{" +
+                "maxFrameLength=" + maxFrameLength +
+                ", chunkSize=" + chunkSize +
+                ", transferIds=" + transferIds +
+                ", resumeUploads=" + resumeUploads +
+                ", chunkCrc=" + chunkCrc +
+                ", lanes=" + lanes +
+                ", codec=" + codec +
+                ", liveUpload=" + liveUpload +
+                '}';
+    }
+
+    public static final class Builder {
+        private final int maxFrameLength;
+        private final int chunkSize;
+        private boolean transferIds;
+        private boolean resumeUploads;
+        private boolean chunkCrc;
+        private int lanes;
+        private String laneToken;
+        private String codec;
+        private boolean liveUpload;
+
+        private Builder(int maxFrameLength, int chunkSize) {
+            this.maxFrameLength = maxFrameLength;
+            this.chunkSize = chunkSize;
+        }
+
+        public Builder transferIds(boolean transferIds) {
+            this.transferIds = transferIds;
+            return this;
+        }
+
+        public Builder resumeUploads(boolean resumeUploads) {
+            this.resumeUploads = resumeUploads;
+            return this;
+        }
+
+        public Builder chunkCrc(boolean chunkCrc) {
+            this.chunkCrc = chunkCrc;
+            return this;
+        }
+
+        /**
+         * @param laneToken what the lanes are attached with, no lanes without it
+         */
+        public Builder lanes(int lanes, String laneToken) {
+            this.lanes = lanes;
+            this.laneToken = laneToken;
+            return this;
+        }
+
+        public Builder codec(String codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        public Builder liveUpload(boolean liveUpload) {
+            this.liveUpload = liveUpload;
+            return this;
+        }
+
+        public FrameSettings build() {
+            return new FrameSettings(this);
+        }
+    }
+}
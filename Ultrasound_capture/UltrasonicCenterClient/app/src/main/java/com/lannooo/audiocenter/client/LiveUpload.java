@@ -0,0 +1,135 @@
+package com.lannooo.audiocenter.client;
+
+import android.util.Log;
+
+import com.lannooo.audiocenter.tool.AppUtil;
+import com.lannooo.audiocenter.tool.Crc32c;
+
+import java.io.File;
+import java.security.MessageDigest;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+
+/**
+ * A recording streamed to the server while it is being made, next to the local file. The samples go out as
+ * DATA_TRANSFER chunks of the stream's transfer id as the recorder writes them, the WAV header the recorder
+ * writes when it stops comes last. The server then has the file as soon as it has checked the length and the
+ * digest of the samples.
+ * <p>
+ * Nothing is sent again while recording: if a chunk cannot be sent, or the server finds the stream broken, the
+ * local file is uploaded instead.
+ */
+public class LiveUpload {
+    public static final String TAG = "LiveUpload";
+    // the header the recorder writes in front of the samples
+    public static final int HEADER_LENGTH = 44;
+    // samples collected before a chunk goes out, about 0.17 s of 48 kHz mono
+    private static final int CHUNK_BYTES = 16 * 1024;
+
+    private final Channel channel;
+    private final File file;
+    private final int transferId;
+    private final MessageDigest digest = AppUtil.sha256();
+    private final byte[] pending;
+    private int pendingLength;
+    // where the pending samples go in the file
+    private long offset = HEADER_LENGTH;
+    private int chunkId;
+    private volatile boolean broken;
+
+    public LiveUpload(Channel channel, File file, int transferId, int chunkSize) {
+        this.channel = channel;
+        this.file = file;
+        this.transferId = transferId;
+        this.pending = new byte[Math.min(CHUNK_BYTES, chunkSize)];
+    }
+
+    /**
+     * Samples the recorder has just written to the file, on the recording thread.
+     */
+    public synchronized void append(byte[] data, int length) {
+        if (broken) {
+            return;
+        }
+        digest.update(data, 0, length);
+        int pos = 0;
+        while (pos < length) {
+            int n = Math.min(length - pos, pending.length - pendingLength);
+            System.arraycopy(data, pos, pending, pendingLength, n);
+            pendingLength += n;
+            pos += n;
+            if (pendingLength == pending.length) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Send the rest of the samples and the header of the stopped recording.
+     *
+     * @return the digest of the samples sent, null if the stream is broken
+     */
+    public synchronized String finish(byte[] header) {
+        flush();
+        send(header, header.length, 0);
+        return broken ? null : AppUtil.hex(digest.digest());
+    }
+
+    private void flush() {
+        if (pendingLength > 0) {
+            send(pending, pendingLength, offset);
+            offset += pendingLength;
+            pendingLength = 0;
+        }
+    }
+
+    private void send(byte[] data, int length, long at) {
+        if (broken) {
+            return;
+        }
+        int headerLength = FrameSettings.TRANSFER_ID_LENGTH + ChunkedMessageFile.CHUNK_HEADER_LENGTH
+                + FrameSettings.CHUNK_CRC_LENGTH;
+        byte[] payload = new byte[headerLength + length];
+        System.arraycopy(data, 0, payload, headerLength, length);
+        Unpooled.wrappedBuffer(payload).writerIndex(0)
+                .writeInt(transferId)
+                .writeInt(++chunkId)
+                .writeInt(0)  // total chunks, unknown while recording
+                .writeInt((int) at)
+                .writeInt(0)  // length, likewise
+                .writeInt(Crc32c.of(payload, headerLength, length));
+        channel.writeAndFlush(new Message(Message.MessageType.DATA_TRANSFER, payload))
+                .addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess()) {
+                        fail(String.valueOf(future.cause()));
+                    }
+                });
+    }
+
+    /**
+     * Stop streaming, the file is uploaded once the recording is done.
+     */
+    public void fail(String reason) {
+        if (!broken) {
+            broken = true;
+            Log.w(TAG, "Live upload of " + file.getName() + " broken: " + reason);
+        }
+    }
+
+    public boolean isBroken() {
+        return broken;
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    /**
+     * @return length of the file streamed so far, header included
+     */
+    public synchronized long getLength() {
+        return offset + pendingLength;
+    }
+}
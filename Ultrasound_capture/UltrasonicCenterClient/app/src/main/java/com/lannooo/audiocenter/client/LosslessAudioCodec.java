@@ -0,0 +1,635 @@
+package com.lannooo.audiocenter.client;
+
+import java.util.Arrays;
+
+/**
+ * Lossless coding of 16-bit PCM upload chunks: linear prediction per block and channel, with the residuals
+ * Rice coded. The same class is in the client, the format must not change on one side only.
+ * <p>
+ * Every chunk is coded on its own, so chunks can still be resumed, sent again and striped one by one. Only the
+ * whole sample frames of the WAV "data" chunk inside a chunk are coded, the rest (the WAV header, a frame cut
+ * by a chunk boundary) is kept as it is. A chunk that would not get smaller is sent as it is.
+ * <p>
+ * The block size adapts to the signal: each superblock of 4096 samples is split in halves, down to 256
+ * samples, as long as the halves code smaller than the whole.
+ * <pre>
+ * chunk   = mode (1 byte): 0 + the raw bytes, or 1 + coded
+ * coded   = length (4), head length (4), frames (4), channels (1), head bytes,
+ *           a bit stream of one block tree per superblock and channel (padded to a byte), tail bytes
+ * tree    = 1 bit: 1 + two trees of the halves, or 0 + block
+ * block   = order (5 bits), for order &gt; 0 shift (4) and order coefficients (15 each),
+ *           order warm-up samples (16 each), residual partitions of 256 samples: Rice parameter (5) + codes
+ * code    = quotient q in unary (q ones and a zero) + k low bits, or 24 ones + the value in 32 bits
+ * </pre>
+ * Integers are big endian, residuals zigzag mapped to unsigned.
+ */
+public final class LosslessAudioCodec {
+    public static final String NAME = "lpc_rice";
+
+    private static final int MODE_RAW = 0;
+    private static final int MODE_CODED = 1;
+    private static final int CODED_HEADER_LENGTH = 1 + 4 + 4 + 4 + 1;
+    private static final int SUPERBLOCK = 4096;
+    private static final int MIN_BLOCK = 256;
+    private static final int PARTITION = 256;
+    private static final int MAX_ORDER = 12;
+    private static final int COEF_BITS = 15;
+    private static final int MAX_SHIFT = 15;
+    private static final int MAX_RICE = 30;
+    private static final int ESCAPE = 24;
+    // residuals beyond this are not worth predicting, and could overflow the zigzag mapping
+    private static final int MAX_RESIDUAL = 1 << 30;
+
+    // scratch of the encoder, one instance per stream
+    private final int[] residual = new int[SUPERBLOCK];
+    private final double[] windowed = new double[SUPERBLOCK];
+
+    /**
+     * Where the samples are in a file: 16-bit little endian PCM, interleaved channels.
+     */
+    public static final class Layout {
+        private final long dataStart;
+        private final long dataEnd;
+        private final int channels;
+
+        public Layout(long dataStart, long dataEnd, int channels) {
+            this.dataStart = dataStart;
+            this.dataEnd = dataEnd;
+            this.channels = channels;
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        /**
+         * @param header the first bytes of the file, enough to reach the "data" chunk
+         * @return the layout of a 16-bit PCM WAV file, or null for anything else
+         */
+        public static Layout ofWav(byte[] header, int headerLength, long fileLength) {
+            if (headerLength < 12 || !tag(header, 0, "RIFF") || !tag(header, 8, "WAVE")) {
+                return null;
+            }
+            int channels = 0;
+            int pos = 12;
+            while (pos + 8 <= headerLength) {
+                long size = le32(header, pos + 4);
+                if (tag(header, pos, "fmt ") && pos + 24 <= headerLength) {
+                    int format = le16(header, pos + 8);
+                    int bits = le16(header, pos + 22);
+                    // extensible format (0xFFFE) is plain PCM as well for 16-bit recordings
+                    if ((format != 1 && format != 0xFFFE) || bits != 16) {
+                        return null;
+                    }
+                    channels = le16(header, pos + 10);
+                } else if (tag(header, pos, "data")) {
+                    if (channels < 1 || channels > 8) {
+                        return null;
+                    }
+                    long start = pos + 8;
+                    // the size is left 0 (or too big) by a recorder that was not stopped cleanly
+                    long end = size == 0 || start + size > fileLength ? fileLength : start + size;
+                    return new Layout(start, end, channels);
+                }
+                pos += 8 + size + (size & 1);
+            }
+            return null;
+        }
+
+        private static boolean tag(byte[] b, int pos, String tag) {
+            for (int i = 0; i < 4; i++) {
+                if (b[pos + i] != tag.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int le16(byte[] b, int pos) {
+            return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8;
+        }
+
+        private static long le32(byte[] b, int pos) {
+            return (le16(b, pos) | (long) le16(b, pos + 2) << 16) & 0xFFFFFFFFL;
+        }
+    }
+
+    /**
+     * @param fileOffset where the chunk starts in the file
+     * @return the chunk coded, at most one byte longer than it is
+     */
+    public byte[] encodeChunk(byte[] raw, int off, int len, long fileOffset, Layout layout) {
+        int frameBytes = 2 * layout.channels;
+        long pcmStart = Math.max(fileOffset, layout.dataStart);
+        pcmStart = layout.dataStart + (pcmStart - layout.dataStart + frameBytes - 1) / frameBytes * frameBytes;
+        long pcmEnd = Math.min(fileOffset + len, layout.dataEnd);
+        pcmEnd = pcmEnd < layout.dataStart ? pcmEnd
+                : layout.dataStart + (pcmEnd - layout.dataStart) / frameBytes * frameBytes;
+        if (pcmEnd <= pcmStart) {
+            return rawChunk(raw, off, len);
+        }
+        int head = (int) (pcmStart - fileOffset);
+        int frames = (int) ((pcmEnd - pcmStart) / frameBytes);
+        int tail = len - head - frames * frameBytes;
+
+        BitWriter out = new BitWriter(len + 64);
+        out.write(MODE_CODED, 8);
+        out.write(len, 32);
+        out.write(head, 32);
+        out.write(frames, 32);
+        out.write(layout.channels, 8);
+        out.bytes(raw, off, head);
+        int[] samples = new int[frames];
+        for (int channel = 0; channel < layout.channels; channel++) {
+            int pos = off + head + 2 * channel;
+            for (int i = 0; i < frames; i++, pos += frameBytes) {
+                samples[i] = (short) ((raw[pos] & 0xFF) | raw[pos + 1] << 8);
+            }
+            for (int from = 0; from < frames; from += SUPERBLOCK) {
+                Node tree = plan(samples, from, Math.min(SUPERBLOCK, frames - from));
+                writeTree(samples, tree, out);
+                if (out.length() > len) {
+                    return rawChunk(raw, off, len);
+                }
+            }
+        }
+        out.align();
+        out.bytes(raw, off + len - tail, tail);
+        return out.length() < len + 1 ? out.toByteArray() : rawChunk(raw, off, len);
+    }
+
+    /**
+     * @param maxLength longest chunk the sender may produce, bounds what a corrupt length can allocate
+     * @throws IllegalArgumentException if the data is not a valid coded chunk
+     */
+    public static byte[] decodeChunk(byte[] in, int off, int len, int maxLength) {
+        if (len < 1) {
+            throw corrupt("empty chunk");
+        }
+        if (in[off] == MODE_RAW) {
+            byte[] raw = new byte[len - 1];
+            System.arraycopy(in, off + 1, raw, 0, raw.length);
+            return raw;
+        }
+        if (in[off] != MODE_CODED || len < CODED_HEADER_LENGTH) {
+            throw corrupt("unknown mode " + in[off]);
+        }
+        BitReader reader = new BitReader(in, off + 1, len - 1);
+        int length = reader.read(32);
+        int head = reader.read(32);
+        int frames = reader.read(32);
+        int channels = reader.read(8);
+        if (length < 0 || length > maxLength || head < 0 || frames < 0 || channels < 1
+                || (long) head + (long) frames * channels * 2 > length) {
+            throw corrupt("bad header");
+        }
+        byte[] out = new byte[length];
+        reader.bytes(out, 0, head);
+        int[] samples = new int[frames];
+        int frameBytes = 2 * channels;
+        for (int channel = 0; channel < channels; channel++) {
+            for (int from = 0; from < frames; from += SUPERBLOCK) {
+                readTree(samples, from, Math.min(SUPERBLOCK, frames - from), reader);
+            }
+            int pos = head + 2 * channel;
+            for (int i = 0; i < frames; i++, pos += frameBytes) {
+                out[pos] = (byte) samples[i];
+                out[pos + 1] = (byte) (samples[i] >> 8);
+            }
+        }
+        reader.align();
+        int tail = length - head - frames * frameBytes;
+        reader.bytes(out, length - tail, tail);
+        if (reader.remaining() != 0) {
+            throw corrupt("trailing bytes");
+        }
+        return out;
+    }
+
+    private static byte[] rawChunk(byte[] raw, int off, int len) {
+        byte[] out = new byte[len + 1];
+        out[0] = MODE_RAW;
+        System.arraycopy(raw, off, out, 1, len);
+        return out;
+    }
+
+    private static IllegalArgumentException corrupt(String why) {
+        return new IllegalArgumentException("Corrupt coded chunk: " + why);
+    }
+
+    // --- encoder
+
+    private static final class Node {
+        private long bits;
+        private Block block;
+        private Node left;
+        private Node right;
+    }
+
+    private static final class Block {
+        private final int from;
+        private final int n;
+        private final int order;
+        private final int shift;
+        private final int[] coefs;
+        private int[] rice;
+        private long bits;
+
+        private Block(int from, int n, int order, int shift, int[] coefs) {
+            this.from = from;
+            this.n = n;
+            this.order = order;
+            this.shift = shift;
+            this.coefs = coefs;
+        }
+    }
+
+    /**
+     * Cheapest coding of the range, as one block or split in halves.
+     */
+    private Node plan(int[] x, int from, int n) {
+        Node node = new Node();
+        node.block = chooseBlock(x, from, n);
+        node.bits = 1 + node.block.bits;
+        if (n >= 2 * MIN_BLOCK) {
+            int half = n / 2;
+            Node left = plan(x, from, half);
+            Node right = plan(x, from + half, n - half);
+            if (1 + left.bits + right.bits < node.bits) {
+                node.block = null;
+                node.left = left;
+                node.right = right;
+                node.bits = 1 + left.bits + right.bits;
+            }
+        }
+        return node;
+    }
+
+    private void writeTree(int[] x, Node node, BitWriter out) {
+        if (node.block == null) {
+            out.write(1, 1);
+            writeTree(x, node.left, out);
+            writeTree(x, node.right, out);
+            return;
+        }
+        out.write(0, 1);
+        Block block = node.block;
+        out.write(block.order, 5);
+        if (block.order > 0) {
+            out.write(block.shift, 4);
+            for (int coef : block.coefs) {
+                out.write(coef, COEF_BITS);
+            }
+        }
+        for (int i = 0; i < block.order; i++) {
+            out.write(x[block.from + i], 16);
+        }
+        predict(x, block, residual);
+        for (int p = 0, start = 0; start < block.n; p++, start += PARTITION) {
+            int k = block.rice[p];
+            out.write(k, 5);
+            for (int i = Math.max(start, block.order), end = Math.min(block.n, start + PARTITION); i < end; i++) {
+                int u = (residual[i] << 1) ^ (residual[i] >> 31);
+                int q = u >>> k;
+                if (q < ESCAPE) {
+                    out.ones(q);
+                    out.write(0, 1);
+                    if (k > 0) {
+                        out.write(u, k);
+                    }
+                } else {
+                    out.ones(ESCAPE);
+                    out.write(u, 32);
+                }
+            }
+        }
+    }
+
+    /**
+     * The verbatim block and the best linear predictor by the Levinson-Durbin error estimate, whichever codes smaller.
+     */
+    private Block chooseBlock(int[] x, int from, int n) {
+        Block best = new Block(from, n, 0, 0, new int[0]);
+        price(x, best);
+        int maxOrder = Math.min(MAX_ORDER, n / 16);
+        if (maxOrder < 1) {
+            return best;
+        }
+        double[][] lpc = levinson(autocorrelation(x, from, n, maxOrder), maxOrder);
+        if (lpc == null) {
+            return best;
+        }
+        int order = 0;
+        double bestEstimate = 0;
+        for (int o = 1; o <= maxOrder; o++) {
+            double error = lpc[o][0];
+            if (!(error > 0)) {
+                break;
+            }
+            // about half a bit per sample for every halving of the error, each coefficient costs its warm-up too
+            double estimate = 0.5 * n * Math.log(error) / Math.log(2) + o * (COEF_BITS + 16);
+            if (order == 0 || estimate < bestEstimate) {
+                order = o;
+                bestEstimate = estimate;
+            }
+        }
+        if (order == 0) {
+            return best;
+        }
+        Block block = quantize(from, n, order, lpc[order]);
+        if (block != null && price(x, block) && block.bits < best.bits) {
+            return block;
+        }
+        return best;
+    }
+
+    private double[] autocorrelation(int[] x, int from, int n, int maxOrder) {
+        // Welch window against the edges of the block
+        double half = (n - 1) / 2.0;
+        for (int i = 0; i < n; i++) {
+            double t = (i - half) / (half + 1);
+            windowed[i] = x[from + i] * (1 - t * t);
+        }
+        double[] r = new double[maxOrder + 1];
+        for (int lag = 0; lag <= maxOrder; lag++) {
+            double sum = 0;
+            for (int i = lag; i < n; i++) {
+                sum += windowed[i] * windowed[i - lag];
+            }
+            r[lag] = sum;
+        }
+        return r;
+    }
+
+    /**
+     * @return per order: the prediction error at [0], the coefficients at [1..order]; null for silence
+     */
+    private static double[][] levinson(double[] r, int maxOrder) {
+        if (!(r[0] > 0)) {
+            return null;
+        }
+        double[][] lpc = new double[maxOrder + 1][];
+        double[] a = new double[maxOrder + 1];
+        double error = r[0] * (1 + 1e-9);
+        lpc[0] = new double[]{error};
+        for (int i = 1; i <= maxOrder; i++) {
+            double acc = r[i];
+            for (int j = 1; j < i; j++) {
+                acc -= a[j] * r[i - j];
+            }
+            double k = acc / error;
+            double[] next = a.clone();
+            next[i] = k;
+            for (int j = 1; j < i; j++) {
+                next[j] = a[j] - k * a[i - j];
+            }
+            a = next;
+            error *= 1 - k * k;
+            lpc[i] = new double[i + 1];
+            lpc[i][0] = error;
+            System.arraycopy(a, 1, lpc[i], 1, i);
+        }
+        return lpc;
+    }
+
+    private static Block quantize(int from, int n, int order, double[] lpc) {
+        double max = 0;
+        for (int j = 1; j <= order; j++) {
+            max = Math.max(max, Math.abs(lpc[j]));
+        }
+        int limit = (1 << (COEF_BITS - 1)) - 1;
+        if (!(max > 0) || max > limit) {
+            return null;
+        }
+        int shift = Math.min(MAX_SHIFT, (int) Math.floor(Math.log(limit / max) / Math.log(2)));
+        int[] coefs = new int[order];
+        // carry the rounding error over to the next coefficient
+        double carry = 0;
+        for (int j = 0; j < order; j++) {
+            carry += lpc[j + 1] * (1 << shift);
+            int q = (int) Math.max(-limit, Math.min(limit, Math.round(carry)));
+            coefs[j] = q;
+            carry -= q;
+        }
+        return new Block(from, n, order, shift, coefs);
+    }
+
+    /**
+     * Compute the residuals of the block into {@code res}, indexed from the block start.
+     *
+     * @return false if a residual is too large to code
+     */
+    private static boolean predict(int[] x, Block block, int[] res) {
+        int order = block.order;
+        int[] coefs = block.coefs;
+        for (int i = 0; i < order; i++) {
+            res[i] = 0;
+        }
+        for (int i = order; i < block.n; i++) {
+            int t = block.from + i;
+            long sum = 0;
+            for (int j = 0; j < order; j++) {
+                sum += (long) coefs[j] * x[t - 1 - j];
+            }
+            long r = x[t] - (sum >> block.shift);
+            if (r >= MAX_RESIDUAL || r <= -MAX_RESIDUAL) {
+                return false;
+            }
+            res[i] = (int) r;
+        }
+        return true;
+    }
+
+    /**
+     * Pick the Rice parameter of every partition and the size of the block in bits.
+     *
+     * @return false if the predictor cannot code the block
+     */
+    private boolean price(int[] x, Block block) {
+        if (!predict(x, block, residual)) {
+            return false;
+        }
+        int partitions = (block.n + PARTITION - 1) / PARTITION;
+        block.rice = new int[partitions];
+        long bits = 5 + (block.order > 0 ? 4 + (long) block.order * COEF_BITS : 0) + block.order * 16L;
+        for (int p = 0; p < partitions; p++) {
+            int start = Math.max(p * PARTITION, block.order);
+            int end = Math.min(block.n, (p + 1) * PARTITION);
+            long sum = 0;
+            for (int i = start; i < end; i++) {
+                sum += (residual[i] << 1) ^ (residual[i] >> 31);
+            }
+            // estimated from the sum, the quotients add up to about sum / 2^k
+            int count = end - start;
+            long partitionBits = Long.MAX_VALUE;
+            for (int k = 0; k <= MAX_RICE; k++) {
+                long candidate = (long) count * (1 + k) + (sum >> k);
+                if (candidate >= partitionBits) {
+                    break;
+                }
+                partitionBits = candidate;
+                block.rice[p] = k;
+            }
+            bits += 5 + partitionBits;
+        }
+        block.bits = bits;
+        return true;
+    }
+
+    // --- decoder
+
+    private static void readTree(int[] x, int from, int n, BitReader in) {
+        if (in.read(1) == 1) {
+            if (n < 2 * MIN_BLOCK) {
+                throw corrupt("block split too small");
+            }
+            int half = n / 2;
+            readTree(x, from, half, in);
+            readTree(x, from + half, n - half, in);
+            return;
+        }
+        int order = in.read(5);
+        if (order > MAX_ORDER || order > n) {
+            throw corrupt("order " + order);
+        }
+        int shift = 0;
+        int[] coefs = new int[order];
+        if (order > 0) {
+            shift = in.read(4);
+            for (int j = 0; j < order; j++) {
+                coefs[j] = in.read(COEF_BITS) << (32 - COEF_BITS) >> (32 - COEF_BITS);
+            }
+        }
+        for (int i = 0; i < order; i++) {
+            x[from + i] = (short) in.read(16);
+        }
+        for (int start = 0; start < n; start += PARTITION) {
+            int k = in.read(5);
+            for (int i = Math.max(start, order), end = Math.min(n, start + PARTITION); i < end; i++) {
+                int q = in.unary(ESCAPE);
+                int u = q < ESCAPE ? q << k | (k > 0 ? in.read(k) : 0) : in.read(32);
+                int r = (u >>> 1) ^ -(u & 1);
+                int t = from + i;
+                long sum = 0;
+                for (int j = 0; j < order; j++) {
+                    sum += (long) coefs[j] * x[t - 1 - j];
+                }
+                long sample = r + (sum >> shift);
+                if (sample < Short.MIN_VALUE || sample > Short.MAX_VALUE) {
+                    throw corrupt("sample out of range");
+                }
+                x[t] = (int) sample;
+            }
+        }
+    }
+
+    private static final class BitWriter {
+        private byte[] buf;
+        private int pos;
+        private long acc;
+        private int accBits;
+
+        private BitWriter(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        /**
+         * @param bits 1 to 32, the low bits of the value are written
+         */
+        private void write(int value, int bits) {
+            acc = acc << bits | (value & (-1L >>> (64 - bits)));
+            accBits += bits;
+            while (accBits >= 8) {
+                accBits -= 8;
+                put((byte) (acc >>> accBits));
+            }
+        }
+
+        private void ones(int count) {
+            for (; count >= 32; count -= 32) {
+                write(-1, 32);
+            }
+            if (count > 0) {
+                write(-1, count);
+            }
+        }
+
+        private void align() {
+            if (accBits > 0) {
+                write(0, 8 - accBits);
+            }
+        }
+
+        private void bytes(byte[] b, int off, int len) {
+            for (int i = 0; i < len; i++) {
+                write(b[off + i], 8);
+            }
+        }
+
+        private void put(byte b) {
+            if (pos == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            buf[pos++] = b;
+        }
+
+        private int length() {
+            return pos;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+        private long acc;
+        private int accBits;
+
+        private BitReader(byte[] buf, int off, int len) {
+            this.buf = buf;
+            this.pos = off;
+            this.end = off + len;
+        }
+
+        private int read(int bits) {
+            while (accBits < bits) {
+                if (pos >= end) {
+                    throw corrupt("truncated");
+                }
+                acc = acc << 8 | (buf[pos++] & 0xFF);
+                accBits += 8;
+            }
+            accBits -= bits;
+            return (int) (acc >>> accBits & (-1L >>> (64 - bits)));
+        }
+
+        /**
+         * @return the number of ones before the next zero, or max if there are that many
+         */
+        private int unary(int max) {
+            int count = 0;
+            while (count < max && read(1) == 1) {
+                count++;
+            }
+            return count;
+        }
+
+        private void align() {
+            accBits -= accBits % 8;
+        }
+
+        private void bytes(byte[] out, int off, int len) {
+            for (int i = 0; i < len; i++) {
+                out[off + i] = (byte) read(8);
+            }
+        }
+
+        private int remaining() {
+            return end - pos + accBits / 8;
+        }
+    }
+}
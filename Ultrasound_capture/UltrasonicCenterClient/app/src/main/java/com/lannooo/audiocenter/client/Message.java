@@ -23,6 +23,8 @@ public class Message {
 
     private MessageType type;
     private byte[] payload;
+    // REQUEST payload, encoded by the channel's negotiated format when it is written
+    private MessageRequest request;
 
     public Message(MessageType type, byte[] payload) {
         this.type = type;
@@ -39,11 +41,30 @@ public class Message {
         }
     }
 
+    public Message(MessageType type, MessageRequest request) {
+        this.type = type;
+        this.request = request;
+    }
+
+    public boolean hasRequest() {
+        return request != null;
+    }
+
+    public MessageRequest getRequest() {
+        if (request == null) {
+            request = MessageCodec.decode(payload);
+        }
+        return request;
+    }
+
     public MessageType getType() {
         return type;
     }
 
     public byte[] getPayload() {
+        if (payload == null && request != null) {
+            payload = MessageCodec.encode(request, MessageCodec.Format.JSON);
+        }
         return payload;
     }
 
@@ -54,6 +75,11 @@ public class Message {
         String payloadStr;
         if (type == MessageType.DATA_TRANSFER) {
             payloadStr = "[...]";
+        } else if (request != null) {
+            payloadStr = request.toString();
+        } else if (type == MessageType.RESPONSE && MessageCodec.decodeResponse(payload) != null) {
+            // structured response, possibly binary
+            payloadStr = MessageCodec.decodeResponse(payload).toString();
         } else {
             payloadStr = new String(payload);
         }
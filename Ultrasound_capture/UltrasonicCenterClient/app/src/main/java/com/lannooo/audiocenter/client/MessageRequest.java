@@ -8,7 +8,12 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class MessageRequest {
+    // Gson is thread-safe, no need to build one for every message
+    private static final Gson GSON = new Gson();
+
     private String subtype;
+    // correlates a RESPONSE with its REQUEST, 0 when nobody waits for the answer
+    private long id;
     private Map<String, Object> data;
 
     public MessageRequest(String subtype) {
@@ -24,18 +29,62 @@ public class MessageRequest {
         return subtype;
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public Map<String, Object> getData() {
         return data;
     }
 
+    // typed accessors, numbers are Double when decoded from JSON but Long from the binary format
+
+    public String getString(String key) {
+        Object value = data.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    public long getLong(String key, long defaultValue) {
+        Object value = data.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        Object value = data.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        Object value = data.get(key);
+        return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object value = data.get(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    /**
+     * A structured response to this request, with the same subtype and id.
+     */
+    public MessageRequest reply(boolean ok, String message) {
+        MessageRequest response = new MessageRequest(subtype);
+        response.id = id;
+        response.put("ok", ok);
+        response.put("message", message);
+        return response;
+    }
+
     public String toJsonString() {
-        Gson gson = new Gson();
-        return gson.toJson(this);
+        return GSON.toJson(this);
     }
 
     public static MessageRequest fromJsonString(String jsonString) {
-        Gson gson = new Gson();
-        return gson.fromJson(jsonString, MessageRequest.class);
+        return GSON.fromJson(jsonString, MessageRequest.class);
     }
 
     @NonNull
@@ -0,0 +1,230 @@
+package com.lannooo.audiocenter.client;
+
+import android.util.Log;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelProgressivePromise;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Outbound scheduler of the server connection.
+ * <p>
+ * Control frames (requests and responses) are passed on at once. Bulk data, that is
+ * DATA_TRANSFER messages, files as {@link ChunkedInput} and the "upload" requests announcing them, waits
+ * here and is released only while less than {@code maxBulkInFlight} bytes of it are still queued in the
+ * channel's outbound buffer. A command therefore waits behind at most that much file data instead of
+ * behind the rest of an upload.
+ * <p>
+ * If the server granted transfer ids, the queued files are served round robin one chunk at a time,
+ * otherwise strictly in order since the server only takes one file at a time.
+ */
+public class PriorityWriteHandler extends ChannelDuplexHandler {
+    private static final String TAG = "PriorityWriteHandler";
+
+    // phones mostly upload over WiFi, keep the queue ahead of a response short
+    public static final int DEFAULT_MAX_BULK_IN_FLIGHT = 64 * 1024;
+
+    private final int maxBulkInFlight;
+    private final ArrayDeque<PendingWrite> bulk = new ArrayDeque<>();
+    private long bulkInFlight;
+    private boolean resumeScheduled;
+
+    public PriorityWriteHandler() {
+        this(DEFAULT_MAX_BULK_IN_FLIGHT);
+    }
+
+    public PriorityWriteHandler(int maxBulkInFlight) {
+        this.maxBulkInFlight = maxBulkInFlight;
+    }
+
+    /**
+     * @return true for frames that may be held back in favour of control frames
+     */
+    public static boolean isBulk(Object msg) {
+        if (msg instanceof ChunkedInput) {
+            return true;
+        }
+        if (msg instanceof Message) {
+            Message message = (Message) msg;
+            // the upload request has to stay in front of its chunks, the end of a stripe or stream behind them
+            return message.getType() == Message.MessageType.DATA_TRANSFER
+                    || (message.hasRequest() && ("upload".equals(message.getRequest().getSubtype())
+                    || "stripe_done".equals(message.getRequest().getSubtype())
+                    || "live_end".equals(message.getRequest().getSubtype())));
+        }
+        return false;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (isBulk(msg)) {
+            bulk.add(new PendingWrite(msg, promise));
+        } else {
+            ctx.write(msg, promise);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        writeBulk(ctx);
+        ctx.flush();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            resume(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        discard(new ClosedChannelException());
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        discard(new ClosedChannelException());
+    }
+
+    public int getQueuedBulk() {
+        return bulk.size();
+    }
+
+    public long getBulkInFlight() {
+        return bulkInFlight;
+    }
+
+    private void resume(ChannelHandlerContext ctx) {
+        if (!bulk.isEmpty()) {
+            writeBulk(ctx);
+            ctx.flush();
+        }
+    }
+
+    private void writeBulk(ChannelHandlerContext ctx) {
+        Channel channel = ctx.channel();
+        boolean interleave = FrameSettings.of(channel).isTransferIds();
+        while (!bulk.isEmpty() && bulkInFlight < maxBulkInFlight && channel.isWritable()) {
+            PendingWrite current = bulk.peek();
+            if (!(current.msg instanceof ChunkedInput)) {
+                bulk.poll();
+                writeCounted(ctx, current.msg, current.promise);
+                continue;
+            }
+            final ChunkedInput<?> input = (ChunkedInput<?>) current.msg;
+
+            Object chunk;
+            final boolean endOfInput;
+            try {
+                chunk = input.readChunk(ctx.alloc());
+                endOfInput = input.isEndOfInput();
+            } catch (Exception e) {
+                bulk.poll();
+                closeInput(input);
+                current.promise.tryFailure(e);
+                continue;
+            }
+            if (chunk == null) {
+                if (endOfInput) {
+                    bulk.poll();
+                    closeInput(input);
+                    current.promise.trySuccess();
+                    continue;
+                }
+                // nothing to read right now, retried at the next flush
+                break;
+            }
+
+            bulk.poll();
+            if (!endOfInput) {
+                if (interleave) {
+                    bulk.add(current);
+                } else {
+                    bulk.addFirst(current);
+                }
+            }
+            ChannelPromise chunkPromise = ctx.newPromise().addListener((ChannelFutureListener) future -> {
+                if (!future.isSuccess()) {
+                    bulk.remove(current);
+                    closeInput(input);
+                    current.promise.tryFailure(future.cause());
+                    return;
+                }
+                if (current.promise instanceof ChannelProgressivePromise) {
+                    ((ChannelProgressivePromise) current.promise).tryProgress(input.progress(), input.length());
+                }
+                if (endOfInput) {
+                    closeInput(input);
+                    current.promise.trySuccess();
+                }
+            });
+            writeCounted(ctx, chunk, chunkPromise);
+        }
+    }
+
+    private void writeCounted(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        // the buffers are released by the encoder, take the size before
+        final int size = sizeOf(msg);
+        bulkInFlight += size;
+        promise.addListener((ChannelFutureListener) future -> {
+            bulkInFlight -= size;
+            // the promise completes while the outbound buffer is being flushed, continue after that
+            if (!bulk.isEmpty() && !resumeScheduled && ctx.channel().isActive()) {
+                resumeScheduled = true;
+                ctx.executor().execute(() -> {
+                    resumeScheduled = false;
+                    resume(ctx);
+                });
+            }
+        });
+        ctx.write(msg, promise);
+    }
+
+    private static int sizeOf(Object msg) {
+        if (msg instanceof Message && !((Message) msg).hasRequest()) {
+            return ((Message) msg).getPayload().length;
+        }
+        return 0;
+    }
+
+    private void discard(Throwable cause) {
+        PendingWrite pending;
+        while ((pending = bulk.poll()) != null) {
+            if (pending.msg instanceof ChunkedInput) {
+                closeInput((ChunkedInput<?>) pending.msg);
+            } else {
+                ReferenceCountUtil.release(pending.msg);
+            }
+            pending.promise.tryFailure(cause);
+        }
+    }
+
+    private static void closeInput(ChunkedInput<?> input) {
+        try {
+            input.close();
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to close chunked input: " + e.getMessage());
+        }
+    }
+
+    private static class PendingWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+
+        private PendingWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
+}
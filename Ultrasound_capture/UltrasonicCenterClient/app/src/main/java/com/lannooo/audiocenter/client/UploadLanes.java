@@ -0,0 +1,210 @@
+package com.lannooo.audiocenter.client;
+
+import android.util.Log;
+
+import com.lannooo.audiocenter.tool.MessageUtil;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+/**
+ * Extra connections to the server that carry stripes of large uploads next to the main connection, so that one
+ * file goes out over several TCP streams at once. A lane is attached to the device of the main connection with
+ * the token of the server's "transport" request and only sends chunks, everything else about an upload stays on
+ * the main connection.
+ * <p>
+ * Lanes are opened when the first large upload needs them and kept until the main connection closes.
+ */
+public class UploadLanes {
+    public static final String TAG = "UploadLanes";
+    private static final long REPLY_TIMEOUT_SECONDS = 10;
+
+    private final Bootstrap bootstrap;
+    private final List<Channel> lanes = new ArrayList<>();
+    private Channel primary;
+
+    /**
+     * @param bootstrap connects to the server with a pipeline ending in a {@link LaneHandler}
+     */
+    public UploadLanes(Bootstrap bootstrap) {
+        this.bootstrap = bootstrap;
+    }
+
+    /**
+     * Lanes are attached to the device of this connection from now on, those of an earlier one are closed.
+     */
+    public synchronized void setPrimary(Channel primary) {
+        close();
+        this.primary = primary;
+    }
+
+    /**
+     * @return up to {@code count} open lanes, fewer if the server offers less or some could not be attached
+     */
+    public synchronized List<Channel> acquire(int count) {
+        if (primary == null || !primary.isActive()) {
+            return Collections.emptyList();
+        }
+        FrameSettings settings = FrameSettings.of(primary);
+        count = Math.min(count, settings.getLanes());
+        for (int i = lanes.size() - 1; i >= 0; i--) {
+            if (!lanes.get(i).isActive()) {
+                lanes.remove(i);
+            }
+        }
+        while (lanes.size() < count) {
+            Channel lane = open(settings);
+            if (lane == null) {
+                break;
+            }
+            lanes.add(lane);
+        }
+        return new ArrayList<>(lanes.subList(0, Math.min(count, lanes.size())));
+    }
+
+    public synchronized void close() {
+        for (Channel lane : lanes) {
+            lane.close();
+        }
+        lanes.clear();
+        primary = null;
+    }
+
+    private Channel open(FrameSettings settings) {
+        SocketAddress address = primary.remoteAddress();
+        Channel lane = null;
+        try {
+            lane = bootstrap.connect(address).sync().channel();
+            MessageRequest reply = request(lane, MessageUtil.attachRequest(settings.getLaneToken()))
+                    .get(REPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!reply.getBoolean("ok", false)) {
+                Log.w(TAG, "Upload lane refused: " + reply.getString("message"));
+                lane.close();
+                return null;
+            }
+            // the server has switched the lane to the transport of the main connection
+            settings.apply(lane);
+            lane.attr(MessageCodec.FORMAT_KEY).set(primary.attr(MessageCodec.FORMAT_KEY).get());
+            Log.i(TAG, "Upload lane attached: " + lane.localAddress());
+            return lane;
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to open an upload lane to " + address + ": " + e.getMessage());
+            if (lane != null) {
+                lane.close();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return completed once the server has written every chunk sent on the lane before
+     */
+    public static CompletableFuture<MessageRequest> stripeDone(Channel lane, int transferId) {
+        return request(lane, MessageUtil.stripeDoneRequest(transferId));
+    }
+
+    /**
+     * @return completed when the message is written, exceptionally if that failed
+     */
+    public static CompletableFuture<Void> write(Channel channel, Object msg) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        channel.writeAndFlush(msg).addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                written.complete(null);
+            } else {
+                written.completeExceptionally(future.cause());
+            }
+        });
+        return written;
+    }
+
+    private static CompletableFuture<MessageRequest> request(Channel lane, MessageRequest request) {
+        LaneHandler handler = lane.pipeline().get(LaneHandler.class);
+        CompletableFuture<MessageRequest> reply = new CompletableFuture<>();
+        handler.pending.put(request.getId(), reply);
+        lane.writeAndFlush(new Message(Message.MessageType.REQUEST, request)).addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                handler.pending.remove(request.getId());
+                reply.completeExceptionally(future.cause());
+            }
+        });
+        return reply;
+    }
+
+    /**
+     * Split chunk ranges into at most {@code count} stripes of contiguous chunks, about equally long.
+     *
+     * @param ranges [first, last] chunk ids, 1 based and inclusive
+     */
+    public static List<List<long[]>> split(List<long[]> ranges, int count) {
+        long total = 0;
+        for (long[] range : ranges) {
+            total += range[1] - range[0] + 1;
+        }
+        long perStripe = Math.max(1, (total + count - 1) / count);
+        List<List<long[]>> stripes = new ArrayList<>();
+        List<long[]> stripe = new ArrayList<>();
+        long room = perStripe;
+        for (long[] range : ranges) {
+            long first = range[0];
+            while (first <= range[1]) {
+                long last = Math.min(range[1], first + room - 1);
+                stripe.add(new long[]{first, last});
+                room -= last - first + 1;
+                first = last + 1;
+                if (room == 0) {
+                    stripes.add(stripe);
+                    stripe = new ArrayList<>();
+                    room = perStripe;
+                }
+            }
+        }
+        if (!stripe.isEmpty()) {
+            stripes.add(stripe);
+        }
+        return stripes;
+    }
+
+    /**
+     * Last handler of a lane: the lane is only ever answered, by the id of the request.
+     */
+    public static class LaneHandler extends SimpleChannelInboundHandler<Message> {
+        private final Map<Long, CompletableFuture<MessageRequest>> pending = new ConcurrentHashMap<>();
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Message msg) {
+            if (msg.getType() != Message.MessageType.RESPONSE) {
+                Log.w(TAG, "Unexpected " + msg.getType() + " on an upload lane");
+                return;
+            }
+            MessageRequest response = MessageCodec.decodeResponse(msg.getPayload());
+            if (response != null) {
+                CompletableFuture<MessageRequest> reply = pending.remove(response.getId());
+                if (reply != null) {
+                    reply.complete(response);
+                }
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            super.channelInactive(ctx);
+            for (CompletableFuture<MessageRequest> reply : pending.values()) {
+                reply.cancel(false);
+            }
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.lannooo.audiocenter.tool;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) as checked in the chunk headers. java.util.zip.CRC32C is not available on the
+ * Android versions we support, this is the plain table driven variant.
+ */
+public class Crc32c implements Checksum {
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    public static int of(byte[] b, int off, int len) {
+        Crc32c crc = new Crc32c();
+        crc.update(b, off, len);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        for (int i = off, end = off + len; i < end; i++) {
+            c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+        }
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
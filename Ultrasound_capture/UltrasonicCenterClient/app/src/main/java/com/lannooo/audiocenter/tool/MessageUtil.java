@@ -2,37 +2,135 @@ package com.lannooo.audiocenter.tool;
 
 import android.os.Build;
 
+import com.lannooo.audiocenter.client.FrameSettings;
+import com.lannooo.audiocenter.client.LosslessAudioCodec;
+import com.lannooo.audiocenter.client.MessageCodec;
 import com.lannooo.audiocenter.client.MessageRequest;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MessageUtil {
+    private static final AtomicLong REQUEST_IDS = new AtomicLong();
 
-    public static String registerRequest(Map<String, Object> extraInfo) {
-        // return a json string representing the register request
+    public static long nextRequestId() {
+        return REQUEST_IDS.incrementAndGet();
+    }
+
+    public static MessageRequest registerRequest(Map<String, Object> extraInfo) {
+        // return the register request
         // information about this phone is sent to the server
         MessageRequest request = new MessageRequest("register");
+        request.setId(nextRequestId());
         request.put("Model", Build.MODEL);
         request.put("Manufacturer", Build.MANUFACTURER);
         request.put("Brand", Build.BRAND);
         request.put("Display", Build.DISPLAY);
         request.put("SDK", Build.VERSION.SDK_INT);
         request.put("Release", Build.VERSION.RELEASE);
+        request.put("max_chunk_size", FrameSettings.PREFERRED_CHUNK_SIZE);
+        request.put("formats", MessageCodec.supportedFormats());
+        request.put("transfer_ids", true);
+        request.put("chunk_crc", true);
+        request.put("codecs", Collections.singletonList(LosslessAudioCodec.NAME));
+        request.put("live_upload", true);
+        request.put("content_cache", true);
+        // numbered requests are answered with their id, see ClientHandler
+        request.put("request_ids", true);
         if (extraInfo != null) {
             for (Map.Entry<String, Object> entry : extraInfo.entrySet()) {
                 request.put(entry.getKey(), entry.getValue());
             }
         }
 
-        return request.toJsonString();
+        return request;
     }
 
-    public static String fileUploadRequest(File file, long length, long chunks) {
+    public static MessageRequest fileUploadRequest(File file, long length, long chunks, boolean withTransferId) {
+        return fileUploadRequest(file, length, chunks, withTransferId, null);
+    }
+
+    /**
+     * @param withTransferId whether the server accepts transfer ids in the chunk headers, the request id
+     *                       is then used as "transfer_id"
+     * @param codec          what the chunks are coded with, null if they are sent as they are
+     */
+    public static MessageRequest fileUploadRequest(File file, long length, long chunks, boolean withTransferId,
+                                                   String codec) {
         MessageRequest request = new MessageRequest("upload");
+        request.setId(nextRequestId());
         request.put("filepath", file.getAbsolutePath());
         request.put("chunks", chunks);
         request.put("length", length);
-        return request.toJsonString();
+        if (withTransferId) {
+            request.put("transfer_id", (int) request.getId());
+        }
+        if (codec != null) {
+            request.put("codec", codec);
+        }
+        return request;
+    }
+
+    /**
+     * Announce a recording streamed while it is made, the request id is used as "transfer_id".
+     */
+    public static MessageRequest liveStartRequest(File file) {
+        MessageRequest request = new MessageRequest("live_start");
+        request.setId(nextRequestId());
+        request.put("filepath", file.getAbsolutePath());
+        request.put("transfer_id", (int) request.getId());
+        return request;
+    }
+
+    /**
+     * Sent after the last chunk of a stream.
+     *
+     * @param length    length of the recording, header included
+     * @param pcmSha256 digest of the samples streamed, without the header
+     */
+    public static MessageRequest liveEndRequest(File file, int transferId, long length, String pcmSha256) {
+        MessageRequest request = new MessageRequest("live_end");
+        request.setId(nextRequestId());
+        request.put("filepath", file.getAbsolutePath());
+        request.put("transfer_id", transferId);
+        request.put("length", length);
+        request.put("pcm_sha256", pcmSha256);
+        return request;
     }
+
+    /**
+     * Sent after the last chunk of an upload, for the server to verify the file it received.
+     */
+    public static MessageRequest uploadDigestRequest(File file, int transferId, String sha256) {
+        MessageRequest request = new MessageRequest("upload_digest");
+        request.setId(nextRequestId());
+        request.put("filepath", file.getAbsolutePath());
+        if (transferId != 0) {
+            request.put("transfer_id", transferId);
+        }
+        request.put("sha256", sha256);
+        return request;
+    }
+
+    /**
+     * First request on an upload lane, the token comes from the server's "transport" request.
+     */
+    public static MessageRequest attachRequest(String laneToken) {
+        MessageRequest request = new MessageRequest("attach");
+        request.setId(nextRequestId());
+        request.put("lane_token", laneToken);
+        return request;
+    }
+
+    /**
+     * Sent on a lane after its stripe of an upload, answered once the server has written those chunks.
+     */
+    public static MessageRequest stripeDoneRequest(int transferId) {
+        MessageRequest request = new MessageRequest("stripe_done");
+        request.setId(nextRequestId());
+        request.put("transfer_id", transferId);
+        return request;
+    }
 }
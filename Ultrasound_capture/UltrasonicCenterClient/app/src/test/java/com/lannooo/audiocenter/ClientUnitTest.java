@@ -1,11 +1,19 @@
 package com.lannooo.audiocenter;
 
+import com.lannooo.audiocenter.audio.StimulusCache;
+import com.lannooo.audiocenter.client.LosslessAudioCodec;
 import com.lannooo.audiocenter.client.Message;
+import com.lannooo.audiocenter.client.UploadLanes;
 import com.lannooo.audiocenter.tool.AppUtil;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
 public class ClientUnitTest {
     @Test
     public void testMessage() {
@@ -20,6 +28,56 @@ public class ClientUnitTest {
         Assert.assertEquals(Message.MessageType.REQUEST, Message.MessageType.fromOrdinal(0));
     }
 
+    @Test
+    public void testSplitStripes() {
+        // chunks 1-4 and 7-10 are missing, three stripes of three chunks at most
+        List<List<long[]>> stripes = UploadLanes.split(Arrays.asList(new long[]{1, 4}, new long[]{7, 10}), 3);
+        Assert.assertEquals(3, stripes.size());
+        Assert.assertArrayEquals(new long[]{1, 3}, stripes.get(0).get(0));
+        Assert.assertArrayEquals(new long[]{4, 4}, stripes.get(1).get(0));
+        Assert.assertArrayEquals(new long[]{7, 8}, stripes.get(1).get(1));
+        Assert.assertArrayEquals(new long[]{9, 10}, stripes.get(2).get(0));
+        // fewer chunks than stripes
+        Assert.assertEquals(1, UploadLanes.split(Arrays.asList(new long[]{5, 5}), 4).size());
+    }
+
+    @Test
+    public void testLosslessCodec() {
+        // a tone as 16-bit mono samples, the chunk starts in the middle of one
+        byte[] pcm = new byte[20000];
+        for (int i = 0; i < pcm.length / 2; i++) {
+            short sample = (short) (4000 * Math.sin(i * 0.07));
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        LosslessAudioCodec.Layout layout = new LosslessAudioCodec.Layout(0, pcm.length, 1);
+        byte[] coded = new LosslessAudioCodec().encodeChunk(pcm, 1, 15001, 1, layout);
+        Assert.assertTrue(coded.length < 15001 / 2);
+        Assert.assertArrayEquals(Arrays.copyOfRange(pcm, 1, 15002),
+                LosslessAudioCodec.decodeChunk(coded, 0, coded.length, 15001));
+    }
+
+    @Test
+    public void testStimulusCache() throws Exception {
+        File dir = Files.createTempDirectory("server").toFile();
+        File chirp = new File(dir, "chirp.wav");
+        Files.write(chirp.toPath(), new byte[]{1, 2, 3, 4});
+        String sha256 = AppUtil.sha256Hex(chirp);
+        new StimulusCache(dir).add(chirp, sha256);
+
+        // the index outlives the app, the same content under another name needs no upload
+        StimulusCache cache = new StimulusCache(dir);
+        File copy = new File(dir, "chirp copy.wav");
+        Assert.assertTrue(cache.restore(sha256, copy));
+        Assert.assertArrayEquals(new byte[]{1, 2, 3, 4}, Files.readAllBytes(copy.toPath()));
+        Assert.assertTrue(cache.restore(sha256.toUpperCase(), chirp));
+
+        // changed since it was indexed
+        Files.write(chirp.toPath(), new byte[]{5});
+        Assert.assertNull(cache.lookup(sha256));
+        Assert.assertFalse(new StimulusCache(dir).restore(sha256, new File(dir, "other.wav")));
+    }
+
     @Test
     public void testTimeFormat() {
         String time = AppUtil.currentDateTime();
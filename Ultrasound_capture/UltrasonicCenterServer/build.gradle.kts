@@ -2,6 +2,7 @@ plugins {
     id("java")
     id("org.springframework.boot") version "3.3.2"
     id("io.spring.dependency-management") version "1.1.6"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "com.lannooo"
@@ -42,6 +43,34 @@ dependencyManagement {
 }
 
 
+// SIMD kernels of the capture processing (com.lannooo.dsp.DspKernels), plain loops without the module
+val vectorModule = listOf("--add-modules", "jdk.incubator.vector")
+
+// the kernels that link against the module are compiled on their own, and go with the main classes everywhere
+val vector by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+}
+
+dependencies {
+    runtimeOnly(vector.output)
+}
+
+tasks.named<JavaCompile>(vector.compileJavaTaskName) {
+    options.compilerArgs.addAll(vectorModule)
+    // javac warns about the incubating module on every compilation that adds it, and these sources warn of nothing else
+    options.compilerArgs.add("-nowarn")
+}
+
+// benchmarks of src/jmh (gradlew jmh), with the module so that both kernels are measured
+jmh {
+    jvmArgsAppend.addAll(vectorModule)
+}
+
 tasks.withType<Test> {
     useJUnitPlatform()
+    jvmArgs(vectorModule)
+}
+
+tasks.named<org.springframework.boot.gradle.tasks.run.BootRun>("bootRun") {
+    jvmArgs(vectorModule)
 }
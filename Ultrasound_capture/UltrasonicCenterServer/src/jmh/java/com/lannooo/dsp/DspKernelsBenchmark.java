@@ -0,0 +1,111 @@
+package com.lannooo.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The kernels on the loops against the Vector API, on the buffers of a 48 kHz capture: one chirp of 30 ms and
+ * one second. Run with {@code gradlew jmh}, which adds the vector module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DspKernelsBenchmark {
+    @Param({"scalar", "vector"})
+    private String kernels;
+
+    @Param({"1440", "48000"})
+    private int samples;
+
+    private DspKernels dsp;
+    private float[] a;
+    private float[] b;
+    private float[] c;
+    private float[] d;
+    private float[] re;
+    private float[] im;
+    private float[] spectrum;
+    private short[] pcm;
+
+    @Setup
+    public void setup() {
+        dsp = "vector".equals(kernels) ? DspKernels.vector() : DspKernels.scalar();
+        if (dsp == null) {
+            throw new IllegalStateException("No vector kernels, run with --add-modules jdk.incubator.vector");
+        }
+        Random random = new Random(1);
+        a = new float[samples];
+        b = new float[samples];
+        c = new float[samples];
+        d = new float[samples];
+        re = new float[samples];
+        im = new float[samples];
+        spectrum = new float[samples];
+        pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            a[i] = random.nextFloat() - 0.5f;
+            b[i] = random.nextFloat() - 0.5f;
+            c[i] = random.nextFloat() - 0.5f;
+            d[i] = random.nextFloat() - 0.5f;
+            pcm[i] = (short) random.nextInt();
+            spectrum[i] = a[i] * a[i] + b[i] * b[i];
+        }
+    }
+
+    @Benchmark
+    public float[] multiply() {
+        dsp.multiply(a, 0, b, 0, re, 0, samples);
+        return re;
+    }
+
+    @Benchmark
+    public float[] mix() {
+        dsp.mix(a, 0, b, c, re, im, samples);
+        return re;
+    }
+
+    @Benchmark
+    public float[] complexMultiply() {
+        dsp.complexMultiply(a, b, c, d, re, im, samples);
+        return re;
+    }
+
+    @Benchmark
+    public float[] power() {
+        dsp.power(a, b, re, samples);
+        return re;
+    }
+
+    @Benchmark
+    public float[] magnitude() {
+        dsp.magnitude(a, b, re, samples);
+        return re;
+    }
+
+    @Benchmark
+    public float[] decibels() {
+        dsp.decibels(spectrum, 1f, -200f, re, samples);
+        return re;
+    }
+
+    @Benchmark
+    public float[] pcm16ToFloat() {
+        dsp.pcm16ToFloat(pcm, 0, re, 0, samples);
+        return re;
+    }
+}
@@ -0,0 +1,209 @@
+package com.lannooo.common;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Structured, sampled event log for the network hot paths.
+ * <p>
+ * The calling thread (usually an event loop) only checks the sampling of the category and puts the raw
+ * fields into a bounded ring buffer. Formatting and the actual logging happen on a background thread.
+ * When the buffer is full, events are dropped and counted instead of blocking the caller. High-rate
+ * things like chunks should not be events at all but {@link #count counters}, which are logged
+ * periodically.
+ */
+public final class EventLog {
+    private static final Logger logger = Logger.getLogger("EventLog");
+
+    public enum Category {
+        INBOUND,
+        OUTBOUND,
+        TRANSFER,
+        DEVICE
+    }
+
+    private static final int CAPACITY = 8192;
+    private static final long COUNTER_REPORT_MILLIS = 60_000;
+
+    private static final BlockingQueue<Event> ring = new ArrayBlockingQueue<>(CAPACITY);
+    // copied on write, read on every event
+    private static volatile int[] sampleEvery = new int[Category.values().length];
+    private static final Map<Category, AtomicLong> seen = new EnumMap<>(Category.class);
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>(16);
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Thread writer;
+
+    static {
+        for (Category category : Category.values()) {
+            sampleEvery[category.ordinal()] = 1;
+            seen.put(category, new AtomicLong());
+        }
+    }
+
+    private EventLog() {
+    }
+
+    /**
+     * Log one in {@code every} events of the category, 0 disables it.
+     */
+    public static synchronized void setSampleRate(Category category, int every) {
+        int[] copy = sampleEvery.clone();
+        copy[category.ordinal()] = Math.max(0, every);
+        sampleEvery = copy;
+    }
+
+    /**
+     * @return whether the next event of the category is to be logged, callers with expensive fields check first
+     */
+    public static boolean sampled(Category category) {
+        int every = sampleEvery[category.ordinal()];
+        if (every <= 0 || !logger.isLoggable(Level.INFO)) {
+            return false;
+        }
+        return every == 1 || seen.get(category).getAndIncrement() % every == 0;
+    }
+
+    /**
+     * @param fields alternating names and values, the values must not change afterwards (they are formatted later)
+     */
+    public static void log(Category category, String event, Object... fields) {
+        if (sampled(category)) {
+            emit(category, event, fields);
+        }
+    }
+
+    /**
+     * Log unconditionally, for callers that checked {@link #sampled} themselves before gathering the fields.
+     */
+    public static void emit(Category category, String event, Object... fields) {
+        enqueue(new Event(System.currentTimeMillis(), category, event, fields));
+    }
+
+    /**
+     * Same as {@link #log(Category, String, Object...)} with a free text detail that is only built if sampled.
+     */
+    public static void log(Category category, String event, Supplier<String> detail) {
+        if (sampled(category)) {
+            emit(category, event, "detail", detail.get());
+        }
+    }
+
+    public static void count(String counter, long delta) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(delta);
+    }
+
+    public static void count(String counter) {
+        count(counter, 1);
+    }
+
+    public static long counter(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    public static Map<String, Long> counters() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((k, v) -> snapshot.put(k, v.sum()));
+        snapshot.put("eventlog.dropped", dropped.sum());
+        return snapshot;
+    }
+
+    public static String format(Category category, String event, Object... fields) {
+        StringBuilder sb = new StringBuilder(64)
+                .append(category.name().toLowerCase())
+                .append(' ')
+                .append(event);
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            sb.append(' ').append(fields[i]).append('=').append(fields[i + 1]);
+        }
+        return sb.toString();
+    }
+
+    private static void enqueue(Event event) {
+        if (!ring.offer(event)) {
+            dropped.increment();
+        }
+        if (writer == null) {
+            startWriter();
+        }
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        Thread thread = new Thread(EventLog::drain, "event-log");
+        thread.setDaemon(true);
+        thread.start();
+        writer = thread;
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::drainPending, "event-log-flush"));
+    }
+
+    private static void drain() {
+        long lastReport = System.currentTimeMillis();
+        Map<String, Long> lastCounters = Map.of();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Event event = ring.poll(1, TimeUnit.SECONDS);
+                if (event != null) {
+                    write(event);
+                    drainPending();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                // a bad field must not stop the writer
+                logger.warning("Failed to write event: " + e);
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= COUNTER_REPORT_MILLIS) {
+                lastReport = now;
+                Map<String, Long> current = counters();
+                if (!current.equals(lastCounters)) {
+                    logger.info("counters " + current);
+                    lastCounters = current;
+                }
+            }
+        }
+    }
+
+    private static void drainPending() {
+        List<Event> batch = new ArrayList<>(64);
+        while (ring.drainTo(batch, 64) > 0) {
+            for (Event event : batch) {
+                write(event);
+            }
+            batch.clear();
+        }
+    }
+
+    private static void write(Event event) {
+        logger.info(format(event.category, event.event, event.fields) + " ts=" + event.timestamp);
+    }
+
+    private static final class Event {
+        private final long timestamp;
+        private final Category category;
+        private final String event;
+        private final Object[] fields;
+
+        private Event(long timestamp, Category category, String event, Object[] fields) {
+            this.timestamp = timestamp;
+            this.category = category;
+            this.event = event;
+            this.fields = fields;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.lannooo.common;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Applies the eventlog.* properties to the static {@link EventLog}.
+ */
+@Component
+public class EventLogConfig {
+
+    public EventLogConfig(@Value("${eventlog.sample.inbound:1}") int inbound,
+                          @Value("${eventlog.sample.outbound:1}") int outbound,
+                          @Value("${eventlog.sample.transfer:1}") int transfer,
+                          @Value("${eventlog.sample.device:1}") int device) {
+        EventLog.setSampleRate(EventLog.Category.INBOUND, inbound);
+        EventLog.setSampleRate(EventLog.Category.OUTBOUND, outbound);
+        EventLog.setSampleRate(EventLog.Category.TRANSFER, transfer);
+        EventLog.setSampleRate(EventLog.Category.DEVICE, device);
+    }
+}
@@ -1,11 +1,13 @@
 package com.lannooo.common;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import org.apache.logging.log4j.util.Strings;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -13,10 +15,12 @@ import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
 
 public class Utils {
     public static void silentSleep(int seconds) {
@@ -66,6 +70,29 @@ public class Utils {
         return hexString.substring(0, length);
     }
 
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String hex(byte[] bytes) {
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    /**
+     * CRC32C of the readable bytes, the indices of the buffer are left alone.
+     */
+    public static int crc32c(ByteBuf buf) {
+        CRC32C crc = new CRC32C();
+        for (ByteBuffer nioBuffer : buf.nioBuffers()) {
+            crc.update(nioBuffer);
+        }
+        return (int) crc.getValue();
+    }
+
     public static String replaceLocalPath(String remotePath, String localDir, String subDir, String subSubDir) {
         Path fileName = Paths.get(remotePath).getFileName();
         List<String> subDirs = new ArrayList<>();
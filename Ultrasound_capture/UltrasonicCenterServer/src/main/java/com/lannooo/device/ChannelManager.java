@@ -5,6 +5,7 @@ import io.netty.channel.Channel;
 import org.springframework.stereotype.Component;
 
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
@@ -15,12 +16,15 @@ public class ChannelManager {
 
     // key -> channel, for remote device only
     private final Map<String, Channel> remoteChannels;
-    // channel -> key
+    // channel -> key, for the lanes as well
     private final Map<Channel, String> remoteKeys;
+    // key -> extra upload connections (lanes) of the device
+    private final Map<String, Set<Channel>> laneChannels;
 
     public ChannelManager() {
         this.remoteChannels = new ConcurrentHashMap<>(16);
         this.remoteKeys = new ConcurrentHashMap<>(16);
+        this.laneChannels = new ConcurrentHashMap<>(16);
     }
 
     public Channel getChannel(String key) {
@@ -40,4 +44,45 @@ public class ChannelManager {
         remoteChannels.putIfAbsent(key, channel);
         remoteKeys.putIfAbsent(channel, key);
     }
+
+    /**
+     * Add an upload lane of a registered device, the lane is then known by the device's key.
+     */
+    public void registerLane(String key, Channel channel) {
+        remoteKeys.put(channel, key);
+        laneChannels.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(channel);
+    }
+
+    public void unregisterLane(Channel channel) {
+        String key = remoteKeys.remove(channel);
+        if (key != null) {
+            Set<Channel> lanes = laneChannels.get(key);
+            if (lanes != null) {
+                lanes.remove(channel);
+            }
+        }
+    }
+
+    /**
+     * @return the lanes of the device, no longer registered
+     */
+    public Set<Channel> unregisterLanes(String key) {
+        Set<Channel> lanes = laneChannels.remove(key);
+        if (lanes == null) {
+            return Set.of();
+        }
+        lanes.forEach(remoteKeys::remove);
+        return lanes;
+    }
+
+    public boolean isLane(Channel channel) {
+        String key = remoteKeys.get(channel);
+        Set<Channel> lanes = key == null ? null : laneChannels.get(key);
+        return lanes != null && lanes.contains(channel);
+    }
+
+    public int getLaneCount(String key) {
+        Set<Channel> lanes = laneChannels.get(key);
+        return lanes == null ? 0 : lanes.size();
+    }
 }
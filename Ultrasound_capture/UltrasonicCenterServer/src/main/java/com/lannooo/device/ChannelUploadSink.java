@@ -0,0 +1,110 @@
+package com.lannooo.device;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Positional writes through a {@link FileChannel}. Chunks that continue each other are gathered in a direct
+ * buffer and written together, a chunk elsewhere in the file (resent or resumed) first writes out the batch.
+ */
+public class ChannelUploadSink implements UploadSink {
+    private final FileChannel file;
+    private final UploadSink.Options options;
+    private final ByteBuffer batch;
+    // file offset of the first byte in the batch
+    private long batchOffset;
+    private long unforcedBytes;
+    private long fileWrites;
+
+    public ChannelUploadSink(Path path, long length, boolean truncate, UploadSink.Options options) throws IOException {
+        this.file = truncate
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.options = options;
+        this.batch = options.getBatchBytes() > 0 ? ByteBuffer.allocateDirect(options.getBatchBytes()) : null;
+        if (length > 0 && file.size() < length) {
+            if (options.isPreallocate()) {
+                UploadSink.preallocate(file, length);
+            } else {
+                // set the length once, the chunks then never grow the file; it stays sparse until they arrive
+                file.write(ByteBuffer.wrap(new byte[1]), length - 1);
+            }
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuf data) throws IOException {
+        int size = data.readableBytes();
+        if (batch != null && size < batch.capacity()) {
+            if (batch.position() > 0 && (offset != batchOffset + batch.position() || size > batch.remaining())) {
+                drain();
+            }
+            if (batch.position() == 0) {
+                batchOffset = offset;
+            }
+            // the network buffer is copied, it is released as soon as the chunk is handled
+            data.getBytes(data.readerIndex(), batch.limit(batch.position() + size));
+            batch.limit(batch.capacity());
+        } else {
+            drain();
+            long position = offset;
+            for (ByteBuffer nioBuffer : data.nioBuffers()) {
+                position += writeFully(nioBuffer, position);
+            }
+        }
+        unforcedBytes += size;
+        if (options.getFlushPolicy() == FlushPolicy.BYTES && unforcedBytes >= options.getFlushBytes()) {
+            force();
+        }
+    }
+
+    @Override
+    public void drain() throws IOException {
+        if (batch == null || batch.position() == 0) {
+            return;
+        }
+        batch.flip();
+        writeFully(batch, batchOffset);
+        batch.clear();
+    }
+
+    @Override
+    public void force() throws IOException {
+        drain();
+        file.force(false);
+        unforcedBytes = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (options.getFlushPolicy().forcesOnClose()) {
+                force();
+            } else {
+                drain();
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public long getFileWrites() {
+        return fileWrites;
+    }
+
+    private int writeFully(ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += file.write(buffer, position + written);
+            fileWrites++;
+        }
+        return written;
+    }
+}
@@ -0,0 +1,82 @@
+package com.lannooo.device;
+
+import com.lannooo.server.MessageRequest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The RESPONSE of a device to one REQUEST, with the round trip measured on the server.
+ */
+public class DeviceAck {
+    private final String key;
+    private final String subtype;
+    private final long id;
+    private final boolean ok;
+    private final String message;
+    private final double latencyMs;
+    private final Map<String, Object> data;
+
+    public DeviceAck(String key, MessageRequest response, double latencyMs) {
+        this.key = key;
+        this.subtype = response.getSubtype();
+        this.id = response.getId();
+        this.ok = response.getBoolean("ok", true);
+        this.message = response.getString("message");
+        this.latencyMs = latencyMs;
+        this.data = response.getData();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getSubtype() {
+        return subtype;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public boolean isOk() {
+        return ok;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public double getLatencyMs() {
+        return latencyMs;
+    }
+
+    public Map<String, Object> getData() {
+        return data;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("device_id", key);
+        result.put("ok", ok);
+        result.put("message", message);
+        result.put("ack_latency_ms", latencyMs);
+        // device side time from receiving the command to having executed it, when reported
+        if (data.containsKey("startup_ms")) {
+            result.put("startup_ms", data.get("startup_ms"));
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceAck{" +
+                "key=" + key +
+                ", subtype=" + subtype +
+                ", id=" + id +
+                ", ok=" + ok +
+                ", message=" + message +
+                ", latencyMs=" + latencyMs +
+                '}';
+    }
+}
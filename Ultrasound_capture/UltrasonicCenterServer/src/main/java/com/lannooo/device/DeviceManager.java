@@ -1,6 +1,7 @@
 package com.lannooo.device;
 
 import java.io.IOException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -8,13 +9,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.lannooo.common.EventLog;
 import com.lannooo.common.Utils;
+import com.lannooo.server.FrameSettings;
+import com.lannooo.server.LosslessAudioCodec;
 import com.lannooo.service.AsyncService;
 
 import io.netty.buffer.ByteBuf;
@@ -34,6 +40,21 @@ public class DeviceManager {
     // true: capture enabled, false: capture disabled
     private final Map<String, Boolean> captureStatus;
     private final Map<String, Boolean> playbackStatus;
+    // key -> token a device attaches its upload lanes with
+    private final Map<String, String> laneTokens;
+    private final SecureRandom random = new SecureRandom();
+
+    // extra connections a device may open to stripe large uploads over, 0 disables striping
+    @Value("${upload.lanes:3}")
+    private int maxLanes;
+
+    // codec the devices may losslessly compress their recordings with, "none" to receive them as they are
+    @Value("${upload.codec:" + LosslessAudioCodec.NAME + "}")
+    private String uploadCodec;
+
+    // recordings streamed while they are made, instead of uploaded when done
+    @Value("${upload.live:true}")
+    private boolean liveUpload;
 
     @Autowired
     private FileUploadManager fileUploadManager;
@@ -47,6 +68,9 @@ public class DeviceManager {
     @Autowired
     private SessionManager sessionManager;
 
+    @Autowired
+    private UploadWriter uploadWriter;
+
 
     public DeviceManager() {
         // for keep the order as it is registered
@@ -55,6 +79,7 @@ public class DeviceManager {
         this.captureStatus = new ConcurrentHashMap<>(16);
         this.playbackStatus = new ConcurrentHashMap<>(16);
         this.idNames = new ConcurrentHashMap<>(16);
+        this.laneTokens = new ConcurrentHashMap<>(16);
     }
 
     public Map<String, Device> getDevices() {
@@ -136,8 +161,13 @@ public class DeviceManager {
             captureStatus.remove(key);
             playbackStatus.remove(key);
             channelManager.unregisterChannel(key);
-            fileUploadManager.removeTask(key);
-            fileUploadManager.unregisterDeviceName(key);
+            laneTokens.remove(key);
+            channelManager.unregisterLanes(key).forEach(Channel::close);
+            // behind the chunks still queued for the disk
+            uploadWriter.execute(key, ctx.channel(), 0, () -> {
+                fileUploadManager.removeTask(key);
+                fileUploadManager.unregisterDeviceName(key);
+            });
 
             logger.info("Unregistered device: " + device);
         }
@@ -154,8 +184,9 @@ public class DeviceManager {
         String model = (String) data.getOrDefault("Model", "Unknown");
         String name = brand + "/" + model;
 
-        if (!deviceKeys.contains(key)) {
-            PhoneDevice device = new PhoneDevice(key, name);
+        PhoneDevice device = (PhoneDevice) devices.get(key);
+        if (device == null) {
+            device = new PhoneDevice(key, name);
             device.setRemoteAddress(remoteAddress);
             device.setLocalAddress(localAddress);
             device.setExtra(data);
@@ -169,41 +200,221 @@ public class DeviceManager {
             logger.info("Registered device: " + device);
         } else {
             // update name and extra information
-            PhoneDevice device = (PhoneDevice) devices.get(key);
             device.setExtra(data);
             device.setName(name);
-            // update ids names
-            idNames.putIfAbsent(key, name);
-            fileUploadManager.registerDeviceName(key, name);
-            asyncService.submit(() -> {
-                // save mapping of id and name into file
-                try {
-                    Utils.saveMap(idNames, "audio/id-names");
-                } catch (IOException e) {
-                    logger.severe("Failed to save id-names: " + e.getMessage());
-                    throw new RuntimeException(e);
-                }
-            });
             logger.info("Updated device: " + device);
         }
+        // update ids names
+        idNames.putIfAbsent(key, name);
+        fileUploadManager.registerDeviceName(key, name);
+        asyncService.submit(() -> {
+            // save mapping of id and name into file
+            try {
+                Utils.saveMap(idNames, "audio/id-names");
+            } catch (IOException e) {
+                logger.severe("Failed to save id-names: " + e.getMessage());
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    public int getMaxLanes() {
+        return maxLanes;
+    }
+
+    public boolean isLiveUpload() {
+        return liveUpload;
     }
 
-    public UploadingFileItem writeUploadingFile(ChannelHandlerContext ctx, ByteBuf chunkBuf) {
+    /**
+     * @return the codec offered to the devices at register, null if uploads are not to be coded
+     */
+    public String getUploadCodec() {
+        return LosslessAudioCodec.NAME.equals(uploadCodec) ? uploadCodec : null;
+    }
+
+    /**
+     * @return the token the device attaches its upload lanes with, the same for the whole connection
+     */
+    public String laneToken(ChannelHandlerContext ctx) {
+        return laneTokens.computeIfAbsent(uniqueKey(ctx), k -> {
+            byte[] token = new byte[16];
+            random.nextBytes(token);
+            return Utils.hex(token);
+        });
+    }
+
+    /**
+     * Turn a new connection into an upload lane of the device the token belongs to, its chunks count for the
+     * device's uploads. Connections only become devices when they register, so a lane is never listed as one or
+     * sent a command, not even before it attaches.
+     *
+     * @return the device's main connection, or null if the token is unknown or the device has all its lanes
+     */
+    public Channel attachLane(ChannelHandlerContext ctx, String token) {
+        String key = laneTokens.entrySet().stream()
+                .filter(e -> e.getValue().equals(token))
+                .map(Map.Entry::getKey)
+                .findFirst()
+                .orElse(null);
+        Channel primary = key == null ? null : channelManager.getChannel(key);
+        // a connection that registered is a device, not a lane
+        if (primary == null || channelManager.getLaneCount(key) >= maxLanes || devices.containsKey(uniqueKey(ctx))) {
+            return null;
+        }
+        channelManager.registerLane(key, ctx.channel());
+        EventLog.log(EventLog.Category.DEVICE, "lane_attached",
+                "device", key, "remote", ctx.channel().remoteAddress(), "lanes", channelManager.getLaneCount(key));
+        return primary;
+    }
+
+    public boolean isLane(ChannelHandlerContext ctx) {
+        return channelManager.isLane(ctx.channel());
+    }
+
+    public void detachLane(ChannelHandlerContext ctx) {
+        EventLog.log(EventLog.Category.DEVICE, "lane_detached",
+                "device", uniqueKey(ctx), "remote", ctx.channel().remoteAddress());
+        channelManager.unregisterLane(ctx.channel());
+    }
+
+    /**
+     * @return the connection the device is answered on: the main one for a lane, or null if that is gone
+     */
+    public Channel controlChannel(ChannelHandlerContext ctx) {
+        if (!isLane(ctx)) {
+            return ctx.channel();
+        }
+        return channelManager.getChannel(uniqueKey(ctx));
+    }
+
+    /**
+     * Run a task on the upload writer of the device, after the chunks received on the connection so far.
+     */
+    public void afterUploadWrites(ChannelHandlerContext ctx, Runnable task) {
+        uploadWriter.execute(uniqueKey(ctx), ctx.channel(), 0, task);
+    }
+
+    /**
+     * Write a chunk on the upload writer of the device.
+     *
+     * @param then called on the writer thread with the upload the chunk belongs to, or null if there is none;
+     *             the upload is not touched by anything else meanwhile. For the chunk completing the upload,
+     *             that is once the file is committed.
+     */
+    public void writeUploadingFile(ChannelHandlerContext ctx, ByteBuf chunkBuf, Consumer<UploadingFileItem> then) {
+        String key = uniqueKey(ctx);
+        FrameSettings settings = FrameSettings.of(ctx.channel());
+        // the caller releases its reference as soon as it returns
+        ByteBuf chunk = chunkBuf.retain();
+        uploadWriter.execute(key, ctx.channel(), chunk.readableBytes(), () -> {
+            UploadingFileItem fileItem;
+            try {
+                fileItem = fileUploadManager.writeChunk(key, settings, chunk);
+            } catch (RuntimeException e) {
+                // the device would go on streaming into an upload in an unknown state, it resumes it once back
+                logger.severe("Failed to write a chunk of " + key + ", closing the connection: " + e.getMessage());
+                ctx.channel().close();
+                return;
+            } finally {
+                chunk.release();
+            }
+            whenCommitted(key, ctx.channel(), fileItem, then);
+        });
+    }
+
+    /**
+     * Let the committer batch the commit of a completed upload with others, see {@link UploadCommitter}, and
+     * go on with the upload on the writer of the device once it is done. The writer handles other chunks
+     * meanwhile.
+     */
+    private void whenCommitted(String key, Channel channel, UploadingFileItem fileItem,
+                               Consumer<UploadingFileItem> then) {
+        if (fileItem == null || !fileItem.isCommitting() || fileItem.getCommit() == null) {
+            then.accept(fileItem);
+            return;
+        }
+        fileItem.getCommit().whenComplete((ignored, error) -> uploadWriter.execute(key, channel, 0,
+                () -> then.accept(fileUploadManager.committed(key, fileItem, error))));
+    }
+
+    /**
+     * @param then called on the writer thread with the upload the digest belongs to, or null if there is none
+     */
+    public void verifyUploadDigest(ChannelHandlerContext ctx, Map<String, Object> data, long requestId,
+                                   Consumer<UploadingFileItem> then) {
         String key = uniqueKey(ctx);
-        return fileUploadManager.writeChunk(key, chunkBuf);
+        int transferId = FrameSettings.of(ctx.channel()).isTransferIds() && data.get("transfer_id") instanceof Number n
+                ? n.intValue() : 0;
+        String sha256 = (String) data.get("sha256");
+        uploadWriter.execute(key, ctx.channel(), 0,
+                () -> then.accept(fileUploadManager.verifyDigest(key, transferId, sha256, requestId)));
     }
 
-    public void addUploadingFile(ChannelHandlerContext ctx, Map<String, Object> data) {
+    /**
+     * Start or resume an upload on the upload writer of the device, which reads what an earlier attempt left.
+     *
+     * @param then called on the writer thread with the new or resumed upload, or null if the same transfer
+     *             is already in progress; a resumed upload that was complete already is committed first
+     */
+    public void addUploadingFile(ChannelHandlerContext ctx, Map<String, Object> data, Consumer<UploadingFileItem> then) {
         String key = uniqueKey(ctx);
 
-        // transform double to long
-        long chunks = (long) (double) data.get("chunks");
-        long length = (long) (double) data.get("length");
+        // JSON numbers are decoded as double, binary ones as long
+        long chunks = ((Number) data.get("chunks")).longValue();
+        long length = ((Number) data.get("length")).longValue();
         String filename = (String) data.get("filepath");
-        logger.info("File upload request: " + filename + " chunks: " + chunks + " length: " + length);
+        // only meaningful if the chunks carry it, otherwise the device sends one file at a time
+        int transferId = FrameSettings.of(ctx.channel()).isTransferIds() && data.get("transfer_id") instanceof Number n
+                ? n.intValue() : 0;
+        // checked against the negotiated one by the caller
+        String codec = (String) data.get("codec");
+        EventLog.log(EventLog.Category.TRANSFER, "upload_request",
+                "device", key, "transfer", transferId, "file", filename, "chunks", chunks, "bytes", length,
+                "codec", codec);
+
+        String expKey = sessionManager.getExpKey();
+        boolean awaitDigest = FrameSettings.of(ctx.channel()).isChunkCrc();
+        uploadWriter.execute(key, ctx.channel(), 0,
+                () -> whenCommitted(key, ctx.channel(), fileUploadManager.addTask(key, transferId, expKey, filename,
+                        chunks, length, awaitDigest, codec), then));
+    }
 
+    /**
+     * Start receiving a recording while the device makes it, on the upload writer of the device.
+     *
+     * @param then called on the writer thread with the stream, or null if it cannot be started
+     */
+    public void startLiveUpload(ChannelHandlerContext ctx, Map<String, Object> data, Consumer<LiveUploadItem> then) {
+        String key = uniqueKey(ctx);
+        int transferId = ((Number) data.get("transfer_id")).intValue();
+        String filename = (String) data.get("filepath");
+        EventLog.log(EventLog.Category.TRANSFER, "live_request", "device", key, "transfer", transferId, "file", filename);
         String expKey = sessionManager.getExpKey();
-        fileUploadManager.addTask(key, expKey, filename, chunks, length);
+        uploadWriter.execute(key, ctx.channel(), 0,
+                () -> then.accept(fileUploadManager.startLive(key, transferId, expKey, filename)));
+    }
+
+    /**
+     * End a stream after the chunks the device sent before.
+     *
+     * @param then called on the writer thread with the finished or failed stream, or null if there is none;
+     *             a finished stream is committed first
+     */
+    public void finishLiveUpload(ChannelHandlerContext ctx, Map<String, Object> data, Consumer<LiveUploadItem> then) {
+        String key = uniqueKey(ctx);
+        int transferId = ((Number) data.get("transfer_id")).intValue();
+        long length = ((Number) data.get("length")).longValue();
+        String pcmSha256 = (String) data.get("pcm_sha256");
+        uploadWriter.execute(key, ctx.channel(), 0, () -> {
+            LiveUploadItem item = fileUploadManager.finishLive(key, transferId, length, pcmSha256);
+            if (item == null || item.getCommit() == null) {
+                then.accept(item);
+                return;
+            }
+            item.getCommit().whenComplete((ignored, error) -> uploadWriter.execute(key, ctx.channel(), 0,
+                    () -> then.accept(fileUploadManager.liveCommitted(key, item, error))));
+        });
     }
 
     public boolean hasFileInUploading() {
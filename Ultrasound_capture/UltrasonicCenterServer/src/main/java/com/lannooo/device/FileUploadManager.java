@@ -1,88 +1,506 @@
 package com.lannooo.device;
 
+import com.lannooo.common.EventLog;
 import com.lannooo.common.Utils;
+import com.lannooo.server.FrameSettings;
+import com.lannooo.server.LosslessAudioCodec;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 public class FileUploadManager {
     private static final Logger logger = Utils.getLogger(FileUploadManager.class);
+    // a link that corrupts this many chunks of one file is not worth resending to
+    private static final int MAX_CRC_ERRORS = 32;
 
-    // temporary store the uploading file items in the manager
+    // temporary store the uploading file items in the manager, "key#transferId" -> item
     private final Map<String, UploadingFileItem> uploadingFiles;
+    // received completely, the device's digest is still to come
+    private final Map<String, UploadingFileItem> awaitingDigest;
+    // streamed while the device records, "key#transferId" -> item
+    private final Map<String, LiveUploadItem> liveUploads;
     private final Map<String, String> deviceNames;
+    private volatile UploadSink.Options sinkOptions = UploadSink.Options.DEFAULTS;
+    // commits the completed files in batches, without one they are committed right away
+    private volatile UploadCommitter committer;
+    private volatile List<UploadReceivedListener> receivedListeners = List.of();
+    private volatile List<UploadChunkListener> chunkListeners = List.of();
 
     public FileUploadManager() {
         this.uploadingFiles = new ConcurrentHashMap<>(16);
+        this.awaitingDigest = new ConcurrentHashMap<>(16);
+        this.liveUploads = new ConcurrentHashMap<>(16);
         this.deviceNames = new ConcurrentHashMap<>(16);
     }
 
+    @Autowired
+    public void configureSink(@Value("${upload.sink:channel}") String type,
+                              @Value("${upload.flush:group}") String flushPolicy,
+                              @Value("${upload.flush-bytes:8388608}") long flushBytes,
+                              @Value("${upload.batch-bytes:262144}") int batchBytes,
+                              @Value("${upload.preallocate:false}") boolean preallocate) {
+        setSinkOptions(UploadSink.Options.parse(type, flushPolicy, flushBytes, batchBytes, preallocate));
+    }
+
+    /**
+     * How the uploads started from now on write their files.
+     */
+    public void setSinkOptions(UploadSink.Options sinkOptions) {
+        this.sinkOptions = sinkOptions;
+        logger.info("Upload sink: " + sinkOptions);
+    }
+
+    @Autowired(required = false)
+    public void setCommitter(UploadCommitter committer) {
+        this.committer = committer;
+    }
+
+    @Autowired(required = false)
+    public void setReceivedListeners(List<UploadReceivedListener> receivedListeners) {
+        this.receivedListeners = List.copyOf(receivedListeners);
+    }
+
+    @Autowired(required = false)
+    public void setChunkListeners(List<UploadChunkListener> chunkListeners) {
+        this.chunkListeners = List.copyOf(chunkListeners);
+    }
+
     public boolean hasOngoingTasks() {
-        return !uploadingFiles.isEmpty();
+        return !uploadingFiles.isEmpty() || !liveUploads.isEmpty();
     }
 
+    /**
+     * Stop all uploads of a device, their part files are kept for a later resume.
+     */
     public void removeTask(String key) {
-        _removeAndRelease(key);
+        String prefix = key + "#";
+        uploadingFiles.keySet().stream()
+                .filter(k -> k.startsWith(prefix))
+                .toList()
+                .forEach(this::_removeAndRelease);
+        // the manifest of those stays unverified
+        awaitingDigest.keySet().removeIf(k -> k.startsWith(prefix));
+        // a stream cannot continue on another connection, the device uploads its copy instead
+        liveUploads.keySet().stream()
+                .filter(k -> k.startsWith(prefix))
+                .toList()
+                .forEach(k -> {
+                    LiveUploadItem removed = liveUploads.remove(k);
+                    if (removed != null) {
+                        removed.discard();
+                    }
+                });
+    }
+
+    /**
+     * Start receiving a recording while the device makes it, see {@link LiveUploadItem}.
+     *
+     * @return the stream, or null if the transfer is already in progress or the file cannot be created
+     */
+    public LiveUploadItem startLive(String key, int transferId, String subKey, String filename) {
+        String mappedKey = deviceNames.getOrDefault(key, key).replace('/', '_');
+        LiveUploadItem item = new LiveUploadItem(mappedKey, subKey, filename, transferId);
+        String taskKey = taskKey(key, transferId);
+        if (uploadingFiles.containsKey(taskKey) || liveUploads.putIfAbsent(taskKey, item) != null) {
+            logger.warning("Transfer " + transferId + " of " + key + " already in progress");
+            return null;
+        }
+        try {
+            item.open();
+        } catch (IOException e) {
+            liveUploads.remove(taskKey);
+            logger.severe("Failed to create " + item.getLocalFilename() + LiveUploadItem.LIVE_SUFFIX + ": " + e.getMessage());
+            return null;
+        }
+        item.setObserver(observer(key, filename, item.getFinalFile()));
+        return item;
     }
 
-    public void addTask(String key, String subKey, String filename, long chunks, long length) {
+    /**
+     * End a stream once all of its chunks are written. A complete stream is committed to its final name, see
+     * {@link #liveCommitted(String, LiveUploadItem, Throwable)}.
+     *
+     * @return the stream, see {@link LiveUploadItem#getProblem()} for why it failed; null if unknown
+     */
+    public LiveUploadItem finishLive(String key, int transferId, long length, String pcmSha256) {
+        LiveUploadItem item = liveUploads.remove(taskKey(key, transferId));
+        if (item == null) {
+            return null;
+        }
+        if (!item.finish(length, pcmSha256)) {
+            return liveCommitted(key, item, null);
+        }
+        UploadSink.FlushPolicy policy = sinkOptions.getFlushPolicy();
+        if (committer != null) {
+            item.setCommit(committer.commit(item.getLiveFile(), item.getFinalFile(), policy));
+            return item;
+        }
+        IOException error = null;
+        try {
+            UploadCommitter.commitNow(item.getLiveFile(), item.getFinalFile(), policy);
+        } catch (IOException e) {
+            error = e;
+        }
+        return liveCommitted(key, item, error);
+    }
+
+    /**
+     * Conclude a stream after its commit, on the writer of its device.
+     *
+     * @param error why the file could not be committed, null if it was
+     */
+    public LiveUploadItem liveCommitted(String key, LiveUploadItem item, Throwable error) {
+        if (error != null) {
+            item.fail(error.getMessage());
+            item.discard();
+        }
+        boolean ok = item.getProblem() == null;
+        EventLog.count(ok ? "upload.live.received" : "upload.live.failed");
+        EventLog.log(EventLog.Category.TRANSFER, "live_received",
+                "device", key,
+                "transfer", item.getTransferId(),
+                "file", item.getRemoteFilename(),
+                "local", item.getLocalFilename(),
+                "ok", ok,
+                "problem", item.getProblem(),
+                "bytes", item.getReceivedBytes(),
+                "ms", Math.round(item.getElapsedMillis()));
+        if (ok) {
+            received(key, item.getRemoteFilename(), item.getFinalFile());
+        }
+        return item;
+    }
+
+    /**
+     * Start or resume the upload of a file. If an earlier attempt left a part file of the same length behind,
+     * only its missing chunks have to be sent, see {@link UploadingFileItem#getMissingRanges()}.
+     *
+     * @param transferId id of the transfer in the chunk headers, 0 for clients that send one file at a time
+     * @param awaitDigest whether the device sends the digest of the file after its chunks
+     * @return the upload, already finished or committing if nothing was missing, or null if the transfer is
+     * already in progress
+     */
+    public UploadingFileItem addTask(String key, int transferId, String subKey, String filename, long chunks, long length,
+                                     boolean awaitDigest) {
+        return addTask(key, transferId, subKey, filename, chunks, length, awaitDigest, null);
+    }
+
+    /**
+     * @param codec what the device codes the chunks with, see {@link LosslessAudioCodec}; null if they are sent
+     *              as they are. The file is written decoded.
+     */
+    public UploadingFileItem addTask(String key, int transferId, String subKey, String filename, long chunks, long length,
+                                     boolean awaitDigest, String codec) {
         try {
             String mappedKey = deviceNames.getOrDefault(key, key);
             mappedKey = mappedKey.replace('/', '_');
-            UploadingFileItem fileItem = new UploadingFileItem(mappedKey, subKey, filename, chunks, length);
-            uploadingFiles.putIfAbsent(key, fileItem);
-        } catch (FileNotFoundException e) {
+            UploadingFileItem fileItem = new UploadingFileItem(mappedKey, subKey, filename, transferId, chunks, length,
+                    sinkOptions);
+            fileItem.setCodec(codec);
+            if (fileItem.isComplete()) {
+                // every chunk arrived before the connection dropped
+                fileItem.complete();
+                if (awaitDigest) {
+                    awaitingDigest.put(taskKey(key, transferId), fileItem);
+                }
+                commit(key, fileItem);
+                return fileItem;
+            }
+            UploadingFileItem existing = uploadingFiles.putIfAbsent(taskKey(key, transferId), fileItem);
+            if (existing != null) {
+                logger.warning("Upload " + transferId + " of " + key + " already in progress: " + existing.getRemoteFilename());
+                return null;
+            }
+            fileItem.setObserver(observer(key, filename, fileItem.getFinalFile()));
+            return fileItem;
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void _removeAndRelease(String key) {
-        UploadingFileItem removed = uploadingFiles.remove(key);
+    private void _removeAndRelease(String taskKey) {
+        UploadingFileItem removed = uploadingFiles.remove(taskKey);
         if (removed != null) {
             removed.close();
         }
 //        deviceNames.remove(key);
     }
 
-    public UploadingFileItem writeChunk(String key, ByteBuf chunkBuf) {
-        UploadingFileItem fileItem = uploadingFiles.get(key);
+    private void _removeAndDiscard(String taskKey) {
+        UploadingFileItem removed = uploadingFiles.remove(taskKey);
+        if (removed != null) {
+            removed.discard();
+        }
+    }
+
+    /**
+     * Check the digest the device computed while sending against the one of the received file.
+     *
+     * @param requestId the request answered once the digests are compared
+     * @return the upload, not finished yet if chunks requested again are still to come or the file is not
+     * committed yet, or null if unknown
+     */
+    public UploadingFileItem verifyDigest(String key, int transferId, String sha256, long requestId) {
+        String taskKey = taskKey(key, transferId);
+        UploadingFileItem fileItem = uploadingFiles.get(taskKey);
+        if (fileItem != null) {
+            // compared on completion
+            fileItem.setDeviceDigest(sha256, requestId);
+            return fileItem;
+        }
+        fileItem = awaitingDigest.remove(taskKey);
+        if (fileItem == null) {
+            return null;
+        }
+        fileItem.setDeviceDigest(sha256, requestId);
+        if (fileItem.isCommitting()) {
+            // compared once committed
+            return fileItem;
+        }
+        try {
+            fileItem.verifyDigest();
+        } catch (IOException e) {
+            logger.severe("Failed to record digest of " + fileItem.getLocalFilename() + ": " + e.getMessage());
+            fileItem.failed();
+        }
+        logVerified(key, fileItem);
+        return fileItem;
+    }
+
+    /**
+     * @param settings the chunk header layout negotiated for the channel
+     * @return the upload the chunk belongs to, with {@link UploadingFileItem#takeCorruptRanges() corrupt chunks}
+     * to be requested again; committing if the chunk completed it and a committer batches the commits; failed if
+     * the chunk could not be written, the upload is closed then and can be resumed
+     */
+    public UploadingFileItem writeChunk(String key, FrameSettings settings, ByteBuf chunkBuf) {
+        int transferId = settings.isTransferIds() ? chunkBuf.readInt() : 0;
+        String taskKey = taskKey(key, transferId);
+        UploadingFileItem fileItem = uploadingFiles.get(taskKey);
         if (fileItem != null) {
             int chunkId = chunkBuf.readInt();
             int totalChunks = chunkBuf.readInt();
             int offset = chunkBuf.readInt();
             int length = chunkBuf.readInt();
+            int crc = settings.isChunkCrc() ? chunkBuf.readInt() : 0;
 
-            if (totalChunks != fileItem.getChunks() || length != fileItem.getLength()) {
-                _removeAndRelease(key);
-                logger.severe("Invalid chunk data: " + chunkId + "/" + totalChunks + " position: " + offset + "/" + length);
-                return fileItem.failed();
+            if (totalChunks != fileItem.getChunks() || length != fileItem.getLength()
+                    || chunkId < 1 || chunkId > totalChunks || offset < 0) {
+                return invalidChunk(taskKey, fileItem, chunkId, totalChunks, offset, length);
+            }
+
+            if (settings.isChunkCrc() && Utils.crc32c(chunkBuf) != crc) {
+                EventLog.count("upload.crc_errors");
+                logger.warning("CRC mismatch of chunk " + chunkId + "/" + totalChunks + " of " + fileItem.getRemoteFilename());
+                if (fileItem.markCorrupt(chunkId) > MAX_CRC_ERRORS) {
+                    _removeAndDiscard(taskKey);
+                    logger.severe("Too many corrupt chunks, giving up " + fileItem.getRemoteFilename());
+                    return fileItem.failed();
+                }
+                return fileItem;
+            }
+
+            if (fileItem.getCodec() != null) {
+                // checked as it was sent, written as it was recorded
+                int wireBytes = chunkBuf.readableBytes();
+                long start = System.nanoTime();
+                try {
+                    chunkBuf = Unpooled.wrappedBuffer(LosslessAudioCodec.decodeChunk(
+                            ByteBufUtil.getBytes(chunkBuf), 0, wireBytes, settings.getChunkSize()));
+                } catch (IllegalArgumentException e) {
+                    logger.severe(e.getMessage() + ", chunk " + chunkId + "/" + totalChunks + " of " + fileItem.getRemoteFilename());
+                    return invalidChunk(taskKey, fileItem, chunkId, totalChunks, offset, length);
+                }
+                fileItem.addDecoded(wireBytes, System.nanoTime() - start);
+                EventLog.count("upload.codec.wire_bytes", wireBytes);
+                EventLog.count("upload.codec.pcm_bytes", chunkBuf.readableBytes());
+            }
+            if ((long) offset + chunkBuf.readableBytes() > length) {
+                return invalidChunk(taskKey, fileItem, chunkId, totalChunks, offset, length);
             }
 
-            logger.info("File upload chunk: " + chunkId + "/" + totalChunks + " position: " + offset + "/" + length);
+            EventLog.count("upload.chunks");
             try {
-                byte[] bytes = new byte[chunkBuf.readableBytes()];
-                chunkBuf.readBytes(bytes);
-                fileItem.writeChunk(offset, bytes);
+                fileItem.writeChunk(chunkId, offset, chunkBuf);
+                if (fileItem.isComplete()) {
+                    uploadingFiles.remove(taskKey);
+                    fileItem.complete();
+                    if (fileItem.getDeviceSha256() == null && settings.isChunkCrc()) {
+                        awaitingDigest.put(taskKey, fileItem);
+                    }
+                }
             } catch (IOException e) {
-                _removeAndRelease(key);  // do not write again the next time
-                logger.severe("Failed to write chunk: " + chunkId + "/" + totalChunks + " position: " + offset + "/" + length);
-                throw new RuntimeException(e);
+                _removeAndRelease(taskKey);  // do not write again the next time, what is on disk stays resumable
+                logger.severe("Failed to write chunk: " + chunkId + "/" + totalChunks + " position: " + offset + "/" + length
+                        + ": " + e.getMessage());
+                return fileItem.failed();
             }
-            if (chunkId == totalChunks) {
-                _removeAndRelease(key);
-                logger.info("File upload finished: " + fileItem.getRemoteFilename() + " -> " + fileItem.getLocalFilename());
-                return fileItem.finished();
-            } else {
-                return fileItem;
+            if (fileItem.isCommitting()) {
+                commit(key, fileItem);
             }
+            return fileItem;
         } else {
+            LiveUploadItem live = liveUploads.get(taskKey);
+            if (live != null) {
+                writeLiveChunk(settings, live, chunkBuf);
+            }
+            // a stream is only answered at its end
+            return null;
+        }
+    }
+
+    private void writeLiveChunk(FrameSettings settings, LiveUploadItem live, ByteBuf chunkBuf) {
+        int chunkId = chunkBuf.readInt();
+        chunkBuf.skipBytes(4);  // total chunks, unknown while recording
+        int offset = chunkBuf.readInt();
+        chunkBuf.skipBytes(4);  // length, likewise
+        int crc = settings.isChunkCrc() ? chunkBuf.readInt() : 0;
+        if (settings.isChunkCrc() && Utils.crc32c(chunkBuf) != crc) {
+            EventLog.count("upload.crc_errors");
+            // nothing is sent again while recording, the device uploads its copy after all
+            live.fail("CRC mismatch of chunk " + chunkId);
+            return;
+        }
+        EventLog.count("upload.live.chunks");
+        try {
+            live.write(offset, chunkBuf);
+        } catch (IOException e) {
+            live.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Commit a complete file with the next batch, see {@link UploadingFileItem#getCommit()}, or right away
+     * without a committer.
+     */
+    private void commit(String key, UploadingFileItem fileItem) {
+        if (committer != null) {
+            fileItem.setCommit(committer.commit(fileItem.getPartFile(), fileItem.getFinalFile(), fileItem.getFlushPolicy()));
+            return;
+        }
+        IOException error = null;
+        try {
+            UploadCommitter.commitNow(fileItem.getPartFile(), fileItem.getFinalFile(), fileItem.getFlushPolicy());
+        } catch (IOException e) {
+            error = e;
+        }
+        committed(key, fileItem, error);
+    }
+
+    /**
+     * Conclude an upload after the commit of its file, on the writer of its device: the manifest is written and
+     * the device's digest checked if it is known. A file that could not be committed stays a part file with its
+     * bitmap, for a later upload of it to resume.
+     *
+     * @param error why the file could not be committed, null if it was
+     */
+    public UploadingFileItem committed(String key, UploadingFileItem fileItem, Throwable error) {
+        if (error != null) {
+            awaitingDigest.remove(taskKey(key, fileItem.getTransferId()));
+            logger.severe("Failed to commit " + fileItem.getLocalFilename() + ": " + error.getMessage());
+            return fileItem.failed();
+        }
+        try {
+            fileItem.committed();
+        } catch (IOException e) {
+            logger.severe("Failed to record digest of " + fileItem.getLocalFilename() + ": " + e.getMessage());
+            fileItem.failed();
+        }
+        double elapsedMs = fileItem.getElapsedMillis();
+        long length = fileItem.getLength();
+        EventLog.log(EventLog.Category.TRANSFER, "upload_received",
+                "device", key,
+                "transfer", fileItem.getTransferId(),
+                "file", fileItem.getRemoteFilename(),
+                "local", fileItem.getLocalFilename(),
+                "chunks", fileItem.getChunks(),
+                "resumed_chunks", fileItem.getResumedChunks(),
+                "crc_errors", fileItem.getCrcErrors(),
+                "file_writes", fileItem.getFileWrites(),
+                "bytes", length,
+                "codec", fileItem.getCodec(),
+                "wire_bytes", fileItem.getCodec() != null ? fileItem.getWireBytes() : null,
+                "decode_ms", fileItem.getCodec() != null ? Math.round(fileItem.getDecodeMillis()) : null,
+                "ms", Math.round(elapsedMs),
+                "mb_per_s", Math.round(length / 1e3 / Math.max(elapsedMs, 1) * 100) / 100.0);
+        if (fileItem.getDeviceSha256() != null) {
+            logVerified(key, fileItem);
+        }
+        if (!fileItem.isFailed()) {
+            received(key, fileItem.getRemoteFilename(), fileItem.getFinalFile());
+        }
+        return fileItem;
+    }
+
+    private void received(String key, String remoteFilename, Path file) {
+        for (UploadReceivedListener listener : receivedListeners) {
+            try {
+                listener.onUploadReceived(key, remoteFilename, file);
+            } catch (RuntimeException e) {
+                logger.warning("Upload listener failed on " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return what shows the chunks of an upload to the listeners that want to see them, null if none does; a
+     * listener failing on a chunk sees no more of them
+     */
+    private UploadChunkListener.Observer observer(String key, String remoteFilename, Path file) {
+        List<UploadChunkListener.Observer> observers = new ArrayList<>();
+        for (UploadChunkListener listener : chunkListeners) {
+            try {
+                UploadChunkListener.Observer observer = listener.onUploadStarted(key, remoteFilename, file);
+                if (observer != null) {
+                    observers.add(observer);
+                }
+            } catch (RuntimeException e) {
+                logger.warning("Upload listener failed on " + file + ": " + e.getMessage());
+            }
+        }
+        if (observers.isEmpty()) {
             return null;
         }
+        return (offset, data) -> {
+            for (UploadChunkListener.Observer observer : observers.toArray(new UploadChunkListener.Observer[0])) {
+                try {
+                    observer.onChunk(offset, data.duplicate());
+                } catch (RuntimeException e) {
+                    observers.remove(observer);
+                    logger.warning("Upload listener failed on " + file + " at " + offset + ": " + e.getMessage());
+                }
+            }
+        };
+    }
+
+    private UploadingFileItem invalidChunk(String taskKey, UploadingFileItem fileItem,
+                                           int chunkId, int totalChunks, int offset, int length) {
+        _removeAndDiscard(taskKey);
+        logger.severe("Invalid chunk data: " + chunkId + "/" + totalChunks + " position: " + offset + "/" + length);
+        return fileItem.failed();
+    }
+
+    private static void logVerified(String key, UploadingFileItem fileItem) {
+        EventLog.log(EventLog.Category.TRANSFER, "upload_verified",
+                "device", key,
+                "transfer", fileItem.getTransferId(),
+                "file", fileItem.getRemoteFilename(),
+                "ok", Boolean.TRUE.equals(fileItem.getVerified()),
+                "sha256", fileItem.getSha256());
+    }
+
+    private static String taskKey(String key, int transferId) {
+        return key + "#" + transferId;
     }
 
     public void registerDeviceName(String key, String name) {
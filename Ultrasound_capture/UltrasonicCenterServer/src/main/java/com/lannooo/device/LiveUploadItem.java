@@ -0,0 +1,217 @@
+package com.lannooo.device;
+
+import com.lannooo.common.AppConstants;
+import com.lannooo.common.Utils;
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * A recording streamed by the device while it is being made. The samples are appended to "name.live" as they
+ * arrive, and the WAV header, known only once the recording stops, comes last and goes to the start of the file.
+ * The file is committed to its final name when the device ends the stream with the length and the digest of the
+ * samples, see {@link UploadCommitter}.
+ * <p>
+ * The device keeps its own copy of the recording: a stream with a gap, a corrupt chunk or a wrong digest is
+ * dropped here and the device uploads the file instead.
+ */
+public class LiveUploadItem {
+    private static final Logger logger = Utils.getLogger(LiveUploadItem.class);
+
+    public static final String LIVE_SUFFIX = ".live";
+    // the header the device writes in front of the samples, sent last
+    public static final int HEADER_LENGTH = 44;
+
+    private final String key;
+    private final String filename;
+    private final int transferId;
+    private final String localFilename;
+    private final Path liveFile;
+    private final MessageDigest digest = Utils.sha256();
+    private FileChannel channel;
+    // end of the samples received so far, the next chunk has to start here
+    private long position = HEADER_LENGTH;
+    private boolean header;
+    // sees every chunk written, null if nothing does
+    private UploadChunkListener.Observer observer;
+    private String problem;
+    // the commit of the complete stream, null if it was committed right away
+    private CompletableFuture<Void> commit;
+    private final long startNanos;
+
+    public LiveUploadItem(String key, String subKey, String filename, int transferId) {
+        this.key = key;
+        this.filename = filename;
+        this.transferId = transferId;
+        this.localFilename = Utils.replaceLocalPath(filename, AppConstants.AUDIO_BASE_PATH, key, subKey);
+        this.liveFile = Path.of(localFilename + LIVE_SUFFIX);
+        this.startNanos = System.nanoTime();
+    }
+
+    public void setObserver(UploadChunkListener.Observer observer) {
+        this.observer = observer;
+    }
+
+    public void open() throws IOException {
+        Files.createDirectories(liveFile.getParent());
+        channel = FileChannel.open(liveFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * @param offset where the data goes in the file: the end of the samples so far, or 0 for the header
+     */
+    public void write(long offset, ByteBuf data) throws IOException {
+        if (problem != null) {
+            data.skipBytes(data.readableBytes());
+            return;
+        }
+        if (observer != null && (offset == position || offset == 0 && data.readableBytes() == HEADER_LENGTH)) {
+            long at = offset;
+            for (ByteBuffer nioBuffer : data.nioBuffers()) {
+                observer.onChunk(at, nioBuffer.duplicate());
+                at += nioBuffer.remaining();
+            }
+        }
+        if (offset == 0 && data.readableBytes() == HEADER_LENGTH) {
+            writeFully(data, 0);
+            header = true;
+        } else if (offset != position) {
+            fail("chunk at " + offset + ", expected " + position);
+            data.skipBytes(data.readableBytes());
+        } else {
+            for (ByteBuffer nioBuffer : data.nioBuffers()) {
+                digest.update(nioBuffer.duplicate());
+            }
+            position += writeFully(data, position);
+        }
+    }
+
+    private int writeFully(ByteBuf data, long at) throws IOException {
+        int written = 0;
+        for (ByteBuffer nioBuffer : data.nioBuffers()) {
+            while (nioBuffer.hasRemaining()) {
+                written += channel.write(nioBuffer, at + written);
+            }
+        }
+        data.skipBytes(data.readableBytes());
+        return written;
+    }
+
+    /**
+     * The stream cannot be completed any more, the rest of it is ignored.
+     */
+    public void fail(String problem) {
+        if (this.problem == null) {
+            this.problem = problem;
+            logger.warning("Live upload of " + filename + " broken: " + problem);
+        }
+    }
+
+    /**
+     * Check the stream against what the device recorded, a complete one is to be committed to its final name
+     * next, an incomplete one is deleted.
+     *
+     * @param length  length of the recording, header included
+     * @param pcmSha256 digest of the samples, without the header
+     * @return true if the recording is complete
+     */
+    public boolean finish(long length, String pcmSha256) {
+        close();
+        if (problem == null && !header) {
+            problem = "no header";
+        } else if (problem == null && position != length) {
+            problem = (position - HEADER_LENGTH) + " of " + (length - HEADER_LENGTH) + " bytes received";
+        } else if (problem == null && !Utils.hex(digest.digest()).equalsIgnoreCase(pcmSha256)) {
+            problem = "digest mismatch";
+        }
+        if (problem == null) {
+            return true;
+        }
+        discard();
+        return false;
+    }
+
+    /**
+     * Close and delete what was received.
+     */
+    public void discard() {
+        close();
+        try {
+            Files.deleteIfExists(liveFile);
+        } catch (IOException e) {
+            logger.warning("Failed to delete " + liveFile + ": " + e.getMessage());
+        }
+    }
+
+    private void close() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        channel = null;
+    }
+
+    /**
+     * @return why the stream cannot be completed, null if nothing went wrong so far
+     */
+    public String getProblem() {
+        return problem;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    public String getRemoteFilename() {
+        return filename;
+    }
+
+    public String getLocalFilename() {
+        return localFilename;
+    }
+
+    public Path getLiveFile() {
+        return liveFile;
+    }
+
+    public Path getFinalFile() {
+        return Path.of(localFilename);
+    }
+
+    /**
+     * @return the commit in progress, null if the stream was committed when it ended or is broken
+     */
+    public CompletableFuture<Void> getCommit() {
+        return commit;
+    }
+
+    public void setCommit(CompletableFuture<Void> commit) {
+        this.commit = commit;
+    }
+
+    /**
+     * @return bytes of samples received so far
+     */
+    public long getReceivedBytes() {
+        return position - HEADER_LENGTH;
+    }
+
+    public double getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1e6;
+    }
+}
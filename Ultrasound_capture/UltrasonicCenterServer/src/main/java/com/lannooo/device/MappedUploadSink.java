@@ -0,0 +1,78 @@
+package com.lannooo.device;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The whole file mapped read-write, chunks are copied straight into the page cache without a system call.
+ * The mapping is only released by the garbage collector, so on Windows the finished file cannot be renamed
+ * right away; use the channel sink there.
+ */
+public class MappedUploadSink implements UploadSink {
+    private final FileChannel file;
+    private final UploadSink.Options options;
+    private MappedByteBuffer mapped;
+    private long unforcedBytes;
+
+    public MappedUploadSink(Path path, long length, boolean truncate, UploadSink.Options options) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Too large to map: " + length);
+        }
+        this.file = truncate
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.options = options;
+        if (options.isPreallocate()) {
+            UploadSink.preallocate(file, length);
+        }
+        // mapping beyond the end grows the file to its final length, sparse
+        this.mapped = file.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+
+    @Override
+    public void write(long offset, ByteBuf data) throws IOException {
+        int size = data.readableBytes();
+        if (offset + size > mapped.capacity()) {
+            throw new IOException("Chunk at " + offset + " beyond the file length " + mapped.capacity());
+        }
+        data.getBytes(data.readerIndex(), mapped.duplicate().position((int) offset).limit((int) offset + size));
+        unforcedBytes += size;
+        if (options.getFlushPolicy() == FlushPolicy.BYTES && unforcedBytes >= options.getFlushBytes()) {
+            force();
+        }
+    }
+
+    @Override
+    public void drain() {
+        // already in the page cache
+    }
+
+    @Override
+    public void force() {
+        mapped.force();
+        unforcedBytes = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (options.getFlushPolicy().forcesOnClose()) {
+                force();
+            }
+        } finally {
+            mapped = null;
+            file.close();
+        }
+    }
+
+    @Override
+    public long getFileWrites() {
+        return 0;
+    }
+}
@@ -0,0 +1,117 @@
+package com.lannooo.device;
+
+import com.lannooo.common.Utils;
+import com.lannooo.server.MessageRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Requests sent to devices that still wait for their RESPONSE. A broadcast shares one id between all
+ * devices, so entries are keyed by device and id.
+ */
+@Component
+public class PendingRequestManager {
+    private static final Logger logger = Utils.getLogger(PendingRequestManager.class);
+
+    @Value("${device.request.timeout-ms:10000}")
+    private long defaultTimeoutMillis;
+
+    private final AtomicLong nextId = new AtomicLong();
+    // "key#id" -> pending request
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>(16);
+
+    public long getDefaultTimeoutMillis() {
+        return defaultTimeoutMillis;
+    }
+
+    /**
+     * Give the request a fresh id, it is not tracked until {@link #register} is called.
+     */
+    public long assignId(MessageRequest request) {
+        long id = nextId.incrementAndGet();
+        request.setId(id);
+        return id;
+    }
+
+    /**
+     * Wait for the response of a device to an already numbered request.
+     *
+     * @return completed with the ack, or exceptionally with a TimeoutException after timeoutMillis
+     */
+    public CompletableFuture<DeviceAck> register(String key, MessageRequest request, long timeoutMillis) {
+        String entryKey = entryKey(key, request.getId());
+        Pending entry = new Pending(System.nanoTime());
+        pending.put(entryKey, entry);
+        return entry.future
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((ack, e) -> {
+                    pending.remove(entryKey, entry);
+                    if (e != null) {
+                        logger.warning("No response from " + key + " to " + request.getSubtype() + "#" + request.getId() + ": " + e);
+                    }
+                });
+    }
+
+    /**
+     * @return true if a pending request was waiting for this response
+     */
+    public boolean complete(String key, MessageRequest response) {
+        if (response.getId() == 0) {
+            return false;
+        }
+        Pending entry = pending.remove(entryKey(key, response.getId()));
+        if (entry == null) {
+            return false;
+        }
+        double latencyMs = (System.nanoTime() - entry.sentNanos) / 1e6;
+        return entry.future.complete(new DeviceAck(key, response, latencyMs));
+    }
+
+    /**
+     * Fail one request, e.g. when it could not be written.
+     */
+    public void fail(String key, long id, Throwable cause) {
+        Pending entry = pending.remove(entryKey(key, id));
+        if (entry != null) {
+            entry.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Fail all requests of a device, e.g. when its channel is closed.
+     */
+    public void cancel(String key) {
+        String prefix = key + "#";
+        pending.entrySet().removeIf(e -> {
+            if (e.getKey().startsWith(prefix)) {
+                e.getValue().future.completeExceptionally(new IllegalStateException("Device disconnected: " + key));
+                return true;
+            }
+            return false;
+        });
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    private static String entryKey(String key, long id) {
+        return key + "#" + id;
+    }
+
+    private static class Pending {
+        private final long sentNanos;
+        private final CompletableFuture<DeviceAck> future = new CompletableFuture<>();
+
+        private Pending(long sentNanos) {
+            this.sentNanos = sentNanos;
+        }
+    }
+}
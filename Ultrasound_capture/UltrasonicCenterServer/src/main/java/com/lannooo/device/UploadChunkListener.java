@@ -0,0 +1,28 @@
+package com.lannooo.device;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Told about every upload as it starts, to see its chunks while they are written, on the upload writer of the
+ * device: what it does with a chunk holds up the upload.
+ */
+public interface UploadChunkListener {
+    /**
+     * @param remoteFilename the name the device sends the file under
+     * @param file           where it is to be stored
+     * @return what sees the chunks of the upload, null to leave it alone
+     */
+    Observer onUploadStarted(String key, String remoteFilename, Path file);
+
+    interface Observer {
+        /**
+         * Called once for every chunk written, in the order they arrive: chunks requested again or received before
+         * the upload was resumed may be missing, and the header of a streamed recording comes last.
+         *
+         * @param offset where the data goes in the file
+         * @param data   a view of the data, only valid during the call
+         */
+        void onChunk(long offset, ByteBuffer data);
+    }
+}
@@ -0,0 +1,225 @@
+package com.lannooo.device;
+
+import com.lannooo.common.EventLog;
+import com.lannooo.common.Utils;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Gives completed uploads their final names, durably. A file is forced to the storage device, renamed from its
+ * part file in one step, and the directory holding it is forced as well, so that after a crash the file either
+ * has its final name and all of its data, or is still a part file to be resumed.
+ * <p>
+ * The uploads completing within a short window are committed together by one thread, and the upload writers go
+ * on with other chunks meanwhile. The data of the files in a batch is forced by a few threads at once, all of it
+ * before the first rename: a journaling file system commits forces that wait at the same time in one journal
+ * commit, where one after the other each would wait for its own. The renames of a batch then cost one force per
+ * directory instead of one per file.
+ */
+@Component
+public class UploadCommitter {
+    private static final Logger logger = Utils.getLogger(UploadCommitter.class);
+
+    private final BlockingQueue<Commit> queue = new LinkedBlockingQueue<>();
+    private final long windowNanos;
+    private final int maxFiles;
+    private final Thread thread;
+    // forces the data of the files of a batch concurrently
+    private final ExecutorService forcer;
+    private volatile boolean stopped;
+
+    public UploadCommitter(@Value("${upload.commit.window-ms:2}") long windowMs,
+                           @Value("${upload.commit.max-files:64}") int maxFiles,
+                           @Value("${upload.commit.force-threads:8}") int forceThreads) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMs));
+        this.maxFiles = Math.max(1, maxFiles);
+        AtomicInteger forcers = new AtomicInteger();
+        this.forcer = Executors.newFixedThreadPool(Math.max(1, Math.min(forceThreads, this.maxFiles)), r -> {
+            Thread forcerThread = new Thread(r, "upload-commit-force-" + forcers.getAndIncrement());
+            forcerThread.setDaemon(true);
+            return forcerThread;
+        });
+        this.thread = new Thread(this::run, "upload-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Commit a part file with the next batch.
+     *
+     * @param policy {@link UploadSink.FlushPolicy#GROUP} forces the data here, NONE leaves everything to the OS
+     * @return completed once the file has its final name, exceptionally if it still has the part name
+     */
+    public CompletableFuture<Void> commit(Path partFile, Path finalFile, UploadSink.FlushPolicy policy) {
+        Commit commit = new Commit(partFile, finalFile, policy);
+        if (stopped) {
+            commitAll(List.of(commit), Runnable::run);
+        } else {
+            queue.add(commit);
+        }
+        return commit.done;
+    }
+
+    /**
+     * Commit a part file on the calling thread, on its own.
+     */
+    public static void commitNow(Path partFile, Path finalFile, UploadSink.FlushPolicy policy) throws IOException {
+        Commit commit = new Commit(partFile, finalFile, policy);
+        commitAll(List.of(commit), Runnable::run);
+        if (commit.error != null) {
+            throw commit.error;
+        }
+    }
+
+    /**
+     * Commit what is queued, so that no upload is left as a part file that was completely received.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        stopped = true;
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+        if (thread.isAlive()) {
+            logger.warning("Upload committer did not finish in time");
+        }
+        forcer.shutdown();
+    }
+
+    private void run() {
+        List<Commit> batch = new ArrayList<>();
+        while (!stopped || !queue.isEmpty()) {
+            try {
+                Commit first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // whatever completes within the window goes with it
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxFiles) {
+                    long left = deadline - System.nanoTime();
+                    Commit next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                stopped = true;
+            }
+            if (!batch.isEmpty()) {
+                commitAll(batch, forcer);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * @param forcer runs the forces of the data, those of a batch at the same time if it has the threads
+     */
+    private static void commitAll(List<Commit> batch, Executor forcer) {
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> forces = new ArrayList<>();
+        for (Commit commit : batch) {
+            if (commit.policy == UploadSink.FlushPolicy.GROUP) {
+                try {
+                    forces.add(CompletableFuture.runAsync(() -> forceData(commit), forcer));
+                } catch (RejectedExecutionException e) {
+                    // shut down while the last batches are committed
+                    forceData(commit);
+                }
+            }
+        }
+        // the data first, a rename must never point to data that is not on the disk yet
+        CompletableFuture.allOf(forces.toArray(CompletableFuture[]::new)).join();
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Commit commit : batch) {
+            if (commit.error != null) {
+                continue;
+            }
+            try {
+                move(commit.partFile, commit.finalFile);
+                if (commit.policy != UploadSink.FlushPolicy.NONE) {
+                    directories.add(commit.finalFile.toAbsolutePath().getParent());
+                }
+            } catch (IOException e) {
+                commit.error = e;
+            }
+        }
+        // one force per directory records all the renames in it
+        directories.forEach(UploadCommitter::forceDirectory);
+        for (Commit commit : batch) {
+            if (commit.error != null) {
+                logger.severe("Failed to commit " + commit.finalFile + ": " + commit.error.getMessage());
+                commit.done.completeExceptionally(commit.error);
+            } else {
+                commit.done.complete(null);
+            }
+        }
+        EventLog.count("upload.commit.batches");
+        EventLog.count("upload.commit.files", batch.size());
+        EventLog.count("upload.commit.directories", directories.size());
+        EventLog.count("upload.commit.micros", (System.nanoTime() - start) / 1000);
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void forceData(Commit commit) {
+        try (FileChannel file = FileChannel.open(commit.partFile, StandardOpenOption.WRITE)) {
+            file.force(false);
+        } catch (IOException e) {
+            commit.error = e;
+        }
+    }
+
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be opened on Windows, the renames are as durable as the OS makes them there
+            logger.fine("Cannot force " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private static final class Commit {
+        private final Path partFile;
+        private final Path finalFile;
+        private final UploadSink.FlushPolicy policy;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private IOException error;
+
+        private Commit(Path partFile, Path finalFile, UploadSink.FlushPolicy policy) {
+            this.partFile = partFile;
+            this.finalFile = finalFile;
+            this.policy = policy;
+        }
+    }
+}
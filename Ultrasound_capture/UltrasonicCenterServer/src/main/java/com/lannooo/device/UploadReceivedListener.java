@@ -0,0 +1,15 @@
+package com.lannooo.device;
+
+import java.nio.file.Path;
+
+/**
+ * Told about every upload committed under its final name, on the upload writer of the device: anything slow
+ * is to be handed to another thread.
+ */
+public interface UploadReceivedListener {
+    /**
+     * @param remoteFilename the name the device sent the file under
+     * @param file           where it is stored
+     */
+    void onUploadReceived(String key, String remoteFilename, Path file);
+}
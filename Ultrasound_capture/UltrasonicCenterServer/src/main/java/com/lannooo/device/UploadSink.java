@@ -0,0 +1,154 @@
+package com.lannooo.device;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Where the chunks of an upload are written. The file is set to the length announced by the upload request
+ * before the first chunk, so that chunks only fill it in, and data goes to the disk in batches instead of one
+ * write per chunk.
+ * <p>
+ * Setting the length leaves a sparse file: no blocks are reserved, the file system allocates them as the chunks
+ * arrive, possibly scattered, and a full disk is only found out by a chunk. With {@link Options#isPreallocate()}
+ * the file is filled with zeros first instead, which reserves all of its blocks at the start of the upload at the
+ * cost of writing it twice.
+ */
+public interface UploadSink {
+    int PREALLOCATE_BLOCK = 1024 * 1024;
+
+    /**
+     * Write the readable bytes of the chunk at the offset, the indices of the buffer are left alone.
+     */
+    void write(long offset, ByteBuf data) throws IOException;
+
+    /**
+     * Hand everything written so far to the file system, e.g. before the bitmap claims those chunks.
+     */
+    void drain() throws IOException;
+
+    /**
+     * Drain and force the data to the storage device.
+     */
+    void force() throws IOException;
+
+    /**
+     * Drain, force if the flush policy asks for it, and release the file.
+     */
+    void close() throws IOException;
+
+    /**
+     * @return write calls that reached the file system, to compare with the number of chunks
+     */
+    long getFileWrites();
+
+    /**
+     * Write zeros from the end of the file up to the length, so that the file system allocates its blocks now.
+     * Java has no portable fallocate, this is what posix_fallocate falls back to.
+     */
+    static void preallocate(FileChannel file, long length) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocateDirect((int) Math.min(PREALLOCATE_BLOCK, Math.max(1, length)));
+        for (long position = file.size(); position < length; ) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), length - position));
+            position += file.write(zeros, position);
+        }
+    }
+
+    static UploadSink open(Path file, long length, boolean truncate, Options options) throws IOException {
+        return switch (options.getType()) {
+            case MMAP -> new MappedUploadSink(file, length, truncate, options);
+            case CHANNEL -> new ChannelUploadSink(file, length, truncate, options);
+        };
+    }
+
+    enum Type {
+        // positional writes through a FileChannel, batched in a direct buffer
+        CHANNEL,
+        // the whole file mapped into memory, chunks are plain copies
+        MMAP
+    }
+
+    enum FlushPolicy {
+        // leave it to the OS, a crash may lose what it has not written yet
+        NONE,
+        // force once when the upload ends
+        CLOSE,
+        // force every flushBytes and when the upload ends
+        BYTES,
+        // force when the upload ends, together with the other uploads ending meanwhile, see UploadCommitter
+        GROUP;
+
+        /**
+         * @return whether the sink forces the file itself when it is closed
+         */
+        public boolean forcesOnClose() {
+            return this == CLOSE || this == BYTES;
+        }
+    }
+
+    class Options {
+        public static final Options DEFAULTS = new Options(Type.CHANNEL, FlushPolicy.GROUP, 8 * 1024 * 1024, 256 * 1024,
+                false);
+
+        private final Type type;
+        private final FlushPolicy flushPolicy;
+        private final long flushBytes;
+        private final int batchBytes;
+        private final boolean preallocate;
+
+        public Options(Type type, FlushPolicy flushPolicy, long flushBytes, int batchBytes, boolean preallocate) {
+            this.type = type;
+            this.flushPolicy = flushPolicy;
+            this.flushBytes = flushBytes;
+            this.batchBytes = batchBytes;
+            this.preallocate = preallocate;
+        }
+
+        public static Options parse(String type, String flushPolicy, long flushBytes, int batchBytes,
+                                    boolean preallocate) {
+            return new Options(Type.valueOf(type.trim().toUpperCase(Locale.ROOT)),
+                    FlushPolicy.valueOf(flushPolicy.trim().toUpperCase(Locale.ROOT)),
+                    Math.max(1, flushBytes),
+                    Math.max(0, batchBytes),
+                    preallocate);
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public FlushPolicy getFlushPolicy() {
+            return flushPolicy;
+        }
+
+        public long getFlushBytes() {
+            return flushBytes;
+        }
+
+        public int getBatchBytes() {
+            return batchBytes;
+        }
+
+        /**
+         * @return true to fill a new file with zeros before its chunks, false to only set its length
+         */
+        public boolean isPreallocate() {
+            return preallocate;
+        }
+
+        @Override
+        public String toString() {
+            return "Options{" +
+                    "type=" + type +
+                    ", flushPolicy=" + flushPolicy +
+                    ", flushBytes=" + flushBytes +
+                    ", batchBytes=" + batchBytes +
+                    ", preallocate=" + preallocate +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.lannooo.device;
+
+import com.lannooo.common.EventLog;
+import com.lannooo.common.Utils;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Disk stage of the uploads, so that no file is opened or written on a netty event loop.
+ * <p>
+ * Every device is assigned to one of a few single threaded shards, its work runs there in the order it
+ * was submitted: the chunks of each transfer stay in order, and closing the uploads of a disconnected
+ * device runs after the chunks already received. A slow disk only delays the devices on the same shard,
+ * and never the commands of any device.
+ * <p>
+ * The bytes submitted but not yet written are counted per channel. Above the high water mark the channel
+ * stops reading from its socket, and below the low water mark it reads again, so a device cannot queue
+ * more than that in memory.
+ */
+@Component
+public class UploadWriter {
+    private static final Logger logger = Utils.getLogger(UploadWriter.class);
+    private static final AttributeKey<AtomicLong> PENDING_KEY = AttributeKey.valueOf("uploadWriterPending");
+
+    private final ExecutorService[] shards;
+    private final long highWater;
+    private final long lowWater;
+
+    public UploadWriter(@Value("${upload.writer.threads:0}") int threads,
+                        @Value("${upload.writer.high-water:4194304}") long highWater,
+                        @Value("${upload.writer.low-water:1048576}") long lowWater) {
+        if (threads <= 0) {
+            threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        }
+        this.shards = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            String name = "upload-writer-" + i;
+            shards[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.highWater = highWater;
+        this.lowWater = Math.min(lowWater, highWater);
+    }
+
+    /**
+     * Run a task on the shard of the device, after everything submitted for it before.
+     *
+     * @param bytes data the task holds on to until it is done, counted against the channel's high water mark
+     */
+    public void execute(String key, Channel channel, int bytes, Runnable task) {
+        AtomicLong pending = pending(channel);
+        if (bytes > 0 && pending.addAndGet(bytes) > highWater && channel.config().isAutoRead()) {
+            channel.config().setAutoRead(false);
+            EventLog.count("upload.writer.paused");
+        }
+        try {
+            shardOf(key).execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.severe("Upload task of " + key + " failed: " + e.getMessage());
+                } finally {
+                    if (bytes > 0 && pending.addAndGet(-bytes) < lowWater && !channel.config().isAutoRead()) {
+                        resumeReading(channel, pending);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.addAndGet(-bytes);
+            logger.warning("Upload writer is shut down, dropped a task of " + key);
+        }
+    }
+
+    public long getPendingBytes(Channel channel) {
+        return pending(channel).get();
+    }
+
+    public int getShards() {
+        return shards.length;
+    }
+
+    /**
+     * Finish the queued work, so that the open uploads are closed with their bitmaps saved.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        for (ExecutorService shard : shards) {
+            shard.shutdown();
+        }
+        for (ExecutorService shard : shards) {
+            if (!shard.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warning("Upload writer did not finish in time");
+            }
+        }
+    }
+
+    private void resumeReading(Channel channel, AtomicLong pending) {
+        channel.eventLoop().execute(() -> {
+            // more may have been queued meanwhile
+            if (!channel.config().isAutoRead() && pending.get() < lowWater) {
+                channel.config().setAutoRead(true);
+            }
+        });
+    }
+
+    private ExecutorService shardOf(String key) {
+        return shards[Math.floorMod(key.hashCode(), shards.length)];
+    }
+
+    private static AtomicLong pending(Channel channel) {
+        AtomicLong pending = channel.attr(PENDING_KEY).get();
+        if (pending == null) {
+            AtomicLong created = new AtomicLong();
+            pending = channel.attr(PENDING_KEY).setIfAbsent(created);
+            if (pending == null) {
+                pending = created;
+            }
+        }
+        return pending;
+    }
+}
@@ -1,49 +1,283 @@
 package com.lannooo.device;
 
 import com.lannooo.common.AppConstants;
+import com.lannooo.common.EventLog;
 import com.lannooo.common.Utils;
 
-import java.io.File;
+import com.google.gson.GsonBuilder;
+import io.netty.buffer.ByteBuf;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
 
 
+/**
+ * A file being received. Chunks go to "name.part", and the set of received chunks is kept in
+ * "name.part.bitmap" next to it, so that an upload cut off by a disconnect can continue where it stopped.
+ * The chunks may come in any order, over the main connection or the upload lanes of the device, and the part
+ * file is committed to its final name once every chunk is there, see {@link UploadCommitter}: until then a
+ * crash leaves a part file to resume, never a final one that is missing data.
+ * <p>
+ * A SHA-256 of the file is computed while the chunks arrive in order, and recorded with the device's own
+ * digest in a "name.manifest.json" sidecar, so that the recordings need not be hashed again afterwards.
+ */
 public class UploadingFileItem {
+    private static final Logger logger = Utils.getLogger(UploadingFileItem.class);
+
+    public static final String PART_SUFFIX = ".part";
+    public static final String BITMAP_SUFFIX = ".part.bitmap";
+    public static final String MANIFEST_SUFFIX = ".manifest.json";
+    private static final int BITMAP_MAGIC = 0x424D4150;
+    // chunks received before the bitmap is saved again, a lost update only costs a resend of those
+    private static final int BITMAP_SAVE_INTERVAL = 64;
+
     private final String key;
     private final String subKey;
     private final String filename;
+    private final int transferId;
     private final long chunks;
     private final long length;
     private final String localFilename;
-    private RandomAccessFile file;
+    private final Path partFile;
+    private final Path bitmapFile;
+    private final Path manifestFile;
+    private final BitSet received;
+    private final int resumedChunks;
+    private int receivedChunks;
+    private int unsavedChunks;
+    // hashed as long as the chunks come in order, the rest is read back from the part file at the end
+    private final MessageDigest digest = Utils.sha256();
+    private long digestedUpTo;
+    private String sha256;
+    private String deviceSha256;
+    private long digestRequestId;
+    private Boolean verified;
+    private int crcErrors;
+    private final List<Integer> corruptChunks = new ArrayList<>();
+    // chunks the device was asked to send again
+    private final BitSet requested = new BitSet();
+    private final UploadSink.Options sinkOptions;
+    // the chunks are coded by the device, see LosslessAudioCodec
+    private String codec;
+    private long wireBytes;
+    private long decodeNanos;
+    private UploadSink sink;
+    private long fileWrites;
+    // sees every chunk the first time it is written, null if nothing does
+    private UploadChunkListener.Observer observer;
+    // the commit of the complete part file, null if it was committed right away
+    private CompletableFuture<Void> commit;
     private UploadingStatus status;
+    private final long startNanos;
 
     public UploadingFileItem(String key,
                              String subKey,
                              String filename,
+                             int transferId,
                              long chunks,
-                             long length) throws FileNotFoundException {
+                             long length,
+                             UploadSink.Options sinkOptions) throws FileNotFoundException {
         this.key = key;
         this.subKey = subKey;
         this.filename = filename;
+        this.transferId = transferId;
         this.localFilename = Utils.replaceLocalPath(filename, AppConstants.AUDIO_BASE_PATH, key, subKey);
+        this.partFile = Path.of(localFilename + PART_SUFFIX);
+        this.bitmapFile = Path.of(localFilename + BITMAP_SUFFIX);
+        this.manifestFile = Path.of(localFilename + MANIFEST_SUFFIX);
         this.chunks = chunks;
         this.length = length;
+        this.sinkOptions = sinkOptions;
+        this.received = loadBitmap();
+        this.resumedChunks = received.cardinality();
+        this.receivedChunks = resumedChunks;
         this.status = UploadingStatus.UPLOADING;
+        this.startNanos = System.nanoTime();
     }
 
+    /**
+     * Close the part file and keep it with its bitmap, to be resumed by a later upload of the same file.
+     */
     public void close() {
-        if (file == null) return;
+        if (sink == null) return;
         try {
-            file.close();
+            if (receivedChunks > 0 && status == UploadingStatus.UPLOADING) {
+                // while the sink can still force the chunks the bitmap claims
+                saveBitmap();
+            }
+            closeSink();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Close and delete what was received, e.g. after invalid chunk data.
+     */
+    public void discard() {
+        close();
+        try {
+            Files.deleteIfExists(partFile);
+            Files.deleteIfExists(bitmapFile);
+        } catch (IOException e) {
+            logger.warning("Failed to delete " + partFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Close the complete part file and finish its digest, it is to be committed to its final name next.
+     */
+    public UploadingFileItem complete() throws IOException {
+        if (sink != null) {
+            closeSink();
+        }
+        if (!Files.exists(partFile)) {
+            // every chunk is empty, nothing was ever written
+            Files.createDirectories(partFile.getParent());
+            Files.createFile(partFile);
+        }
+        sha256 = finishDigest();
+        this.status = UploadingStatus.COMMITTING;
+        return this;
+    }
+
+    /**
+     * The part file has its final name now: record its digest in the manifest. If the device's digest is
+     * already known, it is checked as well, see {@link #verifyDigest()}.
+     */
+    public UploadingFileItem committed() throws IOException {
+        Files.deleteIfExists(bitmapFile);
+        finished();
+        if (deviceSha256 != null) {
+            verifyDigest();
+        } else {
+            writeManifest();
+        }
+        return this;
+    }
+
+    /**
+     * Compare the digest of the received file with the device's one. A file that differs is deleted, the
+     * device keeps its copy and may send it again.
+     *
+     * @return true if both digests match
+     */
+    public boolean verifyDigest() throws IOException {
+        verified = sha256 != null && sha256.equalsIgnoreCase(deviceSha256);
+        if (verified) {
+            writeManifest();
+        } else {
+            logger.severe("Digest mismatch of " + localFilename + ": " + sha256 + " received, " + deviceSha256 + " sent");
+            Files.deleteIfExists(Path.of(localFilename));
+            Files.deleteIfExists(manifestFile);
+            failed();
+        }
+        return verified;
+    }
+
+    /**
+     * @param requestId the "upload_digest" request to answer once the digests are compared
+     */
+    public void setDeviceDigest(String sha256, long requestId) {
+        this.deviceSha256 = sha256;
+        this.digestRequestId = requestId;
+    }
+
+    public String getDeviceSha256() {
+        return deviceSha256;
+    }
+
+    public long getDigestRequestId() {
+        return digestRequestId;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    /**
+     * @return the digest check, null while the device's digest is unknown
+     */
+    public Boolean getVerified() {
+        return verified;
+    }
+
+    /**
+     * Remember a chunk that failed its CRC, to be requested again.
+     *
+     * @return CRC failures of this upload so far
+     */
+    public int markCorrupt(int chunkId) {
+        corruptChunks.add(chunkId);
+        return ++crcErrors;
+    }
+
+    /**
+     * @return the chunks marked corrupt since the last call, as [first, last] chunk ids
+     */
+    public List<List<Long>> takeCorruptRanges() {
+        List<List<Long>> ranges = new ArrayList<>(corruptChunks.size());
+        for (int chunkId : corruptChunks) {
+            ranges.add(List.of((long) chunkId, (long) chunkId));
+            requested.set(chunkId - 1);
+        }
+        corruptChunks.clear();
+        return ranges;
+    }
+
+    public int getCrcErrors() {
+        return crcErrors;
+    }
+
+    /**
+     * @return the codec of the chunks, null if they are sent as they are
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    public void setCodec(String codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Count a chunk as it came over the wire, before it was decoded.
+     */
+    public void addDecoded(int wireBytes, long decodeNanos) {
+        this.wireBytes += wireBytes;
+        this.decodeNanos += decodeNanos;
+    }
+
+    /**
+     * @return bytes of the coded chunks received so far
+     */
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    public double getDecodeMillis() {
+        return decodeNanos / 1e6;
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
     public String getLocalFilename() {
         return localFilename;
     }
@@ -60,10 +294,92 @@ public class UploadingFileItem {
         return length;
     }
 
+    /**
+     * @return chunks already on disk from an earlier attempt when this upload started
+     */
+    public int getResumedChunks() {
+        return resumedChunks;
+    }
+
+    public boolean isComplete() {
+        return receivedChunks >= chunks;
+    }
+
+    /**
+     * @return the chunks still to be sent, as [first, last] chunk ids (1 based, inclusive)
+     */
+    public List<List<Long>> getMissingRanges() {
+        return clearRanges(received);
+    }
+
+    /**
+     * For the device's digest of a striped upload: the chunks of a lane that dropped never arrive and nobody
+     * asks for them otherwise.
+     *
+     * @return the chunks neither received nor requested again so far, as [first, last] chunk ids; they count
+     * as requested from now on
+     */
+    public List<List<Long>> takeLostRanges() {
+        BitSet known = (BitSet) received.clone();
+        known.or(requested);
+        List<List<Long>> ranges = clearRanges(known);
+        for (List<Long> range : ranges) {
+            requested.set((int) (range.get(0) - 1), (int) (long) range.get(1));
+        }
+        return ranges;
+    }
+
+    private List<List<Long>> clearRanges(BitSet chunkBits) {
+        List<List<Long>> ranges = new ArrayList<>();
+        // bit i is chunk i + 1, a clear run [from, to) is the chunk range [from + 1, to]
+        int from = chunkBits.nextClearBit(0);
+        while (from < chunks) {
+            int next = chunkBits.nextSetBit(from);
+            int to = next < 0 ? (int) chunks : (int) Math.min(next, chunks);
+            ranges.add(List.of(from + 1L, (long) to));
+            from = chunkBits.nextClearBit(to);
+        }
+        return ranges;
+    }
+
+    public double getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1e6;
+    }
+
     public boolean isFinished() {
         return status == UploadingStatus.FINISHED;
     }
 
+    /**
+     * @return whether the complete file is waiting for its commit, it is neither finished nor failed meanwhile
+     */
+    public boolean isCommitting() {
+        return status == UploadingStatus.COMMITTING;
+    }
+
+    public Path getPartFile() {
+        return partFile;
+    }
+
+    public Path getFinalFile() {
+        return Path.of(localFilename);
+    }
+
+    public UploadSink.FlushPolicy getFlushPolicy() {
+        return sinkOptions.getFlushPolicy();
+    }
+
+    /**
+     * @return the commit in progress, null if the file was committed on completion
+     */
+    public CompletableFuture<Void> getCommit() {
+        return commit;
+    }
+
+    public void setCommit(CompletableFuture<Void> commit) {
+        this.commit = commit;
+    }
+
     public boolean isFailed() {
         return status == UploadingStatus.FAILED;
     }
@@ -78,24 +394,139 @@ public class UploadingFileItem {
         return this;
     }
 
-    public void writeChunk(long offset, byte[] data) throws IOException {
-        if (file == null) {
-            Path localFile = Path.of(localFilename);
-            Path localFileDir = localFile.getParent();
+    /**
+     * @return write calls the sink made to the file system for this upload so far
+     */
+    public long getFileWrites() {
+        return fileWrites + (sink == null ? 0 : sink.getFileWrites());
+    }
+
+    public void setObserver(UploadChunkListener.Observer observer) {
+        this.observer = observer;
+    }
+
+    public void writeChunk(int chunkId, long offset, ByteBuf data) throws IOException {
+        if (sink == null) {
+            Path localFileDir = partFile.getParent();
             if (!Files.exists(localFileDir)) {
                 Files.createDirectories(localFileDir);
             }
-            if (Files.exists(localFile)) {
-                Files.delete(localFile);
+            // a stale part file without a usable bitmap cannot be trusted
+            sink = UploadSink.open(partFile, length, receivedChunks == 0, sinkOptions);
+        }
+        if (offset == digestedUpTo) {
+            for (ByteBuffer nioBuffer : data.nioBuffers()) {
+                digestedUpTo += nioBuffer.remaining();
+                digest.update(nioBuffer);
+            }
+        }
+        if (observer != null && !received.get(chunkId - 1)) {
+            long at = offset;
+            for (ByteBuffer nioBuffer : data.nioBuffers()) {
+                observer.onChunk(at, nioBuffer.duplicate());
+                at += nioBuffer.remaining();
+            }
+        }
+        sink.write(offset, data);
+        data.skipBytes(data.readableBytes());
+
+        if (!received.get(chunkId - 1)) {
+            received.set(chunkId - 1);
+            receivedChunks++;
+            if (++unsavedChunks >= BITMAP_SAVE_INTERVAL && !isComplete()) {
+                saveBitmap();
+            }
+        }
+    }
+
+    private void closeSink() throws IOException {
+        UploadSink closing = sink;
+        sink = null;
+        try {
+            closing.close();
+        } finally {
+            fileWrites += closing.getFileWrites();
+            EventLog.count("upload.file_writes", closing.getFileWrites());
+        }
+    }
+
+    private String finishDigest() throws IOException {
+        if (digestedUpTo < length) {
+            // resumed, or chunks sent again out of order: hash the rest from disk
+            try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                long position = digestedUpTo;
+                int read;
+                while (position < length && (read = channel.read(buffer.clear(), position)) > 0) {
+                    digest.update(buffer.flip());
+                    position += read;
+                }
+            }
+        }
+        return Utils.hex(digest.digest());
+    }
+
+    private void writeManifest() throws IOException {
+        Map<String, Object> manifest = new LinkedHashMap<>();
+        manifest.put("file", Path.of(localFilename).getFileName().toString());
+        manifest.put("remote", filename);
+        manifest.put("device", key);
+        manifest.put("length", length);
+        manifest.put("chunks", chunks);
+        manifest.put("sha256", sha256);
+        manifest.put("device_sha256", deviceSha256);
+        manifest.put("verified", verified);
+        manifest.put("crc_errors", crcErrors);
+        manifest.put("resumed_chunks", resumedChunks);
+        manifest.put("codec", codec);
+        manifest.put("completed", Instant.now().toString());
+        String json = new GsonBuilder().serializeNulls().setPrettyPrinting().create().toJson(manifest);
+        Path tmp = Path.of(manifestFile + ".tmp");
+        Files.writeString(tmp, json);
+        Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private BitSet loadBitmap() {
+        if (!Files.exists(bitmapFile) || !Files.exists(partFile)) {
+            return new BitSet((int) chunks);
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(bitmapFile));
+            if (buffer.getInt() == BITMAP_MAGIC && buffer.getLong() == length && buffer.getLong() == chunks) {
+                BitSet bitmap = BitSet.valueOf(buffer);
+                logger.info("Resuming " + localFilename + ": " + bitmap.cardinality() + "/" + chunks + " chunks on disk");
+                return bitmap;
             }
-            file = new RandomAccessFile(localFile.toFile(), "rw");
+            logger.info("Stale part of " + localFilename + " is for a different file, starting over");
+        } catch (IOException | RuntimeException e) {
+            logger.warning("Unreadable bitmap " + bitmapFile + ", starting over: " + e.getMessage());
+        }
+        return new BitSet((int) chunks);
+    }
+
+    private void saveBitmap() throws IOException {
+        if (sink != null) {
+            // the chunks the bitmap claims have to be on the disk first, not just in the page cache: after a
+            // power loss the bitmap could survive them and the resumed file would have holes
+            sink.force();
         }
-        file.seek(offset);
-        file.write(data);
+        byte[] bits = received.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 8 + bits.length)
+                .putInt(BITMAP_MAGIC)
+                .putLong(length)
+                .putLong(chunks)
+                .put(bits);
+        // replace atomically, a torn bitmap would be ignored and cost the whole file
+        Path tmp = Path.of(bitmapFile + ".tmp");
+        Files.write(tmp, buffer.array());
+        Files.move(tmp, bitmapFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        unsavedChunks = 0;
     }
 
     public enum UploadingStatus {
         UPLOADING,
+        // complete, the part file is not committed yet
+        COMMITTING,
         FINISHED,
         FAILED
     }
@@ -0,0 +1,221 @@
+package com.lannooo.dsp;
+
+import java.io.IOException;
+
+/**
+ * Finds where the chirps of an FMCW capture start in its recording, which begins at an arbitrary offset after
+ * the player and recorder started. The recording is correlated with the chirp as played, block by block with
+ * overlap-save: every block of FFT size samples gives FFT size - chirp + 1 correlation lags at once.
+ * <p>
+ * The correlation is taken as an analytic signal, so its magnitude is the envelope of the matched filter
+ * output, and normalised by the energy of the recording under the chirp, so that a clean chirp scores 1
+ * whatever the gain. Every envelope peak scoring above the threshold at least half a period from a stronger
+ * one is a chirp start, refined to a fraction of a lag with a parabola through its neighbours. The parabola
+ * goes through the envelope itself, the energy under the chirp changes from lag to lag.
+ * <p>
+ * The work is cut where the signal allows it: two real blocks are transformed at once as one complex block,
+ * and as the correlation only has the band of the chirp, only that band is transformed back, which yields
+ * every {@link #getDecimation()}-th lag.
+ * <p>
+ * One aligner processes one recording at a time, its arrays are allocated once by the constructor.
+ */
+public final class ChirpAligner {
+    private final FmcwChirp chirp;
+    private final Fft fft;
+    private final Fft bandFft;
+    private final int chirpSamples;
+    private final int decimation;
+    private final int step;
+    private final int firstBin;
+    private final float threshold;
+    // conjugate spectrum of the chirp over the band, with the weights of the analytic signal folded in
+    private final float[] templateRe;
+    private final float[] templateIm;
+    private final double templateNorm;
+    private final float[] blockA;
+    private final float[] blockB;
+    private final float[] re;
+    private final float[] im;
+    private final float[] bandARe;
+    private final float[] bandAIm;
+    private final float[] bandBRe;
+    private final float[] bandBIm;
+    private final float[] envelope;
+    private final DspKernels kernels = DspKernels.get();
+
+    /**
+     * @param threshold normalised correlation a chirp start has at least, in (0, 1]
+     */
+    public ChirpAligner(FmcwChirp chirp, float threshold) {
+        this.chirp = chirp;
+        this.chirpSamples = chirp.getChirpSamples();
+        this.threshold = threshold;
+        // four chirps per block keeps the overlap at a quarter of the transform
+        this.fft = Fft.of(Fft.sizeFor(4 * chirpSamples));
+        int size = fft.size();
+        // the band kept is at least twice the sweep, so the envelope peak spans enough lags for the parabola
+        double binHz = (double) chirp.getSampleRate() / size;
+        int sweepBins = (int) Math.ceil(chirp.getBandwidth() / binHz) + 1;
+        int bandBins = Math.min(size / 2, Fft.sizeFor(2 * sweepBins + 64));
+        this.bandFft = Fft.of(bandBins);
+        this.decimation = size / bandBins;
+        double centre = (chirp.getConfig().getStartFreqHz() + chirp.getConfig().getEndFreqHz()) / 2 / binHz;
+        this.firstBin = (int) Math.max(0, Math.min(size / 2 - bandBins, Math.round(centre) - bandBins / 2));
+        this.step = (size - chirpSamples + 1) / decimation * decimation;
+
+        float[] tx = chirp.transmitted();
+        float[] spectrumRe = new float[size];
+        float[] spectrumIm = new float[size];
+        double energy = 0;
+        for (int i = 0; i < chirpSamples; i++) {
+            spectrumRe[i] = tx[i];
+            energy += tx[i] * tx[i];
+        }
+        this.templateNorm = Math.sqrt(energy);
+        fft.forward(spectrumRe, spectrumIm);
+        this.templateRe = new float[bandBins];
+        this.templateIm = new float[bandBins];
+        for (int j = 0; j < bandBins; j++) {
+            int k = firstBin + j;
+            // positive frequencies doubled, DC and Nyquist kept; the band holds no negative ones
+            float weight = k == 0 || k == size / 2 ? 1f : 2f;
+            // the band is transformed back at a 1 / decimation of the length, that scales it up as much
+            templateRe[j] = spectrumRe[k] * weight / decimation;
+            templateIm[j] = -spectrumIm[k] * weight / decimation;
+        }
+        this.blockA = new float[size];
+        this.blockB = new float[size];
+        this.re = new float[size];
+        this.im = new float[size];
+        this.bandARe = new float[bandBins];
+        this.bandAIm = new float[bandBins];
+        this.bandBRe = new float[bandBins];
+        this.bandBIm = new float[bandBins];
+        this.envelope = new float[bandBins];
+    }
+
+    public FmcwChirp getChirp() {
+        return chirp;
+    }
+
+    /**
+     * @return samples between the lags the correlation is computed at
+     */
+    public int getDecimation() {
+        return decimation;
+    }
+
+    /**
+     * @return the start of every chirp found in the recording
+     */
+    public FrameIndex align(PcmWav wav) throws IOException {
+        if (wav.getSampleRate() != chirp.getSampleRate()) {
+            throw new IOException("Recorded at " + wav.getSampleRate() + " Hz, the chirp is at " + chirp.getSampleRate() + " Hz");
+        }
+        long begin = System.nanoTime();
+        long lastLag = wav.getFrames() - chirpSamples;
+        Peaks peaks = new Peaks(chirp.getPeriodSamples() / 2.0, threshold, decimation);
+        int size = fft.size();
+        for (long start = 0; start <= lastLag; start += 2L * step) {
+            // two blocks as the real and imaginary part of one
+            wav.read(start, blockA, 0, size);
+            wav.read(start + step, blockB, 0, size);
+            System.arraycopy(blockA, 0, re, 0, size);
+            System.arraycopy(blockB, 0, im, 0, size);
+            fft.forward(re, im);
+            for (int j = 0; j < templateRe.length; j++) {
+                int k = firstBin + j;
+                int mirror = (size - k) & (size - 1);
+                // A = (Z[k] + conj Z[-k]) / 2, B = (Z[k] - conj Z[-k]) / 2i
+                bandARe[j] = (re[k] + re[mirror]) * 0.5f;
+                bandAIm[j] = (im[k] - im[mirror]) * 0.5f;
+                bandBRe[j] = (im[k] + im[mirror]) * 0.5f;
+                bandBIm[j] = (re[mirror] - re[k]) * 0.5f;
+            }
+            kernels.complexMultiply(bandARe, bandAIm, templateRe, templateIm, bandARe, bandAIm, templateRe.length);
+            kernels.complexMultiply(bandBRe, bandBIm, templateRe, templateIm, bandBRe, bandBIm, templateRe.length);
+            bandFft.inverse(bandARe, bandAIm);
+            bandFft.inverse(bandBRe, bandBIm);
+            scan(peaks, start, lastLag, blockA, bandARe, bandAIm);
+            scan(peaks, start + step, lastLag, blockB, bandBRe, bandBIm);
+        }
+        return peaks.finish(chirp, (System.nanoTime() - begin) / 1e6);
+    }
+
+    /**
+     * Feed the lags of one block to the peak picker.
+     */
+    private void scan(Peaks peaks, long start, long lastLag, float[] block, float[] corrRe, float[] corrIm) {
+        if (start > lastLag) {
+            return;
+        }
+        // energy of the recording under the chirp at each lag
+        double energy = 0;
+        for (int i = 0; i < chirpSamples; i++) {
+            energy += block[i] * block[i];
+        }
+        int lags = (int) Math.min(step, lastLag - start + 1);
+        kernels.magnitude(corrRe, corrIm, envelope, (lags + decimation - 1) / decimation);
+        for (int lag = 0; lag < lags; lag++) {
+            if (lag > 0) {
+                int out = lag - 1;
+                energy += block[out + chirpSamples] * block[out + chirpSamples] - block[out] * block[out];
+            }
+            if (lag % decimation == 0) {
+                float magnitude = envelope[lag / decimation];
+                double norm = templateNorm * Math.sqrt(Math.max(energy, 0));
+                peaks.add(start + lag, magnitude, norm > 1e-12 ? (float) (magnitude / norm) : 0f);
+            }
+        }
+    }
+
+    /**
+     * Picks the peaks out of the envelope as it streams by, one lag at a time.
+     */
+    private static final class Peaks {
+        private final double minGap;
+        private final float threshold;
+        private final int spacing;
+        private final FrameIndex.Builder index = new FrameIndex.Builder();
+        private float before = 0f;
+        private float last = 0f;
+        private float lastScore = 0f;
+        private boolean pending;
+        private double pendingStart;
+        private float pendingScore;
+
+        private Peaks(double minGap, float threshold, int spacing) {
+            this.minGap = minGap;
+            this.threshold = threshold;
+            this.spacing = spacing;
+        }
+
+        private void add(long lag, float magnitude, float score) {
+            // the lag before is a local maximum
+            if (lastScore >= threshold && last >= before && last > magnitude) {
+                double denom = before - 2 * last + magnitude;
+                double delta = denom < 0 ? 0.5 * (before - magnitude) / denom : 0;
+                double start = lag - spacing + delta * spacing;
+                if (pending && start - pendingStart > minGap) {
+                    index.add(pendingStart, pendingScore);
+                    pending = false;
+                }
+                if (!pending || lastScore > pendingScore) {
+                    pending = true;
+                    pendingStart = start;
+                    pendingScore = lastScore;
+                }
+            }
+            before = last;
+            last = magnitude;
+            lastScore = score;
+        }
+
+        private FrameIndex finish(FmcwChirp chirp, double millis) {
+            if (pending) {
+                index.add(pendingStart, pendingScore);
+            }
+            return index.build(chirp, millis);
+        }
+    }
+}
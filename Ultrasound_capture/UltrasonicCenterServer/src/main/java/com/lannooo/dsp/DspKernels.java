@@ -0,0 +1,102 @@
+package com.lannooo.dsp;
+
+import java.util.logging.Logger;
+
+import com.lannooo.common.Utils;
+
+/**
+ * The inner loops of the signal processing on captures, on whole arrays at once: windowing, mixing, complex
+ * products, magnitudes, dB and the conversion of 16-bit samples. They are plain loops, which C2 compiles to SIMD
+ * code by itself, except where the incubating Vector API does better: {@link #get()} converts to dB on explicit
+ * vectors when the JVM has the jdk.incubator.vector module ({@code --add-modules jdk.incubator.vector}).
+ * <p>
+ * Both give the same bits for the same input: the vector kernels do the same IEEE operations in the same order
+ * on every lane, without fused multiply-adds, and dB come from the same polynomial logarithm. Running with
+ * {@code -Ddsp.kernels=scalar} forces the loops.
+ */
+public abstract class DspKernels {
+    private static final Logger logger = Utils.getLogger(DspKernels.class);
+    private static final DspKernels SCALAR = new ScalarKernels();
+    private static final DspKernels VECTOR = loadVector();
+    private static final DspKernels DEFAULT = "scalar".equalsIgnoreCase(System.getProperty("dsp.kernels")) || VECTOR == null
+            ? SCALAR : VECTOR;
+
+    static {
+        logger.info("DSP kernels: " + DEFAULT.getName());
+    }
+
+    /**
+     * @return the kernels to use
+     */
+    public static DspKernels get() {
+        return DEFAULT;
+    }
+
+    public static DspKernels scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * @return the Vector API kernels, null if the module is not there
+     */
+    public static DspKernels vector() {
+        return VECTOR;
+    }
+
+    private static DspKernels loadVector() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            // only loaded here, the class links against the module
+            return (DspKernels) Class.forName("com.lannooo.dsp.VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            logger.warning("Vector API kernels unavailable: " + e);
+            return null;
+        }
+    }
+
+    public abstract String getName();
+
+    /**
+     * dst[i] = a[i] * b[i], a window applied to a signal for one.
+     */
+    public abstract void multiply(float[] a, int aOff, float[] b, int bOff, float[] dst, int dstOff, int n);
+
+    /**
+     * re[i] = x[i] * cos[i], im[i] = x[i] * sin[i]: a real signal mixed with a phasor.
+     */
+    public abstract void mix(float[] x, int xOff, float[] cos, float[] sin, float[] re, float[] im, int n);
+
+    /**
+     * (dstRe + i dstIm)[i] = (aRe + i aIm)[i] * (bRe + i bIm)[i]; dst may be a.
+     */
+    public abstract void complexMultiply(float[] aRe, float[] aIm, float[] bRe, float[] bIm,
+                                         float[] dstRe, float[] dstIm, int n);
+
+    /**
+     * dst[i] = re[i]^2 + im[i]^2.
+     */
+    public abstract void power(float[] re, float[] im, float[] dst, int n);
+
+    /**
+     * dst[i] = sqrt(re[i]^2 + im[i]^2).
+     */
+    public abstract void magnitude(float[] re, float[] im, float[] dst, int n);
+
+    /**
+     * dst[i] = 10 log10(power[i] * scale), floorDb where that is not a positive normal number. Within 1e-4 dB
+     * of Math.log10.
+     */
+    public abstract void decibels(float[] power, float scale, float floorDb, float[] dst, int n);
+
+    /**
+     * dst[i] = src[i] / 32768, 16-bit samples to [-1, 1).
+     */
+    public abstract void pcm16ToFloat(short[] src, int srcOff, float[] dst, int dstOff, int n);
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,116 @@
+package com.lannooo.dsp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-place radix-2 FFT of split complex arrays. A plan holds the twiddles and the bit reversal of one size and
+ * is immutable, so the plans are shared by all threads through {@link #of(int)}; the arrays it transforms are
+ * the caller's, allocated once per stream.
+ */
+public final class Fft {
+    private static final Map<Integer, Fft> PLANS = new ConcurrentHashMap<>();
+
+    private final int size;
+    private final int[] reverse;
+    // cos and sin of 2 pi k / size, k < size / 2
+    private final float[] cos;
+    private final float[] sin;
+
+    private Fft(int size) {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        this.size = size;
+        this.reverse = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        this.cos = new float[Math.max(1, size / 2)];
+        this.sin = new float[Math.max(1, size / 2)];
+        for (int k = 0; k < size / 2; k++) {
+            double angle = 2 * Math.PI * k / size;
+            cos[k] = (float) Math.cos(angle);
+            sin[k] = (float) Math.sin(angle);
+        }
+    }
+
+    /**
+     * @return the shared plan of the size, a power of two
+     */
+    public static Fft of(int size) {
+        return PLANS.computeIfAbsent(size, Fft::new);
+    }
+
+    /**
+     * @return the smallest power of two not below n
+     */
+    public static int sizeFor(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * X[k] = sum x[n] e^(-2 pi i k n / size), in place.
+     */
+    public void forward(float[] re, float[] im) {
+        transform(re, im, -1f);
+    }
+
+    /**
+     * The inverse of {@link #forward}, scaled by 1 / size, in place.
+     */
+    public void inverse(float[] re, float[] im) {
+        transform(re, im, 1f);
+        float scale = 1f / size;
+        for (int i = 0; i < size; i++) {
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+    }
+
+    private void transform(float[] re, float[] im, float sign) {
+        int n = size;
+        for (int i = 0; i < n; i++) {
+            int j = reverse[i];
+            if (j > i) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        // the first stage only adds and subtracts
+        for (int a = 0; a + 1 < n; a += 2) {
+            float xr = re[a + 1];
+            float xi = im[a + 1];
+            re[a + 1] = re[a] - xr;
+            im[a + 1] = im[a] - xi;
+            re[a] += xr;
+            im[a] += xi;
+        }
+        for (int half = 2; half < n; half <<= 1) {
+            int span = half << 1;
+            int step = n / span;
+            for (int start = 0; start < n; start += span) {
+                for (int a = start, w = 0; a < start + half; a++, w += step) {
+                    float wr = cos[w];
+                    float wi = sign * sin[w];
+                    int b = a + half;
+                    float xr = re[b] * wr - im[b] * wi;
+                    float xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
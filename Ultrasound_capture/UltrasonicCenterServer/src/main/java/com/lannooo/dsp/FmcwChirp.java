@@ -0,0 +1,107 @@
+package com.lannooo.dsp;
+
+import com.lannooo.model.UltrasonicFmcwConfig;
+
+/**
+ * The chirp a device plays for a capture, computed from its {@link UltrasonicFmcwConfig} exactly like the
+ * FmcwPlayer of the client does: a linear sweep from the start to the end frequency over the chirp samples,
+ * shaped by the window, then the idle samples, repeated.
+ */
+public final class FmcwChirp {
+    // m/s in air at about 20 degrees
+    public static final double SPEED_OF_SOUND = 343.0;
+
+    private final UltrasonicFmcwConfig config;
+    private final int sampleRate;
+    private final int chirpSamples;
+    private final int idleSamples;
+    private final double slope;
+
+    public FmcwChirp(UltrasonicFmcwConfig config) {
+        this.config = config;
+        this.sampleRate = config.getSampleRateHz();
+        this.chirpSamples = Math.max(1, (int) Math.round(sampleRate * config.getChirpDurationMs() / 1000.0));
+        this.idleSamples = Math.max(0, (int) Math.round(sampleRate * config.getIdleDurationMs() / 1000.0));
+        // over the rounded chirp, as played
+        this.slope = (config.getEndFreqHz() - config.getStartFreqHz()) / Math.max(chirpSamples / (double) sampleRate, 1e-6);
+    }
+
+    public UltrasonicFmcwConfig getConfig() {
+        return config;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChirpSamples() {
+        return chirpSamples;
+    }
+
+    public int getIdleSamples() {
+        return idleSamples;
+    }
+
+    public int getPeriodSamples() {
+        return Math.max(1, chirpSamples + idleSamples);
+    }
+
+    /**
+     * @return Hz per second, negative for a down chirp
+     */
+    public double getSlope() {
+        return slope;
+    }
+
+    public double getBandwidth() {
+        return Math.abs(config.getEndFreqHz() - config.getStartFreqHz());
+    }
+
+    /**
+     * @return the distance to a reflector whose echo beats with the chirp at the frequency, per Hz
+     */
+    public double getMetresPerHz() {
+        return SPEED_OF_SOUND / (2 * Math.abs(slope));
+    }
+
+    /**
+     * The phase of the chirp at each of its samples, as cos and sin, for mixing a received chirp down.
+     */
+    public void phasor(float[] cos, float[] sin) {
+        for (int i = 0; i < chirpSamples; i++) {
+            double phase = phase(i);
+            cos[i] = (float) Math.cos(phase);
+            sin[i] = (float) Math.sin(phase);
+        }
+    }
+
+    /**
+     * @return one chirp as played, without the idle samples, in [-1, 1]
+     */
+    public float[] transmitted() {
+        // the player only shapes its chirps with a Hann window
+        float[] window = Window.of("hann".equalsIgnoreCase(config.getWindowType()) ? "hann" : "none", chirpSamples);
+        float[] chirp = new float[chirpSamples];
+        for (int i = 0; i < chirpSamples; i++) {
+            chirp[i] = (float) (Math.sin(phase(i)) * config.getAmplitude() * window[i]);
+        }
+        return chirp;
+    }
+
+    private double phase(int i) {
+        double t = i / (double) sampleRate;
+        return 2.0 * Math.PI * (config.getStartFreqHz() * t + 0.5 * slope * t * t);
+    }
+
+    @Override
+    public String toString() {
+        return "FmcwChirp{" +
+                "sampleRate=" + sampleRate +
+                ", startHz=" + config.getStartFreqHz() +
+                ", endHz=" + config.getEndFreqHz() +
+                ", chirpSamples=" + chirpSamples +
+                ", idleSamples=" + idleSamples +
+                ", window=" + config.getWindowType() +
+                '}';
+    }
+}
@@ -0,0 +1,148 @@
+package com.lannooo.dsp;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where the chirps of a capture start in its recording, see {@link ChirpAligner}. Stored next to the WAV file
+ * as "x.frames.csv": frame, start sample (fractional), start seconds, normalised correlation score.
+ */
+public final class FrameIndex {
+    public static final String SUFFIX = ".frames.csv";
+
+    private final double[] starts;
+    private final float[] scores;
+    private final int sampleRate;
+    private final int periodSamples;
+    private final double millis;
+
+    private FrameIndex(double[] starts, float[] scores, int sampleRate, int periodSamples, double millis) {
+        this.starts = starts;
+        this.scores = scores;
+        this.sampleRate = sampleRate;
+        this.periodSamples = periodSamples;
+        this.millis = millis;
+    }
+
+    /**
+     * @return where the index of a WAV file goes, "x.wav" -> "x.frames.csv"
+     */
+    public static Path pathFor(Path wav) {
+        String name = wav.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return wav.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + SUFFIX);
+    }
+
+    public int size() {
+        return starts.length;
+    }
+
+    public double getStart(int frame) {
+        return starts[frame];
+    }
+
+    public float getScore(int frame) {
+        return scores[frame];
+    }
+
+    public double[] getStarts() {
+        return starts.clone();
+    }
+
+    /**
+     * @return how long finding the chirps took
+     */
+    public double getMillis() {
+        return millis;
+    }
+
+    /**
+     * @return where the first chirp starts, the startup latency of the capture
+     */
+    public double getFirstStartMillis() {
+        return starts.length == 0 ? -1 : starts[0] * 1000 / sampleRate;
+    }
+
+    /**
+     * @return the standard deviation of the distance between chirps that follow each other, in samples
+     */
+    public double getPeriodJitter() {
+        double sum = 0;
+        double squares = 0;
+        int n = 0;
+        for (int i = 1; i < starts.length; i++) {
+            double d = starts[i] - starts[i - 1];
+            if (d < 1.5 * periodSamples) {
+                sum += d;
+                squares += d * d;
+                n++;
+            }
+        }
+        return n < 2 ? 0 : Math.sqrt(Math.max(0, squares / n - (sum / n) * (sum / n)));
+    }
+
+    /**
+     * @return the chirps missing between those found, judging by the gaps
+     */
+    public int getMissing() {
+        int missing = 0;
+        for (int i = 1; i < starts.length; i++) {
+            missing += (int) Math.max(0, Math.round((starts[i] - starts[i - 1]) / periodSamples) - 1);
+        }
+        return missing;
+    }
+
+    public void write(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp)) {
+            writer.write("frame,start_sample,start_seconds,score\n");
+            for (int i = 0; i < starts.length; i++) {
+                writer.write(String.format(Locale.ROOT, "%d,%.3f,%.6f,%.4f\n",
+                        i, starts[i], starts[i] / sampleRate, scores[i]));
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("frames", starts.length);
+        map.put("missing", getMissing());
+        map.put("first_frame_ms", Math.round(getFirstStartMillis() * 100) / 100.0);
+        map.put("period_jitter_samples", Math.round(getPeriodJitter() * 1000) / 1000.0);
+        map.put("ms", Math.round(millis));
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameIndex" + toMap();
+    }
+
+    static final class Builder {
+        private double[] starts = new double[256];
+        private float[] scores = new float[256];
+        private int size;
+
+        void add(double start, float score) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            starts[size] = start;
+            scores[size++] = score;
+        }
+
+        FrameIndex build(FmcwChirp chirp, double millis) {
+            return new FrameIndex(Arrays.copyOf(starts, size), Arrays.copyOf(scores, size),
+                    chirp.getSampleRate(), chirp.getPeriodSamples(), millis);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.lannooo.dsp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A 16-bit PCM WAV file mapped into memory, read as floats in [-1, 1) one block at a time. Only the first
+ * channel is read, the devices record mono. One reader at a time, the samples go through a buffer of its own.
+ */
+public final class PcmWav {
+    private final Path path;
+    private final ByteBuffer data;
+    private final int sampleRate;
+    private final int channels;
+    private final long frames;
+    private final ShortBuffer samples;
+    private final DspKernels kernels = DspKernels.get();
+    private short[] scratch = new short[0];
+
+    private PcmWav(Path path, ByteBuffer data, int sampleRate, int channels) {
+        this.path = path;
+        this.data = data;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.frames = data.capacity() / (2L * channels);
+        this.samples = data.asShortBuffer();
+    }
+
+    public static PcmWav open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("WAV file too large: " + path);
+            }
+            ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            if (size < 12 || file.getInt(0) != tag("RIFF") || file.getInt(8) != tag("WAVE")) {
+                throw new IOException("Not a WAV file: " + path);
+            }
+            int sampleRate = 0;
+            int channels = 0;
+            long pos = 12;
+            while (pos + 8 <= size) {
+                int id = file.getInt((int) pos);
+                long chunkSize = file.getInt((int) pos + 4) & 0xFFFFFFFFL;
+                if (id == tag("fmt ") && pos + 24 <= size) {
+                    int format = file.getShort((int) pos + 8) & 0xFFFF;
+                    int bits = file.getShort((int) pos + 22) & 0xFFFF;
+                    if ((format != 1 && format != 0xFFFE) || bits != 16) {
+                        throw new IOException("Not 16-bit PCM: " + path);
+                    }
+                    channels = file.getShort((int) pos + 10) & 0xFFFF;
+                    sampleRate = file.getInt((int) pos + 12);
+                } else if (id == tag("data")) {
+                    if (channels < 1) {
+                        throw new IOException("No format before the data: " + path);
+                    }
+                    long start = pos + 8;
+                    // the size is left 0 (or too big) by a recorder that was not stopped cleanly
+                    long end = chunkSize == 0 || start + chunkSize > size ? size : start + chunkSize;
+                    ByteBuffer data = file.slice((int) start, (int) (end - start)).order(ByteOrder.LITTLE_ENDIAN);
+                    return new PcmWav(path, data, sampleRate, channels);
+                }
+                pos += 8 + chunkSize + (chunkSize & 1);
+            }
+            throw new IOException("No data in " + path);
+        }
+    }
+
+    private static int tag(String tag) {
+        return tag.charAt(0) | tag.charAt(1) << 8 | tag.charAt(2) << 16 | tag.charAt(3) << 24;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return samples per channel
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Read samples of the first channel, those before the start or past the end of the file as 0.
+     */
+    public void read(long start, float[] dst, int off, int len) {
+        // the part outside the file
+        int head = (int) Math.max(0, Math.min(len, -start));
+        int count = (int) Math.max(0, Math.min(len - head, frames - (start + head)));
+        Arrays.fill(dst, off, off + head, 0f);
+        Arrays.fill(dst, off + head + count, off + len, 0f);
+        if (count == 0) {
+            return;
+        }
+        if (scratch.length < count) {
+            scratch = new short[count];
+        }
+        int first = (int) (start + head);
+        if (channels == 1) {
+            samples.get(first, scratch, 0, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                scratch[i] = samples.get((first + i) * channels);
+            }
+        }
+        kernels.pcm16ToFloat(scratch, 0, dst, off + head, count);
+    }
+}
@@ -0,0 +1,307 @@
+package com.lannooo.dsp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How good a 16-bit mono WAV recording is for ultrasonic sensing, measured from its bytes as they are uploaded,
+ * without reading the file back:
+ * <ul>
+ * <li>the level of the band the chirps are played in, and the noise next to it: the bins up to one bandwidth
+ * below and above the band, the guard on either side left out. The noise is scaled to the bandwidth of the band,
+ * the SNR is the difference of the two;</li>
+ * <li>the share of clipped samples;</li>
+ * <li>the dropouts, runs of samples that are exactly 0, which a microphone does not record.</li>
+ * </ul>
+ * Levels are in dB relative to a full scale sine. The spectra are Hann windowed FFT frames of about 20 ms, one
+ * after the other.
+ * <p>
+ * The bytes before {@link #DATA_OFFSET} are taken as the header the devices write and skipped. Bytes that follow
+ * the ones before carry on their frame and run of zeros; after a jump, the frame in progress is dropped and the
+ * run ends, so a resumed or reordered upload is measured on what was sent, a little less of it.
+ * <p>
+ * One analyzer measures one upload, it is fed by its writer and read by anyone.
+ */
+public final class QualityAnalyzer {
+    public static final int DATA_OFFSET = 44;
+    private static final double FLOOR_DB = -200;
+    private static final int BLOCK = 4096;
+
+    private final int sampleRate;
+    private final Fft fft;
+    private final float[] window;
+    // power of the bins to the level of a full scale sine
+    private final double scale;
+    private final int bandFirst;
+    private final int bandLast;
+    private final int noiseFirst;
+    private final int noiseLast;
+    private final int guardFirst;
+    private final int guardLast;
+    private final int noiseBins;
+    private final int minDropout;
+    private final DspKernels kernels = DspKernels.get();
+    private final short[] block = new short[BLOCK];
+    private final float[] samples = new float[BLOCK];
+    private final float[] frame;
+    private final float[] re;
+    private final float[] im;
+    private final float[] power;
+    private int filled;
+    // the file offset the next bytes continue from
+    private long next = -1;
+
+    private long sampleCount;
+    private double sumSquares;
+    private int peak;
+    private long clipped;
+    private long frames;
+    private double bandSum;
+    private double noiseSum;
+    private long zeroRun;
+    private long dropouts;
+    private long dropoutSamples;
+    private long longestDropout;
+    private long gaps;
+    private long micros;
+
+    /**
+     * @param guardHz       left out of the noise on either side of the band
+     * @param dropoutMillis the shortest run of zeros that is a dropout
+     */
+    public QualityAnalyzer(int sampleRate, double lowHz, double highHz, double guardHz, double dropoutMillis) {
+        this.sampleRate = sampleRate;
+        this.fft = Fft.of(Fft.sizeFor(Math.max(2, sampleRate / 50)));
+        int size = fft.size();
+        this.window = Window.of("hann", size);
+        double squares = 0;
+        for (float w : window) {
+            squares += w * w;
+        }
+        // one side of a full scale sine holds a quarter of the windowed energy times the size
+        this.scale = 4 / Math.max(size * squares, 1e-30);
+        double binHz = (double) sampleRate / size;
+        int nyquist = size / 2;
+        double width = highHz - lowHz;
+        this.bandFirst = clamp((int) Math.ceil(lowHz / binHz), 1, nyquist);
+        this.bandLast = clamp((int) Math.floor(highHz / binHz), bandFirst, nyquist);
+        this.noiseFirst = clamp((int) Math.ceil((lowHz - width) / binHz), 1, nyquist);
+        this.noiseLast = clamp((int) Math.floor((highHz + width) / binHz), noiseFirst, nyquist);
+        this.guardFirst = clamp((int) Math.ceil((lowHz - guardHz) / binHz), 0, nyquist + 1);
+        this.guardLast = clamp((int) Math.floor((highHz + guardHz) / binHz), guardFirst, nyquist + 1);
+        int bins = 0;
+        for (int k = noiseFirst; k <= noiseLast; k++) {
+            if (k < guardFirst || k > guardLast) {
+                bins++;
+            }
+        }
+        this.noiseBins = bins;
+        this.minDropout = Math.max(1, (int) Math.round(dropoutMillis * sampleRate / 1000));
+        this.frame = new float[size];
+        this.re = new float[size];
+        this.im = new float[size];
+        this.power = new float[nyquist + 1];
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * @param offset where the bytes are in the file
+     */
+    public synchronized void accept(long offset, ByteBuffer data) {
+        long begin = System.nanoTime();
+        ByteBuffer bytes = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long at = offset;
+        if (at < DATA_OFFSET) {
+            int header = (int) Math.min(bytes.remaining(), DATA_OFFSET - at);
+            bytes.position(bytes.position() + header);
+            at += header;
+        }
+        if (((at - DATA_OFFSET) & 1) != 0 && bytes.hasRemaining()) {
+            // half a sample, the rest of it was not seen
+            bytes.position(bytes.position() + 1);
+            at++;
+        }
+        if (bytes.remaining() < 2) {
+            return;
+        }
+        if (at != next) {
+            if (next >= 0) {
+                gaps++;
+            }
+            endRun();
+            filled = 0;
+        }
+        ShortBuffer pcm = bytes.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        next = at + 2L * pcm.remaining();
+        while (pcm.hasRemaining()) {
+            int n = Math.min(BLOCK, pcm.remaining());
+            pcm.get(block, 0, n);
+            measure(block, n);
+            kernels.pcm16ToFloat(block, 0, samples, 0, n);
+            for (int i = 0; i < n; ) {
+                int take = Math.min(n - i, frame.length - filled);
+                System.arraycopy(samples, i, frame, filled, take);
+                filled += take;
+                i += take;
+                if (filled == frame.length) {
+                    spectrum();
+                    filled = 0;
+                }
+            }
+        }
+        micros += (System.nanoTime() - begin) / 1000;
+    }
+
+    private void measure(short[] pcm, int n) {
+        for (int i = 0; i < n; i++) {
+            int s = pcm[i];
+            if (s == 0) {
+                zeroRun++;
+                continue;
+            }
+            endRun();
+            int magnitude = Math.abs(s);
+            sumSquares += (double) s * s;
+            peak = Math.max(peak, magnitude);
+            if (magnitude >= Short.MAX_VALUE) {
+                clipped++;
+            }
+        }
+        sampleCount += n;
+    }
+
+    private void endRun() {
+        if (zeroRun >= minDropout) {
+            dropouts++;
+            dropoutSamples += zeroRun;
+            longestDropout = Math.max(longestDropout, zeroRun);
+        }
+        zeroRun = 0;
+    }
+
+    private void spectrum() {
+        kernels.multiply(frame, 0, window, 0, re, 0, frame.length);
+        Arrays.fill(im, 0f);
+        fft.forward(re, im);
+        kernels.power(re, im, power, power.length);
+        double band = 0;
+        for (int k = bandFirst; k <= bandLast; k++) {
+            band += power[k];
+        }
+        double noise = 0;
+        for (int k = noiseFirst; k <= noiseLast; k++) {
+            if (k < guardFirst || k > guardLast) {
+                noise += power[k];
+            }
+        }
+        bandSum += band;
+        noiseSum += noise;
+        frames++;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public synchronized double getSeconds() {
+        return (double) sampleCount / sampleRate;
+    }
+
+    /**
+     * @return level of the band, the power in it over all frames
+     */
+    public synchronized double getInBandDb() {
+        return frames == 0 ? FLOOR_DB : db(bandSum / frames);
+    }
+
+    /**
+     * @return level of the noise next to the band, as if it spanned the band; null without bins for it
+     */
+    public synchronized Double getNoiseFloorDb() {
+        return frames == 0 || noiseBins == 0 ? null : db(noiseSum / frames / noiseBins * (bandLast - bandFirst + 1));
+    }
+
+    /**
+     * @return in-band level over the noise next to the band, per Hz; null without bins for the noise
+     */
+    public synchronized Double getSnrDb() {
+        Double noise = getNoiseFloorDb();
+        return noise == null ? null : getInBandDb() - noise;
+    }
+
+    /**
+     * @return level of the whole signal
+     */
+    public synchronized double getRmsDb() {
+        if (sampleCount == 0 || sumSquares == 0) {
+            return FLOOR_DB;
+        }
+        // a full scale sine has a mean square of half the full scale squared
+        return 10 * Math.log10(sumSquares / sampleCount / (0.5 * 32768.0 * 32768.0));
+    }
+
+    public synchronized double getClippingRatio() {
+        return sampleCount == 0 ? 0 : (double) clipped / sampleCount;
+    }
+
+    /**
+     * @return runs of zeros, the one going on included
+     */
+    public synchronized long getDropouts() {
+        return dropouts + (zeroRun >= minDropout ? 1 : 0);
+    }
+
+    public synchronized double getDropoutMillis() {
+        return (dropoutSamples + (zeroRun >= minDropout ? zeroRun : 0)) * 1000.0 / sampleRate;
+    }
+
+    public synchronized double getLongestDropoutMillis() {
+        return Math.max(longestDropout, zeroRun >= minDropout ? zeroRun : 0) * 1000.0 / sampleRate;
+    }
+
+    /**
+     * @return times the bytes did not follow the ones before
+     */
+    public synchronized long getGaps() {
+        return gaps;
+    }
+
+    private double db(double power) {
+        double level = power * scale;
+        return level > 0 ? Math.max(FLOOR_DB, 10 * Math.log10(level)) : FLOOR_DB;
+    }
+
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("seconds", Math.round(getSeconds() * 100) / 100.0);
+        map.put("in_band_db", round(getInBandDb()));
+        Double noise = getNoiseFloorDb();
+        map.put("noise_floor_db", noise == null ? null : round(noise));
+        map.put("snr_db", noise == null ? null : round(getSnrDb()));
+        map.put("rms_db", round(getRmsDb()));
+        map.put("peak", Math.round(peak / 32768.0 * 1000) / 1000.0);
+        map.put("clipping_ratio", getClippingRatio());
+        map.put("dropouts", getDropouts());
+        map.put("dropout_ms", Math.round(getDropoutMillis()));
+        map.put("longest_dropout_ms", Math.round(getLongestDropoutMillis()));
+        map.put("gaps", gaps);
+        map.put("analysis_ms", Math.round(micros / 1000.0));
+        return map;
+    }
+
+    private static double round(double db) {
+        return Math.round(db * 10) / 10.0;
+    }
+
+    @Override
+    public String toString() {
+        return "Quality" + toMap();
+    }
+}
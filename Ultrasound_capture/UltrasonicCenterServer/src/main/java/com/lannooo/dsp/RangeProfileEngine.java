@@ -0,0 +1,217 @@
+package com.lannooo.dsp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Range profiles of a received FMCW capture. Every received chirp is mixed with the phase of the transmitted
+ * one, which turns an echo delayed by t into a tone at slope * t, then windowed and transformed; the bins up to
+ * the chirp bandwidth are the range profile of the chirp, in dB relative to a full scale echo.
+ * <p>
+ * One engine processes one stream at a time, all its arrays are allocated once by the constructor.
+ */
+public final class RangeProfileEngine {
+    private static final float FLOOR_DB = -200f;
+
+    private final FmcwChirp chirp;
+    private final Fft fft;
+    private final int chirpSamples;
+    private final int bins;
+    private final float binHz;
+    // phase of the chirp with the analysis window folded in
+    private final float[] mixCos;
+    private final float[] mixSin;
+    private final float norm;
+    private final DspKernels kernels = DspKernels.get();
+    private final float[] re;
+    private final float[] im;
+    private final float[] power;
+    private final float[] frame;
+    private final float[] row;
+    private final float[] sorted;
+
+    /**
+     * @param window analysis window of each chirp, see {@link Window#of}
+     */
+    public RangeProfileEngine(FmcwChirp chirp, String window) {
+        this.chirp = chirp;
+        this.chirpSamples = chirp.getChirpSamples();
+        this.fft = Fft.of(Fft.sizeFor(chirpSamples));
+        this.binHz = (float) chirp.getSampleRate() / fft.size();
+        this.bins = Math.min(fft.size() / 2, (int) Math.ceil(chirp.getBandwidth() / binHz) + 1);
+        this.mixCos = new float[chirpSamples];
+        this.mixSin = new float[chirpSamples];
+        chirp.phasor(mixCos, mixSin);
+        float[] w = Window.of(window, chirpSamples);
+        double gain = 0;
+        for (int i = 0; i < chirpSamples; i++) {
+            mixCos[i] *= w[i];
+            mixSin[i] *= w[i];
+            gain += w[i];
+        }
+        // a real echo at full scale mixes down to half its amplitude
+        this.norm = (float) (1 / Math.max(0.5 * gain * 0.5 * gain, 1e-30));
+        this.re = new float[fft.size()];
+        this.im = new float[fft.size()];
+        this.power = new float[bins];
+        this.frame = new float[chirpSamples];
+        this.row = new float[bins];
+        this.sorted = new float[bins];
+    }
+
+    public FmcwChirp getChirp() {
+        return chirp;
+    }
+
+    public int getBins() {
+        return bins;
+    }
+
+    public int getFftSize() {
+        return fft.size();
+    }
+
+    public float getBinHz() {
+        return binHz;
+    }
+
+    public float getMetresPerBin() {
+        return (float) (binHz * chirp.getMetresPerHz());
+    }
+
+    /**
+     * The range profile of the chirp received at signal[offset], into db[0, bins).
+     */
+    public void profile(float[] signal, int offset, float[] db) {
+        kernels.mix(signal, offset, mixCos, mixSin, re, im, chirpSamples);
+        Arrays.fill(re, chirpSamples, re.length, 0f);
+        Arrays.fill(im, chirpSamples, im.length, 0f);
+        fft.forward(re, im);
+        kernels.power(re, im, power, bins);
+        kernels.decibels(power, norm, FLOOR_DB, db, bins);
+    }
+
+    /**
+     * @return the start of every chirp of a capture played from its first sample on
+     */
+    public double[] regularStarts(long samples) {
+        if (samples < chirpSamples) {
+            return new double[0];
+        }
+        int period = chirp.getPeriodSamples();
+        double[] starts = new double[(int) ((samples - chirpSamples) / period + 1)];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = (double) i * period;
+        }
+        return starts;
+    }
+
+    /**
+     * Profile the chirps of a WAV file starting at the samples given, fractional starts are rounded, and write
+     * them as a {@link RangeTimeMatrix}.
+     */
+    public Result process(PcmWav wav, double[] starts, Path output) throws IOException {
+        if (wav.getSampleRate() != chirp.getSampleRate()) {
+            throw new IOException("Recorded at " + wav.getSampleRate() + " Hz, the chirp is at " + chirp.getSampleRate() + " Hz");
+        }
+        long begin = System.nanoTime();
+        Result result = new Result(starts.length, bins);
+        try (RangeTimeMatrix.Writer writer = new RangeTimeMatrix.Writer(output, starts.length, bins,
+                chirp.getSampleRate(), fft.size(), chirp, binHz, getMetresPerBin())) {
+            for (double start : starts) {
+                wav.read(Math.round(start), frame, 0, chirpSamples);
+                profile(frame, 0, row);
+                writer.write(start, row);
+                result.add(row, sorted);
+            }
+            writer.finish();
+        }
+        result.millis = (System.nanoTime() - begin) / 1e6;
+        return result;
+    }
+
+    /**
+     * What the profiles of a capture look like, to judge it while the session goes on.
+     */
+    public static final class Result {
+        private final int rows;
+        private final int bins;
+        private double peakDb = FLOOR_DB;
+        private double peakSum;
+        private double floorSum;
+        private double millis;
+
+        private Result(int rows, int bins) {
+            this.rows = rows;
+            this.bins = bins;
+        }
+
+        private void add(float[] row, float[] sorted) {
+            float peak = FLOOR_DB;
+            for (int b = 0; b < bins; b++) {
+                peak = Math.max(peak, row[b]);
+            }
+            System.arraycopy(row, 0, sorted, 0, bins);
+            Arrays.sort(sorted, 0, bins);
+            peakDb = Math.max(peakDb, peak);
+            peakSum += peak;
+            floorSum += sorted[bins / 2];
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getBins() {
+            return bins;
+        }
+
+        /**
+         * @return the strongest bin of all chirps
+         */
+        public double getPeakDb() {
+            return peakDb;
+        }
+
+        /**
+         * @return the strongest bin of a chirp, on average
+         */
+        public double getMeanPeakDb() {
+            return rows == 0 ? FLOOR_DB : peakSum / rows;
+        }
+
+        /**
+         * @return the median bin of a chirp, on average
+         */
+        public double getNoiseFloorDb() {
+            return rows == 0 ? FLOOR_DB : floorSum / rows;
+        }
+
+        public double getMillis() {
+            return millis;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("rows", rows);
+            map.put("bins", bins);
+            map.put("peak_db", round(getPeakDb()));
+            map.put("mean_peak_db", round(getMeanPeakDb()));
+            map.put("noise_floor_db", round(getNoiseFloorDb()));
+            map.put("ms", Math.round(millis));
+            return map;
+        }
+
+        private static double round(double db) {
+            return Math.round(db * 10) / 10.0;
+        }
+
+        @Override
+        public String toString() {
+            return "RangeProfile" + toMap();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.lannooo.dsp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The range profiles of a capture, one row per chirp, stored next to its WAV file as ".rtm":
+ * <pre>
+ * header = "RTM1", version (4), rows (4), bins (4), sample rate (4), FFT size (4), chirp samples (4),
+ *          period samples (4), bin Hz (f32), metres per bin (f32), start Hz (f32), end Hz (f32)
+ * row    = start sample of the chirp (f64), bins magnitudes in dB (f32 each)
+ * </pre>
+ * Little endian, so that numpy reads it with a structured dtype and MATLAB with fread.
+ */
+public final class RangeTimeMatrix {
+    public static final String SUFFIX = ".rtm";
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 48;
+    private static final int MAGIC = 'R' | 'T' << 8 | 'M' << 16 | '1' << 24;
+
+    private final int rows;
+    private final int bins;
+    private final int sampleRate;
+    private final int fftSize;
+    private final float binHz;
+    private final float metresPerBin;
+    private final double[] starts;
+    private final float[] values;
+
+    private RangeTimeMatrix(int rows, int bins, int sampleRate, int fftSize, float binHz, float metresPerBin,
+                            double[] starts, float[] values) {
+        this.rows = rows;
+        this.bins = bins;
+        this.sampleRate = sampleRate;
+        this.fftSize = fftSize;
+        this.binHz = binHz;
+        this.metresPerBin = metresPerBin;
+        this.starts = starts;
+        this.values = values;
+    }
+
+    /**
+     * @return where the matrix of a WAV file goes, "x.wav" -> "x.rtm"
+     */
+    public static Path pathFor(Path wav) {
+        String name = wav.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return wav.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + SUFFIX);
+    }
+
+    /**
+     * Read a whole matrix, for tools and tests; the server only writes them.
+     */
+    public static RangeTimeMatrix read(Path path) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.remaining() < HEADER_LENGTH || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            throw new IOException("Not a range-time matrix: " + path);
+        }
+        int rows = buf.getInt();
+        int bins = buf.getInt();
+        int sampleRate = buf.getInt();
+        int fftSize = buf.getInt();
+        buf.getInt();
+        buf.getInt();
+        float binHz = buf.getFloat();
+        float metresPerBin = buf.getFloat();
+        buf.getFloat();
+        buf.getFloat();
+        if (buf.remaining() != (long) rows * (8 + 4L * bins)) {
+            throw new IOException("Truncated range-time matrix: " + path);
+        }
+        double[] starts = new double[rows];
+        float[] values = new float[rows * bins];
+        for (int r = 0; r < rows; r++) {
+            starts[r] = buf.getDouble();
+            for (int b = 0; b < bins; b++) {
+                values[r * bins + b] = buf.getFloat();
+            }
+        }
+        return new RangeTimeMatrix(rows, bins, sampleRate, fftSize, binHz, metresPerBin, starts, values);
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getBins() {
+        return bins;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getFftSize() {
+        return fftSize;
+    }
+
+    public float getBinHz() {
+        return binHz;
+    }
+
+    public float getMetresPerBin() {
+        return metresPerBin;
+    }
+
+    public double getStart(int row) {
+        return starts[row];
+    }
+
+    public float get(int row, int bin) {
+        return values[row * bins + bin];
+    }
+
+    /**
+     * Writes the rows as they are computed, through one buffer. The file only gets its name once complete.
+     */
+    public static final class Writer implements Closeable {
+        private final Path path;
+        private final Path tmp;
+        private final FileChannel channel;
+        private final ByteBuffer row;
+        private final int rows;
+        private final int bins;
+        private int written;
+        private boolean done;
+
+        public Writer(Path path, int rows, int bins, int sampleRate, int fftSize, FmcwChirp chirp,
+                      float binHz, float metresPerBin) throws IOException {
+            this.path = path;
+            this.tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            this.rows = rows;
+            this.bins = bins;
+            this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.row = ByteBuffer.allocate(Math.max(HEADER_LENGTH, 8 + 4 * bins)).order(ByteOrder.LITTLE_ENDIAN);
+            row.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(bins)
+                    .putInt(sampleRate).putInt(fftSize).putInt(chirp.getChirpSamples()).putInt(chirp.getPeriodSamples())
+                    .putFloat(binHz).putFloat(metresPerBin)
+                    .putFloat((float) chirp.getConfig().getStartFreqHz()).putFloat((float) chirp.getConfig().getEndFreqHz());
+            drain();
+        }
+
+        public void write(double start, float[] db) throws IOException {
+            if (written == rows) {
+                throw new IOException("More rows than announced: " + rows);
+            }
+            row.putDouble(start);
+            for (int b = 0; b < bins; b++) {
+                row.putFloat(db[b]);
+            }
+            drain();
+            written++;
+        }
+
+        private void drain() throws IOException {
+            row.flip();
+            while (row.hasRemaining()) {
+                channel.write(row);
+            }
+            row.clear();
+        }
+
+        /**
+         * Give the file its name, once all rows are written.
+         */
+        public void finish() throws IOException {
+            if (written != rows) {
+                throw new IOException("Wrote " + written + " of " + rows + " rows");
+            }
+            channel.close();
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            done = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!done) {
+                channel.close();
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+}
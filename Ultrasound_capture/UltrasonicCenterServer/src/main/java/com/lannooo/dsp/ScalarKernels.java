@@ -0,0 +1,108 @@
+package com.lannooo.dsp;
+
+/**
+ * The kernels as plain loops, and the tails of the vector ones. See {@link DspKernels}.
+ */
+class ScalarKernels extends DspKernels {
+    // 10 / ln 10, and ln 2
+    static final float DB_PER_LN = 4.3429448f;
+    static final float LN2 = 0.6931472f;
+    static final float PCM16_SCALE = 1f / 32768f;
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+
+    @Override
+    public void multiply(float[] a, int aOff, float[] b, int bOff, float[] dst, int dstOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dstOff + i] = a[aOff + i] * b[bOff + i];
+        }
+    }
+
+    @Override
+    public void mix(float[] x, int xOff, float[] cos, float[] sin, float[] re, float[] im, int n) {
+        mix(x, xOff, cos, sin, re, im, 0, n);
+    }
+
+    final void mix(float[] x, int xOff, float[] cos, float[] sin, float[] re, float[] im, int from, int n) {
+        for (int i = from; i < n; i++) {
+            float v = x[xOff + i];
+            re[i] = v * cos[i];
+            im[i] = v * sin[i];
+        }
+    }
+
+    @Override
+    public void complexMultiply(float[] aRe, float[] aIm, float[] bRe, float[] bIm,
+                                float[] dstRe, float[] dstIm, int n) {
+        complexMultiply(aRe, aIm, bRe, bIm, dstRe, dstIm, 0, n);
+    }
+
+    final void complexMultiply(float[] aRe, float[] aIm, float[] bRe, float[] bIm,
+                               float[] dstRe, float[] dstIm, int from, int n) {
+        for (int i = from; i < n; i++) {
+            float r = aRe[i] * bRe[i] - aIm[i] * bIm[i];
+            float m = aRe[i] * bIm[i] + aIm[i] * bRe[i];
+            dstRe[i] = r;
+            dstIm[i] = m;
+        }
+    }
+
+    @Override
+    public void power(float[] re, float[] im, float[] dst, int n) {
+        power(re, im, dst, 0, n);
+    }
+
+    final void power(float[] re, float[] im, float[] dst, int from, int n) {
+        for (int i = from; i < n; i++) {
+            dst[i] = re[i] * re[i] + im[i] * im[i];
+        }
+    }
+
+    @Override
+    public void magnitude(float[] re, float[] im, float[] dst, int n) {
+        magnitude(re, im, dst, 0, n);
+    }
+
+    final void magnitude(float[] re, float[] im, float[] dst, int from, int n) {
+        for (int i = from; i < n; i++) {
+            dst[i] = (float) Math.sqrt(re[i] * re[i] + im[i] * im[i]);
+        }
+    }
+
+    @Override
+    public void decibels(float[] power, float scale, float floorDb, float[] dst, int n) {
+        decibels(power, scale, floorDb, dst, 0, n);
+    }
+
+    /**
+     * ln p = e ln 2 + ln m with p = m 2^e, m in [0.75, 1.5); ln m = 2 atanh(s), s = (m - 1) / (m + 1), by its
+     * series up to s^9. The vector kernel does exactly these operations.
+     */
+    final void decibels(float[] power, float scale, float floorDb, float[] dst, int from, int n) {
+        for (int i = from; i < n; i++) {
+            float p = power[i] * scale;
+            int bits = Float.floatToRawIntBits(p);
+            float e = (float) (((bits >>> 23) & 0xFF) - 127);
+            float m = Float.intBitsToFloat((bits & 0x007FFFFF) | 0x3F800000);
+            if (m > 1.5f) {
+                m = m * 0.5f;
+                e = e + 1f;
+            }
+            float s = (m - 1f) / (m + 1f);
+            float s2 = s * s;
+            float series = ((((s2 * (1f / 9f) + (1f / 7f)) * s2 + (1f / 5f)) * s2 + (1f / 3f)) * s2 + 1f) * s;
+            float ln = e * LN2 + series * 2f;
+            dst[i] = p >= Float.MIN_NORMAL && p <= Float.MAX_VALUE ? ln * DB_PER_LN : floorDb;
+        }
+    }
+
+    @Override
+    public void pcm16ToFloat(short[] src, int srcOff, float[] dst, int dstOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dstOff + i] = src[srcOff + i] * PCM16_SCALE;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.lannooo.dsp;
+
+import java.util.Arrays;
+
+/**
+ * Short-time spectra of a recording, limited to a band and pooled in time: every column of the result is the
+ * mean power of a few consecutive windowed FFT frames, in dB relative to a full scale sine. The samples are read
+ * one frame at a time, so the memory used does not depend on the length of the recording.
+ * <p>
+ * One engine computes one tile at a time, its arrays are allocated once by the constructor.
+ */
+public final class SpectrogramEngine {
+    private static final float FLOOR_DB = -200f;
+
+    private final int sampleRate;
+    private final Fft fft;
+    private final int hop;
+    private final int firstBin;
+    private final int bins;
+    private final float[] window;
+    private final float scale;
+    private final DspKernels kernels = DspKernels.get();
+    private final float[] frame;
+    private final float[] re;
+    private final float[] im;
+    private final float[] bandRe;
+    private final float[] bandIm;
+    private final float[] power;
+    private final float[] sum;
+
+    /**
+     * @param hop samples between the starts of two frames
+     */
+    public SpectrogramEngine(int sampleRate, int fftSize, int hop, double lowHz, double highHz) {
+        this.sampleRate = sampleRate;
+        this.fft = Fft.of(fftSize);
+        this.hop = Math.max(1, hop);
+        double binHz = (double) sampleRate / fftSize;
+        this.firstBin = (int) Math.max(0, Math.min(fftSize / 2, Math.floor(lowHz / binHz)));
+        this.bins = (int) Math.max(1, Math.min(fftSize / 2, Math.ceil(highHz / binHz)) - firstBin + 1);
+        this.window = Window.of("hann", fftSize);
+        double gain = 0;
+        for (float w : window) {
+            gain += w;
+        }
+        // a full scale sine has half the window gain in its bin
+        this.scale = (float) (4 / Math.max(gain * gain, 1e-30));
+        this.frame = new float[fftSize];
+        this.re = new float[fftSize];
+        this.im = new float[fftSize];
+        this.bandRe = new float[bins];
+        this.bandIm = new float[bins];
+        this.power = new float[bins];
+        this.sum = new float[bins];
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getBins() {
+        return bins;
+    }
+
+    public int getHop() {
+        return hop;
+    }
+
+    public float getBinHz() {
+        return (float) sampleRate / fft.size();
+    }
+
+    /**
+     * @return the frequency of the lowest row
+     */
+    public float getLowHz() {
+        return firstBin * getBinHz();
+    }
+
+    /**
+     * @return frames of a recording of this many samples, the last one may be cut short
+     */
+    public long frames(long samples) {
+        return samples <= 0 ? 0 : samples <= fft.size() ? 1 : (samples - fft.size() + hop - 1) / hop + 1;
+    }
+
+    /**
+     * Compute the columns from a frame on, fewer if the recording ends before.
+     *
+     * @param framesPerColumn frames pooled into a column
+     */
+    public SpectrogramTile compute(PcmWav wav, long firstFrame, int columns, int framesPerColumn) {
+        long total = frames(wav.getFrames());
+        int count = (int) Math.max(0, Math.min(columns, (total - firstFrame + framesPerColumn - 1) / framesPerColumn));
+        float[] db = new float[count * bins];
+        int size = fft.size();
+        for (int c = 0; c < count; c++) {
+            Arrays.fill(sum, 0f);
+            long first = firstFrame + (long) c * framesPerColumn;
+            int pooled = (int) Math.min(framesPerColumn, total - first);
+            for (int f = 0; f < pooled; f++) {
+                wav.read((first + f) * hop, frame, 0, size);
+                kernels.multiply(frame, 0, window, 0, re, 0, size);
+                Arrays.fill(im, 0f);
+                fft.forward(re, im);
+                System.arraycopy(re, firstBin, bandRe, 0, bins);
+                System.arraycopy(im, firstBin, bandIm, 0, bins);
+                kernels.power(bandRe, bandIm, power, bins);
+                for (int b = 0; b < bins; b++) {
+                    sum[b] += power[b];
+                }
+            }
+            kernels.decibels(sum, scale / pooled, FLOOR_DB, power, bins);
+            System.arraycopy(power, 0, db, c * bins, bins);
+        }
+        return new SpectrogramTile(count, bins, db, (double) firstFrame * hop / sampleRate,
+                (double) framesPerColumn * hop / sampleRate, getLowHz(), getBinHz());
+    }
+}
@@ -0,0 +1,123 @@
+package com.lannooo.dsp;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A piece of a spectrogram, columns of dB from its start on, the rows going up in frequency.
+ */
+public final class SpectrogramTile {
+    // dark blue, purple, red, orange, light yellow, for the quiet to the loud
+    private static final int[] COLOURS = {0x000428, 0x51127c, 0xb73779, 0xfc8961, 0xfcfdbf};
+
+    private final int columns;
+    private final int bins;
+    private final float[] db;
+    private final double startSeconds;
+    private final double columnSeconds;
+    private final float lowHz;
+    private final float binHz;
+
+    SpectrogramTile(int columns, int bins, float[] db, double startSeconds, double columnSeconds,
+                    float lowHz, float binHz) {
+        this.columns = columns;
+        this.bins = bins;
+        this.db = db;
+        this.startSeconds = startSeconds;
+        this.columnSeconds = columnSeconds;
+        this.lowHz = lowHz;
+        this.binHz = binHz;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getBins() {
+        return bins;
+    }
+
+    public float get(int column, int bin) {
+        return db[column * bins + bin];
+    }
+
+    public double getStartSeconds() {
+        return startSeconds;
+    }
+
+    public double getColumnSeconds() {
+        return columnSeconds;
+    }
+
+    public float getLowHz() {
+        return lowHz;
+    }
+
+    public float getBinHz() {
+        return binHz;
+    }
+
+    /**
+     * @return what the tile holds on to, for the cache
+     */
+    public long sizeInBytes() {
+        return 64 + 4L * db.length;
+    }
+
+    /**
+     * @return the tile as a PNG image, one pixel per column and bin, minDb and below the darkest
+     */
+    public byte[] toPng(float minDb, float maxDb) throws IOException {
+        BufferedImage image = new BufferedImage(Math.max(1, columns), Math.max(1, bins), BufferedImage.TYPE_INT_RGB);
+        float range = Math.max(maxDb - minDb, 1e-3f);
+        for (int c = 0; c < columns; c++) {
+            for (int b = 0; b < bins; b++) {
+                float level = Math.max(0f, Math.min(1f, (get(c, b) - minDb) / range));
+                image.setRGB(c, bins - 1 - b, colour(level));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static int colour(float level) {
+        float position = level * (COLOURS.length - 1);
+        int i = Math.min((int) position, COLOURS.length - 2);
+        float t = position - i;
+        int from = COLOURS[i];
+        int to = COLOURS[i + 1];
+        int rgb = 0;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int a = from >> shift & 0xFF;
+            int b = to >> shift & 0xFF;
+            rgb |= Math.round(a + (b - a) * t) << shift;
+        }
+        return rgb;
+    }
+
+    /**
+     * @return the tile for JSON, "db" holding one array per column
+     */
+    public Map<String, Object> toMap() {
+        float[][] values = new float[columns][];
+        for (int c = 0; c < columns; c++) {
+            values[c] = new float[bins];
+            System.arraycopy(db, c * bins, values[c], 0, bins);
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("columns", columns);
+        map.put("bins", bins);
+        map.put("start_s", startSeconds);
+        map.put("column_s", columnSeconds);
+        map.put("low_hz", lowHz);
+        map.put("bin_hz", binHz);
+        map.put("db", values);
+        return map;
+    }
+}
@@ -0,0 +1,30 @@
+package com.lannooo.dsp;
+
+/**
+ * Analysis windows, symmetric like the chirp envelope the devices play.
+ */
+public final class Window {
+    private Window() {
+    }
+
+    /**
+     * @param type hann, hamming, blackman, or anything else for none
+     */
+    public static float[] of(String type, int length) {
+        float[] w = new float[length];
+        String name = type == null ? "" : type.toLowerCase();
+        for (int i = 0; i < length; i++) {
+            double x = length <= 1 ? 0 : 2 * Math.PI * i / (length - 1);
+            w[i] = (float) switch (name) {
+                case "hann" -> 0.5 * (1 - Math.cos(x));
+                case "hamming" -> 0.54 - 0.46 * Math.cos(x);
+                case "blackman" -> 0.42 - 0.5 * Math.cos(x) + 0.08 * Math.cos(2 * x);
+                default -> 1.0;
+            };
+        }
+        if (length == 1) {
+            w[0] = 1f;
+        }
+        return w;
+    }
+}
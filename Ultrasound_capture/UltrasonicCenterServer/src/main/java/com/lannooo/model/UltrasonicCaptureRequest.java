@@ -9,6 +9,9 @@ public class UltrasonicCaptureRequest {
     private boolean deleteAfterForward = false;
     private String mode = "pro";
     private UltrasonicFmcwConfig ultrasonic = new UltrasonicFmcwConfig();
+    // answer only once every device acknowledged the start (or ackTimeoutMs passed)
+    private boolean waitForAck = false;
+    private int ackTimeoutMs = 5000;
 
     public String getDeviceId() { return deviceId; }
     public void setDeviceId(String deviceId) { this.deviceId = deviceId; }
@@ -26,4 +29,8 @@ public class UltrasonicCaptureRequest {
     public void setMode(String mode) { this.mode = mode; }
     public UltrasonicFmcwConfig getUltrasonic() { return ultrasonic; }
     public void setUltrasonic(UltrasonicFmcwConfig ultrasonic) { this.ultrasonic = ultrasonic; }
+    public boolean isWaitForAck() { return waitForAck; }
+    public void setWaitForAck(boolean waitForAck) { this.waitForAck = waitForAck; }
+    public int getAckTimeoutMs() { return ackTimeoutMs; }
+    public void setAckTimeoutMs(int ackTimeoutMs) { this.ackTimeoutMs = ackTimeoutMs; }
 }
@@ -0,0 +1,180 @@
+package com.lannooo.server;
+
+import com.lannooo.device.DeviceAck;
+import io.netty.channel.ChannelFuture;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per device send completion and response of one broadcast command. The write future of a channel completes
+ * once the frame is handed to the socket, the spread of those times is the start skew introduced by the server.
+ */
+public class BroadcastResult {
+    private final String subtype;
+    private final long startedAtMs;
+    private final long startNanos;
+    private final int targets;
+    private final List<String> missing;
+    private final Map<String, Long> sentNanos = new ConcurrentHashMap<>();
+    private final Map<String, String> failures = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<DeviceAck>> acks = new ConcurrentHashMap<>();
+    private final AtomicInteger pending;
+    private final CompletableFuture<BroadcastResult> completion = new CompletableFuture<>();
+
+    public BroadcastResult(String subtype, int targets, Collection<String> missing) {
+        this.subtype = subtype;
+        this.startedAtMs = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        this.targets = targets;
+        this.missing = new ArrayList<>(missing);
+        this.pending = new AtomicInteger(targets);
+        if (targets == 0) {
+            completion.complete(this);
+        }
+    }
+
+    public void track(String key, ChannelFuture future) {
+        future.addListener(f -> {
+            if (f.isSuccess()) {
+                sentNanos.put(key, System.nanoTime());
+            } else {
+                failures.put(key, String.valueOf(f.cause()));
+            }
+            if (pending.decrementAndGet() == 0) {
+                completion.complete(this);
+            }
+        });
+    }
+
+    public void trackAck(String key, CompletableFuture<DeviceAck> ack) {
+        acks.put(key, ack);
+    }
+
+    /**
+     * @return completed once every device has answered, timed out or failed
+     */
+    public CompletableFuture<BroadcastResult> acked() {
+        CompletableFuture<?>[] settled = acks.values().stream()
+                .map(f -> f.handle((ack, e) -> ack))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(settled).thenApply(v -> this);
+    }
+
+    /**
+     * @return the devices that answered, failures and timeouts left out
+     */
+    public List<DeviceAck> getAcks() {
+        List<DeviceAck> result = new ArrayList<>();
+        for (CompletableFuture<DeviceAck> ack : acks.values()) {
+            if (ack.isDone() && !ack.isCompletedExceptionally()) {
+                result.add(ack.join());
+            }
+        }
+        return result;
+    }
+
+    public boolean isAllAcked() {
+        List<DeviceAck> answered = getAcks();
+        return answered.size() == targets && answered.stream().allMatch(DeviceAck::isOk);
+    }
+
+    /**
+     * @return the slowest response among the devices that answered, in milliseconds
+     */
+    public double getMaxAckLatencyMillis() {
+        return getAcks().stream().mapToDouble(DeviceAck::getLatencyMs).max().orElse(0);
+    }
+
+    /**
+     * @return number of devices the command was written to (not necessarily sent yet)
+     */
+    public int getTargets() {
+        return targets;
+    }
+
+    public int getSentCount() {
+        return sentNanos.size();
+    }
+
+    public boolean isComplete() {
+        return completion.isDone();
+    }
+
+    public CompletableFuture<BroadcastResult> completion() {
+        return completion;
+    }
+
+    /**
+     * @return time between the first and the last device's send completion, in milliseconds
+     */
+    public double getSkewMillis() {
+        if (sentNanos.size() < 2) {
+            return 0;
+        }
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (long t : sentNanos.values()) {
+            min = Math.min(min, t);
+            max = Math.max(max, t);
+        }
+        return (max - min) / 1e6;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> sentAfter = new LinkedHashMap<>();
+        sentNanos.entrySet().stream()
+                .sorted(Map.Entry.comparingByValue())
+                .forEach(e -> sentAfter.put(e.getKey(), (e.getValue() - startNanos) / 1e6));
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("subtype", subtype);
+        result.put("started_at_ms", startedAtMs);
+        result.put("targets", targets);
+        result.put("sent", sentNanos.size());
+        result.put("complete", isComplete());
+        result.put("skew_ms", getSkewMillis());
+        result.put("sent_after_ms", sentAfter);
+        result.put("failed", new LinkedHashMap<>(failures));
+        result.put("missing", missing);
+        result.put("acks", ackMap());
+        result.put("max_ack_latency_ms", getMaxAckLatencyMillis());
+        return result;
+    }
+
+    private Map<String, Object> ackMap() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<DeviceAck>> entry : acks.entrySet()) {
+            CompletableFuture<DeviceAck> ack = entry.getValue();
+            if (!ack.isDone()) {
+                result.put(entry.getKey(), Map.of("ok", false, "message", "pending"));
+            } else if (ack.isCompletedExceptionally()) {
+                String reason = ack.handle((a, e) -> e instanceof TimeoutException || e.getCause() instanceof TimeoutException
+                        ? "timeout" : String.valueOf(e)).join();
+                result.put(entry.getKey(), Map.of("ok", false, "message", reason));
+            } else {
+                result.put(entry.getKey(), ack.join().toMap());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "BroadcastResult{" +
+                "subtype=" + subtype +
+                ", targets=" + targets +
+                ", sent=" + sentNanos.size() +
+                ", failed=" + failures.size() +
+                ", missing=" + missing.size() +
+                ", skewMs=" + String.format("%.3f", getSkewMillis()) +
+                '}';
+    }
+}
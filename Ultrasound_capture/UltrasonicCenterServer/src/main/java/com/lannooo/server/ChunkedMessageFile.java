@@ -0,0 +1,115 @@
+package com.lannooo.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A file as a stream of DATA_TRANSFER messages, to be written through the {@link PriorityWriteHandler} of the
+ * pipeline. The handler only pulls the next chunk while little file data is waiting in the outbound buffer,
+ * and the write promise reports progress in bytes once they are actually flushed to the socket.
+ * <p>
+ * With a non-zero transfer id every chunk header starts with it, so the receiver can tell the chunks of
+ * several files sent to the same device apart. With chunk CRCs the header ends with the CRC32C of the data.
+ * <p>
+ * The data comes from a {@link SharedUploadFile}, so a file sent to many devices is read once, and only the
+ * headers are written per device.
+ */
+public class ChunkedMessageFile implements ChunkedInput<Message> {
+    // chunkId, totalChunks, offset, length
+    public static final int CHUNK_HEADER_LENGTH = 16;
+
+    private final SharedUploadFile file;
+    private final int transferId;
+    private final boolean chunkCrc;
+    private final int chunkSize;
+    private final int length;
+    private final int chunks;
+    private int chunkId;
+
+    public ChunkedMessageFile(File file, int chunkSize) throws IOException {
+        this(file, chunkSize, 0);
+    }
+
+    public ChunkedMessageFile(File file, int chunkSize, int transferId) throws IOException {
+        this(file, chunkSize, transferId, false);
+    }
+
+    public ChunkedMessageFile(File file, int chunkSize, int transferId, boolean chunkCrc) throws IOException {
+        this(SharedUploadFile.open(file), chunkSize, transferId, chunkCrc);
+    }
+
+    public ChunkedMessageFile(SharedUploadFile file, int chunkSize, int transferId, boolean chunkCrc) {
+        this.file = file;
+        this.transferId = transferId;
+        this.chunkCrc = chunkCrc;
+        this.chunkSize = chunkSize;
+        this.length = file.length();
+        this.chunks = file.chunkCount(chunkSize);
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return chunkId >= chunks;
+    }
+
+    @Override
+    public void close() {
+        // the shared file may still be sent to other devices, its mapping goes with the last reference
+    }
+
+    @Deprecated
+    @Override
+    public Message readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public Message readChunk(ByteBufAllocator allocator) {
+        if (isEndOfInput()) {
+            return null;
+        }
+        long offset = (long) chunkId * chunkSize;
+        ByteBuf data = file.chunk(chunkSize, chunkId);
+        ByteBuf header = allocator.buffer(CHUNK_HEADER_LENGTH + FrameSettings.TRANSFER_ID_LENGTH + FrameSettings.CHUNK_CRC_LENGTH);
+        if (transferId != 0) {
+            header.writeInt(transferId);
+        }
+        header.writeInt(++chunkId)
+                .writeInt(chunks)
+                .writeInt((int) offset)
+                .writeInt(length);
+        if (chunkCrc) {
+            header.writeInt(file.crc(chunkSize, chunkId - 1));
+        }
+        // header and chunk are chained without copying, both released after encoding
+        ByteBuf content = allocator.compositeBuffer(2).addComponents(true, header, data);
+        return new Message(Message.MessageType.DATA_TRANSFER, content);
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long progress() {
+        return Math.min((long) chunkId * chunkSize, length);
+    }
+}
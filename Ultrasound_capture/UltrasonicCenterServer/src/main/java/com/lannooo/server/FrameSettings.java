@@ -0,0 +1,210 @@
+package com.lannooo.server;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.AttributeKey;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Frame and chunk sizes of one connection, negotiated with the client at register.
+ */
+public class FrameSettings {
+    public static final AttributeKey<FrameSettings> KEY = AttributeKey.valueOf("frameSettings");
+    public static final String DECODER_NAME = "frameDecoder";
+
+    public static final int DEFAULT_CHUNK_SIZE = 2048;
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    // frame header (12 bytes) + chunk header, with some room left for the header to grow
+    public static final int FRAME_OVERHEAD = 2048;
+
+    public static final FrameSettings DEFAULTS = builder(DEFAULT_CHUNK_SIZE * 2, DEFAULT_CHUNK_SIZE).build();
+
+    // transferId, prepended to the chunk header when both sides support concurrent transfers
+    public static final int TRANSFER_ID_LENGTH = 4;
+    // CRC32C of the chunk data, appended to the chunk header when both sides check chunks
+    public static final int CHUNK_CRC_LENGTH = 4;
+
+    private final int maxFrameLength;
+    private final int chunkSize;
+    private final boolean transferIds;
+    private final boolean chunkCrc;
+    private final String codec;
+    private final boolean contentCache;
+    private final boolean requestIds;
+
+    private FrameSettings(Builder builder) {
+        this.maxFrameLength = builder.maxFrameLength;
+        this.chunkSize = builder.chunkSize;
+        this.transferIds = builder.transferIds;
+        this.chunkCrc = builder.chunkCrc;
+        this.codec = builder.codec;
+        this.contentCache = builder.contentCache;
+        this.requestIds = builder.requestIds;
+    }
+
+    /**
+     * @return settings of these sizes, with none of the optional features unless they are set
+     */
+    public static Builder builder(int maxFrameLength, int chunkSize) {
+        return new Builder(maxFrameLength, chunkSize);
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return true if every DATA_TRANSFER chunk starts with the id of its transfer, so that several
+     * files can be interleaved on the connection
+     */
+    public boolean isTransferIds() {
+        return transferIds;
+    }
+
+    /**
+     * @return true if every chunk header ends with the CRC32C of the chunk data, corrupt chunks are then
+     * requested again and whole files are verified by their SHA-256
+     */
+    public boolean isChunkCrc() {
+        return chunkCrc;
+    }
+
+    /**
+     * @return the audio codec the device may code its uploads with, see {@link LosslessAudioCodec}; null if none.
+     * Each upload request says whether its chunks are coded.
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return true if the device keeps the files it received by their SHA-256: an upload request carrying the
+     * digest of a file it already has is answered "cached", and no chunk is sent. Only with transfer ids, the
+     * chunks wait for that answer while other files go on.
+     */
+    public boolean isContentCache() {
+        return contentCache;
+    }
+
+    /**
+     * @return true if the device answers a numbered request with a RESPONSE of the same id, see
+     * {@link com.lannooo.device.PendingRequestManager}; an answer is only waited for then
+     */
+    public boolean isRequestIds() {
+        return requestIds;
+    }
+
+    public LengthFieldBasedFrameDecoder newFrameDecoder() {
+        return new LengthFieldBasedFrameDecoder(maxFrameLength, 8, 4, 0, 0);
+    }
+
+    /**
+     * @return negotiated settings, or null if the client did not propose any (old clients)
+     */
+    public static FrameSettings negotiate(Map<String, Object> registerData) {
+        return negotiate(registerData, null);
+    }
+
+    /**
+     * @param codec the upload codec of the server, granted if the client lists it in "codecs"; null for none
+     * @return negotiated settings, or null if the client did not propose any (old clients)
+     */
+    public static FrameSettings negotiate(Map<String, Object> registerData, String codec) {
+        Object proposed = registerData.get("max_chunk_size");
+        if (!(proposed instanceof Number)) {
+            return null;
+        }
+        int chunkSize = Math.max(DEFAULT_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, ((Number) proposed).intValue()));
+        boolean transferIds = Boolean.TRUE.equals(registerData.get("transfer_ids"));
+        boolean chunkCrc = Boolean.TRUE.equals(registerData.get("chunk_crc"));
+        Object codecs = registerData.get("codecs");
+        if (!(codecs instanceof List<?> list && list.contains(codec))) {
+            codec = null;
+        }
+        boolean contentCache = transferIds && Boolean.TRUE.equals(registerData.get("content_cache"));
+        boolean requestIds = Boolean.TRUE.equals(registerData.get("request_ids"));
+        return builder(chunkSize + FRAME_OVERHEAD, chunkSize)
+                .transferIds(transferIds)
+                .chunkCrc(chunkCrc)
+                .codec(codec)
+                .contentCache(contentCache)
+                .requestIds(requestIds)
+                .build();
+    }
+
+    public static FrameSettings of(Channel channel) {
+        FrameSettings settings = channel.attr(KEY).get();
+        return settings == null ? DEFAULTS : settings;
+    }
+
+    /**
+     * Store the settings on the channel and swap the frame decoder to accept the new frame size.
+     */
+    public void apply(Channel channel) {
+        channel.attr(KEY).set(this);
+        channel.pipeline().replace(DECODER_NAME, DECODER_NAME, newFrameDecoder());
+    }
+
+    @Override
+    public String toString() {
+        return "FrameSettings{" +
+                "maxFrameLength=" + maxFrameLength +
+                ", chunkSize=" + chunkSize +
+                ", transferIds=" + transferIds +
+                ", chunkCrc=" + chunkCrc +
+                ", codec=" + codec +
+                ", contentCache=" + contentCache +
+                ", requestIds=" + requestIds +
+                '}';
+    }
+
+    public static final class Builder {
+        private final int maxFrameLength;
+        private final int chunkSize;
+        private boolean transferIds;
+        private boolean chunkCrc;
+        private String codec;
+        private boolean contentCache;
+        private boolean requestIds;
+
+        private Builder(int maxFrameLength, int chunkSize) {
+            this.maxFrameLength = maxFrameLength;
+            this.chunkSize = chunkSize;
+        }
+
+        public Builder transferIds(boolean transferIds) {
+            this.transferIds = transferIds;
+            return this;
+        }
+
+        public Builder chunkCrc(boolean chunkCrc) {
+            this.chunkCrc = chunkCrc;
+            return this;
+        }
+
+        public Builder codec(String codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        public Builder contentCache(boolean contentCache) {
+            this.contentCache = contentCache;
+            return this;
+        }
+
+        public Builder requestIds(boolean requestIds) {
+            this.requestIds = requestIds;
+            return this;
+        }
+
+        public FrameSettings build() {
+            return new FrameSettings(this);
+        }
+    }
+}
@@ -1,10 +1,11 @@
 package com.lannooo.server;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCounted;
 
-import java.util.Arrays;
-
-public class Message {
+public class Message implements ReferenceCounted {
     public static final int MAGIC = 0xACC5CCFA;
 
     public enum MessageType {
@@ -21,38 +22,126 @@ public class Message {
 
     private MessageType type;
     private byte[] payload;
+    // reference counted payload, owned by this message and released with it
+    private ByteBuf content;
+    // REQUEST payload, encoded by the channel's negotiated format when it is written
+    private MessageRequest request;
 
     public Message(MessageType type, byte[] payload) {
         this.type = type;
         this.payload = payload;
     }
 
-    public Message(MessageType type, ByteBuf payload) {
+    /**
+     * Wrap a (usually retained) buffer without copying, the message takes the ownership of it.
+     */
+    public Message(MessageType type, ByteBuf content) {
         this.type = type;
-        if (payload.hasArray()) {
-            this.payload = payload.array();
-        } else {
-            this.payload = new byte[payload.readableBytes()];
-            payload.readBytes(this.payload);
-        }
+        this.content = content;
+    }
+
+    public Message(MessageType type, MessageRequest request) {
+        this.type = type;
+        this.request = request;
     }
 
     public MessageType getType() {
         return type;
     }
 
+    public boolean hasRequest() {
+        return request != null;
+    }
+
+    public MessageRequest getRequest() {
+        if (request == null) {
+            request = MessageCodec.decode(getContent());
+        }
+        return request;
+    }
+
+    public boolean hasContent() {
+        return content != null;
+    }
+
+    /**
+     * The payload as a buffer, the caller must not release it (the message does).
+     */
+    public ByteBuf getContent() {
+        return content != null ? content : Unpooled.wrappedBuffer(getPayload());
+    }
+
     public byte[] getPayload() {
+        if (payload == null && request != null) {
+            payload = MessageCodec.encode(request, MessageCodec.Format.JSON);
+        } else if (payload == null) {
+            // copy out without touching the reader index of the content
+            payload = ByteBufUtil.getBytes(content);
+        }
         return payload;
     }
 
+    public int payloadLength() {
+        return content != null ? content.readableBytes() : getPayload().length;
+    }
+
+    @Override
+    public int refCnt() {
+        return content != null ? content.refCnt() : 1;
+    }
+
+    @Override
+    public Message retain() {
+        if (content != null) {
+            content.retain();
+        }
+        return this;
+    }
+
+    @Override
+    public Message retain(int increment) {
+        if (content != null) {
+            content.retain(increment);
+        }
+        return this;
+    }
+
+    @Override
+    public Message touch() {
+        if (content != null) {
+            content.touch();
+        }
+        return this;
+    }
+
+    @Override
+    public Message touch(Object hint) {
+        if (content != null) {
+            content.touch(hint);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return content != null && content.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return content != null && content.release(decrement);
+    }
+
     @Override
     public String toString() {
         // if payload is too long to display, only show the first 64 bytes
         String payloadStr;
         if (type == MessageType.DATA_TRANSFER) {
             payloadStr = "[...]";
+        } else if (request != null) {
+            payloadStr = request.toString();
         } else {
-            payloadStr = new String(payload);
+            payloadStr = new String(getPayload());
         }
         return "Message{" +
                 "type=" + type +
@@ -0,0 +1,303 @@
+package com.lannooo.server;
+
+import com.google.gson.JsonParseException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encoding of REQUEST payloads. JSON is what every client understands, the binary format is
+ * negotiated at register and is a tag-length-value layout:
+ * <pre>
+ * marker(1) version(1) subtype(str) id(varint) count(varint) { key(str) type(1) value }*
+ * str   = varint tag, 0 followed by varint length + UTF-8 bytes, or n for DICTIONARY[n - 1]
+ * value = INT: zigzag varint, DOUBLE: 8 bytes, STRING: str, LIST: count + values, MAP: count + (str, value)
+ * </pre>
+ * Decoding is self-describing (a JSON document never starts with the marker byte), so both
+ * formats can be read on any channel at any time.
+ */
+public class MessageCodec {
+    public static final AttributeKey<Format> FORMAT_KEY = AttributeKey.valueOf("messageFormat");
+
+    public static final byte BINARY_MARKER = (byte) 0xB7;
+    // version 1 had no id
+    public static final byte BINARY_VERSION = 2;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_FALSE = 1;
+    private static final byte TYPE_TRUE = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_LIST = 6;
+    private static final byte TYPE_MAP = 7;
+
+    // well-known subtypes and keys, sent as one byte tags. Append only, the index is the wire tag!
+    private static final String[] DICTIONARY = {
+            // subtypes
+            "register", "transport", "capture", "playback", "upload", "download", "delete", "list", "route_status",
+            // register / transport
+            "Model", "Manufacturer", "Brand", "Display", "SDK", "Release",
+            "max_chunk_size", "formats", "max_frame", "chunk_size", "format",
+            "route_device_key", "route_device_model", "route_calibration_status",
+            "route_calibrated_output_id", "route_calibrated_input_id", "supported_route_presets",
+            // upload / download
+            "filepath", "file", "chunks", "length",
+            // capture / playback
+            "action", "mode", "output", "duration", "process", "forward", "ultra", "input", "loop",
+            "ultra_mode", "ultra_route_preset", "ultra_sample_rate_hz", "ultra_start_freq_hz", "ultra_end_freq_hz",
+            "ultra_chirp_duration_ms", "ultra_idle_duration_ms", "ultra_amplitude", "ultra_window_type", "ultra_repeat",
+            // route_status
+            "output_name", "requested_preset", "applied_preset", "binding_status", "output_binding",
+            "input_binding", "error_message", "device_model",
+            // common values
+            "start", "stop", "pause", "resume", "pro", "simple", "fmcw", "hann", "binary", "json",
+            // responses
+            "ok", "message", "startup_ms",
+            // concurrent transfers
+            "transfer_id", "transfer_ids",
+            // resumable uploads
+            "resume_uploads", "missing", "resumed_chunks",
+            // upload integrity
+            "chunk_crc", "upload_digest", "sha256", "resend",
+            // striped uploads
+            "attach", "lanes", "lane_token", "stripe_done",
+            // lossless uploads
+            "codecs", "codec",
+            // live uploads
+            "live_upload", "live_start", "live_end", "pcm_sha256",
+            // stimulus cache
+            "content_cache", "cached",
+            // answers by request id
+            "request_ids",
+    };
+    private static final Map<String, Integer> DICTIONARY_TAGS = new HashMap<>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            DICTIONARY_TAGS.putIfAbsent(DICTIONARY[i], i + 1);
+        }
+    }
+
+    public enum Format {
+        JSON,
+        BINARY;
+
+        public String wireName() {
+            return name().toLowerCase();
+        }
+    }
+
+    public static Format formatOf(Channel channel) {
+        Format format = channel.attr(FORMAT_KEY).get();
+        return format == null ? Format.JSON : format;
+    }
+
+    /**
+     * @return BINARY if the client listed it in the "formats" of its register request, or null if it did not
+     * take part in the negotiation at all
+     */
+    public static Format negotiate(Map<String, Object> registerData) {
+        Object formats = registerData.get("formats");
+        if (!(formats instanceof Collection<?> candidates)) {
+            return null;
+        }
+        return candidates.contains(Format.BINARY.wireName()) ? Format.BINARY : Format.JSON;
+    }
+
+    public static void encode(MessageRequest request, Format format, ByteBuf out) {
+        if (format == Format.JSON) {
+            out.writeCharSequence(request.toJsonString(), StandardCharsets.UTF_8);
+            return;
+        }
+        out.writeByte(BINARY_MARKER);
+        out.writeByte(BINARY_VERSION);
+        writeString(out, request.getSubtype());
+        writeVarlong(out, request.getId());
+        writeMap(out, request.getData());
+    }
+
+    public static byte[] encode(MessageRequest request, Format format) {
+        ByteBuf out = Unpooled.buffer(128);
+        encode(request, format, out);
+        return ByteBufUtil.getBytes(out);
+    }
+
+    public static MessageRequest decode(ByteBuf in) {
+        if (!in.isReadable() || in.getByte(in.readerIndex()) != BINARY_MARKER) {
+            return MessageRequest.fromJsonString(in.toString(StandardCharsets.UTF_8));
+        }
+        in.skipBytes(1);
+        byte version = in.readByte();
+        if (version < 1 || version > BINARY_VERSION) {
+            throw new IllegalArgumentException("Unsupported binary message version: " + version);
+        }
+        MessageRequest request = new MessageRequest(readString(in));
+        if (version >= 2) {
+            request.setId(readVarlong(in));
+        }
+        int count = readVarint(in);
+        for (int i = 0; i < count; i++) {
+            request.put(readString(in), readValue(in));
+        }
+        return request;
+    }
+
+    public static MessageRequest decode(byte[] payload) {
+        return decode(Unpooled.wrappedBuffer(payload));
+    }
+
+    /**
+     * RESPONSE payloads are either a structured reply (JSON or binary) or the plain text of older peers.
+     *
+     * @return the reply, or null if the payload is plain text
+     */
+    public static MessageRequest decodeResponse(byte[] payload) {
+        if (payload.length == 0) {
+            return null;
+        }
+        if (payload[0] == BINARY_MARKER) {
+            return decode(payload);
+        }
+        if (payload[0] != '{') {
+            return null;
+        }
+        try {
+            MessageRequest response = MessageRequest.fromJsonString(new String(payload, StandardCharsets.UTF_8));
+            return response != null && response.getSubtype() != null ? response : null;
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    private static void writeValue(ByteBuf out, Object value) {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Boolean b) {
+            out.writeByte(b ? TYPE_TRUE : TYPE_FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            out.writeByte(TYPE_INT);
+            long v = ((Number) value).longValue();
+            writeVarlong(out, (v << 1) ^ (v >> 63));
+        } else if (value instanceof Number n) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(n.doubleValue());
+        } else if (value instanceof Collection<?> list) {
+            out.writeByte(TYPE_LIST);
+            writeVarint(out, list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else if (value instanceof Map<?, ?> map) {
+            out.writeByte(TYPE_MAP);
+            writeMap(out, map);
+        } else {
+            out.writeByte(TYPE_STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeMap(ByteBuf out, Map<?, ?> map) {
+        writeVarint(out, map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeString(out, String.valueOf(entry.getKey()));
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static Object readValue(ByteBuf in) {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_FALSE:
+                return Boolean.FALSE;
+            case TYPE_TRUE:
+                return Boolean.TRUE;
+            case TYPE_INT: {
+                long v = readVarlong(in);
+                return (v >>> 1) ^ -(v & 1);
+            }
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_LIST: {
+                int count = readVarint(in);
+                List<Object> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            case TYPE_MAP: {
+                int count = readVarint(in);
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    map.put(readString(in), readValue(in));
+                }
+                return map;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown value type: " + type);
+        }
+    }
+
+    private static void writeString(ByteBuf out, String value) {
+        Integer tag = DICTIONARY_TAGS.get(value);
+        if (tag != null) {
+            writeVarint(out, tag);
+            return;
+        }
+        writeVarint(out, 0);
+        writeVarint(out, ByteBufUtil.utf8Bytes(value));
+        out.writeCharSequence(value, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuf in) {
+        int tag = readVarint(in);
+        if (tag > 0) {
+            return DICTIONARY[tag - 1];
+        }
+        int length = readVarint(in);
+        return in.readCharSequence(length, StandardCharsets.UTF_8).toString();
+    }
+
+    private static void writeVarint(ByteBuf out, int value) {
+        writeVarlong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarlong(ByteBuf out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static int readVarint(ByteBuf in) {
+        return (int) readVarlong(in);
+    }
+
+    private static long readVarlong(ByteBuf in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
@@ -0,0 +1,138 @@
+package com.lannooo.server;
+
+import com.lannooo.common.Utils;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.logging.Logger;
+
+/**
+ * Event loops, channel type and socket options of the device server, configured by the netty.* properties.
+ * The native epoll transport is used when it is available (Linux), NIO otherwise.
+ */
+@Component
+public class NettyTransport {
+    public static final Logger logger = Utils.getLogger(NettyTransport.class);
+
+    @Value("${netty.native:true}")
+    private boolean nativeEnabled;
+
+    @Value("${netty.boss-threads:1}")
+    private int bossThreads;
+
+    // 0 lets netty pick (2 * cores)
+    @Value("${netty.worker-threads:0}")
+    private int workerThreads;
+
+    @Value("${netty.backlog:128}")
+    private int backlog;
+
+    @Value("${netty.tcp-nodelay:true}")
+    private boolean tcpNoDelay;
+
+    // 0 keeps the OS default (and kernel auto tuning on Linux)
+    @Value("${netty.so-sndbuf:0}")
+    private int sendBufferSize;
+
+    @Value("${netty.so-rcvbuf:0}")
+    private int receiveBufferSize;
+
+    @Value("${netty.write-buffer.low:262144}")
+    private int writeBufferLow;
+
+    @Value("${netty.write-buffer.high:1048576}")
+    private int writeBufferHigh;
+
+    // bytes of file data that may wait in the outbound buffer ahead of a command
+    @Value("${netty.bulk-in-flight:131072}")
+    private int bulkInFlight;
+
+    // pooled or unpooled
+    @Value("${netty.allocator:pooled}")
+    private String allocator;
+
+    public boolean isNative() {
+        return nativeEnabled && Epoll.isAvailable();
+    }
+
+    public int getBulkInFlight() {
+        return bulkInFlight;
+    }
+
+    public EventLoopGroup newBossGroup() {
+        return newEventLoopGroup(bossThreads);
+    }
+
+    public EventLoopGroup newWorkerGroup() {
+        return newEventLoopGroup(workerThreads);
+    }
+
+    private EventLoopGroup newEventLoopGroup(int threads) {
+        return isNative() ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    public Class<? extends ServerChannel> serverChannelClass() {
+        return isNative() ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public ByteBufAllocator byteBufAllocator() {
+        if ("unpooled".equalsIgnoreCase(allocator)) {
+            return UnpooledByteBufAllocator.DEFAULT;
+        }
+        return PooledByteBufAllocator.DEFAULT;
+    }
+
+    /**
+     * Apply channel type and socket options to the bootstrap, the event loop groups are set by the caller.
+     */
+    public ServerBootstrap configure(ServerBootstrap bootstrap) {
+        if (nativeEnabled && !Epoll.isAvailable()) {
+            logger.info("Native epoll transport not available, falling back to NIO: " + Epoll.unavailabilityCause());
+        }
+        ByteBufAllocator alloc = byteBufAllocator();
+        bootstrap.channel(serverChannelClass())
+                .option(ChannelOption.SO_BACKLOG, backlog)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .option(ChannelOption.ALLOCATOR, alloc)
+                .childOption(ChannelOption.ALLOCATOR, alloc)
+                .childOption(ChannelOption.TCP_NODELAY, tcpNoDelay)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                        new WriteBufferWaterMark(writeBufferLow, writeBufferHigh));
+        if (sendBufferSize > 0) {
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            bootstrap.childOption(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        }
+        return bootstrap;
+    }
+
+    @Override
+    public String toString() {
+        return "NettyTransport{" +
+                "transport=" + (isNative() ? "epoll" : "nio") +
+                ", bossThreads=" + bossThreads +
+                ", workerThreads=" + workerThreads +
+                ", tcpNoDelay=" + tcpNoDelay +
+                ", sndBuf=" + sendBufferSize +
+                ", rcvBuf=" + receiveBufferSize +
+                ", writeBuffer=" + writeBufferLow + "/" + writeBufferHigh +
+                ", bulkInFlight=" + bulkInFlight +
+                ", allocator=" + allocator +
+                '}';
+    }
+}
@@ -0,0 +1,232 @@
+package com.lannooo.server;
+
+import com.lannooo.common.Utils;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelProgressivePromise;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.logging.Logger;
+
+/**
+ * Outbound scheduler of a device connection, in place of a ChunkedWriteHandler.
+ * <p>
+ * Control frames (requests, responses, pre-encoded broadcasts) are passed on at once. Bulk data, that is
+ * DATA_TRANSFER messages, files as {@link ChunkedInput} and the "upload" requests announcing them, waits
+ * here and is released only while less than {@code maxBulkInFlight} bytes of it are still queued in the
+ * channel's outbound buffer. A command therefore waits behind at most that much file data instead of
+ * behind the rest of an upload.
+ * <p>
+ * If the connection negotiated transfer ids, the queued files are served round robin one chunk at a time,
+ * otherwise strictly in order since the receiver only takes one file at a time.
+ */
+public class PriorityWriteHandler extends ChannelDuplexHandler {
+    private static final Logger logger = Utils.getLogger(PriorityWriteHandler.class);
+
+    public static final int DEFAULT_MAX_BULK_IN_FLIGHT = 128 * 1024;
+
+    private final int maxBulkInFlight;
+    private final ArrayDeque<PendingWrite> bulk = new ArrayDeque<>();
+    private long bulkInFlight;
+    private boolean resumeScheduled;
+
+    public PriorityWriteHandler() {
+        this(DEFAULT_MAX_BULK_IN_FLIGHT);
+    }
+
+    public PriorityWriteHandler(int maxBulkInFlight) {
+        this.maxBulkInFlight = maxBulkInFlight;
+    }
+
+    /**
+     * @return true for frames that may be held back in favour of control frames
+     */
+    public static boolean isBulk(Object msg) {
+        if (msg instanceof ChunkedInput) {
+            return true;
+        }
+        if (msg instanceof Message message) {
+            // the upload request has to stay in front of its chunks
+            return message.getType() == Message.MessageType.DATA_TRANSFER
+                    || (message.hasRequest() && "upload".equals(message.getRequest().getSubtype()));
+        }
+        return false;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (isBulk(msg)) {
+            bulk.add(new PendingWrite(msg, promise));
+        } else {
+            ctx.write(msg, promise);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        writeBulk(ctx);
+        ctx.flush();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            resume(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        discard(new ClosedChannelException());
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        discard(new ClosedChannelException());
+    }
+
+    public int getQueuedBulk() {
+        return bulk.size();
+    }
+
+    public long getBulkInFlight() {
+        return bulkInFlight;
+    }
+
+    private void resume(ChannelHandlerContext ctx) {
+        if (!bulk.isEmpty()) {
+            writeBulk(ctx);
+            ctx.flush();
+        }
+    }
+
+    private void writeBulk(ChannelHandlerContext ctx) {
+        Channel channel = ctx.channel();
+        boolean interleave = FrameSettings.of(channel).isTransferIds();
+        while (!bulk.isEmpty() && bulkInFlight < maxBulkInFlight && channel.isWritable()) {
+            PendingWrite current = bulk.peek();
+            if (!(current.msg instanceof ChunkedInput<?> input)) {
+                bulk.poll();
+                writeCounted(ctx, current.msg, current.promise);
+                continue;
+            }
+
+            Object chunk;
+            boolean endOfInput;
+            long progress;
+            try {
+                chunk = input.readChunk(ctx.alloc());
+                endOfInput = input.isEndOfInput();
+                // the input reads ahead of what is written, the progress is that of this chunk
+                progress = input.progress();
+            } catch (Exception e) {
+                bulk.poll();
+                closeInput(input);
+                current.promise.tryFailure(e);
+                continue;
+            }
+            if (chunk == null) {
+                if (endOfInput) {
+                    bulk.poll();
+                    closeInput(input);
+                    current.promise.trySuccess();
+                    continue;
+                }
+                // nothing to read right now, retried at the next flush
+                break;
+            }
+
+            bulk.poll();
+            if (!endOfInput) {
+                if (interleave) {
+                    bulk.add(current);
+                } else {
+                    bulk.addFirst(current);
+                }
+            }
+            ChannelPromise chunkPromise = ctx.newPromise().addListener((ChannelFutureListener) future -> {
+                if (!future.isSuccess()) {
+                    bulk.remove(current);
+                    closeInput(input);
+                    current.promise.tryFailure(future.cause());
+                    return;
+                }
+                if (current.promise instanceof ChannelProgressivePromise progressive) {
+                    progressive.tryProgress(progress, input.length());
+                }
+                if (endOfInput) {
+                    closeInput(input);
+                    current.promise.trySuccess();
+                }
+            });
+            writeCounted(ctx, chunk, chunkPromise);
+        }
+    }
+
+    private void writeCounted(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        // the buffers are released by the encoder, take the size before
+        int size = sizeOf(msg);
+        bulkInFlight += size;
+        promise.addListener((ChannelFutureListener) future -> {
+            bulkInFlight -= size;
+            // the promise completes while the outbound buffer is being flushed, continue after that
+            if (!bulk.isEmpty() && !resumeScheduled && ctx.channel().isActive()) {
+                resumeScheduled = true;
+                ctx.executor().execute(() -> {
+                    resumeScheduled = false;
+                    resume(ctx);
+                });
+            }
+        });
+        ctx.write(msg, promise);
+    }
+
+    private static int sizeOf(Object msg) {
+        if (msg instanceof Message message) {
+            return message.hasContent() ? message.getContent().readableBytes() : 0;
+        }
+        if (msg instanceof ByteBuf buf) {
+            return buf.readableBytes();
+        }
+        return 0;
+    }
+
+    private void discard(Throwable cause) {
+        PendingWrite pending;
+        while ((pending = bulk.poll()) != null) {
+            if (pending.msg instanceof ChunkedInput<?> input) {
+                closeInput(input);
+            } else {
+                ReferenceCountUtil.release(pending.msg);
+            }
+            pending.promise.tryFailure(cause);
+        }
+    }
+
+    private static void closeInput(ChunkedInput<?> input) {
+        try {
+            input.close();
+        } catch (Exception e) {
+            logger.warning("Failed to close chunked input: " + e.getMessage());
+        }
+    }
+
+    private static class PendingWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+
+        private PendingWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
+}
@@ -3,31 +3,39 @@ package com.lannooo.server;
 import com.lannooo.common.Utils;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.MessageToMessageDecoder;
 
 import java.util.List;
 import java.util.logging.Logger;
 
-public class ServerDecoder extends ByteToMessageDecoder {
+public class ServerDecoder extends MessageToMessageDecoder<ByteBuf> {
     public static final Logger logger = Utils.getLogger(ServerDecoder.class);
 
     @Override
     protected void decode(ChannelHandlerContext channelHandlerContext, ByteBuf byteBuf, List<Object> list) throws Exception {
         // Data Frame = Magic number (4 bytes) + Type (4 bytes) + Length (4 bytes) + Payload
+        // the frame is already delimited by the LengthFieldBasedFrameDecoder in front of us
         // check if the magic number is correct
         if (byteBuf.readInt() != Message.MAGIC) {
             throw new IllegalArgumentException("Invalid magic number");
         }
         // read the message type
-        int typeOrdinal = byteBuf.readInt();
+        Message.MessageType type = Message.MessageType.fromOrdinal(byteBuf.readInt());
         // read the length of the message
         int length = byteBuf.readInt();
-        // read the payload
-        byte[] payload = new byte[length];
-        byteBuf.readBytes(payload);
 
-        // create a new message object
-        Message message = new Message(Message.MessageType.fromOrdinal(typeOrdinal), payload);
+        Message message;
+        if (type == Message.MessageType.DATA_TRANSFER) {
+            // keep file chunks in the (pooled) frame buffer, released after being written to disk
+            message = new Message(type, byteBuf.readRetainedSlice(length));
+        } else if (type == Message.MessageType.REQUEST) {
+            // JSON or binary, whatever the client sent
+            message = new Message(type, MessageCodec.decode(byteBuf.readSlice(length)));
+        } else {
+            byte[] payload = new byte[length];
+            byteBuf.readBytes(payload);
+            message = new Message(type, payload);
+        }
         list.add(message);
     }
 }
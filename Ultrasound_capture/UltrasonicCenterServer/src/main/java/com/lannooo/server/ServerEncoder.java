@@ -1,23 +1,79 @@
 package com.lannooo.server;
 
-import com.lannooo.common.Utils;
+import com.lannooo.common.EventLog;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
 
-import java.util.logging.Logger;
+import java.util.List;
 
-public class ServerEncoder extends MessageToByteEncoder<Message> {
-    public static final Logger logger = Utils.getLogger(ServerEncoder.class);
+/**
+ * Frames the messages written to a device. A message with content, the chunks of a file, goes out as its header
+ * followed by a retained slice of the content, so a chunk shared by several channels is not copied for each.
+ */
+public class ServerEncoder extends MessageToMessageEncoder<Message> {
+    private static final int HEADER_LENGTH = 12;
 
     @Override
-    protected void encode(ChannelHandlerContext channelHandlerContext, Message data, ByteBuf byteBuf) throws Exception {
-        logger.info("Encoding data: " + data.toString());
+    protected void encode(ChannelHandlerContext channelHandlerContext, Message data, List<Object> out) throws Exception {
+        ByteBuf frame;
+        if (!data.hasRequest() && data.hasContent()) {
+            ByteBuf content = data.getContent();
+            int length = data.payloadLength();
+            ByteBuf header = channelHandlerContext.alloc().ioBuffer(HEADER_LENGTH);
+            writeHeader(data, length, header);
+            // the message is released once encoded, the slice keeps the content until it is written
+            frame = channelHandlerContext.alloc().compositeBuffer(2)
+                    .addComponents(true, header, content.retainedSlice(content.readerIndex(), length));
+        } else {
+            frame = channelHandlerContext.alloc().ioBuffer();
+            writeFrame(data, MessageCodec.formatOf(channelHandlerContext.channel()), frame);
+        }
+        out.add(frame);
+        int frameLength = frame.readableBytes();
 
-        int length = data.getPayload().length;
+        if (data.getType() == Message.MessageType.DATA_TRANSFER) {
+            EventLog.count("out.chunks");
+            EventLog.count("out.chunk_bytes", frameLength);
+        } else if (EventLog.sampled(EventLog.Category.OUTBOUND)) {
+            MessageRequest request = data.hasRequest() ? data.getRequest() : null;
+            EventLog.emit(EventLog.Category.OUTBOUND, "send",
+                    "remote", channelHandlerContext.channel().remoteAddress(),
+                    "type", data.getType(),
+                    "subtype", request == null ? "-" : request.getSubtype(),
+                    "id", request == null ? 0 : request.getId(),
+                    "bytes", frameLength);
+        }
+    }
+
+    private static void writeHeader(Message data, int length, ByteBuf byteBuf) {
         byteBuf.writeInt(Message.MAGIC);
         byteBuf.writeInt(data.getType().ordinal());
         byteBuf.writeInt(length);
-        byteBuf.writeBytes(data.getPayload());
+    }
+
+    /**
+     * Write one complete frame, also used to encode a broadcast once for all channels of the same format.
+     */
+    public static void writeFrame(Message data, MessageCodec.Format format, ByteBuf byteBuf) {
+        if (data.hasRequest()) {
+            byteBuf.writeInt(Message.MAGIC);
+            byteBuf.writeInt(data.getType().ordinal());
+            // encode in place with the format negotiated for this channel, then patch the length
+            int lengthIndex = byteBuf.writerIndex();
+            byteBuf.writeInt(0);
+            MessageCodec.encode(data.getRequest(), format, byteBuf);
+            byteBuf.setInt(lengthIndex, byteBuf.writerIndex() - lengthIndex - 4);
+            return;
+        }
+
+        int length = data.payloadLength();
+        writeHeader(data, length, byteBuf);
+        if (data.hasContent()) {
+            ByteBuf content = data.getContent();
+            byteBuf.writeBytes(content, content.readerIndex(), length);
+        } else {
+            byteBuf.writeBytes(data.getPayload());
+        }
     }
 }
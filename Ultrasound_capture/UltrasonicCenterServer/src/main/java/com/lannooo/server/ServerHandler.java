@@ -1,17 +1,21 @@
 package com.lannooo.server;
 
+import com.lannooo.common.EventLog;
 import com.lannooo.common.Utils;
 import com.lannooo.device.DeviceManager;
+import com.lannooo.device.PendingRequestManager;
 import com.lannooo.device.UploadingFileItem;
 import com.lannooo.service.AsyncService;
 import com.lannooo.service.UltrasonicCaptureService;
 import com.lannooo.shell.ShellHelper;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundInvoker;
 import io.netty.channel.SimpleChannelInboundHandler;
 
-import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -22,85 +26,309 @@ public class ServerHandler extends SimpleChannelInboundHandler<Message> {
     private final DeviceManager deviceManager;
     private final UltrasonicCaptureService ultrasonicCaptureService;
     private final ShellHelper shellHelper;
+    private final PendingRequestManager pendingRequests;
     private final Map<String, RequestHandler> requestHandlers = Map.of(
             "register", this::handleRegisterRequest,
             "upload", this::handleUploadFileRequest,
-            "route_status", this::handleRouteStatusRequest
+            "upload_digest", this::handleUploadDigestRequest,
+            "route_status", this::handleRouteStatusRequest,
+            "attach", this::handleAttachRequest,
+            "stripe_done", this::handleStripeDoneRequest,
+            "live_start", this::handleLiveStartRequest,
+            "live_end", this::handleLiveEndRequest
     );
 
-    public ServerHandler(AsyncService asyncService, DeviceManager deviceManager, UltrasonicCaptureService ultrasonicCaptureService, ShellHelper shellHelper) {
+    public ServerHandler(AsyncService asyncService, DeviceManager deviceManager, UltrasonicCaptureService ultrasonicCaptureService, ShellHelper shellHelper, PendingRequestManager pendingRequests) {
         this.asyncService = asyncService;
         this.deviceManager = deviceManager;
         this.ultrasonicCaptureService = ultrasonicCaptureService;
         this.shellHelper = shellHelper;
+        this.pendingRequests = pendingRequests;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Message msg) throws Exception {
-        logger.info("Handler received data: " + msg.toString());
-
         if (msg.getType() == Message.MessageType.REQUEST) {
-            String payloadData = new String(msg.getPayload());
-            MessageRequest request = MessageRequest.fromJsonString(payloadData);
+            MessageRequest request = msg.getRequest();
+            EventLog.log(EventLog.Category.INBOUND, "recv",
+                    "device", deviceManager.uniqueKey(ctx),
+                    "type", msg.getType(),
+                    "subtype", request.getSubtype(),
+                    "id", request.getId());
             RequestHandler handler = requestHandlers.get(request.getSubtype());
             if (handler != null) {
                 handler.handleMessage(ctx, request);
             } else {
                 logger.severe("Unknown request: " + request.getSubtype());
-                writeShortResponse(ctx, "Oops!");
+                writeShortResponse(ctx, request, false, "Oops!");
             }
         } else if (msg.getType() == Message.MessageType.DATA_TRANSFER) {
-            byte[] payload = msg.getPayload();
-            // payload to byteBuf
-            ByteBuf buf = Unpooled.wrappedBuffer(payload);
-            UploadingFileItem fileItem = deviceManager.writeUploadingFile(ctx, buf);
-            if (fileItem != null) {
-                if (fileItem.isFinished()) {
-                    writeShortResponse(ctx, "File uploaded");
-                } else if (fileItem.isFailed()) {
-                    writeShortResponse(ctx, "File upload failed");
-                }
-            }
+            // chunks are only counted, each transfer is logged once when it ends
+            EventLog.count("in.chunks");
+            EventLog.count("in.chunk_bytes", msg.payloadLength());
+            // written on the upload writer, the answers are sent from there
+            deviceManager.writeUploadingFile(ctx, msg.getContent(), fileItem -> onChunkWritten(ctx, fileItem));
         } else if (msg.getType() == Message.MessageType.RESPONSE) {
+            String key = deviceManager.uniqueKey(ctx);
+            // structured replies resolve the pending request, older clients answer with plain text only
+            MessageRequest response = MessageCodec.decodeResponse(msg.getPayload());
+            EventLog.log(EventLog.Category.INBOUND, "recv",
+                    "device", key,
+                    "type", msg.getType(),
+                    "subtype", response == null ? "-" : response.getSubtype(),
+                    "id", response == null ? 0 : response.getId());
+            String text = response == null ? new String(msg.getPayload()) : response.getString("message");
+            if (response != null) {
+                pendingRequests.complete(key, response);
+            }
             // Display response from the client to the terminal
-            asyncService.submit(() -> shellHelper.printInfo("[" + deviceManager.uniqueKey(ctx) + "] " + new String(msg.getPayload())));
+            asyncService.submit(() -> shellHelper.printInfo("[" + key + "] " + text));
         }
     }
 
     private void handleRegisterRequest(ChannelHandlerContext ctx, MessageRequest request) {
         // save the client information and register its connection
         deviceManager.registerOrUpdateRemoteDevice(ctx, request.getData());
-        writeShortResponse(ctx, "Registered");
+        writeShortResponse(ctx, request, true, "Registered");
+
+        FrameSettings settings = FrameSettings.negotiate(request.getData(), deviceManager.getUploadCodec());
+        MessageCodec.Format format = MessageCodec.negotiate(request.getData());
+        if (settings != null || format != null) {
+            if (settings == null) {
+                settings = FrameSettings.DEFAULTS;
+            }
+            if (format == null) {
+                format = MessageCodec.Format.JSON;
+            }
+            // tell the client first (still in the old format), then switch ourselves
+            MessageRequest transport = new MessageRequest("transport");
+            transport.put("max_frame", settings.getMaxFrameLength());
+            transport.put("chunk_size", settings.getChunkSize());
+            transport.put("format", format.wireName());
+            transport.put("transfer_ids", settings.isTransferIds());
+            transport.put("chunk_crc", settings.isChunkCrc());
+            // uploads are always resumable here, the client has to wait for the missing ranges to use it
+            transport.put("resume_uploads", true);
+            if (settings.isTransferIds() && settings.isChunkCrc() && deviceManager.getMaxLanes() > 0) {
+                // lanes carry tagged, checked chunks only, a lost one is found by the digest
+                transport.put("lanes", deviceManager.getMaxLanes());
+                transport.put("lane_token", deviceManager.laneToken(ctx));
+            }
+            if (settings.getCodec() != null) {
+                transport.put("codec", settings.getCodec());
+            }
+            if (liveUploads(settings) && Boolean.TRUE.equals(request.getData().get("live_upload"))) {
+                transport.put("live_upload", true);
+            }
+            ctx.writeAndFlush(new Message(Message.MessageType.REQUEST, transport));
+            settings.apply(ctx.channel());
+            ctx.channel().attr(MessageCodec.FORMAT_KEY).set(format);
+            EventLog.log(EventLog.Category.DEVICE, "transport",
+                    "device", deviceManager.uniqueKey(ctx),
+                    "chunk_size", settings.getChunkSize(),
+                    "max_frame", settings.getMaxFrameLength(),
+                    "transfer_ids", settings.isTransferIds(),
+                    "chunk_crc", settings.isChunkCrc(),
+                    "codec", settings.getCodec(),
+                    "content_cache", settings.isContentCache(),
+                    "request_ids", settings.isRequestIds(),
+                    "format", format);
+        }
+    }
+
+    private void onChunkWritten(ChannelHandlerContext ctx, UploadingFileItem fileItem) {
+        // the chunk may have come over a lane, the device is answered on its main connection
+        Channel control = fileItem == null ? null : deviceManager.controlChannel(ctx);
+        if (control == null) {
+            return;
+        }
+        // name the file, several uploads of the device may be in progress
+        if (fileItem.isFinished()) {
+            writeShortResponse(control, "File uploaded: " + fileItem.getRemoteFilename());
+        } else if (fileItem.isFailed()) {
+            writeShortResponse(control, "File upload failed: " + fileItem.getRemoteFilename());
+        } else {
+            List<List<Long>> corrupt = fileItem.takeCorruptRanges();
+            if (!corrupt.isEmpty()) {
+                requestResend(control, deviceManager.uniqueKey(ctx), fileItem, corrupt);
+            }
+        }
+        if ((fileItem.isFinished() || fileItem.isFailed()) && fileItem.getDigestRequestId() != 0) {
+            writeDigestResponse(control, fileItem);
+        }
     }
 
     private void handleUploadFileRequest(ChannelHandlerContext ctx, MessageRequest request) {
-        // save the file upload session
-        Map<String, Object> data = request.getData();
-        deviceManager.addUploadingFile(ctx, data);
-        writeShortResponse(ctx, "Ready to receive chunks");
+        Object codec = request.getData().get("codec");
+        if (codec != null && !codec.equals(FrameSettings.of(ctx.channel()).getCodec())) {
+            writeShortResponse(ctx, request, false, "Unsupported codec: " + codec);
+            return;
+        }
+        // save the file upload session, an earlier attempt is looked up on the upload writer
+        deviceManager.addUploadingFile(ctx, request.getData(), fileItem -> onUploadAdded(ctx, request, fileItem));
+    }
+
+    private void onUploadAdded(ChannelHandlerContext ctx, MessageRequest request, UploadingFileItem fileItem) {
+        if (fileItem == null) {
+            writeShortResponse(ctx, request, false, "Upload already in progress");
+            return;
+        }
+        // the client only sends the missing chunks, all of them unless a part file was left behind
+        Map<String, Object> extra = new LinkedHashMap<>();
+        extra.put("missing", fileItem.getMissingRanges());
+        extra.put("resumed_chunks", fileItem.getResumedChunks());
+        if (fileItem.isFinished()) {
+            writeResponse(ctx, request, true, "File uploaded: " + fileItem.getRemoteFilename(), extra);
+        } else if (fileItem.isFailed()) {
+            // complete on disk but not committed, the part file is kept
+            writeShortResponse(ctx, request, false, "File upload failed: " + fileItem.getRemoteFilename());
+        } else {
+            writeResponse(ctx, request, true, "Ready to receive chunks", extra);
+        }
+    }
+
+    private void handleUploadDigestRequest(ChannelHandlerContext ctx, MessageRequest request) {
+        deviceManager.verifyUploadDigest(ctx, request.getData(), request.getId(), fileItem -> {
+            if (fileItem == null) {
+                writeShortResponse(ctx, request, false, "Unknown upload");
+            } else if (fileItem.isFinished() || fileItem.isFailed()) {
+                writeDigestResponse(ctx, fileItem);
+            } else {
+                // answered once the chunks requested again have arrived; those of a lane that dropped were
+                // never requested, the corrupt ones already are
+                List<List<Long>> lost = fileItem.takeLostRanges();
+                if (!lost.isEmpty()) {
+                    requestResend(ctx, deviceManager.uniqueKey(ctx), fileItem, lost);
+                }
+            }
+        });
+    }
+
+    /**
+     * A new connection of a registered device, to carry stripes of its uploads next to the main one.
+     */
+    private void handleAttachRequest(ChannelHandlerContext ctx, MessageRequest request) {
+        Channel primary = deviceManager.attachLane(ctx, request.getString("lane_token"));
+        if (primary == null) {
+            logger.warning("Refused upload lane from " + ctx.channel().remoteAddress());
+            ctx.writeAndFlush(new Message(Message.MessageType.RESPONSE,
+                    request.reply(false, "Unknown device or too many lanes"))).addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        // answered in the format the lane started with, then it speaks like the main connection
+        writeShortResponse(ctx, request, true, "Attached");
+        FrameSettings.of(primary).apply(ctx.channel());
+        ctx.channel().attr(MessageCodec.FORMAT_KEY).set(primary.attr(MessageCodec.FORMAT_KEY).get());
+    }
+
+    /**
+     * Answered once the chunks received on the connection before it are written, so that the device knows
+     * its stripe arrived before it sends the digest over the main connection.
+     */
+    private void handleStripeDoneRequest(ChannelHandlerContext ctx, MessageRequest request) {
+        deviceManager.afterUploadWrites(ctx, () -> writeShortResponse(ctx, request, true, "Stripe written"));
+    }
+
+    private boolean liveUploads(FrameSettings settings) {
+        // streamed chunks carry their transfer and are checked, a broken stream is replaced by an upload
+        return deviceManager.isLiveUpload() && settings.isTransferIds() && settings.isChunkCrc();
+    }
+
+    private void handleLiveStartRequest(ChannelHandlerContext ctx, MessageRequest request) {
+        if (!liveUploads(FrameSettings.of(ctx.channel())) || !(request.getData().get("transfer_id") instanceof Number)) {
+            writeShortResponse(ctx, request, false, "Live upload not supported");
+            return;
+        }
+        // the chunks that follow are queued behind it on the upload writer
+        deviceManager.startLiveUpload(ctx, request.getData(), item -> {
+            if (item == null) {
+                writeShortResponse(ctx, request, false, "Live upload refused");
+            } else {
+                writeShortResponse(ctx, request, true, "Streaming: " + item.getRemoteFilename());
+            }
+        });
+    }
+
+    private void handleLiveEndRequest(ChannelHandlerContext ctx, MessageRequest request) {
+        deviceManager.finishLiveUpload(ctx, request.getData(), item -> {
+            if (item == null) {
+                writeShortResponse(ctx, request, false, "Unknown live upload");
+            } else if (item.getProblem() != null) {
+                // the device uploads its copy instead
+                writeShortResponse(ctx, request, false, "Live upload failed: " + item.getProblem());
+            } else {
+                writeShortResponse(ctx, request, true, "File uploaded: " + item.getRemoteFilename());
+            }
+        });
+    }
+
+    private void writeDigestResponse(ChannelOutboundInvoker ctx, UploadingFileItem fileItem) {
+        MessageRequest request = new MessageRequest("upload_digest");
+        request.setId(fileItem.getDigestRequestId());
+        boolean verified = fileItem.isFinished() && Boolean.TRUE.equals(fileItem.getVerified());
+        Map<String, Object> extra = new LinkedHashMap<>();
+        extra.put("sha256", fileItem.getSha256());
+        // the device keeps its copy unless the file is verified
+        writeResponse(ctx, request, verified, (verified ? "File verified: " : "File verification failed: ")
+                + fileItem.getRemoteFilename(), extra);
+    }
+
+    private void requestResend(ChannelOutboundInvoker ctx, String key, UploadingFileItem fileItem, List<List<Long>> chunks) {
+        MessageRequest resend = new MessageRequest("resend");
+        resend.put("filepath", fileItem.getRemoteFilename());
+        if (fileItem.getTransferId() != 0) {
+            resend.put("transfer_id", fileItem.getTransferId());
+        }
+        resend.put("missing", chunks);
+        EventLog.log(EventLog.Category.TRANSFER, "resend",
+                "device", key,
+                "transfer", fileItem.getTransferId(),
+                "file", fileItem.getRemoteFilename(),
+                "chunks", chunks);
+        ctx.writeAndFlush(new Message(Message.MessageType.REQUEST, resend));
     }
 
     private void handleRouteStatusRequest(ChannelHandlerContext ctx, MessageRequest request) {
         ultrasonicCaptureService.updateRouteStatus(deviceManager.uniqueKey(ctx), request.getData());
     }
 
-    private void writeShortResponse(ChannelHandlerContext ctx, String OK) {
+    private void writeShortResponse(ChannelOutboundInvoker ctx, String OK) {
         ctx.writeAndFlush(new Message(Message.MessageType.RESPONSE, OK.getBytes()));
     }
 
+    private void writeShortResponse(ChannelOutboundInvoker ctx, MessageRequest request, boolean ok, String message) {
+        writeResponse(ctx, request, ok, message, Map.of());
+    }
+
+    private void writeResponse(ChannelOutboundInvoker ctx, MessageRequest request, boolean ok, String message, Map<String, Object> extra) {
+        if (request.getId() == 0) {
+            // the client does not number its requests, it only understands plain text
+            writeShortResponse(ctx, message);
+            return;
+        }
+        MessageRequest response = request.reply(ok, message);
+        extra.forEach(response::put);
+        ctx.writeAndFlush(new Message(Message.MessageType.RESPONSE, response));
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         super.channelActive(ctx);
-        logger.info("Client connected: " + ctx);
-
-        deviceManager.registerOrUpdateRemoteDevice(ctx, Collections.emptyMap());
+        // a device only once it registers: an upload lane of another device attaches instead
+        EventLog.log(EventLog.Category.DEVICE, "connected", "remote", ctx.channel().remoteAddress());
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
-        logger.info("Client disconnected: " + ctx);
+        EventLog.log(EventLog.Category.DEVICE, "disconnected", "remote", ctx.channel().remoteAddress());
+        if (deviceManager.isLane(ctx)) {
+            // the chunks it did not deliver are requested again once the device sends the digest
+            deviceManager.detachLane(ctx);
+            return;
+        }
 
+        pendingRequests.cancel(deviceManager.uniqueKey(ctx));
         deviceManager.unregisterRemoteDevice(ctx);
     }
 
@@ -0,0 +1,120 @@
+package com.lannooo.server;
+
+import com.lannooo.common.Utils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A file to be sent to several devices, mapped into memory once. Every device gets read-only views of the same
+ * chunks, cut for the chunk size it negotiated, and the CRC of a chunk is computed once for all devices that
+ * check it, by the first one that sends it: no device waits for the CRCs of chunks it does not send yet.
+ * <p>
+ * The mapping lives until it is garbage collected, on Windows the file cannot be replaced or deleted until then.
+ */
+public class SharedUploadFile {
+    private static final long KNOWN = 1L << 32;
+
+    private final File file;
+    private final ByteBuffer content;
+    // chunk size -> its chunks
+    private final Map<Integer, Chunks> chunks = new HashMap<>();
+    private String sha256;
+
+    private SharedUploadFile(File file, ByteBuffer content) {
+        this.file = file;
+        this.content = content;
+    }
+
+    public static SharedUploadFile open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to send: " + file);
+            }
+            // stays valid after the channel is closed
+            return new SharedUploadFile(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getName() {
+        return file.getName();
+    }
+
+    public int length() {
+        return content.capacity();
+    }
+
+    /**
+     * @return the digest of the content, computed for the first device that keeps a content cache
+     */
+    public synchronized String getSha256() {
+        if (sha256 == null) {
+            MessageDigest digest = Utils.sha256();
+            digest.update(content.duplicate());
+            sha256 = Utils.hex(digest.digest());
+        }
+        return sha256;
+    }
+
+    public int chunkCount(int chunkSize) {
+        return (length() + chunkSize - 1) / chunkSize;
+    }
+
+    /**
+     * @return a read-only view of the chunk, releasing it leaves the mapping alone
+     */
+    public ByteBuf chunk(int chunkSize, int index) {
+        return Unpooled.wrappedBuffer(chunks(chunkSize).data[index].duplicate());
+    }
+
+    /**
+     * @return the CRC32C of the chunk, computed for the first device that asks; devices asking at the same time
+     * may both compute it
+     */
+    public int crc(int chunkSize, int index) {
+        Chunks cut = chunks(chunkSize);
+        long known = cut.crc.get(index);
+        if (known != 0) {
+            return (int) known;
+        }
+        int crc = Utils.crc32c(Unpooled.wrappedBuffer(cut.data[index].duplicate()));
+        cut.crc.set(index, KNOWN | (crc & 0xFFFFFFFFL));
+        return crc;
+    }
+
+    private synchronized Chunks chunks(int chunkSize) {
+        return chunks.computeIfAbsent(chunkSize, size -> {
+            ByteBuffer[] data = new ByteBuffer[chunkCount(size)];
+            for (int i = 0; i < data.length; i++) {
+                int offset = i * size;
+                data[i] = content.slice(offset, Math.min(size, length() - offset)).asReadOnlyBuffer();
+            }
+            return new Chunks(data);
+        });
+    }
+
+    private static final class Chunks {
+        private final ByteBuffer[] data;
+        // the CRC of each chunk with KNOWN set, 0 until computed
+        private final AtomicLongArray crc;
+
+        private Chunks(ByteBuffer[] data) {
+            this.data = data;
+            this.crc = new AtomicLongArray(data.length);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.lannooo.server;
+
+import com.lannooo.device.FileUploadListener;
+import io.netty.channel.ChannelProgressiveFuture;
+import io.netty.channel.ChannelProgressiveFutureListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregate progress of a set of files sent to several devices at once. Every transfer reports the bytes
+ * flushed to its socket, the listener hears about every tenth of the total and about the end of the last one.
+ */
+public class UploadFanOut {
+    private final int files;
+    private final int targets;
+    private final long totalBytes;
+    private final List<String> missing;
+    private final FileUploadListener listener;
+    private final long startNanos;
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicInteger reportedTenths = new AtomicInteger();
+    private final AtomicInteger pending;
+    private final Map<String, String> failures = new ConcurrentHashMap<>();
+    private final CompletableFuture<UploadFanOut> completion = new CompletableFuture<>();
+
+    public UploadFanOut(int files, int targets, long bytesPerTarget, Collection<String> missing,
+                        FileUploadListener listener) {
+        this.files = files;
+        this.targets = targets;
+        this.totalBytes = bytesPerTarget * targets;
+        this.missing = new ArrayList<>(missing);
+        this.listener = listener;
+        this.startNanos = System.nanoTime();
+        this.pending = new AtomicInteger(files * targets);
+        if (files * targets == 0) {
+            finish();
+        }
+    }
+
+    /**
+     * Follow one transfer, see {@link com.lannooo.service.RemoteAudioService#uploadFile}.
+     */
+    public void track(String key, String filename, ChannelProgressiveFuture future) {
+        future.addListener(new ChannelProgressiveFutureListener() {
+            private long progressed;
+
+            @Override
+            public void operationProgressed(ChannelProgressiveFuture f, long progress, long total) {
+                // called on the event loop of the channel, one transfer at a time
+                addSent(progress - progressed);
+                progressed = progress;
+            }
+
+            @Override
+            public void operationComplete(ChannelProgressiveFuture f) {
+                if (!f.isSuccess()) {
+                    failures.merge(key, filename + ": " + f.cause(), (a, b) -> a + ", " + b);
+                }
+                if (pending.decrementAndGet() == 0) {
+                    finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * A transfer that could not even be started.
+     */
+    public void failed(String key, String filename, String reason) {
+        failures.merge(key, filename + ": " + reason, (a, b) -> a + ", " + b);
+        if (pending.decrementAndGet() == 0) {
+            finish();
+        }
+    }
+
+    private void addSent(long bytes) {
+        long sent = sentBytes.addAndGet(bytes);
+        int tenths = totalBytes == 0 ? 10 : (int) Math.min(10, sent * 10 / totalBytes);
+        int reported = reportedTenths.get();
+        if (tenths > reported && reportedTenths.compareAndSet(reported, tenths) && listener != null) {
+            listener.onProgress(tenths * 10, 100);
+        }
+    }
+
+    private void finish() {
+        if (listener != null) {
+            if (failures.isEmpty()) {
+                listener.onSuccess(toString());
+            } else {
+                listener.onFailed(toString());
+            }
+        }
+        completion.complete(this);
+    }
+
+    public CompletableFuture<UploadFanOut> completion() {
+        return completion;
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public int getTargets() {
+        return targets;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * @return devices with the transfers that failed
+     */
+    public Map<String, String> getFailures() {
+        return new LinkedHashMap<>(failures);
+    }
+
+    public List<String> getMissing() {
+        return missing;
+    }
+
+    public double getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        double elapsedMs = getElapsedMillis();
+        return "UploadFanOut{" +
+                "files=" + files +
+                ", targets=" + targets +
+                ", sentBytes=" + sentBytes.get() + "/" + totalBytes +
+                ", failed=" + failures.size() +
+                ", missing=" + missing.size() +
+                ", ms=" + Math.round(elapsedMs) +
+                ", mbPerS=" + String.format("%.2f", sentBytes.get() / 1e3 / Math.max(elapsedMs, 1)) +
+                '}';
+    }
+}
@@ -1,5 +1,6 @@
 package com.lannooo.server.api;
 
+import com.lannooo.server.BroadcastResult;
 import com.lannooo.service.RecordingService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -93,6 +94,8 @@ public class RecordingController {
             response.put("status", "success");
             response.put("is_recording", isRecording);
             response.put("current_scene", currentScene);
+            BroadcastResult broadcast = recordingService.getStartBroadcast();
+            response.put("start_broadcast", broadcast == null ? null : broadcast.toMap());
             response.put("timestamp", System.currentTimeMillis());
             
             return ResponseEntity.ok(response);
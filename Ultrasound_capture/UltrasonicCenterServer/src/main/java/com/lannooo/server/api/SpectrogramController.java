@@ -0,0 +1,87 @@
+package com.lannooo.server.api;
+
+import com.lannooo.dsp.SpectrogramTile;
+import com.lannooo.service.SpectrogramService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Spectrogram previews of the recordings, for a browser (PNG) or MATLAB (JSON). The file is given relative to
+ * the audio directory, e.g. {@code GET /api/ultrasonic/spectrogram?file=Pixel_7/exp1/ultra.wav&tile=0}.
+ */
+@RestController
+@RequestMapping("/api/ultrasonic/spectrogram")
+public class SpectrogramController {
+
+    @Autowired
+    private SpectrogramService spectrogramService;
+
+    @GetMapping("/info")
+    public ResponseEntity<Map<String, Object>> info(@RequestParam String file) {
+        Path path = spectrogramService.resolve(file);
+        if (path == null) {
+            return notFound(file);
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        try {
+            Map<String, Object> info = spectrogramService.info(path);
+            response.put("status", "success");
+            response.put("file", file);
+            response.putAll(info);
+            return ResponseEntity.ok(response);
+        } catch (IOException e) {
+            return unreadable(file, e);
+        }
+    }
+
+    /**
+     * @param tile tile index from the start, the overview of the whole recording if left out
+     */
+    @GetMapping
+    public ResponseEntity<?> tile(@RequestParam String file,
+                                  @RequestParam(required = false) Integer tile,
+                                  @RequestParam(defaultValue = "png") String format,
+                                  @RequestParam(name = "min_db", defaultValue = "-110") float minDb,
+                                  @RequestParam(name = "max_db", defaultValue = "-30") float maxDb) {
+        Path path = spectrogramService.resolve(file);
+        if (path == null) {
+            return notFound(file);
+        }
+        try {
+            SpectrogramTile result = spectrogramService.tile(path, tile == null ? SpectrogramService.OVERVIEW : Math.max(0, tile));
+            if ("json".equalsIgnoreCase(format)) {
+                Map<String, Object> response = new LinkedHashMap<>();
+                response.put("status", "success");
+                response.put("file", file);
+                response.put("tile", tile);
+                response.putAll(result.toMap());
+                return ResponseEntity.ok(response);
+            }
+            return ResponseEntity.ok().contentType(MediaType.IMAGE_PNG).body(result.toPng(minDb, maxDb));
+        } catch (IOException e) {
+            return unreadable(file, e);
+        }
+    }
+
+    private static ResponseEntity<Map<String, Object>> notFound(String file) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("status", "error");
+        response.put("message", "No such recording: " + file);
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+    }
+
+    private static ResponseEntity<Map<String, Object>> unreadable(String file, IOException e) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("status", "error");
+        response.put("message", "Cannot read " + file + ": " + e.getMessage());
+        return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(response);
+    }
+}
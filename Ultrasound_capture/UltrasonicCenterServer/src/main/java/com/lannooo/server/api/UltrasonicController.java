@@ -1,6 +1,7 @@
 package com.lannooo.server.api;
 
 import com.lannooo.model.UltrasonicCaptureRequest;
+import com.lannooo.server.BroadcastResult;
 import com.lannooo.service.UltrasonicCaptureService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -9,6 +10,7 @@ import org.springframework.web.bind.annotation.*;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/api/ultrasonic")
@@ -18,19 +20,30 @@ public class UltrasonicController {
     private UltrasonicCaptureService ultrasonicCaptureService;
 
     @PostMapping("/capture/start")
-    public ResponseEntity<Map<String, Object>> startCapture(@RequestBody(required = false) UltrasonicCaptureRequest request) {
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> startCapture(@RequestBody(required = false) UltrasonicCaptureRequest request) {
         UltrasonicCaptureRequest actualRequest = request == null ? new UltrasonicCaptureRequest() : request;
         Map<String, Object> response = new LinkedHashMap<>();
-        boolean success = ultrasonicCaptureService.startCapture(actualRequest);
-        if (!success) {
+        BroadcastResult broadcast = ultrasonicCaptureService.startCapture(actualRequest);
+        if (broadcast == null) {
             response.put("status", "error");
             response.put("message", "Failed to start ultrasonic capture");
-            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(response);
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(response));
         }
         response.put("status", "success");
         response.put("message", "Ultrasonic capture started");
         response.put("request", actualRequest);
-        return ResponseEntity.ok(response);
+        if (!actualRequest.isWaitForAck()) {
+            return CompletableFuture.completedFuture(ResponseEntity.ok(response));
+        }
+        // the servlet thread is released here, the response is written once every device answered or timed out
+        return broadcast.acked().thenApply(result -> {
+            Map<String, Object> summary = result.toMap();
+            response.put("acked", result.isAllAcked());
+            response.put("acks", summary.get("acks"));
+            response.put("max_ack_latency_ms", result.getMaxAckLatencyMillis());
+            response.put("skew_ms", result.getSkewMillis());
+            return ResponseEntity.ok(response);
+        });
     }
 
     @PostMapping("/route/preflight")
@@ -2,6 +2,10 @@ package com.lannooo.service;
 
 import com.lannooo.common.Utils;
 import com.lannooo.device.DeviceManager;
+import com.lannooo.device.PendingRequestManager;
+import com.lannooo.server.FrameSettings;
+import com.lannooo.server.NettyTransport;
+import com.lannooo.server.PriorityWriteHandler;
 import com.lannooo.server.ServerDecoder;
 import com.lannooo.server.ServerEncoder;
 import com.lannooo.server.ServerHandler;
@@ -10,10 +14,8 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
@@ -38,31 +40,37 @@ public class NettyService {
     @Autowired
     private UltrasonicCaptureService ultrasonicCaptureService;
 
+    @Autowired
+    private NettyTransport transport;
+
+    @Autowired
+    private PendingRequestManager pendingRequests;
+
     private ChannelFuture future;
-    private NioEventLoopGroup boss;
-    private NioEventLoopGroup worker;
+    private EventLoopGroup boss;
+    private EventLoopGroup worker;
 
     public void startServer(int port) {
         Assert.notNull(deviceManager, "DeviceManager is not initialized");
 
-        boss = new NioEventLoopGroup();
-        worker = new NioEventLoopGroup();
-        ServerBootstrap b = new ServerBootstrap()
-                .group(boss, worker)
-                .channel(NioServerSocketChannel.class)
+        boss = transport.newBossGroup();
+        worker = transport.newWorkerGroup();
+        ServerBootstrap b = transport.configure(new ServerBootstrap().group(boss, worker))
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel socketChannel) throws Exception {
                         ChannelPipeline pipeline = socketChannel.pipeline();
-                        pipeline.addLast(new LengthFieldBasedFrameDecoder(4096, 8, 4, 0, 0));
+                        pipeline.addLast(FrameSettings.DECODER_NAME, FrameSettings.DEFAULTS.newFrameDecoder());
                         pipeline.addLast(new ServerEncoder());
                         pipeline.addLast(new ServerDecoder());
-                        pipeline.addLast(new ServerHandler(asyncService, deviceManager, ultrasonicCaptureService, shellHelper));
+                        // commands go out at once, file chunks only while little of them is still unwritten
+                        pipeline.addLast(new PriorityWriteHandler(transport.getBulkInFlight()));
+                        pipeline.addLast(new ServerHandler(asyncService, deviceManager, ultrasonicCaptureService, shellHelper, pendingRequests));
                     }
                 });
         try {
             future = b.bind(port).sync();
-            logger.info("Server started on port: " + port);
+            logger.info("Server started on port: " + port + " with " + transport);
         } catch (InterruptedException e) {
             logger.severe("Failed to start server" + e);
             throw new RuntimeException(e);
@@ -0,0 +1,151 @@
+package com.lannooo.service;
+
+import com.lannooo.common.EventLog;
+import com.lannooo.common.Utils;
+import com.lannooo.device.UploadReceivedListener;
+import com.lannooo.dsp.ChirpAligner;
+import com.lannooo.dsp.FmcwChirp;
+import com.lannooo.dsp.FrameIndex;
+import com.lannooo.dsp.PcmWav;
+import com.lannooo.dsp.RangeProfileEngine;
+import com.lannooo.dsp.RangeTimeMatrix;
+import com.lannooo.model.UltrasonicFmcwConfig;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Computes the range-time matrix of every FMCW capture as soon as its recording is uploaded: the chirps are
+ * located in the recording first, see {@link ChirpAligner}, then profiled where they were found, see
+ * {@link RangeProfileEngine}. A summary of the last run on each file is kept for the capture status.
+ * <p>
+ * A recording is matched to its capture by the output name the capture was started with. Only the capture
+ * started last is expected: starting one drops the results of the one before, and a result of an earlier
+ * capture finished after that is not kept. The work is done by one thread of its own, the upload writers only
+ * hand the files over.
+ */
+@Service
+public class RangeProfileService implements UploadReceivedListener {
+    private static final Logger logger = Utils.getLogger(RangeProfileService.class);
+
+    // the capture expected, null if none or not FMCW
+    private volatile Capture capture;
+    // local file -> summary of its profiles, for the capture expected
+    private final Map<String, Map<String, Object>> results = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "range-profile");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Value("${dsp.range.enabled:true}")
+    private boolean enabled = true;
+
+    // analysis window of each received chirp
+    @Value("${dsp.range.window:hann}")
+    private String window = "hann";
+
+    // normalised correlation a received chirp has at least with the played one
+    @Value("${dsp.align.threshold:0.3}")
+    private float alignThreshold = 0.3f;
+
+    /**
+     * Profile the recordings of a capture uploaded from now on, instead of those of the capture before.
+     *
+     * @param session the capture, see {@link UltrasonicCaptureService}
+     */
+    public synchronized void expect(long session, String output, UltrasonicFmcwConfig config) {
+        boolean fmcw = output != null && config != null && config.isEnabled() && "fmcw".equalsIgnoreCase(config.getMode());
+        capture = fmcw ? new Capture(session, baseName(output), config) : null;
+        results.clear();
+    }
+
+    @Override
+    public void onUploadReceived(String key, String remoteFilename, Path file) {
+        Capture expected = enabled ? capture : null;
+        if (expected == null || !expected.output.equals(baseName(remoteFilename))) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                Map<String, Object> summary = new LinkedHashMap<>();
+                summary.put("device", key);
+                summary.put("session", expected.session);
+                summary.putAll(process(file, expected.config));
+                synchronized (this) {
+                    if (capture != expected) {
+                        // another capture started meanwhile
+                        return;
+                    }
+                    results.put(file.toString(), summary);
+                }
+                EventLog.log(EventLog.Category.TRANSFER, "range_profile",
+                        "device", key, "file", file, "rows", summary.get("rows"), "bins", summary.get("bins"),
+                        "peak_db", summary.get("peak_db"), "noise_floor_db", summary.get("noise_floor_db"),
+                        "alignment", summary.get("alignment"), "ms", summary.get("ms"));
+            } catch (IOException | RuntimeException e) {
+                logger.warning("Failed to profile " + file + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Write the frame index and the range-time matrix of a recording next to it, on the calling thread. If no
+     * chirp is found, the chirps are taken to start with the recording.
+     *
+     * @return the summary of the matrix, with the one of the alignment
+     */
+    public Map<String, Object> process(Path wavFile, UltrasonicFmcwConfig config) throws IOException {
+        PcmWav wav = PcmWav.open(wavFile);
+        FmcwChirp chirp = new FmcwChirp(config);
+        FrameIndex index = new ChirpAligner(chirp, alignThreshold).align(wav);
+        index.write(FrameIndex.pathFor(wavFile));
+        RangeProfileEngine engine = new RangeProfileEngine(chirp, window);
+        double[] starts = index.size() > 0 ? index.getStarts() : engine.regularStarts(wav.getFrames());
+        RangeProfileEngine.Result result = engine.process(wav, starts, RangeTimeMatrix.pathFor(wavFile));
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("matrix", RangeTimeMatrix.pathFor(wavFile).toString());
+        summary.putAll(result.toMap());
+        summary.put("alignment", index.toMap());
+        return summary;
+    }
+
+    /**
+     * @return the summaries of the recordings of the capture expected profiled so far, by local file
+     */
+    public Map<String, Map<String, Object>> getResults() {
+        return new LinkedHashMap<>(results);
+    }
+
+    private static String baseName(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        int dot = base.lastIndexOf('.');
+        return dot > 0 ? base.substring(0, dot) : base;
+    }
+
+    private static final class Capture {
+        private final long session;
+        private final String output;
+        private final UltrasonicFmcwConfig config;
+
+        private Capture(long session, String output, UltrasonicFmcwConfig config) {
+            this.session = session;
+            this.output = output;
+            this.config = config;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
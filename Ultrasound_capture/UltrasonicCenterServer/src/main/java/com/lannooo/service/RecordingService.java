@@ -2,6 +2,8 @@ package com.lannooo.service;
 
 import com.lannooo.common.Utils;
 import com.lannooo.device.DeviceManager;
+import com.lannooo.server.BroadcastResult;
+import com.lannooo.server.MessageRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -31,6 +33,9 @@ public class RecordingService {
     // 录制参数缓存
     private final ConcurrentHashMap<String, Object> recordingParams = new ConcurrentHashMap<>();
 
+    // 最近一次开始指令的广播结果（各设备发送完成时间及偏差）
+    private volatile BroadcastResult startBroadcast = null;
+
     /**
      * 开始录制
      * @param sceneId 场景ID
@@ -61,34 +66,27 @@ public class RecordingService {
             recordingParams.put("timestamp", timestamp);
             recordingParams.put("duration", duration);
 
-            // 对所有连接的设备发送录制指令
-            boolean success = false;
-            for (String key : deviceKeys) {
-                try {
-                    // 调用远程音频服务开始录制
-                    remoteAudioService.captureAudio(
-                        key,           // 设备key
-                        "start",       // 动作
-                        "single",      // 模式：单次录制
-                        sceneId,       // 输出文件名（场景ID）
-                        duration,      // 持续时间
-                        false,         // 不处理
-                        true,          // 转发数据
-                        false,         // 录制后不删除
-                        true           // 使用超声波模式
-                    );
-                    
-                    success = true;
-                    logger.info("Started recording on device: " + key);
-                    
-                } catch (Exception e) {
-                    logger.severe("Failed to start recording on device " + key + ": " + e.getMessage());
-                }
-            }
+            // 对所有连接的设备广播录制指令（只编码一次，同时发出）
+            MessageRequest request = remoteAudioService.captureRequest(
+                "start",       // 动作
+                "single",      // 模式：单次录制
+                sceneId,       // 输出文件名（场景ID）
+                duration,      // 持续时间
+                false,         // 不处理
+                true,          // 转发数据
+                false,         // 录制后不删除
+                true           // 使用超声波模式
+            );
+            BroadcastResult broadcast = remoteAudioService.broadcast(deviceKeys, request);
+            boolean success = broadcast.getTargets() > 0;
 
             if (success) {
                 isRecording = true;
                 currentScene = sceneId;
+                startBroadcast = broadcast;
+                logger.info("Started recording on " + broadcast.getTargets() + " devices");
+            } else {
+                logger.severe("Failed to start recording, no active device channel");
             }
 
             return success;
@@ -113,32 +111,19 @@ public class RecordingService {
 
             logger.info("Stopping recording for scene: " + currentScene);
 
-            // 对所有连接的设备发送停止指令
+            // 对所有连接的设备广播停止指令
             Set<String> deviceKeys = deviceManager.getDeviceKeys();
-            boolean success = false;
-            
-            for (String key : deviceKeys) {
-                try {
-                    // 调用远程音频服务停止录制
-                    remoteAudioService.captureAudio(
-                        key,           // 设备key
-                        "stop",        // 动作
-                        null,          // 模式（停止时不需要）
-                        null,          // 输出文件名（停止时不需要）
-                        0,             // 持续时间（停止时不需要）
-                        false,         // 不处理
-                        false,         // 不转发
-                        false,         // 不删除
-                        false          // 超声波模式（停止时不需要）
-                    );
-                    
-                    success = true;
-                    logger.info("Stopped recording on device: " + key);
-                    
-                } catch (Exception e) {
-                    logger.severe("Failed to stop recording on device " + key + ": " + e.getMessage());
-                }
-            }
+            MessageRequest request = remoteAudioService.captureRequest(
+                "stop",        // 动作
+                null,          // 模式（停止时不需要）
+                null,          // 输出文件名（停止时不需要）
+                0,             // 持续时间（停止时不需要）
+                false,         // 不处理
+                false,         // 不转发
+                false,         // 不删除
+                false          // 超声波模式（停止时不需要）
+            );
+            boolean success = remoteAudioService.broadcast(deviceKeys, request).getTargets() > 0;
 
             if (success) {
                 isRecording = false;
@@ -181,4 +166,12 @@ public class RecordingService {
     public Object getRecordingParam(String key) {
         return recordingParams.get(key);
     }
+
+    /**
+     * 获取最近一次开始指令的广播结果
+     * @return 广播结果，未开始过录制则返回null
+     */
+    public BroadcastResult getStartBroadcast() {
+        return startBroadcast;
+    }
 }
@@ -1,21 +1,45 @@
 package com.lannooo.service;
 
+import com.lannooo.common.EventLog;
 import com.lannooo.common.Utils;
 import com.lannooo.device.ChannelManager;
+import com.lannooo.device.DeviceAck;
 import com.lannooo.device.FileUploadListener;
+import com.lannooo.device.PendingRequestManager;
 import com.lannooo.model.UltrasonicFmcwConfig;
+import com.lannooo.server.BroadcastResult;
+import com.lannooo.server.ChunkedMessageFile;
+import com.lannooo.server.FrameSettings;
 import com.lannooo.server.Message;
+import com.lannooo.server.MessageCodec;
 import com.lannooo.server.MessageRequest;
+import com.lannooo.server.ServerEncoder;
+import com.lannooo.server.SharedUploadFile;
+import com.lannooo.server.UploadFanOut;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
-import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelProgressiveFuture;
+import io.netty.channel.ChannelProgressiveFutureListener;
+import io.netty.channel.ChannelProgressivePromise;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.ChannelGroupFuture;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 @Component
@@ -25,7 +49,10 @@ public class RemoteAudioService {
     @Autowired
     private ChannelManager channelManager;
 
-    public void captureAudio(String key,
+    @Autowired
+    private PendingRequestManager pendingRequests;
+
+    public CompletableFuture<DeviceAck> captureAudio(String key,
                              String action,
                              String mode,
                              String output,
@@ -34,7 +61,17 @@ public class RemoteAudioService {
                              boolean forward,
                              boolean postDelete,
                              boolean ultrasonic) {
-        Channel ch = Objects.requireNonNull(channelManager.getChannel(key));
+        return send(key, captureRequest(action, mode, output, duration, process, forward, postDelete, ultrasonic));
+    }
+
+    public MessageRequest captureRequest(String action,
+                                         String mode,
+                                         String output,
+                                         int duration,
+                                         boolean process,
+                                         boolean forward,
+                                         boolean postDelete,
+                                         boolean ultrasonic) {
         MessageRequest request = new MessageRequest("capture");
         request.put("action", action);
         if ("start".equalsIgnoreCase(action)) {
@@ -46,11 +83,10 @@ public class RemoteAudioService {
             request.put("delete", postDelete);
             request.put("ultra", ultrasonic);
         }
-        Message message = new Message(Message.MessageType.REQUEST, request.toJsonString().getBytes());
-        ch.writeAndFlush(message);
+        return request;
     }
 
-    public void captureUltrasonic(String key,
+    public CompletableFuture<DeviceAck> captureUltrasonic(String key,
                                   String action,
                                   String mode,
                                   String output,
@@ -59,10 +95,20 @@ public class RemoteAudioService {
                                   boolean forward,
                                   boolean postDelete,
                                   UltrasonicFmcwConfig config) {
-        Channel ch = Objects.requireNonNull(channelManager.getChannel(key));
+        return send(key, ultrasonicCaptureRequest(action, mode, output, duration, process, forward, postDelete, config));
+    }
+
+    public MessageRequest ultrasonicCaptureRequest(String action,
+                                                   String mode,
+                                                   String output,
+                                                   int duration,
+                                                   boolean process,
+                                                   boolean forward,
+                                                   boolean postDelete,
+                                                   UltrasonicFmcwConfig config) {
         MessageRequest request = new MessageRequest("capture");
         request.put("action", action);
-            request.put("ultra", true);
+        request.put("ultra", true);
         if ("start".equalsIgnoreCase(action)) {
             request.put("mode", mode);
             request.put("output", output);
@@ -81,16 +127,81 @@ public class RemoteAudioService {
             request.put("ultra_window_type", config.getWindowType());
             request.put("ultra_repeat", config.isRepeat());
         }
-        Message message = new Message(Message.MessageType.REQUEST, request.toJsonString().getBytes());
-        ch.writeAndFlush(message);
+        return request;
     }
 
-    public void stopUltrasonicCapture(String key) {
-        captureUltrasonic(key, "stop", "pro", "", 0, false, false, false, new UltrasonicFmcwConfig());
+    public MessageRequest stopUltrasonicRequest() {
+        return ultrasonicCaptureRequest("stop", "pro", "", 0, false, false, false, new UltrasonicFmcwConfig());
     }
 
-    public void playAudio(String key, String action, String mode, boolean enableLoop, String inputFile) {
-        Channel ch = Objects.requireNonNull(channelManager.getChannel(key));
+    public BroadcastResult broadcast(Collection<String> keys, MessageRequest request) {
+        return broadcast(keys, request, pendingRequests.getDefaultTimeoutMillis());
+    }
+
+    /**
+     * Send the same request to several devices at once. The frame is encoded once per negotiated format,
+     * written to every channel as a retained duplicate of that buffer and only then flushed, so that all
+     * devices get it as close together as possible. All devices share the request id, their responses are
+     * collected in the result.
+     *
+     * @return the per device send completion and acks, keys without an active channel are reported as missing
+     */
+    public BroadcastResult broadcast(Collection<String> keys, MessageRequest request, long ackTimeoutMillis) {
+        Map<MessageCodec.Format, ChannelGroup> groups = new EnumMap<>(MessageCodec.Format.class);
+        Map<Channel, String> channelKeys = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String key : keys) {
+            Channel ch = channelManager.getChannel(key);
+            if (ch == null || !ch.isActive()) {
+                missing.add(key);
+                continue;
+            }
+            groups.computeIfAbsent(MessageCodec.formatOf(ch),
+                    f -> new DefaultChannelGroup(GlobalEventExecutor.INSTANCE)).add(ch);
+            channelKeys.put(ch, key);
+        }
+
+        BroadcastResult result = new BroadcastResult(request.getSubtype(), channelKeys.size(), missing);
+        long id = pendingRequests.assignId(request);
+        for (String key : channelKeys.values()) {
+            result.trackAck(key, pendingRequests.register(key, request, ackTimeoutMillis));
+        }
+        Message message = new Message(Message.MessageType.REQUEST, request);
+        List<ChannelGroupFuture> futures = new ArrayList<>(groups.size());
+        for (Map.Entry<MessageCodec.Format, ChannelGroup> entry : groups.entrySet()) {
+            ChannelGroup group = entry.getValue();
+            ByteBuf frame = group.iterator().next().alloc().buffer(256);
+            ServerEncoder.writeFrame(message, entry.getKey(), frame);
+            // the group writes a retained duplicate to each channel and releases the frame afterwards
+            futures.add(group.write(frame));
+        }
+        groups.values().forEach(ChannelGroup::flush);
+
+        for (ChannelGroupFuture groupFuture : futures) {
+            for (ChannelFuture future : groupFuture) {
+                String key = channelKeys.get(future.channel());
+                result.track(key, future);
+                future.addListener(f -> {
+                    if (!f.isSuccess()) {
+                        pendingRequests.fail(key, id, f.cause());
+                    }
+                });
+            }
+        }
+        result.completion().thenAccept(r -> EventLog.log(EventLog.Category.OUTBOUND, "broadcast",
+                "subtype", request.getSubtype(),
+                "id", id,
+                "sent", r.getSentCount(),
+                "targets", r.getTargets(),
+                "skew_ms", r.getSkewMillis()));
+        return result;
+    }
+
+    public CompletableFuture<DeviceAck> stopUltrasonicCapture(String key) {
+        return send(key, stopUltrasonicRequest());
+    }
+
+    public CompletableFuture<DeviceAck> playAudio(String key, String action, String mode, boolean enableLoop, String inputFile) {
         MessageRequest request = new MessageRequest("playback");
         request.put("action", action);
         if ("start".equalsIgnoreCase(action)) {
@@ -98,89 +209,243 @@ public class RemoteAudioService {
             request.put("loop", enableLoop);
             request.put("input", inputFile);
         }
-        Message message = new Message(Message.MessageType.REQUEST, request.toJsonString().getBytes());
-        ch.writeAndFlush(message);
+        return send(key, request);
     }
 
-    public void uploadFile(String key,
-                           File file,
-                           FileUploadListener listener) {
-        Channel ch = Objects.requireNonNull(channelManager.getChannel(key));
-        try {
-            ChunkedNioFile chunkedNioFile = new ChunkedNioFile(file, 2048);
-            int length = (int) chunkedNioFile.length();
-            int chunks = length / 2048;
-            if (length % 2048 != 0) {
-                chunks++;
-            }
-
-            MessageRequest request = new MessageRequest("upload");
-            request.put("filepath", file.toPath().getFileName().toString());
-            request.put("chunks", chunks);
-            request.put("length", length);
-            Message message = new Message(Message.MessageType.REQUEST, request.toJsonString().getBytes());
-            ch.writeAndFlush(message).addListener(future -> {
-                if (future.isSuccess()) {
-                    logger.info("Upload request sent");
-                    if (listener != null) {
-                        listener.onStart("Upload started");
-                    }
-                } else {
-                    logger.severe("Upload request failed: " + future.cause().getMessage());
-                    if (listener != null) {
-                        listener.onFailed("Upload request sent failed");
-                    }
-                }
-            });
-
-            ByteBufAllocator alloc = ch.alloc();
-            int chunkId = 0;
-            while (!chunkedNioFile.isEndOfInput()) {
-                long offset = chunkedNioFile.currentOffset();
-                ByteBuf byteBuf = chunkedNioFile.readChunk(alloc);
-                ByteBuf tgt = alloc.buffer(byteBuf.readableBytes() + 16)
-                        .writeInt(++chunkId)
-                        .writeInt(chunks)
-                        .writeInt((int) offset)
-                        .writeInt(length)
-                        .writeBytes(byteBuf);
-                logger.info("Sending chunk: " + chunkId + "/" + chunks + " position: " + offset + "/" + length);
-                ch.writeAndFlush(new Message(Message.MessageType.DATA_TRANSFER, tgt));
+    /**
+     * Send the same files to several devices at once. Each file is mapped once, and all transfers share its
+     * chunks; every device pulls them at its own pace through its PriorityWriteHandler, so a slow one does not
+     * hold up the others.
+     *
+     * @param listener hears the progress and the end of all transfers together
+     * @return the aggregate progress, keys without an active channel are reported as missing
+     */
+    public UploadFanOut uploadFiles(Collection<String> keys, List<File> files, FileUploadListener listener) {
+        List<SharedUploadFile> shared = new ArrayList<>(files.size());
+        long bytes = 0;
+        for (File file : files) {
+            try {
+                SharedUploadFile sharedFile = SharedUploadFile.open(file);
+                shared.add(sharedFile);
+                bytes += sharedFile.length();
+            } catch (IOException e) {
+                logger.severe("Error while reading file: " + e.getMessage());
                 if (listener != null) {
-                    listener.onProgress(chunkId, chunks);
+                    listener.onFailed("Error while reading file " + file.getName());
                 }
             }
-            if (listener != null) {
-                listener.onSuccess("Upload completed");
+        }
+        List<String> targets = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (String key : keys) {
+            Channel ch = channelManager.getChannel(key);
+            if (ch == null || !ch.isActive()) {
+                missing.add(key);
+            } else {
+                targets.add(key);
+            }
+        }
+
+        UploadFanOut fanOut = new UploadFanOut(shared.size(), targets.size(), bytes, missing, listener);
+        for (String key : targets) {
+            // queued at once, the channel interleaves them if the device has transfer ids
+            // and sends them one after the other otherwise
+            for (SharedUploadFile file : shared) {
+                try {
+                    fanOut.track(key, file.getName(), uploadFile(key, file, null));
+                } catch (RuntimeException e) {
+                    fanOut.failed(key, file.getName(), String.valueOf(e));
+                }
             }
+        }
+        fanOut.completion().thenAccept(f -> EventLog.log(EventLog.Category.TRANSFER, "upload_fanout",
+                "files", f.getFiles(),
+                "targets", f.getTargets(),
+                "missing", f.getMissing().size(),
+                "failed", f.getFailures().size(),
+                "bytes", f.getSentBytes(),
+                "ms", Math.round(f.getElapsedMillis()),
+                "mb_per_s", Math.round(f.getSentBytes() / 1e3 / Math.max(f.getElapsedMillis(), 1) * 100) / 100.0));
+        return fanOut;
+    }
+
+    /**
+     * Stream a file to the device. Chunks are pulled by the PriorityWriteHandler only while little file data
+     * is still unwritten, so commands sent meanwhile overtake the upload.
+     *
+     * @return the future of the whole transfer, completed when the last chunk is written
+     */
+    public ChannelFuture uploadFile(String key,
+                                    File file,
+                                    FileUploadListener listener) {
+        SharedUploadFile shared;
+        try {
+            shared = SharedUploadFile.open(file);
         } catch (IOException e) {
             logger.severe("Error while reading file: " + e.getMessage());
             if (listener != null) {
                 listener.onFailed("Error while reading file");
             }
             throw new RuntimeException(e);
-        } catch (Exception e) {
-            logger.severe("Error while sending file: " + e.getMessage());
-            if (listener != null) {
-                listener.onFailed("Error while sending file");
-            }
-            throw new RuntimeException(e);
         }
+        return uploadFile(key, shared, listener);
     }
 
-    public void deleteFile(String key,
-                           String path) {
+    /**
+     * Stream a file that may be sent to other devices as well, see {@link #uploadFile(String, File, FileUploadListener)}.
+     * A device with a {@link FrameSettings#isContentCache() content cache} is asked first whether it already has
+     * the content, and the chunks are only sent if it does not.
+     *
+     * @return the future of the whole transfer, reporting the bytes flushed so far
+     */
+    public ChannelProgressiveFuture uploadFile(String key,
+                                               SharedUploadFile file,
+                                               FileUploadListener listener) {
         Channel ch = Objects.requireNonNull(channelManager.getChannel(key));
+        MessageRequest request = new MessageRequest("upload");
+        long id = pendingRequests.assignId(request);
+        FrameSettings settings = FrameSettings.of(ch);
+        // the request id doubles as the transfer id, devices that cannot interleave files get none
+        int transferId = settings.isTransferIds() ? (int) id : 0;
+        ChunkedMessageFile chunkedFile = new ChunkedMessageFile(file, settings.getChunkSize(), transferId,
+                settings.isChunkCrc());
+        int chunks = chunkedFile.getChunks();
+        int chunkSize = chunkedFile.getChunkSize();
+
+        request.put("filepath", file.getName());
+        request.put("chunks", chunks);
+        request.put("length", chunkedFile.length());
+        if (transferId != 0) {
+            request.put("transfer_id", transferId);
+        }
+        // the answer is only read to learn whether the device has the file already
+        boolean askCache = settings.isContentCache() && transferId != 0 && settings.isRequestIds();
+        if (askCache) {
+            request.put("sha256", file.getSha256());
+        }
+        AtomicBoolean cached = new AtomicBoolean();
+        long startNanos = System.nanoTime();
+        ChannelProgressivePromise promise = ch.newProgressivePromise();
+
+        Message message = new Message(Message.MessageType.REQUEST, request);
+        ch.write(message).addListener(future -> {
+            if (future.isSuccess()) {
+                EventLog.log(EventLog.Category.TRANSFER, "upload_start",
+                        "device", key, "transfer", transferId, "file", file.getName(), "chunks", chunks);
+                if (listener != null) {
+                    listener.onStart("Upload started");
+                }
+                if (askCache) {
+                    // the request may have queued behind earlier uploads, wait for the answer only from now on
+                    pendingRequests.register(key, request, pendingRequests.getDefaultTimeoutMillis())
+                            .whenComplete((ack, error) -> {
+                                if (error != null) {
+                                    promise.tryFailure(error);
+                                } else if (!ack.isOk()) {
+                                    promise.tryFailure(new IOException("Upload refused: " + ack.getMessage()));
+                                } else if (Boolean.TRUE.equals(ack.getData().get("cached"))) {
+                                    // the device took the file from its cache, nothing to send
+                                    cached.set(true);
+                                    promise.tryProgress(chunkedFile.length(), chunkedFile.length());
+                                    promise.trySuccess();
+                                } else {
+                                    ch.writeAndFlush(chunkedFile, promise);
+                                }
+                            });
+                }
+            } else {
+                logger.severe("Upload request failed: " + future.cause().getMessage());
+                if (listener != null) {
+                    listener.onFailed("Upload request sent failed");
+                }
+                if (askCache) {
+                    promise.tryFailure(future.cause());
+                }
+            }
+        });
+
+        promise.addListener(new ChannelProgressiveFutureListener() {
+            @Override
+            public void operationProgressed(ChannelProgressiveFuture future, long progress, long total) {
+                int sent = (int) ((progress + chunkSize - 1) / chunkSize);
+                if (listener != null) {
+                    listener.onProgress(sent, chunks);
+                }
+            }
+
+            @Override
+            public void operationComplete(ChannelProgressiveFuture future) {
+                if (future.isSuccess()) {
+                    double elapsedMs = (System.nanoTime() - startNanos) / 1e6;
+                    EventLog.log(EventLog.Category.TRANSFER, "upload_sent",
+                            "device", key,
+                            "transfer", transferId,
+                            "file", file.getName(),
+                            "chunks", chunks,
+                            "bytes", chunkedFile.length(),
+                            "cached", cached.get(),
+                            "ms", Math.round(elapsedMs));
+                    if (listener != null) {
+                        listener.onSuccess(cached.get() ? "Already on the device" : "Upload completed");
+                    }
+                } else {
+                    logger.severe("Error while sending file: " + future.cause().getMessage());
+                    if (listener != null) {
+                        listener.onFailed("Error while sending file");
+                    }
+                }
+            }
+        });
+        if (askCache) {
+            ch.flush();
+        } else {
+            // the PriorityWriteHandler closes the file when it is done or the channel goes away
+            ch.writeAndFlush(chunkedFile, promise);
+        }
+        return promise;
+    }
+
+    public CompletableFuture<DeviceAck> deleteFile(String key,
+                                                   String path) {
         MessageRequest request = new MessageRequest("delete");
         request.put("filepath", path);
-        Message message = new Message(Message.MessageType.REQUEST, request.toJsonString().getBytes());
-        ch.writeAndFlush(message);
+        return send(key, request);
+    }
+
+    /**
+     * Ask the device to send a file back, it arrives as an upload of its own.
+     */
+    public CompletableFuture<DeviceAck> downloadFile(String key,
+                                                     String path,
+                                                     boolean postDelete) {
+        MessageRequest request = new MessageRequest("download");
+        request.put("file", path);
+        request.put("delete", postDelete);
+        return send(key, request);
     }
 
-    public void listFiles(String key) {
+    public CompletableFuture<DeviceAck> listFiles(String key) {
+        return send(key, new MessageRequest("list"));
+    }
+
+    public CompletableFuture<DeviceAck> send(String key, MessageRequest request) {
+        return send(key, request, pendingRequests.getDefaultTimeoutMillis());
+    }
+
+    /**
+     * Number the request, send it and wait for the device's response to it.
+     *
+     * @return completed with the device's ack, exceptionally if it could not be sent or timed out
+     */
+    public CompletableFuture<DeviceAck> send(String key, MessageRequest request, long timeoutMillis) {
         Channel ch = Objects.requireNonNull(channelManager.getChannel(key));
-        MessageRequest request = new MessageRequest("list");
-        Message message = new Message(Message.MessageType.REQUEST, request.toJsonString().getBytes());
-        ch.writeAndFlush(message);
+        long id = pendingRequests.assignId(request);
+        CompletableFuture<DeviceAck> ack = pendingRequests.register(key, request, timeoutMillis);
+        ch.writeAndFlush(new Message(Message.MessageType.REQUEST, request)).addListener(future -> {
+            if (!future.isSuccess()) {
+                pendingRequests.fail(key, id, future.cause());
+            }
+        });
+        return ack;
     }
 }
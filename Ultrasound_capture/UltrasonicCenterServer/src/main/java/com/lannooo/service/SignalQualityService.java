@@ -0,0 +1,156 @@
+package com.lannooo.service;
+
+import com.lannooo.common.EventLog;
+import com.lannooo.device.UploadChunkListener;
+import com.lannooo.device.UploadReceivedListener;
+import com.lannooo.dsp.QualityAnalyzer;
+import com.lannooo.model.UltrasonicFmcwConfig;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures the quality of every ultrasonic capture while its recording is uploaded, see {@link QualityAnalyzer},
+ * so that a bad one can be recorded again before the file is even complete. The measures of each file are kept
+ * for the capture status, updated with every chunk.
+ * <p>
+ * A recording is matched to its capture by the output name the capture was started with, its band and sample
+ * rate are those of the capture. Only the capture started last is expected: starting one drops the measures of
+ * the one before, and of the uploads of one capture at most {@link #MAX_RESULTS} are kept, the ones finished
+ * first go first. The chunks are measured on the upload writers as they are written.
+ */
+@Service
+public class SignalQualityService implements UploadChunkListener, UploadReceivedListener {
+    // a device uploads a recording once, again only if that failed
+    public static final int MAX_RESULTS = 64;
+
+    // the capture expected, null if none
+    private volatile Capture capture;
+    // local file -> its measures, for the capture expected, in the order the uploads started
+    private final Map<String, Measured> results = new LinkedHashMap<>();
+
+    @Value("${quality.enabled:true}")
+    private boolean enabled = true;
+
+    // left out of the noise floor on either side of the band
+    @Value("${quality.guard-hz:500}")
+    private double guardHz = 500;
+
+    // the shortest run of zero samples that is a dropout
+    @Value("${quality.dropout-ms:2}")
+    private double dropoutMillis = 2;
+
+    /**
+     * Measure the recordings of a capture uploaded from now on, instead of those of the capture before.
+     *
+     * @param session the capture, see {@link UltrasonicCaptureService}
+     */
+    public synchronized void expect(long session, String output, UltrasonicFmcwConfig config) {
+        boolean ultrasonic = output != null && config != null && config.isEnabled();
+        capture = ultrasonic ? new Capture(session, baseName(output), config) : null;
+        results.clear();
+    }
+
+    @Override
+    public synchronized Observer onUploadStarted(String key, String remoteFilename, Path file) {
+        Capture expected = enabled ? capture : null;
+        if (expected == null || !expected.output.equals(baseName(remoteFilename))) {
+            return null;
+        }
+        UltrasonicFmcwConfig config = expected.config;
+        QualityAnalyzer analyzer = new QualityAnalyzer(config.getSampleRateHz(), config.getStartFreqHz(),
+                config.getEndFreqHz(), guardHz, dropoutMillis);
+        // an upload of the same file again starts over
+        results.remove(file.toString());
+        results.put(file.toString(), new Measured(key, expected.session, analyzer));
+        evict();
+        return analyzer::accept;
+    }
+
+    /**
+     * Drop the oldest finished uploads beyond the limit, those in progress stay.
+     */
+    private void evict() {
+        Iterator<Measured> it = results.values().iterator();
+        int excess = results.size() - MAX_RESULTS;
+        while (excess > 0 && it.hasNext()) {
+            if (it.next().complete) {
+                it.remove();
+                excess--;
+            }
+        }
+    }
+
+    @Override
+    public void onUploadReceived(String key, String remoteFilename, Path file) {
+        Measured measured;
+        synchronized (this) {
+            measured = results.get(file.toString());
+            if (measured == null) {
+                return;
+            }
+            measured.complete = true;
+            evict();
+        }
+        Map<String, Object> summary = measured.analyzer.toMap();
+        EventLog.log(EventLog.Category.TRANSFER, "signal_quality",
+                "device", key, "file", file, "seconds", summary.get("seconds"), "in_band_db", summary.get("in_band_db"),
+                "snr_db", summary.get("snr_db"), "clipping_ratio", summary.get("clipping_ratio"),
+                "dropouts", summary.get("dropouts"));
+    }
+
+    /**
+     * @return the measures of the recordings of the capture expected uploaded or being uploaded, by local file
+     */
+    public Map<String, Map<String, Object>> getResults() {
+        Map<String, Measured> current;
+        synchronized (this) {
+            current = new LinkedHashMap<>(results);
+        }
+        Map<String, Map<String, Object>> map = new LinkedHashMap<>();
+        current.forEach((file, measured) -> {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("device", measured.device);
+            summary.put("session", measured.session);
+            summary.put("complete", measured.complete);
+            summary.putAll(measured.analyzer.toMap());
+            map.put(file, summary);
+        });
+        return map;
+    }
+
+    private static String baseName(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        int dot = base.lastIndexOf('.');
+        return dot > 0 ? base.substring(0, dot) : base;
+    }
+
+    private static final class Capture {
+        private final long session;
+        private final String output;
+        private final UltrasonicFmcwConfig config;
+
+        private Capture(long session, String output, UltrasonicFmcwConfig config) {
+            this.session = session;
+            this.output = output;
+            this.config = config;
+        }
+    }
+
+    private static final class Measured {
+        private final String device;
+        private final long session;
+        private final QualityAnalyzer analyzer;
+        private volatile boolean complete;
+
+        private Measured(String device, long session, QualityAnalyzer analyzer) {
+            this.device = device;
+            this.session = session;
+            this.analyzer = analyzer;
+        }
+    }
+}
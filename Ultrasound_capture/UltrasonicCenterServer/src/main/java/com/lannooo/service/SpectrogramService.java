@@ -0,0 +1,170 @@
+package com.lannooo.service;
+
+import com.lannooo.common.AppConstants;
+import com.lannooo.common.EventLog;
+import com.lannooo.common.Utils;
+import com.lannooo.device.UploadReceivedListener;
+import com.lannooo.dsp.PcmWav;
+import com.lannooo.dsp.SpectrogramEngine;
+import com.lannooo.dsp.SpectrogramTile;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Spectrogram previews of the recordings under the audio directory, in the ultrasonic band and a few
+ * milliseconds per column. A recording is cut into tiles of a fixed number of columns, each computed on its
+ * own from the samples it covers; the overview pools the whole recording into one tile.
+ * <p>
+ * Computed tiles are kept in memory, the least recently used dropped beyond the cache size. The overview and
+ * the first tile of every recording uploaded are computed right away, by a thread of their own.
+ */
+@Service
+public class SpectrogramService implements UploadReceivedListener {
+    private static final Logger logger = Utils.getLogger(SpectrogramService.class);
+    // tile index of the overview
+    public static final int OVERVIEW = -1;
+
+    @Value("${spectrogram.fft-size:1024}")
+    private int fftSize = 1024;
+
+    @Value("${spectrogram.hop:256}")
+    private int hop = 256;
+
+    @Value("${spectrogram.low-hz:16000}")
+    private double lowHz = 16000;
+
+    @Value("${spectrogram.high-hz:24000}")
+    private double highHz = 24000;
+
+    @Value("${spectrogram.column-ms:20}")
+    private double columnMs = 20;
+
+    @Value("${spectrogram.tile-columns:256}")
+    private int tileColumns = 256;
+
+    @Value("${spectrogram.overview-columns:1024}")
+    private int overviewColumns = 1024;
+
+    @Value("${spectrogram.cache-mb:64}")
+    private long cacheMb = 64;
+
+    // "file#modified#tile" -> tile, in the order of use
+    private final LinkedHashMap<String, SpectrogramTile> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "spectrogram");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param name a path below the audio directory
+     * @return the recording, null if the name leads outside the audio directory or to nothing
+     */
+    public Path resolve(String name) {
+        Path base = Paths.get(AppConstants.AUDIO_BASE_PATH).toAbsolutePath().normalize();
+        Path file = base.resolve(name).normalize();
+        return file.startsWith(base) && Files.isRegularFile(file) ? file : null;
+    }
+
+    /**
+     * @return the geometry of the spectrogram of a recording
+     */
+    public Map<String, Object> info(Path file) throws IOException {
+        PcmWav wav = PcmWav.open(file);
+        SpectrogramEngine engine = engine(wav);
+        long frames = engine.frames(wav.getFrames());
+        int framesPerColumn = framesPerColumn(wav.getSampleRate());
+        long columns = (frames + framesPerColumn - 1) / framesPerColumn;
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("sample_rate", wav.getSampleRate());
+        info.put("seconds", (double) wav.getFrames() / wav.getSampleRate());
+        info.put("low_hz", engine.getLowHz());
+        info.put("bin_hz", engine.getBinHz());
+        info.put("bins", engine.getBins());
+        info.put("column_s", (double) framesPerColumn * engine.getHop() / wav.getSampleRate());
+        info.put("tile_columns", tileColumns);
+        info.put("tiles", (columns + tileColumns - 1) / tileColumns);
+        return info;
+    }
+
+    /**
+     * @param index tile from the start of the recording, or {@link #OVERVIEW}
+     * @return the tile, empty past the end of the recording
+     */
+    public SpectrogramTile tile(Path file, int index) throws IOException {
+        String key = file.toAbsolutePath().normalize() + "#" + Files.getLastModifiedTime(file).toMillis() + "#" + index;
+        synchronized (cache) {
+            SpectrogramTile cached = cache.get(key);
+            if (cached != null) {
+                EventLog.count("spectrogram.cache.hits");
+                return cached;
+            }
+        }
+        long begin = System.nanoTime();
+        PcmWav wav = PcmWav.open(file);
+        SpectrogramEngine engine = engine(wav);
+        SpectrogramTile tile;
+        if (index == OVERVIEW) {
+            long frames = engine.frames(wav.getFrames());
+            int framesPerColumn = (int) Math.max(1, (frames + overviewColumns - 1) / overviewColumns);
+            tile = engine.compute(wav, 0, overviewColumns, framesPerColumn);
+        } else {
+            int framesPerColumn = framesPerColumn(wav.getSampleRate());
+            tile = engine.compute(wav, (long) index * tileColumns * framesPerColumn, tileColumns, framesPerColumn);
+        }
+        EventLog.count("spectrogram.tiles");
+        EventLog.count("spectrogram.micros", (System.nanoTime() - begin) / 1000);
+        synchronized (cache) {
+            if (cache.put(key, tile) == null) {
+                cachedBytes += tile.sizeInBytes();
+            }
+            Iterator<SpectrogramTile> eldest = cache.values().iterator();
+            while (cachedBytes > cacheMb << 20 && eldest.hasNext()) {
+                cachedBytes -= eldest.next().sizeInBytes();
+                eldest.remove();
+            }
+        }
+        return tile;
+    }
+
+    @Override
+    public void onUploadReceived(String key, String remoteFilename, Path file) {
+        if (!file.getFileName().toString().toLowerCase().endsWith(".wav")) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                tile(file, OVERVIEW);
+                tile(file, 0);
+            } catch (IOException | RuntimeException e) {
+                logger.fine("No spectrogram of " + file + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private SpectrogramEngine engine(PcmWav wav) {
+        return new SpectrogramEngine(wav.getSampleRate(), fftSize, hop, lowHz, Math.min(highHz, wav.getSampleRate() / 2.0));
+    }
+
+    private int framesPerColumn(int sampleRate) {
+        return (int) Math.max(1, Math.round(columnMs * sampleRate / 1000 / hop));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -4,6 +4,8 @@ import com.lannooo.common.Utils;
 import com.lannooo.device.DeviceManager;
 import com.lannooo.model.UltrasonicCaptureRequest;
 import com.lannooo.model.UltrasonicFmcwConfig;
+import com.lannooo.server.BroadcastResult;
+import com.lannooo.server.MessageRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -31,6 +33,12 @@ public class UltrasonicCaptureService {
     @Autowired
     private RemoteAudioService remoteAudioService;
 
+    @Autowired
+    private RangeProfileService rangeProfileService;
+
+    @Autowired
+    private SignalQualityService signalQualityService;
+
     private volatile boolean capturing = false;
     private volatile String currentOutput = null;
     private final ConcurrentHashMap<String, Object> state = new ConcurrentHashMap<>();
@@ -38,55 +46,57 @@ public class UltrasonicCaptureService {
     private final AtomicLong sessionCounter = new AtomicLong(0L);
     private volatile long activeSessionId = 0L;
     private volatile ScheduledFuture<?> autoClearFuture = null;
+    private volatile BroadcastResult startBroadcast = null;
 
-    public synchronized boolean startCapture(UltrasonicCaptureRequest request) {
+    /**
+     * @return the broadcast of the start command, its acks complete as the devices answer; null if not started
+     */
+    public synchronized BroadcastResult startCapture(UltrasonicCaptureRequest request) {
         if (capturing) {
             logger.warning("Ultrasonic capture is already running");
-            return false;
+            return null;
         }
 
         Set<String> targetKeys = resolveTargetKeys(request.getDeviceId());
         if (targetKeys.isEmpty()) {
             logger.warning("No target devices available for ultrasonic capture");
-            return false;
+            return null;
         }
 
         UltrasonicFmcwConfig cfg = request.getUltrasonic() == null ? new UltrasonicFmcwConfig() : request.getUltrasonic();
-        boolean success = false;
-        for (String key : targetKeys) {
-            try {
-                remoteAudioService.captureUltrasonic(key, "start", request.getMode(), request.getOutput(), request.getDurationSeconds(), request.isProcess(), request.isForward(), request.isDeleteAfterForward(), cfg);
-                success = true;
-            } catch (Exception e) {
-                logger.severe("Failed to start ultrasonic capture on device " + key + ": " + e.getMessage());
-            }
-        }
-
-        if (success) {
-            long sessionId = sessionCounter.incrementAndGet();
-            capturing = true;
-            currentOutput = request.getOutput();
-            activeSessionId = sessionId;
-            state.clear();
-            state.put("device_id", request.getDeviceId());
-            state.put("duration_seconds", request.getDurationSeconds());
-            state.put("output", request.getOutput());
-            state.put("mode", request.getMode());
-            state.put("ultrasonic", cfg);
-            state.put("route_requested_preset", cfg.getRoutePreset());
-            state.put("route_applied_preset", "");
-            state.put("route_binding_status", cfg.getRoutePreset() == null || cfg.getRoutePreset().isEmpty() ? "default" : "pending");
-            state.put("route_output_binding", "");
-            state.put("route_input_binding", "");
-            state.put("route_error_message", "");
-            String routeModelKey = targetKeys.iterator().next();
-            state.put("route_device_model", deviceManager.getRouteCapabilitySnapshot(routeModelKey).getOrDefault("model", "Unknown"));
-            state.put("started_at_ms", System.currentTimeMillis());
-            state.put("session_id", sessionId);
-            state.put("completion_reason", "running");
-            scheduleAutoClear(sessionId, request.getDurationSeconds());
-        }
-        return success;
+        MessageRequest start = remoteAudioService.ultrasonicCaptureRequest("start", request.getMode(), request.getOutput(), request.getDurationSeconds(), request.isProcess(), request.isForward(), request.isDeleteAfterForward(), cfg);
+        BroadcastResult broadcast = remoteAudioService.broadcast(targetKeys, start, request.getAckTimeoutMs());
+        if (broadcast.getTargets() == 0) {
+            logger.severe("Failed to start ultrasonic capture, no active channel for " + targetKeys);
+            return null;
+        }
+
+        long sessionId = sessionCounter.incrementAndGet();
+        capturing = true;
+        currentOutput = request.getOutput();
+        activeSessionId = sessionId;
+        state.clear();
+        state.put("device_id", request.getDeviceId());
+        state.put("duration_seconds", request.getDurationSeconds());
+        state.put("output", request.getOutput());
+        state.put("mode", request.getMode());
+        state.put("ultrasonic", cfg);
+        state.put("route_requested_preset", cfg.getRoutePreset());
+        state.put("route_applied_preset", "");
+        state.put("route_binding_status", cfg.getRoutePreset() == null || cfg.getRoutePreset().isEmpty() ? "default" : "pending");
+        state.put("route_output_binding", "");
+        state.put("route_input_binding", "");
+        state.put("route_error_message", "");
+        String routeModelKey = targetKeys.iterator().next();
+        state.put("route_device_model", deviceManager.getRouteCapabilitySnapshot(routeModelKey).getOrDefault("model", "Unknown"));
+        state.put("started_at_ms", System.currentTimeMillis());
+        state.put("session_id", sessionId);
+        state.put("completion_reason", "running");
+        startBroadcast = broadcast;
+        rangeProfileService.expect(sessionId, request.getOutput(), cfg);
+        signalQualityService.expect(sessionId, request.getOutput(), cfg);
+        scheduleAutoClear(sessionId, request.getDurationSeconds());
+        return broadcast;
     }
 
     public synchronized Map<String, Object> preflightRoute(String deviceId, String routePreset) {
@@ -166,14 +176,10 @@ public class UltrasonicCaptureService {
             return false;
         }
 
-        boolean success = false;
-        for (String key : targetKeys) {
-            try {
-                remoteAudioService.stopUltrasonicCapture(key);
-                success = true;
-            } catch (Exception e) {
-                logger.severe("Failed to stop ultrasonic capture on device " + key + ": " + e.getMessage());
-            }
+        BroadcastResult broadcast = remoteAudioService.broadcast(targetKeys, remoteAudioService.stopUltrasonicRequest());
+        boolean success = broadcast.getTargets() > 0;
+        if (!success) {
+            logger.severe("Failed to stop ultrasonic capture, no active channel for " + targetKeys);
         }
 
         if (success) {
@@ -188,6 +194,14 @@ public class UltrasonicCaptureService {
         status.put("current_output", currentOutput);
         status.put("device_count", deviceManager.getConnectedDevices().size());
         status.put("state", new LinkedHashMap<>(state));
+        // send completion per device of the last start command, skew_ms is the spread between them
+        BroadcastResult broadcast = startBroadcast;
+        status.put("start_broadcast", broadcast == null ? null : broadcast.toMap());
+        // range-time matrices of the recordings of this capture uploaded so far
+        status.put("range_profiles", rangeProfileService.getResults());
+        // band level, noise floor, SNR, clipping and dropouts of the recordings of this capture, updated as their
+        // chunks arrive
+        status.put("signal_quality", signalQualityService.getResults());
         status.put("timestamp", System.currentTimeMillis());
         return status;
     }
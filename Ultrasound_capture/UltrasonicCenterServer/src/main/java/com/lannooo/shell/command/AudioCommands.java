@@ -6,6 +6,7 @@ import com.lannooo.common.Utils;
 import com.lannooo.device.DeviceManager;
 import com.lannooo.device.FileUploadListener;
 import com.lannooo.device.SessionManager;
+import com.lannooo.server.UploadFanOut;
 import com.lannooo.service.AsyncService;
 import com.lannooo.service.LocalAudioService;
 import com.lannooo.service.RemoteAudioService;
@@ -74,6 +75,23 @@ public class AudioCommands {
         asyncService.submit(() -> remoteAudioService.deleteFile(key, path));
     }
 
+    @Command(command = "remote-download", description = "Fetch audio files from the remote client")
+    public void downloadRemoteFiles(
+            @Option(longNames = "device", shortNames = 'd', required = true) String key,
+            @Option(longNames = "path", shortNames = 'p', required = true) String paths,
+            @Option(longNames = "delete", defaultValue = "false") boolean postDelete) {
+        if (!deviceManager.isRegistered(key)) {
+            shellHelper.printError("Device not found: " + key);
+            return;
+        }
+        // one request per file, devices which negotiated transfer ids send them back concurrently
+        for (String path : paths.split(",")) {
+            if (!path.isBlank()) {
+                asyncService.submit(() -> remoteAudioService.downloadFile(key, path.trim(), postDelete));
+            }
+        }
+    }
+
     @Command(command = "remote-upload", description = "Upload audio file to remote client")
     public void uploadFile(@Option(longNames = "device", shortNames = 'd', required = true) String key,
                            @Option(longNames = "path", shortNames = 'p', required = true) String path) {
@@ -83,11 +101,6 @@ public class AudioCommands {
             return;
         }
 
-        if (!deviceManager.isRegistered(key)) {
-            shellHelper.printError("Device not found: " + key);
-            return;
-        }
-
         Set<String> uploadTargetKeys;
         if ("ALL".equals(key)) {
             if (deviceManager.getDevices().isEmpty()) {
@@ -116,20 +129,25 @@ public class AudioCommands {
 
         shellHelper.printInfo("Uploading " + filesToUpload.size() + " files to " + uploadTargetKeys.size() + " devices");
 
-        for (String k : uploadTargetKeys) {
-            FileUploadListener listener = new FileUploadListener() {
-                @Override
-                public void onSuccess(String message) {
-                    shellHelper.printSuccess(k + ": " + message);
-                }
-            };
-            asyncService.submit(() -> {
-                for (File file : filesToUpload) {
-                    remoteAudioService.uploadFile(k, file, listener);
-                    Utils.silentSleep(0.1);
-                }
-            });
-        }
+        // every file is read once for all devices
+        UploadFanOut fanOut = remoteAudioService.uploadFiles(uploadTargetKeys, filesToUpload, new FileUploadListener() {
+            @Override
+            public void onProgress(int progress, int total) {
+                shellHelper.printInfo("Uploaded " + progress + "%");
+            }
+
+            @Override
+            public void onFailed(String message) {
+                shellHelper.printError(message);
+            }
+
+            @Override
+            public void onSuccess(String message) {
+                shellHelper.printSuccess(message);
+            }
+        });
+        fanOut.completion().thenAccept(f -> f.getFailures().forEach(
+                (k, reason) -> shellHelper.printError(k + ": " + reason)));
     }
 
     @Command(command = "remote-play", description = "Play audio")
@@ -0,0 +1,84 @@
+import com.lannooo.dsp.ChirpAligner;
+import com.lannooo.dsp.FmcwChirp;
+import com.lannooo.dsp.FrameIndex;
+import com.lannooo.dsp.PcmWav;
+import com.lannooo.model.UltrasonicFmcwConfig;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Test_ChirpAlignment {
+
+    /**
+     * Add the chirp as played, starting between two samples.
+     */
+    private static void addChirp(float[] signal, FmcwChirp chirp, double start, float gain) {
+        UltrasonicFmcwConfig config = chirp.getConfig();
+        int m = chirp.getChirpSamples();
+        double fs = chirp.getSampleRate();
+        for (int j = (int) Math.ceil(start); j < Math.min(signal.length, start + m); j++) {
+            double u = j - start;
+            double t = u / fs;
+            double phase = 2 * Math.PI * (config.getStartFreqHz() * t + 0.5 * chirp.getSlope() * t * t);
+            double window = 0.5 * (1 - Math.cos(2 * Math.PI * u / (m - 1)));
+            signal[j] += (float) (gain * config.getAmplitude() * window * Math.sin(phase));
+        }
+    }
+
+    @Test
+    public void chirps_are_found_to_a_fraction_of_a_sample() throws Exception {
+        FmcwChirp chirp = new FmcwChirp(new UltrasonicFmcwConfig());
+        int period = chirp.getPeriodSamples();
+        // a minute of recording, the player started 25.7 ms after the recorder
+        float[] signal = new float[60 * chirp.getSampleRate()];
+        double offset = 1234.37;
+        Random random = new Random(5);
+        for (int i = 0; i < signal.length; i++) {
+            signal[i] = (float) (random.nextGaussian() * 0.003);
+        }
+        int chirps = 0;
+        // one chirp lost on the way
+        for (double start = offset; start + chirp.getChirpSamples() <= signal.length; start += period, chirps++) {
+            if (chirps != 100) {
+                addChirp(signal, chirp, start, 0.3f);
+            }
+        }
+        Path dir = Files.createTempDirectory("align");
+        Path wav = Test_RangeProfile.writeWav(dir.resolve("capture.wav"), signal, chirp.getSampleRate());
+
+        FrameIndex index = new ChirpAligner(chirp, 0.3f).align(PcmWav.open(wav));
+        assertEquals(chirps - 1, index.size());
+        assertEquals(1, index.getMissing());
+        for (int i = 0; i < index.size(); i++) {
+            double expected = offset + (i < 100 ? i : i + 1) * (double) period;
+            assertEquals(expected, index.getStart(i), 0.1, "frame " + i);
+            assertTrue(index.getScore(i) > 0.9);
+        }
+        assertEquals(offset * 1000 / chirp.getSampleRate(), index.getFirstStartMillis(), 0.01);
+        assertTrue(index.getPeriodJitter() < 0.1);
+
+        index.write(FrameIndex.pathFor(wav));
+        List<String> lines = Files.readAllLines(dir.resolve("capture.frames.csv"));
+        assertEquals(index.size() + 1, lines.size());
+        assertTrue(lines.get(1).startsWith("0,1234.3"), lines.get(1));
+    }
+
+    @Test
+    public void silence_has_no_chirps() throws Exception {
+        FmcwChirp chirp = new FmcwChirp(new UltrasonicFmcwConfig());
+        float[] signal = new float[chirp.getSampleRate()];
+        Random random = new Random(6);
+        for (int i = 0; i < signal.length; i++) {
+            signal[i] = (float) (random.nextGaussian() * 0.01);
+        }
+        Path wav = Test_RangeProfile.writeWav(Files.createTempFile("silence", ".wav"), signal, chirp.getSampleRate());
+        assertEquals(0, new ChirpAligner(chirp, 0.3f).align(PcmWav.open(wav)).size());
+        Files.deleteIfExists(wav);
+    }
+}
@@ -0,0 +1,111 @@
+import com.lannooo.dsp.DspKernels;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class Test_DspKernels {
+    // not a multiple of any vector length, so the tails are checked too
+    private static final int N = 48_013;
+
+    /**
+     * The kernels to check against the loops, the loops themselves if the JVM runs without the vector module.
+     */
+    private static DspKernels vector() {
+        return DspKernels.vector() != null ? DspKernels.vector() : DspKernels.scalar();
+    }
+
+    private static float[] signal(long seed) {
+        Random random = new Random(seed);
+        float[] x = new float[N];
+        for (int i = 0; i < N; i++) {
+            x[i] = (float) (random.nextGaussian() * Math.pow(10, random.nextInt(12) - 6));
+        }
+        // what a recording and a spectrum have besides noise
+        x[0] = 0f;
+        x[1] = -0f;
+        x[2] = Float.MIN_VALUE;
+        x[3] = Float.MIN_NORMAL;
+        x[4] = 1f;
+        x[5] = 1.5f;
+        x[6] = Math.nextUp(1.5f);
+        x[7] = Float.MAX_VALUE;
+        x[8] = Float.NaN;
+        x[9] = Float.POSITIVE_INFINITY;
+        return x;
+    }
+
+    @Test
+    public void vector_kernels_give_the_bits_of_the_loops() {
+        DspKernels scalar = DspKernels.scalar();
+        DspKernels vector = vector();
+        float[] a = signal(1);
+        float[] b = signal(2);
+        float[] c = signal(3);
+        float[] d = signal(4);
+        float[] s1 = new float[N];
+        float[] s2 = new float[N];
+        float[] v1 = new float[N];
+        float[] v2 = new float[N];
+
+        scalar.multiply(a, 3, b, 5, s1, 1, N - 5);
+        vector.multiply(a, 3, b, 5, v1, 1, N - 5);
+        assertArrayEquals(s1, v1);
+
+        scalar.mix(a, 7, b, c, s1, s2, N - 7);
+        vector.mix(a, 7, b, c, v1, v2, N - 7);
+        assertArrayEquals(s1, v1);
+        assertArrayEquals(s2, v2);
+
+        scalar.complexMultiply(a, b, c, d, s1, s2, N);
+        vector.complexMultiply(a, b, c, d, v1, v2, N);
+        assertArrayEquals(s1, v1);
+        assertArrayEquals(s2, v2);
+
+        scalar.power(a, b, s1, N);
+        vector.power(a, b, v1, N);
+        assertArrayEquals(s1, v1);
+
+        scalar.magnitude(a, b, s1, N);
+        vector.magnitude(a, b, v1, N);
+        assertArrayEquals(s1, v1);
+
+        for (int i = 0; i < N; i++) {
+            a[i] = Math.abs(a[i]);
+        }
+        scalar.decibels(a, 0.5f, -200f, s1, N);
+        vector.decibels(a, 0.5f, -200f, v1, N);
+        assertArrayEquals(s1, v1);
+
+        short[] pcm = new short[N];
+        Random random = new Random(5);
+        for (int i = 0; i < N; i++) {
+            pcm[i] = (short) random.nextInt();
+        }
+        pcm[0] = Short.MIN_VALUE;
+        pcm[1] = Short.MAX_VALUE;
+        scalar.pcm16ToFloat(pcm, 2, s1, 3, N - 3);
+        vector.pcm16ToFloat(pcm, 2, v1, 3, N - 3);
+        assertArrayEquals(s1, v1);
+    }
+
+    @Test
+    public void decibels_are_close_to_log10() {
+        float[] power = signal(6);
+        float[] db = new float[N];
+        for (int i = 0; i < N; i++) {
+            power[i] = Math.abs(power[i]);
+        }
+        DspKernels.get().decibels(power, 1f, -200f, db, N);
+        for (int i = 0; i < N; i++) {
+            float p = power[i];
+            if (p >= Float.MIN_NORMAL && p <= Float.MAX_VALUE) {
+                assertEquals(10 * Math.log10(p), db[i], 1e-4);
+            } else {
+                assertEquals(-200f, db[i], 0);
+            }
+        }
+    }
+}
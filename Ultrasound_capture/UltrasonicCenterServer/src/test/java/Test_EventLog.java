@@ -0,0 +1,40 @@
+import com.lannooo.common.EventLog;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class Test_EventLog {
+
+    @Test
+    public void format_fields() {
+        String line = EventLog.format(EventLog.Category.TRANSFER, "upload_received",
+                "device", "6bcfb47f", "chunks", 12, "bytes", 3072L);
+        assertEquals("transfer upload_received device=6bcfb47f chunks=12 bytes=3072", line);
+    }
+
+    @Test
+    public void sampling_one_in_n() {
+        EventLog.setSampleRate(EventLog.Category.DEVICE, 4);
+        int logged = 0;
+        for (int i = 0; i < 100; i++) {
+            if (EventLog.sampled(EventLog.Category.DEVICE)) {
+                logged++;
+            }
+        }
+        assertEquals(25, logged);
+
+        EventLog.setSampleRate(EventLog.Category.DEVICE, 0);
+        assertFalse(EventLog.sampled(EventLog.Category.DEVICE));
+        EventLog.setSampleRate(EventLog.Category.DEVICE, 1);
+    }
+
+    @Test
+    public void counters_add_up() {
+        long before = EventLog.counter("test.chunks");
+        EventLog.count("test.chunks");
+        EventLog.count("test.chunks", 9);
+        assertEquals(before + 10, EventLog.counter("test.chunks"));
+        assertEquals(before + 10, EventLog.counters().get("test.chunks"));
+    }
+}
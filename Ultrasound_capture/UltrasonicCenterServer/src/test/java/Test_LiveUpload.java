@@ -0,0 +1,102 @@
+import com.lannooo.common.AppConstants;
+import com.lannooo.common.Utils;
+import com.lannooo.device.FileUploadManager;
+import com.lannooo.device.LiveUploadItem;
+import com.lannooo.server.FrameSettings;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Test_LiveUpload {
+    private static final String DEVICE = "test-live";
+    private static final FrameSettings SETTINGS = FrameSettings.builder(8192, 4096)
+            .transferIds(true)
+            .chunkCrc(true)
+            .build();
+
+    // a header and 3000 bytes of samples, as the recorder leaves it
+    private final byte[] recording = new byte[LiveUploadItem.HEADER_LENGTH + 3000];
+
+    public Test_LiveUpload() {
+        for (int i = 0; i < recording.length; i++) {
+            recording[i] = (byte) (i * 7);
+        }
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        Path dir = Path.of(AppConstants.AUDIO_BASE_PATH, DEVICE);
+        if (Files.exists(dir)) {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private ByteBuf chunk(int transferId, int chunkId, int from, int to) {
+        ByteBuf data = Unpooled.wrappedBuffer(recording, from, to - from);
+        return Unpooled.buffer()
+                .writeInt(transferId)
+                .writeInt(chunkId)
+                .writeInt(0)
+                .writeInt(from)
+                .writeInt(0)
+                .writeInt(Utils.crc32c(data))
+                .writeBytes(data);
+    }
+
+    private String pcmSha256() {
+        return Utils.hex(Utils.sha256().digest(Arrays.copyOfRange(recording, LiveUploadItem.HEADER_LENGTH, recording.length)));
+    }
+
+    @Test
+    public void samples_are_appended_and_the_header_comes_last() throws Exception {
+        FileUploadManager manager = new FileUploadManager();
+        LiveUploadItem item = manager.startLive(DEVICE, 5, null, "/sdcard/live.wav");
+        assertNotNull(item);
+        assertNull(manager.startLive(DEVICE, 5, null, "/sdcard/live.wav"));
+
+        assertNull(manager.writeChunk(DEVICE, SETTINGS, chunk(5, 1, 44, 1044)));
+        manager.writeChunk(DEVICE, SETTINGS, chunk(5, 2, 1044, 3044));
+        manager.writeChunk(DEVICE, SETTINGS, chunk(5, 3, 0, 44));
+        assertEquals(3000, item.getReceivedBytes());
+
+        assertEquals(item, manager.finishLive(DEVICE, 5, recording.length, pcmSha256()));
+        assertNull(item.getProblem());
+        assertArrayEquals(recording, Files.readAllBytes(Path.of(item.getLocalFilename())));
+        assertFalse(Files.exists(Path.of(item.getLocalFilename() + LiveUploadItem.LIVE_SUFFIX)));
+    }
+
+    @Test
+    public void a_gap_fails_the_stream() {
+        FileUploadManager manager = new FileUploadManager();
+        LiveUploadItem item = manager.startLive(DEVICE, 6, null, "/sdcard/gap.wav");
+        manager.writeChunk(DEVICE, SETTINGS, chunk(6, 1, 44, 1044));
+        // chunk 2 lost
+        manager.writeChunk(DEVICE, SETTINGS, chunk(6, 3, 2044, 3044));
+        manager.writeChunk(DEVICE, SETTINGS, chunk(6, 4, 0, 44));
+
+        manager.finishLive(DEVICE, 6, recording.length, pcmSha256());
+        assertTrue(item.getProblem().contains("expected 1044"));
+        assertFalse(Files.exists(Path.of(item.getLocalFilename())));
+        assertFalse(Files.exists(Path.of(item.getLocalFilename() + LiveUploadItem.LIVE_SUFFIX)));
+        assertFalse(manager.hasOngoingTasks());
+    }
+}
@@ -0,0 +1,133 @@
+import com.lannooo.server.LosslessAudioCodec;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Test_LosslessCodec {
+    private static final int SAMPLE_RATE = 48000;
+
+    private static byte[] wav(short[] samples, int channels) {
+        int data = samples.length * 2;
+        byte[] file = new byte[44 + data];
+        byte[] header = "RIFF\0\0\0\0WAVEfmt ".getBytes();
+        System.arraycopy(header, 0, file, 0, header.length);
+        file[16] = 16;
+        file[20] = 1;
+        file[22] = (byte) channels;
+        file[34] = 16;
+        System.arraycopy("data".getBytes(), 0, file, 36, 4);
+        for (int i = 0; i < 4; i++) {
+            file[40 + i] = (byte) (data >> (8 * i));
+        }
+        for (int i = 0; i < samples.length; i++) {
+            file[44 + 2 * i] = (byte) samples[i];
+            file[45 + 2 * i] = (byte) (samples[i] >> 8);
+        }
+        return file;
+    }
+
+    /**
+     * Code the file chunk by chunk, check every chunk decodes to what it was.
+     *
+     * @return coded bytes / file bytes
+     */
+    private static double roundTrip(String name, byte[] file, int chunkSize) {
+        LosslessAudioCodec.Layout layout = LosslessAudioCodec.Layout.ofWav(file, Math.min(file.length, 4096), file.length);
+        assertNotNull(layout);
+        LosslessAudioCodec codec = new LosslessAudioCodec();
+        long wire = 0;
+        for (int offset = 0; offset < file.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, file.length - offset);
+            byte[] coded = codec.encodeChunk(file, offset, length, offset, layout);
+            byte[] decoded = LosslessAudioCodec.decodeChunk(coded, 0, coded.length, chunkSize);
+            wire += coded.length;
+            assertTrue(coded.length <= length + 1);
+            assertArrayEquals(Arrays.copyOfRange(file, offset, offset + length), decoded, name + " at " + offset);
+        }
+        return (double) wire / file.length;
+    }
+
+    @Test
+    public void tone_in_noise_is_restored_exactly_and_smaller() {
+        Random random = new Random(1);
+        short[] samples = new short[SAMPLE_RATE * 5];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE) + random.nextGaussian() * 30);
+        }
+        assertTrue(roundTrip("tone", wav(samples, 1), 256 * 1024) < 0.6);
+    }
+
+    @Test
+    public void chirps_in_ultrasonic_noise_are_restored_exactly() {
+        Random random = new Random(2);
+        short[] samples = new short[SAMPLE_RATE * 5];
+        // 40 ms sweeps of 18-22 kHz, then 60 ms of idle, over a noise floor
+        for (int i = 0; i < samples.length; i++) {
+            double t = (i % 4800) / (double) SAMPLE_RATE;
+            double chirp = i % 4800 < 1920 ? Math.sin(2 * Math.PI * (18000 * t + 0.5 * (4000 / 0.04) * t * t)) : 0;
+            samples[i] = (short) (6000 * chirp + random.nextGaussian() * 200);
+        }
+        assertTrue(roundTrip("fmcw", wav(samples, 1), 256 * 1024) < 0.8);
+    }
+
+    @Test
+    public void stereo_and_chunks_cutting_frames_are_restored_exactly() {
+        Random random = new Random(3);
+        short[] samples = new short[20001 * 2];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) ((i & 1) == 0 ? 5000 * Math.sin(i * 0.01) : random.nextGaussian() * 1000);
+        }
+        // odd sizes: the header and the sample frames are split between chunks
+        // the sine predicted almost away, the noise of 1000 needs about 12 of its 16 bits
+        double ratio = roundTrip("stereo", wav(samples, 2), 4099);
+        assertTrue(ratio < 0.7, "ratio " + ratio);
+        // too short to predict much, a byte is added to a chunk at most
+        double small = roundTrip("stereo small chunks", wav(samples, 2), 37);
+        assertTrue(small < 1.03, "ratio " + small);
+    }
+
+    @Test
+    public void noise_and_silence_take_the_cheapest_form() {
+        Random random = new Random(4);
+        short[] samples = new short[SAMPLE_RATE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) random.nextInt(65536);
+        }
+        // no prediction helps, the chunks go as they are with a byte of mode each
+        assertTrue(roundTrip("white noise", wav(samples, 1), 65536) < 1.001);
+        Arrays.fill(samples, (short) 0);
+        assertTrue(roundTrip("silence", wav(samples, 1), 65536) < 0.1);
+    }
+
+    @Test
+    public void only_16_bit_pcm_wav_is_coded() {
+        byte[] file = wav(new short[100], 1);
+        assertEquals(1, LosslessAudioCodec.Layout.ofWav(file, file.length, file.length).getChannels());
+        file[34] = 24;
+        assertNull(LosslessAudioCodec.Layout.ofWav(file, file.length, file.length));
+        assertNull(LosslessAudioCodec.Layout.ofWav("not a wav file".getBytes(), 14, 14));
+    }
+
+    @Test
+    public void corrupt_chunks_are_rejected() {
+        short[] samples = new short[10000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (3000 * Math.sin(i * 0.05));
+        }
+        byte[] file = wav(samples, 1);
+        LosslessAudioCodec.Layout layout = LosslessAudioCodec.Layout.ofWav(file, file.length, file.length);
+        byte[] coded = new LosslessAudioCodec().encodeChunk(file, 0, file.length, 0, layout);
+        assertThrows(IllegalArgumentException.class,
+                () -> LosslessAudioCodec.decodeChunk(coded, 0, coded.length / 2, file.length));
+        assertThrows(IllegalArgumentException.class,
+                () -> LosslessAudioCodec.decodeChunk(coded, 0, coded.length, file.length / 2));
+    }
+}
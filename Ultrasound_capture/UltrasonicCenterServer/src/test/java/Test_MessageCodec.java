@@ -0,0 +1,67 @@
+import com.lannooo.server.MessageCodec;
+import com.lannooo.server.MessageRequest;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Test_MessageCodec {
+    private MessageRequest sample() {
+        MessageRequest request = new MessageRequest("capture");
+        request.put("action", "start");
+        request.put("duration", 2.5);
+        request.put("chunks", 123456789L);
+        request.put("ultra", true);
+        request.put("file", "record_0001.wav");
+        request.put("formats", List.of("binary", "json"));
+        request.put("ultra_start_freq_hz", Map.of("value", -18000));
+        request.setId(42);
+        return request;
+    }
+
+    @Test
+    public void binary_round_trip() {
+        byte[] bytes = MessageCodec.encode(sample(), MessageCodec.Format.BINARY);
+        byte[] json = MessageCodec.encode(sample(), MessageCodec.Format.JSON);
+        assertTrue(bytes.length < json.length, bytes.length + " >= " + json.length);
+
+        MessageRequest decoded = MessageCodec.decode(bytes);
+        assertEquals("capture", decoded.getSubtype());
+        assertEquals(42, decoded.getId());
+        assertEquals("start", decoded.getString("action"));
+        assertEquals(2.5, decoded.getDouble("duration", 0));
+        assertEquals(123456789L, decoded.getData().get("chunks"));
+        assertTrue(decoded.getBoolean("ultra", false));
+        assertEquals("record_0001.wav", decoded.getString("file"));
+        assertEquals(List.of("binary", "json"), decoded.getData().get("formats"));
+        assertEquals(Map.of("value", -18000L), decoded.getData().get("ultra_start_freq_hz"));
+    }
+
+    @Test
+    public void json_round_trip() {
+        MessageRequest decoded = MessageCodec.decode(MessageCodec.encode(sample(), MessageCodec.Format.JSON));
+        assertEquals("capture", decoded.getSubtype());
+        assertEquals(123456789L, decoded.getLong("chunks", 0));
+        assertEquals(2.5, decoded.getDouble("duration", 0));
+        assertEquals(42, decoded.getId());
+        assertEquals(MessageCodec.Format.BINARY, MessageCodec.negotiate(decoded.getData()));
+    }
+
+    @Test
+    public void response_structured_or_text() {
+        MessageRequest reply = sample().reply(true, "Started Recording: a.wav");
+        for (MessageCodec.Format format : MessageCodec.Format.values()) {
+            MessageRequest decoded = MessageCodec.decodeResponse(MessageCodec.encode(reply, format));
+            assertEquals(42, decoded.getId());
+            assertEquals("capture", decoded.getSubtype());
+            assertTrue(decoded.getBoolean("ok", false));
+            assertEquals("Started Recording: a.wav", decoded.getString("message"));
+        }
+        assertNull(MessageCodec.decodeResponse("Registered".getBytes()));
+        assertNull(MessageCodec.decodeResponse("{not json".getBytes()));
+    }
+}
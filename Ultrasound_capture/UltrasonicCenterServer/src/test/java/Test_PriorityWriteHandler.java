@@ -0,0 +1,127 @@
+import com.lannooo.server.Message;
+import com.lannooo.server.MessageRequest;
+import com.lannooo.server.PriorityWriteHandler;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelProgressiveFuture;
+import io.netty.channel.ChannelProgressiveFutureListener;
+import io.netty.channel.ChannelProgressivePromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.stream.ChunkedInput;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Test_PriorityWriteHandler {
+    private Message chunk(int size) {
+        return new Message(Message.MessageType.DATA_TRANSFER, Unpooled.buffer(size).writeZero(size));
+    }
+
+    @Test
+    public void control_overtakes_queued_chunks() {
+        EmbeddedChannel channel = new EmbeddedChannel(new PriorityWriteHandler(16));
+        Message first = chunk(32);
+        Message second = chunk(32);
+        Message stop = new Message(Message.MessageType.REQUEST, new MessageRequest("capture"));
+        channel.write(first);
+        channel.write(second);
+        channel.writeAndFlush(stop);
+
+        // only one chunk fits into the budget, the command goes before it and the
+        // next chunk follows once the first one is written
+        channel.runPendingTasks();
+        assertEquals(stop, channel.readOutbound());
+        assertEquals(first, channel.readOutbound());
+        assertEquals(second, channel.readOutbound());
+        assertNull(channel.readOutbound());
+        first.release();
+        second.release();
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void progress_follows_the_chunks_written() {
+        EmbeddedChannel channel = new EmbeddedChannel(new PriorityWriteHandler(1024));
+        List<Long> progress = new ArrayList<>();
+        ChannelProgressivePromise promise = channel.newProgressivePromise();
+        promise.addListener(new ChannelProgressiveFutureListener() {
+            @Override
+            public void operationProgressed(ChannelProgressiveFuture future, long done, long total) {
+                progress.add(done);
+            }
+
+            @Override
+            public void operationComplete(ChannelProgressiveFuture future) {
+            }
+        });
+        channel.writeAndFlush(new Chunks(3, 32), promise);
+
+        // all of the chunks are read before the first one is written
+        assertEquals(List.of(32L, 64L, 96L), progress);
+        Message chunk;
+        while ((chunk = channel.readOutbound()) != null) {
+            chunk.release();
+        }
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void upload_request_stays_with_its_chunks() {
+        assertTrue(PriorityWriteHandler.isBulk(new Message(Message.MessageType.REQUEST, new MessageRequest("upload"))));
+        assertTrue(PriorityWriteHandler.isBulk(chunk(1)));
+        assertFalse(PriorityWriteHandler.isBulk(new Message(Message.MessageType.RESPONSE, "ok".getBytes())));
+        assertFalse(PriorityWriteHandler.isBulk(Unpooled.buffer(4)));
+    }
+
+    private class Chunks implements ChunkedInput<Message> {
+        private final int count;
+        private final int size;
+        private int read;
+
+        private Chunks(int count, int size) {
+            this.count = count;
+            this.size = size;
+        }
+
+        @Override
+        public boolean isEndOfInput() {
+            return read == count;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Deprecated
+        @Override
+        public Message readChunk(ChannelHandlerContext ctx) {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public Message readChunk(ByteBufAllocator allocator) {
+            if (isEndOfInput()) {
+                return null;
+            }
+            read++;
+            return chunk(size);
+        }
+
+        @Override
+        public long length() {
+            return (long) count * size;
+        }
+
+        @Override
+        public long progress() {
+            return (long) read * size;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import com.lannooo.dsp.Fft;
+import com.lannooo.dsp.FmcwChirp;
+import com.lannooo.dsp.PcmWav;
+import com.lannooo.dsp.RangeProfileEngine;
+import com.lannooo.dsp.RangeTimeMatrix;
+import com.lannooo.model.UltrasonicFmcwConfig;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Test_RangeProfile {
+
+    /**
+     * Write mono 16-bit samples as a WAV file.
+     */
+    static Path writeWav(Path path, float[] samples, int sampleRate) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(44 + 2 * samples.length).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put("RIFF".getBytes()).putInt(36 + 2 * samples.length).put("WAVE".getBytes())
+                .put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(sampleRate).putInt(2 * sampleRate).putShort((short) 2).putShort((short) 16)
+                .put("data".getBytes()).putInt(2 * samples.length);
+        for (float s : samples) {
+            buf.putShort((short) Math.round(Math.max(-1, Math.min(1, s)) * 32767));
+        }
+        Files.write(path, buf.array());
+        return path;
+    }
+
+    @Test
+    public void fft_matches_the_dft() {
+        int n = 64;
+        float[] re = new float[n];
+        float[] im = new float[n];
+        Random random = new Random(3);
+        for (int i = 0; i < n; i++) {
+            re[i] = random.nextFloat() - 0.5f;
+            im[i] = random.nextFloat() - 0.5f;
+        }
+        float[] inRe = re.clone();
+        float[] inIm = im.clone();
+        Fft.of(n).forward(re, im);
+        for (int k = 0; k < n; k++) {
+            double sumRe = 0;
+            double sumIm = 0;
+            for (int t = 0; t < n; t++) {
+                double angle = -2 * Math.PI * k * t / n;
+                sumRe += inRe[t] * Math.cos(angle) - inIm[t] * Math.sin(angle);
+                sumIm += inRe[t] * Math.sin(angle) + inIm[t] * Math.cos(angle);
+            }
+            assertEquals(sumRe, re[k], 1e-4);
+            assertEquals(sumIm, im[k], 1e-4);
+        }
+        Fft.of(n).inverse(re, im);
+        for (int i = 0; i < n; i++) {
+            assertEquals(inRe[i], re[i], 1e-5);
+            assertEquals(inIm[i], im[i], 1e-5);
+        }
+    }
+
+    @Test
+    public void an_echo_shows_up_at_its_range() throws Exception {
+        UltrasonicFmcwConfig config = new UltrasonicFmcwConfig();
+        FmcwChirp chirp = new FmcwChirp(config);
+        float[] tx = chirp.transmitted();
+        int period = chirp.getPeriodSamples();
+        // a reflector 2 ms away, about 34 cm
+        int delay = 96;
+        float[] signal = new float[10 * period];
+        for (int p = 0; p < 10; p++) {
+            for (int i = 0; i < tx.length; i++) {
+                signal[p * period + delay + i] += 0.5f * tx[i];
+            }
+        }
+        Path dir = Files.createTempDirectory("range-profile");
+        Path wav = writeWav(dir.resolve("capture.wav"), signal, chirp.getSampleRate());
+
+        RangeProfileEngine engine = new RangeProfileEngine(chirp, "hann");
+        RangeProfileEngine.Result result = engine.process(PcmWav.open(wav),
+                engine.regularStarts(signal.length), RangeTimeMatrix.pathFor(wav));
+        assertEquals(10, result.getRows());
+        assertTrue(result.getPeakDb() > result.getNoiseFloorDb() + 30, result.toString());
+
+        RangeTimeMatrix matrix = RangeTimeMatrix.read(dir.resolve("capture.rtm"));
+        assertEquals(10, matrix.getRows());
+        assertEquals(engine.getBins(), matrix.getBins());
+        double expectedMetres = FmcwChirp.SPEED_OF_SOUND * delay / chirp.getSampleRate() / 2;
+        for (int r = 0; r < matrix.getRows(); r++) {
+            assertEquals((double) r * period, matrix.getStart(r));
+            int peak = 0;
+            for (int b = 1; b < matrix.getBins(); b++) {
+                if (matrix.get(r, b) > matrix.get(r, peak)) {
+                    peak = b;
+                }
+            }
+            assertEquals(expectedMetres, peak * matrix.getMetresPerBin(), matrix.getMetresPerBin());
+        }
+        assertTrue(Files.list(dir).noneMatch(p -> p.toString().endsWith(".tmp")));
+    }
+}
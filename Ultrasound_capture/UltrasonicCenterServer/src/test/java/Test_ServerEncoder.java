@@ -0,0 +1,54 @@
+import com.lannooo.server.Message;
+import com.lannooo.server.ServerEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class Test_ServerEncoder {
+
+    @Test
+    public void a_shared_chunk_is_framed_without_a_copy() {
+        ByteBuf content = Unpooled.buffer(64).writeBytes(new byte[]{1, 2, 3, 4, 5});
+        content.skipBytes(1);
+        Message chunk = new Message(Message.MessageType.DATA_TRANSFER, content);
+        EmbeddedChannel first = new EmbeddedChannel(new ServerEncoder());
+        EmbeddedChannel second = new EmbeddedChannel(new ServerEncoder());
+        first.writeOutbound(chunk.retain());
+        second.writeOutbound(chunk.retain());
+        chunk.release();
+
+        ByteBuf a = first.readOutbound();
+        ByteBuf b = second.readOutbound();
+        // each frame holds the content until it is written
+        assertEquals(2, content.refCnt());
+        content.setByte(1, 9);
+        for (ByteBuf frame : new ByteBuf[]{a, b}) {
+            assertEquals(12 + 4, frame.readableBytes());
+            assertEquals(Message.MAGIC, frame.getInt(0));
+            assertEquals(Message.MessageType.DATA_TRANSFER.ordinal(), frame.getInt(4));
+            assertEquals(4, frame.getInt(8));
+            assertEquals(9, frame.getByte(12));
+            assertEquals(5, frame.getByte(15));
+            frame.release();
+        }
+        assertEquals(0, content.refCnt());
+        assertFalse(first.finish());
+        assertFalse(second.finish());
+    }
+
+    @Test
+    public void a_payload_is_framed_as_before() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ServerEncoder());
+        channel.writeOutbound(new Message(Message.MessageType.RESPONSE, "ok".getBytes()));
+        ByteBuf frame = channel.readOutbound();
+        ByteBuf expected = Unpooled.buffer();
+        ServerEncoder.writeFrame(new Message(Message.MessageType.RESPONSE, "ok".getBytes()), null, expected);
+        assertEquals(expected, frame);
+        frame.release();
+        assertFalse(channel.finish());
+    }
+}
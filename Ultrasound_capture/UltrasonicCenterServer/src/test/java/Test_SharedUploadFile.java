@@ -0,0 +1,72 @@
+import com.lannooo.common.Utils;
+import com.lannooo.server.ChunkedMessageFile;
+import com.lannooo.server.Message;
+import com.lannooo.server.SharedUploadFile;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Test_SharedUploadFile {
+
+    /**
+     * Read every chunk of the transfer, check its header and put the file back together.
+     */
+    private static byte[] send(ChunkedMessageFile chunked, int transferId) throws Exception {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        int expectedId = 0;
+        while (!chunked.isEndOfInput()) {
+            Message message = chunked.readChunk(ByteBufAllocator.DEFAULT);
+            ByteBuf content = message.getContent();
+            assertEquals(transferId, content.readInt());
+            assertEquals(++expectedId, content.readInt());
+            assertEquals(chunked.getChunks(), content.readInt());
+            assertEquals(file.size(), content.readInt());
+            assertEquals(chunked.length(), content.readInt());
+            int crc = content.readInt();
+            assertEquals(Utils.crc32c(content), crc);
+            file.write(ByteBufUtil.getBytes(content));
+            message.release();
+            assertEquals(file.size(), chunked.progress());
+        }
+        chunked.close();
+        return file.toByteArray();
+    }
+
+    @Test
+    public void devices_with_different_chunk_sizes_share_one_read() throws Exception {
+        byte[] data = new byte[100_003];
+        new Random(1).nextBytes(data);
+        Path path = Files.createTempFile("stimulus", ".wav");
+        Files.write(path, data);
+
+        SharedUploadFile shared = SharedUploadFile.open(path.toFile());
+        assertEquals(data.length, shared.length());
+        // several devices on the same chunk size, one on another
+        for (int transferId = 1; transferId <= 3; transferId++) {
+            assertArrayEquals(data, send(new ChunkedMessageFile(shared, 4096, transferId, true), transferId));
+        }
+        assertArrayEquals(data, send(new ChunkedMessageFile(shared, 65536, 4, true), 4));
+        assertEquals(25, shared.chunkCount(4096));
+        assertEquals(2, shared.chunkCount(65536));
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void an_empty_file_has_no_chunks() throws Exception {
+        Path path = Files.createTempFile("empty", ".wav");
+        ChunkedMessageFile chunked = new ChunkedMessageFile(SharedUploadFile.open(path.toFile()), 4096, 1, true);
+        assertEquals(0, chunked.getChunks());
+        assertTrue(chunked.isEndOfInput());
+        Files.deleteIfExists(path);
+    }
+}
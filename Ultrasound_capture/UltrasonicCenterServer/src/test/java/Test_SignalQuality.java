@@ -0,0 +1,144 @@
+import com.lannooo.device.UploadChunkListener;
+import com.lannooo.dsp.QualityAnalyzer;
+import com.lannooo.model.UltrasonicFmcwConfig;
+import com.lannooo.service.SignalQualityService;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Test_SignalQuality {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHUNK = 8192;
+
+    private static byte[] recording(float[] signal) throws Exception {
+        Path wav = Test_RangeProfile.writeWav(Files.createTempFile("quality", ".wav"), signal, SAMPLE_RATE);
+        try {
+            return Files.readAllBytes(wav);
+        } finally {
+            Files.delete(wav);
+        }
+    }
+
+    private static float[] noise(int samples, double amplitude, long seed) {
+        Random random = new Random(seed);
+        float[] signal = new float[samples];
+        for (int i = 0; i < samples; i++) {
+            signal[i] = (float) (amplitude * random.nextGaussian());
+        }
+        return signal;
+    }
+
+    @Test
+    public void the_measures_follow_a_recording_as_it_streams() throws Exception {
+        // 5 s of 19.5 kHz at a quarter of full scale over faint noise, 100 ms lost at 2 s, 10 ms clipped at 3 s
+        float[] signal = noise(5 * SAMPLE_RATE, 0.0005, 1);
+        for (int i = 0; i < signal.length; i++) {
+            signal[i] += (float) (0.25 * Math.sin(2 * Math.PI * 19500 * i / SAMPLE_RATE));
+        }
+        for (int i = 2 * SAMPLE_RATE; i < 2.1 * SAMPLE_RATE; i++) {
+            signal[i] = 0;
+        }
+        for (int i = 3 * SAMPLE_RATE; i < 3.01 * SAMPLE_RATE; i++) {
+            signal[i] *= 6;
+        }
+        byte[] bytes = recording(signal);
+
+        SignalQualityService service = new SignalQualityService();
+        Path file = Path.of("audio", "phone", "scene", "capture.wav");
+        assertNull(service.onUploadStarted("phone", "/sdcard/capture.wav", file));
+        service.expect(1, "capture.wav", new UltrasonicFmcwConfig());
+        UploadChunkListener.Observer observer = service.onUploadStarted("phone", "/sdcard/capture.wav", file);
+        assertNotNull(observer);
+
+        // streamed while recording: the samples in order, the header last
+        int half = QualityAnalyzer.DATA_OFFSET + signal.length;
+        for (int offset = QualityAnalyzer.DATA_OFFSET; offset < bytes.length; offset += CHUNK) {
+            int length = Math.min(CHUNK, bytes.length - offset);
+            observer.onChunk(offset, ByteBuffer.wrap(bytes, offset, length).slice());
+            if (offset < half && offset + length >= half) {
+                Map<String, Object> partial = service.getResults().get(file.toString());
+                assertFalse((Boolean) partial.get("complete"));
+                assertEquals(2.5, (Double) partial.get("seconds"), 0.1);
+            }
+        }
+        observer.onChunk(0, ByteBuffer.wrap(bytes, 0, QualityAnalyzer.DATA_OFFSET).slice());
+        service.onUploadReceived("phone", "/sdcard/capture.wav", file);
+
+        Map<String, Object> result = service.getResults().get(file.toString());
+        assertTrue((Boolean) result.get("complete"));
+        assertEquals("phone", result.get("device"));
+        assertEquals(1L, result.get("session"));
+        assertEquals(5.0, (Double) result.get("seconds"), 1e-9);
+        // 20 log10(0.25), a little less for the frames that lost it
+        assertEquals(-12.0, (Double) result.get("in_band_db"), 0.5);
+        // the edges of the dropout and the clipped burst spread over the noise bins
+        assertTrue((Double) result.get("snr_db") > 30, "snr " + result.get("snr_db"));
+        assertEquals(0L, result.get("gaps"));
+        assertEquals(1L, result.get("dropouts"));
+        assertEquals(100L, result.get("longest_dropout_ms"));
+        // a sine of 1.5 times full scale is beyond it a little more than half of the time
+        double clipping = (Double) result.get("clipping_ratio");
+        assertTrue(clipping > 0.5 * 480 / signal.length && clipping < 0.6 * 480 / signal.length, "clipping " + clipping);
+        assertEquals(1.0, (Double) result.get("peak"), 1e-3);
+    }
+
+    @Test
+    public void a_new_capture_replaces_the_measures_of_the_last() {
+        SignalQualityService service = new SignalQualityService();
+        service.expect(1, "scene1.wav", new UltrasonicFmcwConfig());
+        for (int i = 0; i < SignalQualityService.MAX_RESULTS + 10; i++) {
+            Path file = Path.of("audio", "phone" + i, "scene1.wav");
+            assertNotNull(service.onUploadStarted("phone" + i, "scene1.wav", file));
+            if (i >= 5) {
+                service.onUploadReceived("phone" + i, "scene1.wav", file);
+            }
+        }
+        // the uploads in progress stay, the oldest finished ones make room
+        Map<String, Map<String, Object>> results = service.getResults();
+        assertEquals(SignalQualityService.MAX_RESULTS, results.size());
+        assertTrue(results.containsKey(Path.of("audio", "phone0", "scene1.wav").toString()));
+        assertFalse(results.containsKey(Path.of("audio", "phone5", "scene1.wav").toString()));
+
+        service.expect(2, "scene2.wav", new UltrasonicFmcwConfig());
+        assertTrue(service.getResults().isEmpty());
+        assertNull(service.onUploadStarted("phone0", "scene1.wav", Path.of("audio", "phone0", "scene1.wav")));
+        assertNotNull(service.onUploadStarted("phone0", "scene2.wav", Path.of("audio", "phone0", "scene2.wav")));
+        assertEquals(2L, service.getResults().values().iterator().next().get("session"));
+    }
+
+    @Test
+    public void white_noise_has_no_snr_and_gaps_are_counted() throws Exception {
+        float[] signal = noise(3 * SAMPLE_RATE, 0.01, 2);
+        byte[] bytes = recording(signal);
+
+        QualityAnalyzer analyzer = new QualityAnalyzer(SAMPLE_RATE, 18000, 21000, 500, 2);
+        int skipped = 0;
+        for (int offset = 0, chunk = 1; offset < bytes.length; offset += CHUNK, chunk++) {
+            int length = Math.min(CHUNK, bytes.length - offset);
+            if (chunk == 5) {
+                // resumed past it
+                skipped = length;
+                continue;
+            }
+            analyzer.accept(offset, ByteBuffer.wrap(bytes, offset, length).slice());
+        }
+        assertEquals(1, analyzer.getGaps());
+        assertEquals(3.0 - skipped / 2.0 / SAMPLE_RATE, analyzer.getSeconds(), 1e-9);
+        assertEquals(0.0, analyzer.getSnrDb(), 0.5);
+        assertEquals(0, analyzer.getDropouts());
+        assertEquals(0.0, analyzer.getClippingRatio());
+        // white noise of rms 0.01 is -37 dB to a full scale sine, the band holds 3 / 24 of it
+        assertEquals(-37 + 10 * Math.log10(3 / 24.0), analyzer.getInBandDb(), 0.5);
+        assertEquals(-37, analyzer.getRmsDb(), 0.2);
+    }
+}
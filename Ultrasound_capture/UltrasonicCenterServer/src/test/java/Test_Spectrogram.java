@@ -0,0 +1,55 @@
+import com.lannooo.dsp.PcmWav;
+import com.lannooo.dsp.SpectrogramEngine;
+import com.lannooo.dsp.SpectrogramTile;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Test_Spectrogram {
+
+    @Test
+    public void a_tone_lights_up_its_row_while_it_plays() throws Exception {
+        int sampleRate = 48000;
+        // one second of 20 kHz at half scale, then one of silence
+        float[] signal = new float[2 * sampleRate];
+        for (int i = 0; i < sampleRate; i++) {
+            signal[i] = (float) (0.5 * Math.sin(2 * Math.PI * 20000 * i / sampleRate));
+        }
+        Path wav = Test_RangeProfile.writeWav(Files.createTempFile("tone", ".wav"), signal, sampleRate);
+
+        SpectrogramEngine engine = new SpectrogramEngine(sampleRate, 1024, 256, 16000, 24000);
+        assertEquals(172, engine.getBins());
+        PcmWav recording = PcmWav.open(wav);
+        long frames = engine.frames(recording.getFrames());
+        // 4 frames of 256 samples per column, about 21 ms
+        SpectrogramTile tile = engine.compute(recording, 0, 1000, 4);
+        assertEquals((frames + 3) / 4, tile.getColumns());
+        int toneBin = Math.round((20000 - tile.getLowHz()) / tile.getBinHz());
+        for (int c = 2; c < 40; c++) {
+            assertEquals(-6.0, tile.get(c, toneBin), 1.5);
+            assertTrue(tile.get(c, 0) < -60, "column " + c);
+        }
+        assertTrue(tile.get(tile.getColumns() - 2, toneBin) < -100);
+
+        // the second half only, pooled four times as much
+        SpectrogramTile late = engine.compute(recording, frames / 2 + 8, 10, 16);
+        assertEquals(10, late.getColumns());
+        assertEquals((frames / 2 + 8) * 256.0 / sampleRate, late.getStartSeconds(), 1e-9);
+        assertTrue(late.get(0, toneBin) < -100);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(tile.toPng(-110, -30)));
+        assertEquals(tile.getColumns(), image.getWidth());
+        assertEquals(tile.getBins(), image.getHeight());
+        // loud at the tone, dark elsewhere; low frequencies at the bottom
+        assertTrue((image.getRGB(10, tile.getBins() - 1 - toneBin) & 0xFF) > 0x80);
+        assertTrue((image.getRGB(10, tile.getBins() - 1) & 0xFF) < 0x80);
+        Files.deleteIfExists(wav);
+    }
+}
@@ -0,0 +1,78 @@
+import com.lannooo.common.EventLog;
+import com.lannooo.device.UploadCommitter;
+import com.lannooo.device.UploadSink;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Test_UploadCommit {
+
+    @Test
+    public void files_completing_together_are_committed_in_one_batch() throws Exception {
+        Path dir = Files.createTempDirectory("upload-commit");
+        UploadCommitter committer = new UploadCommitter(200, 64, 8);
+        long batches = EventLog.counter("upload.commit.batches");
+        long directories = EventLog.counter("upload.commit.directories");
+
+        // a burst of devices forwarding their recordings at once
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Path part = dir.resolve("rec-" + i + ".wav.part");
+            Files.write(part, new byte[]{(byte) i, 1, 2, 3});
+            commits.add(committer.commit(part, dir.resolve("rec-" + i + ".wav"), UploadSink.FlushPolicy.GROUP));
+        }
+        CompletableFuture.allOf(commits.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        committer.shutdown();
+
+        for (int i = 0; i < 20; i++) {
+            assertFalse(Files.exists(dir.resolve("rec-" + i + ".wav.part")));
+            assertArrayEquals(new byte[]{(byte) i, 1, 2, 3}, Files.readAllBytes(dir.resolve("rec-" + i + ".wav")));
+        }
+        assertEquals(1, EventLog.counter("upload.commit.batches") - batches);
+        assertEquals(1, EventLog.counter("upload.commit.directories") - directories);
+    }
+
+    @Test
+    public void a_missing_part_file_fails_only_its_own_commit() throws Exception {
+        Path dir = Files.createTempDirectory("upload-commit");
+        UploadCommitter committer = new UploadCommitter(50, 64, 8);
+        Path part = dir.resolve("ok.wav.part");
+        Files.write(part, new byte[10]);
+
+        CompletableFuture<Void> ok = committer.commit(part, dir.resolve("ok.wav"), UploadSink.FlushPolicy.GROUP);
+        CompletableFuture<Void> missing = committer.commit(dir.resolve("gone.wav.part"), dir.resolve("gone.wav"),
+                UploadSink.FlushPolicy.GROUP);
+        ok.get(5, TimeUnit.SECONDS);
+        assertThrows(ExecutionException.class, () -> missing.get(5, TimeUnit.SECONDS));
+        committer.shutdown();
+
+        assertTrue(Files.exists(dir.resolve("ok.wav")));
+        assertFalse(Files.exists(dir.resolve("gone.wav")));
+    }
+
+    @Test
+    public void a_file_is_committed_on_its_own_without_a_committer() throws Exception {
+        Path dir = Files.createTempDirectory("upload-commit");
+        Path part = dir.resolve("single.wav.part");
+        Files.write(part, new byte[]{7});
+        // replaces an earlier copy of the same recording
+        Files.write(dir.resolve("single.wav"), new byte[]{1, 2});
+
+        UploadCommitter.commitNow(part, dir.resolve("single.wav"), UploadSink.FlushPolicy.CLOSE);
+
+        assertFalse(Files.exists(part));
+        assertArrayEquals(new byte[]{7}, Files.readAllBytes(dir.resolve("single.wav")));
+    }
+}
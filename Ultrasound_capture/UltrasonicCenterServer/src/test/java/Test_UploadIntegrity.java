@@ -0,0 +1,152 @@
+import com.lannooo.common.AppConstants;
+import com.lannooo.common.Utils;
+import com.lannooo.device.FileUploadManager;
+import com.lannooo.device.UploadingFileItem;
+import com.lannooo.server.FrameSettings;
+import com.lannooo.server.LosslessAudioCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Test_UploadIntegrity {
+    private static final String DEVICE = "test-integrity";
+    private static final FrameSettings SETTINGS = FrameSettings.builder(8192, 4096)
+            .transferIds(true)
+            .chunkCrc(true)
+            .build();
+
+    private final byte[] content = new byte[10000];
+
+    public Test_UploadIntegrity() {
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        Path dir = Path.of(AppConstants.AUDIO_BASE_PATH, DEVICE);
+        if (Files.exists(dir)) {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private ByteBuf chunk(int transferId, int chunkId, int chunks, boolean corrupt) {
+        int offset = (chunkId - 1) * 4096;
+        int size = Math.min(4096, content.length - offset);
+        ByteBuf data = Unpooled.wrappedBuffer(content, offset, size);
+        int crc = Utils.crc32c(data) ^ (corrupt ? 1 : 0);
+        return Unpooled.buffer()
+                .writeInt(transferId)
+                .writeInt(chunkId)
+                .writeInt(chunks)
+                .writeInt(offset)
+                .writeInt(content.length)
+                .writeInt(crc)
+                .writeBytes(data);
+    }
+
+    @Test
+    public void corrupt_chunk_is_requested_again_and_file_verified() throws Exception {
+        FileUploadManager manager = new FileUploadManager();
+        UploadingFileItem fileItem = manager.addTask(DEVICE, 7, null, "/sdcard/rec.wav", 3, content.length, true);
+        assertNotNull(fileItem);
+
+        manager.writeChunk(DEVICE, SETTINGS, chunk(7, 1, 3, false));
+        manager.writeChunk(DEVICE, SETTINGS, chunk(7, 2, 3, true));
+        assertEquals(List.of(List.of(2L, 2L)), fileItem.takeCorruptRanges());
+        manager.writeChunk(DEVICE, SETTINGS, chunk(7, 3, 3, false));
+        assertFalse(fileItem.isFinished());
+
+        manager.writeChunk(DEVICE, SETTINGS, chunk(7, 2, 3, false));
+        assertTrue(fileItem.isFinished());
+        String expected = Utils.hex(Utils.sha256().digest(content));
+        assertEquals(expected, fileItem.getSha256());
+        assertArrayEquals(content, Files.readAllBytes(Path.of(fileItem.getLocalFilename())));
+
+        manager.verifyDigest(DEVICE, 7, expected, 42);
+        assertTrue(fileItem.getVerified());
+        String manifest = Files.readString(Path.of(fileItem.getLocalFilename() + UploadingFileItem.MANIFEST_SUFFIX));
+        assertTrue(manifest.contains(expected));
+        assertTrue(manifest.contains("\"crc_errors\": 1"));
+    }
+
+    @Test
+    public void chunks_in_any_order_complete_and_lost_ones_are_found() throws Exception {
+        FileUploadManager manager = new FileUploadManager();
+        UploadingFileItem fileItem = manager.addTask(DEVICE, 9, null, "/sdcard/striped.wav", 3, content.length, true);
+        manager.writeChunk(DEVICE, SETTINGS, chunk(9, 3, 3, false));
+        manager.writeChunk(DEVICE, SETTINGS, chunk(9, 1, 3, false));
+
+        // the digest came, chunk 2 went down with its lane
+        String expected = Utils.hex(Utils.sha256().digest(content));
+        manager.verifyDigest(DEVICE, 9, expected, 44);
+        assertEquals(List.of(List.of(2L, 2L)), fileItem.takeLostRanges());
+        assertTrue(fileItem.takeLostRanges().isEmpty());
+
+        manager.writeChunk(DEVICE, SETTINGS, chunk(9, 2, 3, false));
+        assertTrue(fileItem.isFinished());
+        assertTrue(fileItem.getVerified());
+        assertEquals(expected, fileItem.getSha256());
+    }
+
+    @Test
+    public void coded_chunks_are_checked_as_sent_and_written_decoded() throws Exception {
+        FileUploadManager manager = new FileUploadManager();
+        UploadingFileItem fileItem = manager.addTask(DEVICE, 10, null, "/sdcard/coded.wav", 3, content.length, true,
+                LosslessAudioCodec.NAME);
+        // anything past a 44 byte header counts as mono samples
+        LosslessAudioCodec.Layout layout = new LosslessAudioCodec.Layout(44, content.length, 1);
+        LosslessAudioCodec codec = new LosslessAudioCodec();
+        long wire = 0;
+        for (int chunkId = 1; chunkId <= 3; chunkId++) {
+            int offset = (chunkId - 1) * 4096;
+            byte[] coded = codec.encodeChunk(content, offset, Math.min(4096, content.length - offset), offset, layout);
+            wire += coded.length;
+            ByteBuf data = Unpooled.wrappedBuffer(coded);
+            manager.writeChunk(DEVICE, SETTINGS, Unpooled.buffer()
+                    .writeInt(10)
+                    .writeInt(chunkId)
+                    .writeInt(3)
+                    .writeInt(offset)
+                    .writeInt(content.length)
+                    .writeInt(Utils.crc32c(data))
+                    .writeBytes(data));
+        }
+        assertTrue(fileItem.isFinished());
+        assertEquals(wire, fileItem.getWireBytes());
+        assertTrue(wire < content.length);
+        assertArrayEquals(content, Files.readAllBytes(Path.of(fileItem.getLocalFilename())));
+        assertEquals(Utils.hex(Utils.sha256().digest(content)), fileItem.getSha256());
+    }
+
+    @Test
+    public void digest_mismatch_discards_file() throws Exception {
+        FileUploadManager manager = new FileUploadManager();
+        UploadingFileItem fileItem = manager.addTask(DEVICE, 8, null, "/sdcard/bad.wav", 3, content.length, true);
+        manager.verifyDigest(DEVICE, 8, "00", 43);
+        for (int chunkId = 1; chunkId <= 3; chunkId++) {
+            manager.writeChunk(DEVICE, SETTINGS, chunk(8, chunkId, 3, false));
+        }
+        assertTrue(fileItem.isFailed());
+        assertFalse(Files.exists(Path.of(fileItem.getLocalFilename())));
+    }
+}
@@ -0,0 +1,92 @@
+import com.lannooo.device.UploadSink;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Test_UploadSink {
+    private static final int CHUNK = 2048;
+
+    @TempDir
+    Path dir;
+
+    private byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 7 + 3);
+        }
+        return content;
+    }
+
+    private void writeChunks(UploadSink sink, byte[] content, int... chunkIds) throws Exception {
+        for (int chunkId : chunkIds) {
+            int offset = (chunkId - 1) * CHUNK;
+            sink.write(offset, Unpooled.wrappedBuffer(content, offset, Math.min(CHUNK, content.length - offset)));
+        }
+    }
+
+    @Test
+    public void channel_sink_batches_contiguous_chunks() throws Exception {
+        byte[] content = content(CHUNK * 100 + 500);
+        Path file = dir.resolve("channel.part");
+        UploadSink sink = UploadSink.open(file, content.length, true,
+                new UploadSink.Options(UploadSink.Type.CHANNEL, UploadSink.FlushPolicy.CLOSE, Long.MAX_VALUE, 64 * 1024,
+                        false));
+        // set to its length before any data arrives
+        assertEquals(content.length, Files.size(file));
+
+        int[] inOrder = new int[99];
+        for (int i = 0; i < inOrder.length; i++) {
+            inOrder[i] = i + 2;
+        }
+        writeChunks(sink, content, inOrder);
+        // chunk 1 comes last, e.g. resent after a CRC error
+        writeChunks(sink, content, 101, 1);
+        sink.close();
+
+        assertArrayEquals(content, Files.readAllBytes(file));
+        assertTrue(sink.getFileWrites() < 10, "file writes: " + sink.getFileWrites());
+    }
+
+    @Test
+    public void mapped_sink_writes_in_place() throws Exception {
+        byte[] content = content(CHUNK * 10 + 1);
+        Path file = dir.resolve("mapped.part");
+        UploadSink sink = UploadSink.open(file, content.length, true,
+                new UploadSink.Options(UploadSink.Type.MMAP, UploadSink.FlushPolicy.BYTES, CHUNK * 4, 0, false));
+        writeChunks(sink, content, 11, 3, 1, 2, 4, 5, 6, 7, 8, 9, 10);
+        sink.close();
+
+        assertArrayEquals(content, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void preallocation_fills_with_zeros_after_what_is_there() throws Exception {
+        byte[] content = content(UploadSink.PREALLOCATE_BLOCK + CHUNK * 3 + 7);
+        Path file = dir.resolve("preallocated.part");
+        // left by an earlier attempt
+        Files.write(file, Arrays.copyOf(content, CHUNK));
+        UploadSink sink = UploadSink.open(file, content.length, false,
+                new UploadSink.Options(UploadSink.Type.CHANNEL, UploadSink.FlushPolicy.CLOSE, Long.MAX_VALUE, 0, true));
+
+        byte[] filled = Files.readAllBytes(file);
+        assertEquals(content.length, filled.length);
+        assertArrayEquals(Arrays.copyOf(content, CHUNK), Arrays.copyOf(filled, CHUNK));
+        assertArrayEquals(new byte[content.length - CHUNK], Arrays.copyOfRange(filled, CHUNK, filled.length));
+
+        int[] rest = new int[(content.length + CHUNK - 1) / CHUNK - 1];
+        for (int i = 0; i < rest.length; i++) {
+            rest[i] = i + 2;
+        }
+        writeChunks(sink, content, rest);
+        sink.close();
+        assertArrayEquals(content, Files.readAllBytes(file));
+    }
+}
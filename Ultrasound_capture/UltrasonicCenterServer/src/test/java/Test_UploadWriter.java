@@ -0,0 +1,49 @@
+import com.lannooo.device.UploadWriter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Test_UploadWriter {
+
+    @Test
+    public void reading_pauses_above_high_water_and_resumes_below_low_water() throws Exception {
+        UploadWriter writer = new UploadWriter(1, 100, 50);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        CountDownLatch disk = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        List<Integer> order = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            int chunk = i;
+            writer.execute("device", channel, 40, () -> {
+                try {
+                    disk.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                order.add(chunk);
+                done.countDown();
+            });
+        }
+        assertEquals(120, writer.getPendingBytes(channel));
+        assertFalse(channel.config().isAutoRead());
+
+        disk.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        writer.shutdown();
+        // resumed on the event loop of the channel
+        channel.runPendingTasks();
+        assertEquals(0, writer.getPendingBytes(channel));
+        assertTrue(channel.config().isAutoRead());
+        assertEquals(List.of(0, 1, 2), order);
+        assertFalse(channel.finish());
+    }
+}
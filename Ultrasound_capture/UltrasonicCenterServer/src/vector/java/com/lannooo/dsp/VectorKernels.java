@@ -0,0 +1,49 @@
+package com.lannooo.dsp;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The kernels the widest vectors of the CPU run faster than the scalar loops, the elements past the last whole
+ * vector by the loops. That is only the dB conversion: C2 vectorizes the other element-wise loops by itself, and
+ * DspKernelsBenchmark times them a little slower with the Vector API, so they are inherited.
+ * Only loaded through {@link DspKernels#vector()}, when the jdk.incubator.vector module is there.
+ */
+final class VectorKernels extends ScalarKernels {
+    private static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> I = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public String getName() {
+        return "vector" + F.length() * 32;
+    }
+
+    @Override
+    public void decibels(float[] power, float scale, float floorDb, float[] dst, int n) {
+        int i = 0;
+        if (I.length() == F.length()) {
+            for (int upper = F.loopBound(n); i < upper; i += F.length()) {
+                FloatVector p = FloatVector.fromArray(F, power, i).mul(scale);
+                IntVector bits = p.reinterpretAsInts();
+                FloatVector e = (FloatVector) bits.lanewise(VectorOperators.LSHR, 23).and(0xFF).sub(127)
+                        .convert(VectorOperators.I2F, 0);
+                FloatVector m = bits.and(0x007FFFFF).or(0x3F800000).reinterpretAsFloats();
+                VectorMask<Float> high = m.compare(VectorOperators.GT, 1.5f);
+                m = m.blend(m.mul(0.5f), high);
+                e = e.blend(e.add(1f), high);
+                FloatVector s = m.sub(1f).div(m.add(1f));
+                FloatVector s2 = s.mul(s);
+                FloatVector series = s2.mul(1f / 9f).add(1f / 7f).mul(s2).add(1f / 5f).mul(s2).add(1f / 3f)
+                        .mul(s2).add(1f).mul(s);
+                FloatVector db = e.mul(LN2).add(series.mul(2f)).mul(DB_PER_LN);
+                VectorMask<Float> valid = p.compare(VectorOperators.GE, Float.MIN_NORMAL)
+                        .and(p.compare(VectorOperators.LE, Float.MAX_VALUE));
+                FloatVector.broadcast(F, floorDb).blend(db, valid).intoArray(dst, i);
+            }
+        }
+        decibels(power, scale, floorDb, dst, i, n);
+    }
+}
@@ -265,6 +265,10 @@ classdef UltrasonicAudioClientV2 < handle
             payload.deleteAfterForward = true;
             payload.mode = 'pro';
             payload.ultrasonic = UltrasonicAudioClientV2.defaultUltrasonicConfig();
+            % return only after the phones acknowledged that recording started,
+            % the response then carries the measured ack latency
+            payload.waitForAck = true;
+            payload.ackTimeoutMs = 5000;
         end
 
         function ext = outputExtensionForMode(modeName)
@@ -12,8 +12,9 @@ capture_duration = 7;
 repeat_count = 3;
 
 RADAR_STARTUP_DELAY = 500;
-% Important: this delay must include the standalone ultrasonic app pre-cue
-% beep and its recorder/player startup latency.
+% Initial estimate only: the capture start request waits for the phone's
+% ack, and the measured ack latency (pre-cue beep and recorder startup
+% included) replaces this value after every successful capture.
 PHONE_STARTUP_DELAY = 2200;
 
 AUDIO_START_OFFSET = -1000;
@@ -191,6 +192,11 @@ for scene_idx = 1:length(actionScenes)
         total_captures = total_captures + 1;
         if success
             success_captures = success_captures + 1;
+            measured_phone_delay = safeField(metadata, 'audio_ack_latency_ms', 0);
+            if measured_phone_delay > 0
+                PHONE_STARTUP_DELAY = round(measured_phone_delay);
+                fprintf('Phone startup delay updated to measured %d ms\n', PHONE_STARTUP_DELAY);
+            end
             saveMetadata(metadata, scene, staff_combo, subject_id, subject_dir, repeat_idx, ...
                 selected_location, selected_sub_location, sample_id);
             appendCaptureLog(log_filepath, 'V2', device_id, selected_location, selected_sub_location, scene, repeat_idx, true, ...
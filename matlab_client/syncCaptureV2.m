@@ -89,6 +89,15 @@ function [success, metadata] = syncCaptureV2(audioClient, radarObj, sceneId, dur
                 end
                 if isfield(captureResponse, 'request_audio_format')
                     metadata.audio_format = captureResponse.request_audio_format;
+                end
+                % server measured time from sending the start command to the
+                % phone confirming that it is recording
+                if isfield(captureResponse, 'max_ack_latency_ms') && captureResponse.max_ack_latency_ms > 0
+                    metadata.audio_ack_latency_ms = captureResponse.max_ack_latency_ms;
+                    metadata.audio_acked = logical(safeField(captureResponse, 'acked', false));
+                    metadata.audio_start_skew_ms = safeField(captureResponse, 'skew_ms', 0);
+                    metadata.audio_actual_start_utc = round(metadata.audio_command_sent_utc + captureResponse.max_ack_latency_ms);
+                    fprintf('  [audio] phone ack after %.1f ms (planned %d ms)\n', captureResponse.max_ack_latency_ms, phoneDelay);
                 end
                 audioSent = true;
             end
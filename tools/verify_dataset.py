@@ -85,6 +85,34 @@ def verify_audio_file(file_path: str, min_duration: float = 0.5) -> Tuple[bool,
         return False, f"读取音频文件失败: {str(e)}"
 
 
+def check_upload_manifest(file_path: str) -> Tuple[bool, str]:
+    """
+    检查服务器上传时写下的清单文件（<文件>.manifest.json）
+
+    服务器在接收时已逐块校验CRC32C并计算SHA-256，与手机端的摘要一致时 verified 为 true，
+    此时无需再重新计算哈希，只需确认文件大小未变。
+
+    返回:
+        (是否有清单, 信息)，信息为 "OK"、警告或错误
+    """
+    manifest_path = file_path + '.manifest.json'
+    if not os.path.exists(manifest_path):
+        return False, "无上传清单"
+    try:
+        with open(manifest_path, 'r', encoding='utf-8') as f:
+            manifest = json.load(f)
+    except Exception as e:
+        return True, f"无法解析上传清单: {str(e)}"
+    if os.path.getsize(file_path) != manifest.get('length'):
+        return True, f"文件大小与上传清单不符: {os.path.getsize(file_path)} != {manifest.get('length')}"
+    verified = manifest.get('verified')
+    if verified is True:
+        return True, "OK"
+    if verified is False:
+        return True, f"上传摘要不一致: {manifest.get('sha256')} != {manifest.get('device_sha256')}"
+    return True, "上传清单缺少手机端摘要，未校验"
+
+
 def compute_file_md5(file_path: str) -> str:
     """计算文件MD5哈希"""
     md5 = hashlib.md5()
@@ -190,11 +218,24 @@ def verify_dataset(
                 if not valid:
                     report['errors'].append(f"[{subject_name}/sample_{sample_id}] {msg}")
                     is_valid = False
+
+            # 上传时已校验的文件不必再计算哈希
+            audio_verified = False
+            if is_valid:
+                has_manifest, msg = check_upload_manifest(audio_file)
+                if has_manifest and msg == "OK":
+                    audio_verified = True
+                elif has_manifest and msg.startswith("上传清单缺少"):
+                    report['warnings'].append(f"[{subject_name}/sample_{sample_id}] {msg}")
+                elif has_manifest:
+                    report['errors'].append(f"[{subject_name}/sample_{sample_id}] {msg}")
+                    is_valid = False
             
-            # 计算MD5（可选）
+            # 计算MD5（可选，仅针对没有上传清单的文件）
             if check_md5 and is_valid:
                 radar_md5 = compute_file_md5(radar_file)
-                audio_md5 = compute_file_md5(audio_file)
+                if not audio_verified:
+                    audio_md5 = compute_file_md5(audio_file)
                 # 可以将MD5保存到报告中用于后续校验
             
             if is_valid:
@@ -270,7 +311,7 @@ def main():
     parser.add_argument('--output', type=str, default='verification_report.txt',
                         help='验证报告输出文件')
     parser.add_argument('--check-md5', action='store_true',
-                        help='计算文件MD5校验和（耗时较长）')
+                        help='计算文件MD5校验和（耗时较长，上传时已校验的音频文件会跳过）')
     parser.add_argument('--verbose', action='store_true',
                         help='显示详细输出')
     